@@ -2,17 +2,41 @@ package com.j256.simplemetrics.manager;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import com.j256.simplemetrics.metric.BaseControlledMetric;
 import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.LabeledMetric;
+import com.j256.simplemetrics.metric.MetricValue;
 import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.metric.MetricValuePercentiles;
+import com.j256.simplemetrics.metric.MetricValuePrimitive;
+import com.j256.simplemetrics.metric.MetricValueSketch;
+import com.j256.simplemetrics.metric.MetricValueTotal;
+import com.j256.simplemetrics.metric.MultiSeriesMetric;
 import com.j256.simplemetrics.persister.MetricDetailsPersister;
 import com.j256.simplemetrics.persister.MetricValuesPersister;
+import com.j256.simplemetrics.persister.MetricsSnapshotPersister;
 import com.j256.simplemetrics.utils.MiscUtils;
 
 /**
@@ -20,39 +44,131 @@ import com.j256.simplemetrics.utils.MiscUtils;
  * metrics with this class, register classes that need to manually update metrics values, and controls the metrics
  * persistence.
  * 
+ * <p>
+ * The metrics are indexed in a concurrent hash map by their component, module, name, and label values so registering,
+ * looking up, and unregistering a metric does not lock and takes constant time. Persisting iterates over the index
+ * without locking so it does not stall registrations.
+ * </p>
+ * 
+ * <p>
+ * If a persister-executor is set then the persisters are run concurrently so one hung destination does not stall the
+ * others. Each persister gets its own deadline which is counted from when that persister starts running. The success, failures, and latency of each persister are tracked in its
+ * {@link PersisterStats}.
+ * </p>
+ * 
+ * <p>
+ * If an updater-executor is set then the {@link MetricsUpdater}s are also run concurrently within a time budget. An
+ * updater that runs over is left running and skipped until it finishes so a stuck updater does not hold up the
+ * persist. The duration of each updater is tracked in its {@link UpdaterStats}.
+ * </p>
+ * 
+ * <p>
+ * Snapshot persisters are given a {@link MetricsSnapshot} which holds the values in primitive columns. The manager
+ * alternates between two snapshots which it reuses so persisting to them does not build maps or details per metric. A
+ * snapshot that is still being read by a persister which timed out is not reused and a new one is allocated instead.
+ * </p>
+ * 
+ * <p>
+ * Filling a snapshot is not entirely free of allocations. The metrics still make a new persisted value each time, and
+ * values which don't implement {@link MetricValuePrimitive}, multi-series metrics, sampled metrics, and percentile
+ * metrics are boxed or copied into details. Values persisters are given a new map of boxed numbers on each persist
+ * and, if there are any details persisters, {@link #persist()} builds the details for every metric and then copies
+ * their values into that map.
+ * </p>
+ * 
  * @author graywatson
  */
 public class MetricsManager {
 
+	private static final String[] NO_LABEL_VALUES = new String[0];
+
 	private MetricValuesPersister[] metricValuesPersisters = new MetricValuesPersister[0];
 	private MetricDetailsPersister[] metricDetailsPersisters = new MetricDetailsPersister[0];
+	private MetricsSnapshotPersister[] metricsSnapshotPersisters = new MetricsSnapshotPersister[0];
 
-	private final List<ControlledMetric<?, ?>> metrics = new ArrayList<ControlledMetric<?, ?>>();
+	private final ConcurrentMap<MetricKey, ControlledMetric<?, ?>> metricIndex =
+			new ConcurrentHashMap<MetricKey, ControlledMetric<?, ?>>();
+	private final Collection<ControlledMetric<?, ?>> metrics = Collections.unmodifiableCollection(metricIndex.values());
 	private final List<MetricsUpdater> metricsUpdaters = new ArrayList<MetricsUpdater>();
-	private final List<MetricsRegisterListener> registerListeners = new ArrayList<MetricsRegisterListener>();
+	private final List<MetricsRegisterListener> registerListeners =
+			new CopyOnWriteArrayList<MetricsRegisterListener>();
 	private int persistCount;
+	private ExecutorService persisterExecutor;
+	private long persisterTimeoutMillis;
+	private final ConcurrentMap<Object, PersisterStats> persisterStatsMap =
+			new ConcurrentHashMap<Object, PersisterStats>();
+	private volatile PersistResult lastPersistResult;
+	// one snapshot is filled while the one from the last persist may still be read by a slow persister
+	private final MetricsSnapshot[] snapshots = new MetricsSnapshot[] { new MetricsSnapshot(), new MetricsSnapshot() };
+	private int snapshotIndex;
+	private ExecutorService updaterExecutor;
+	private long updaterTimeoutMillis;
+	private final ConcurrentMap<MetricsUpdater, UpdaterStats> updaterStatsMap =
+			new ConcurrentHashMap<MetricsUpdater, UpdaterStats>();
+	// held while updating so concurrent callers wait their turn instead of skipping each other's updaters
+	private final Object updateLock = new Object();
 
 	/**
-	 * Register a metric with the manager.
+	 * Register a metric with the manager. Registering the same metric again does nothing.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If a different metric with the same component, module, name, and label values is already registered.
 	 */
 	public void registerMetric(ControlledMetric<?, ?> metric) {
-		synchronized (metrics) {
-			metrics.add(metric);
+		ControlledMetric<?, ?> existing = getOrRegisterMetric(metric);
+		if (existing != metric) {
+			throw new IllegalArgumentException("Metric " + existing + " is already registered");
 		}
-		for (MetricsRegisterListener registerListener : registerListeners) {
-			registerListener.metricRegistered(metric);
+	}
+
+	/**
+	 * Register a metric with the manager unless a metric with the same component, module, name, and label values is
+	 * already registered. This is useful for metrics that are created on demand by a number of threads.
+	 * 
+	 * @return The metric that was already registered or the metric argument if it was registered.
+	 * @throws IllegalArgumentException
+	 *             If the metric that is already registered is of a different class than the argument.
+	 */
+	public <M extends ControlledMetric<?, ?>> M getOrRegisterMetric(M metric) {
+		ControlledMetric<?, ?> existing = metricIndex.putIfAbsent(new MetricKey(metric), metric);
+		if (existing == null) {
+			for (MetricsRegisterListener registerListener : registerListeners) {
+				registerListener.metricRegistered(metric);
+			}
+			return metric;
+		}
+		if (existing.getClass() != metric.getClass()) {
+			throw new IllegalArgumentException("Metric " + existing + " is already registered as a "
+					+ existing.getClass().getSimpleName() + " not a " + metric.getClass().getSimpleName());
 		}
+		@SuppressWarnings("unchecked")
+		M castExisting = (M) existing;
+		return castExisting;
 	}
 
 	/**
-	 * Unregister a metric with the manager.
+	 * Return the registered metric with the component, module, name, and label values or null if none.
+	 * 
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name such as "pageview" or null if none.
+	 * @param name
+	 *            Name of the metric.
+	 * @param labelValues
+	 *            Values of the labels of the metric, if any, in order.
+	 */
+	public ControlledMetric<?, ?> getMetric(String component, String module, String name, String... labelValues) {
+		return metricIndex.get(new MetricKey(component, module, name, labelValues));
+	}
+
+	/**
+	 * Unregister a metric with the manager. This does nothing if the metric is not registered.
 	 */
 	public void unregisterMetric(ControlledMetric<?, ?> metric) {
-		boolean removed;
-		synchronized (metrics) {
-			removed = metrics.remove(metric);
-		}
-		if (removed) {
+		MetricKey key = new MetricKey(metric);
+		// the metrics' equals would match a different instance with the same identity so we check that it is ours
+		if (metricIndex.get(key) == metric && metricIndex.remove(key, metric)) {
 			for (MetricsRegisterListener registerListener : registerListeners) {
 				registerListener.metricUnregistered(metric);
 			}
@@ -65,6 +181,20 @@ public class MetricsManager {
 	public void registerUpdater(MetricsUpdater metricsUpdater) {
 		synchronized (metricsUpdaters) {
 			metricsUpdaters.add(metricsUpdater);
+			updaterStatsMap.putIfAbsent(metricsUpdater, new UpdaterStats(metricsUpdater));
+		}
+	}
+
+	/**
+	 * Unregister a {@link MetricsUpdater} so it is no longer called before persisting and drop its
+	 * {@link UpdaterStats} so it can be garbage collected. This does nothing if the updater is not registered.
+	 */
+	public void unregisterUpdater(MetricsUpdater metricsUpdater) {
+		synchronized (metricsUpdaters) {
+			// it may have been registered more than once in which case the stats are still in use
+			if (metricsUpdaters.remove(metricsUpdater) && !metricsUpdaters.contains(metricsUpdater)) {
+				updaterStatsMap.remove(metricsUpdater);
+			}
 		}
 	}
 
@@ -72,14 +202,12 @@ public class MetricsManager {
 	 * Register a listener for metrics registered and unregistered.
 	 */
 	public void registerRegisterListener(MetricsRegisterListener registerListener) {
-		synchronized (registerListener) {
-			registerListeners.add(registerListener);
-		}
+		registerListeners.add(registerListener);
 	}
 
 	/**
 	 * Persists the configured metrics by calling to the registered updaters, extracting the value-details from the
-	 * metrics, and then calling the registered value and details persisters.
+	 * metrics, and then calling the registered value, details, and snapshot persisters.
 	 */
 	public void persist() throws IOException {
 
@@ -94,10 +222,12 @@ public class MetricsManager {
 
 		// first we make a map of metric -> details for the persisters
 		long timeCollectedMillis = System.currentTimeMillis();
-		Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetailMap;
-		synchronized (metrics) {
-			metricValueDetailMap = new HashMap<ControlledMetric<?, ?>, MetricValueDetails>(metrics.size());
-			for (ControlledMetric<?, ?> metric : metrics) {
+		Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetailMap =
+				new HashMap<ControlledMetric<?, ?>, MetricValueDetails>(metrics.size());
+		for (ControlledMetric<?, ?> metric : metrics) {
+			if (metric instanceof MultiSeriesMetric) {
+				((MultiSeriesMetric) metric).addSeriesToPersist(metricValueDetailMap);
+			} else {
 				metricValueDetailMap.put(metric, metric.getValueDetailsToPersist());
 			}
 		}
@@ -113,36 +243,23 @@ public class MetricsManager {
 		}
 		metricValueDetailMap = Collections.unmodifiableMap(metricValueDetailMap);
 
-		Exception wasThrown = null;
-		for (MetricValuesPersister persister : metricValuesPersisters) {
-			try {
-				persister.persist(metricValueMap, timeCollectedMillis);
-			} catch (Exception e) {
-				// hold any exceptions thrown by them so we can get through all persisters
-				wasThrown = e;
-			}
-		}
-		for (MetricDetailsPersister persister : metricDetailsPersisters) {
-			try {
-				persister.persist(metricValueDetailMap, timeCollectedMillis);
-			} catch (Exception e) {
-				// hold any exceptions thrown by them so we can get through all persisters
-				wasThrown = e;
-			}
-		}
-		persistCount++;
-		if (wasThrown != null) {
-			if (wasThrown instanceof IOException) {
-				throw (IOException) wasThrown;
-			} else {
-				throw new IOException(wasThrown);
+		// the snapshot is filled from the details since the metrics have already been reset
+		MetricsSnapshot snapshot = null;
+		if (metricsSnapshotPersisters.length > 0) {
+			synchronized (snapshots) {
+				snapshot = nextSnapshot(timeCollectedMillis);
+				for (Entry<ControlledMetric<?, ?>, MetricValueDetails> entry : metricValueDetailMap.entrySet()) {
+					addDetailsToSnapshot(snapshot, entry.getKey(), entry.getValue());
+				}
 			}
 		}
+
+		callPersisters(metricValueMap, metricValueDetailMap, snapshot, timeCollectedMillis);
 	}
 
 	/**
-	 * Persists the configured metrics to the value persisters <i>only</i> by extracting the values from the metrics and
-	 * then calling the registered persisters. Usually you will want to call {@link #persist()} instead.
+	 * Persists the configured metrics to the value and snapshot persisters <i>only</i> by extracting the values from
+	 * the metrics and then calling the registered persisters. Usually you will want to call {@link #persist()} instead.
 	 * 
 	 * <p>
 	 * <b>NOTE:</b> you should call updateMetrics() before calling this method if necessary.
@@ -150,34 +267,30 @@ public class MetricsManager {
 	 */
 	public void persistValuesOnly() throws IOException {
 
-		// first we make a unmodifiable map of metric -> persisted value for the persisters
 		long timeCollectedMillis = System.currentTimeMillis();
-		Map<ControlledMetric<?, ?>, Number> metricValues;
-		synchronized (metrics) {
-			metricValues = new HashMap<ControlledMetric<?, ?>, Number>(metrics.size());
-			for (ControlledMetric<?, ?> metric : metrics) {
-				metricValues.put(metric, metric.getValueToPersist());
-			}
+		if (metricsSnapshotPersisters.length > 0) {
+			persistSnapshot(timeCollectedMillis);
+			return;
 		}
-		metricValues = Collections.unmodifiableMap(metricValues);
 
-		Exception wasThrown = null;
-		for (MetricValuesPersister persister : metricValuesPersisters) {
-			try {
-				persister.persist(metricValues, timeCollectedMillis);
-			} catch (Exception e) {
-				// hold any exceptions thrown by them so we can get through all persisters
-				wasThrown = e;
-			}
-		}
-		persistCount++;
-		if (wasThrown != null) {
-			if (wasThrown instanceof IOException) {
-				throw (IOException) wasThrown;
+		// first we make a unmodifiable map of metric -> persisted value for the persisters
+		Map<ControlledMetric<?, ?>, Number> metricValues =
+				new HashMap<ControlledMetric<?, ?>, Number>(metrics.size());
+		for (ControlledMetric<?, ?> metric : metrics) {
+			if (metric instanceof MultiSeriesMetric) {
+				Map<ControlledMetric<?, ?>, MetricValueDetails> seriesMap =
+						new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+				((MultiSeriesMetric) metric).addSeriesToPersist(seriesMap);
+				for (Entry<ControlledMetric<?, ?>, MetricValueDetails> entry : seriesMap.entrySet()) {
+					metricValues.put(entry.getKey(), entry.getValue().getValue());
+				}
 			} else {
-				throw new IOException(wasThrown);
+				metricValues.put(metric, metric.getValueToPersist());
 			}
 		}
+		metricValues = Collections.unmodifiableMap(metricValues);
+
+		callPersisters(metricValues, null, null, timeCollectedMillis);
 	}
 
 	/**
@@ -186,19 +299,16 @@ public class MetricsManager {
 	 * NOTE: this does not call {@link #updateMetrics()} beforehand.
 	 */
 	public Map<ControlledMetric<?, ?>, Number> getMetricValuesMap() {
-		synchronized (metrics) {
-			Map<ControlledMetric<?, ?>, Number> metricValues =
-					new HashMap<ControlledMetric<?, ?>, Number>(metrics.size());
-			for (ControlledMetric<?, ?> metric : metrics) {
-				Number value = metric.getValue();
-				// convert the value to a long if possible
-				if (value.doubleValue() == value.longValue()) {
-					value = value.longValue();
-				}
-				metricValues.put(metric, value);
+		Map<ControlledMetric<?, ?>, Number> metricValues = new HashMap<ControlledMetric<?, ?>, Number>(metrics.size());
+		for (ControlledMetric<?, ?> metric : metrics) {
+			Number value = metric.getValue();
+			// convert the value to a long if possible
+			if (value.doubleValue() == value.longValue()) {
+				value = value.longValue();
 			}
-			return metricValues;
+			metricValues.put(metric, value);
 		}
+		return metricValues;
 	}
 
 	/**
@@ -207,35 +317,55 @@ public class MetricsManager {
 	 * NOTE: this does not call {@link #updateMetrics()} beforehand.
 	 */
 	public Map<ControlledMetric<?, ?>, MetricValueDetails> getMetricValueDetailsMap() {
-		synchronized (metrics) {
-			Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails =
-					new HashMap<ControlledMetric<?, ?>, MetricValueDetails>(metrics.size());
-			for (ControlledMetric<?, ?> metric : metrics) {
-				metricValueDetails.put(metric, metric.getValueDetails());
-			}
-			return metricValueDetails;
+		Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails =
+				new HashMap<ControlledMetric<?, ?>, MetricValueDetails>(metrics.size());
+		for (ControlledMetric<?, ?> metric : metrics) {
+			metricValueDetails.put(metric, metric.getValueDetails());
 		}
+		return metricValueDetails;
 	}
 
 	/**
-	 * Update the various classes' metrics.
+	 * Update the various classes' metrics. If there is an updater-executor then the updaters are run concurrently and
+	 * their exceptions are recorded in their {@link UpdaterStats} instead of being thrown. Concurrent calls, such as
+	 * from a persist and from JMX, are run one after the other so only an updater still running from an update that
+	 * timed out is skipped.
 	 */
 	public void updateMetrics() {
-		synchronized (metricsUpdaters) {
+		synchronized (updateLock) {
+			// copy the updaters so they are not run while holding the lock that registering them needs
+			List<MetricsUpdater> updaters;
+			synchronized (metricsUpdaters) {
+				updaters = new ArrayList<MetricsUpdater>(metricsUpdaters);
+			}
+			ExecutorService executor = updaterExecutor;
+			if (executor != null) {
+				updateConcurrently(executor, updaters);
+				return;
+			}
 			// call our classes to update their stats
-			for (MetricsUpdater metricsUpdater : metricsUpdaters) {
-				metricsUpdater.updateMetrics();
+			for (MetricsUpdater metricsUpdater : updaters) {
+				UpdaterStats stats = updaterStatsMap.get(metricsUpdater);
+				if (stats == null) {
+					// unregistered since we copied the list
+					continue;
+				}
+				// it may still be running if the executor was just removed
+				if (!stats.tryStart()) {
+					stats.recordSkipped();
+					continue;
+				}
+				runUpdater(metricsUpdater, stats);
 			}
 		}
 	}
 
 	/**
-	 * @return An unmodifiable collection of metrics we are managing.
+	 * @return An unmodifiable collection of metrics we are managing. It is a view of the metrics which can be iterated
+	 *         over without locking while metrics are being registered and unregistered.
 	 */
 	public Collection<ControlledMetric<?, ?>> getMetrics() {
-		synchronized (metrics) {
-			return Collections.unmodifiableList(metrics);
-		}
+		return metrics;
 	}
 
 	/**
@@ -259,12 +389,9 @@ public class MetricsManager {
 	public String[] getMetricValues() {
 		// update the metrics
 		updateMetrics();
-		List<String> values;
-		synchronized (metrics) {
-			values = new ArrayList<String>(metrics.size());
-			for (ControlledMetric<?, ?> metric : metrics) {
-				values.add(MiscUtils.metricToString(metric) + "=" + metric.getValue());
-			}
+		List<String> values = new ArrayList<String>(metrics.size());
+		for (ControlledMetric<?, ?> metric : metrics) {
+			values.add(MiscUtils.metricToString(metric) + "=" + metric.getValue());
 		}
 		return values.toArray(new String[values.size()]);
 	}
@@ -272,4 +399,561 @@ public class MetricsManager {
 	public int getPersistCount() {
 		return persistCount;
 	}
+
+	/**
+	 * Set the persisters which are given a {@link MetricsSnapshot} of the metrics. Use a
+	 * {@link com.j256.simplemetrics.persister.MetricsSnapshotPersisterAdapter} to wrap a values or details persister.
+	 */
+	// @NotRequired("Default is a value or value-details persister")
+	public void setMetricsSnapshotPersisters(MetricsSnapshotPersister[] metricsSnapshotPersisters) {
+		this.metricsSnapshotPersisters = metricsSnapshotPersisters;
+	}
+
+	/**
+	 * Set the executor which runs the persisters concurrently so one slow persister does not delay the others. If this
+	 * is not set, which is the default, the persisters are called one after another by the thread that persists.
+	 */
+	// @NotRequired("Default is to call the persisters from the persisting thread")
+	public void setPersisterExecutor(ExecutorService persisterExecutor) {
+		this.persisterExecutor = persisterExecutor;
+	}
+
+	/**
+	 * Set the number of milliseconds that the persisters are given to finish when they are run by the
+	 * persister-executor. Each persister's time starts when it starts running so persisters queued behind others in a
+	 * bounded pool are not penalized. A persister that takes longer is interrupted and counted as failed. 0, the
+	 * default, means wait forever.
+	 */
+	// @NotRequired("Default is to wait forever")
+	public void setPersisterTimeoutMillis(long persisterTimeoutMillis) {
+		this.persisterTimeoutMillis = persisterTimeoutMillis;
+	}
+
+	/**
+	 * Set the executor which runs the updaters concurrently. It should have a bounded number of threads since an
+	 * updater that times out keeps its thread until it finishes. If this is not set, which is the default, the updaters
+	 * are called one after another by the thread that updates.
+	 */
+	// @NotRequired("Default is to call the updaters from the updating thread")
+	public void setUpdaterExecutor(ExecutorService updaterExecutor) {
+		this.updaterExecutor = updaterExecutor;
+	}
+
+	/**
+	 * Set the number of milliseconds that the updaters are given to finish when they are run by the updater-executor.
+	 * An updater that takes longer is not interrupted but its metrics are marked as stale and it is skipped by the
+	 * following updates until it finishes. 0, the default, means wait for the updaters to finish.
+	 */
+	// @NotRequired("Default is to wait for the updaters")
+	public void setUpdaterTimeoutMillis(long updaterTimeoutMillis) {
+		this.updaterTimeoutMillis = updaterTimeoutMillis;
+	}
+
+	/**
+	 * Return the stats of the runs of each of the registered updaters.
+	 */
+	public Collection<UpdaterStats> getUpdaterStats() {
+		return Collections.unmodifiableCollection(updaterStatsMap.values());
+	}
+
+	/**
+	 * Return the stats of the runs of an updater or null if it is not registered.
+	 */
+	public UpdaterStats getUpdaterStats(MetricsUpdater updater) {
+		return updaterStatsMap.get(updater);
+	}
+
+	/**
+	 * Return the stats of the calls to each of the persisters that have been called.
+	 */
+	public Collection<PersisterStats> getPersisterStats() {
+		return Collections.unmodifiableCollection(persisterStatsMap.values());
+	}
+
+	/**
+	 * Return the stats of the calls to a persister or null if it has not been called.
+	 */
+	public PersisterStats getPersisterStats(Object persister) {
+		return persisterStatsMap.get(persister);
+	}
+
+	/**
+	 * Return the aggregate result of calling the persisters in the last persist or null if there has not been one.
+	 */
+	public PersistResult getLastPersistResult() {
+		return lastPersistResult;
+	}
+
+	/**
+	 * Fill the next snapshot straight from the metrics, without building details for them unless they have multiple
+	 * series, and call the value and snapshot persisters.
+	 */
+	private void persistSnapshot(long timeCollectedMillis) throws IOException {
+		MetricsSnapshot snapshot;
+		synchronized (snapshots) {
+			snapshot = nextSnapshot(timeCollectedMillis);
+			Map<ControlledMetric<?, ?>, MetricValueDetails> seriesMap = null;
+			for (ControlledMetric<?, ?> metric : metrics) {
+				if (metric instanceof MultiSeriesMetric) {
+					if (seriesMap == null) {
+						seriesMap = new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+					} else {
+						seriesMap.clear();
+					}
+					((MultiSeriesMetric) metric).addSeriesToPersist(seriesMap);
+					for (Entry<ControlledMetric<?, ?>, MetricValueDetails> entry : seriesMap.entrySet()) {
+						addDetailsToSnapshot(snapshot, entry.getKey(), entry.getValue());
+					}
+				} else if (metric instanceof BaseControlledMetric
+						&& ((BaseControlledMetric<?, ?>) metric).getAdaptiveSampler() == null) {
+					MetricValue<?, ?> value = ((BaseControlledMetric<?, ?>) metric).getMetricValueToPersist();
+					if (value instanceof MetricValuePercentiles || value instanceof MetricValueSketch) {
+						// these have more than we can hold in the primitive columns
+						snapshot.add(metric, new MetricValueDetails(value));
+					} else if (value instanceof MetricValuePrimitive) {
+						MetricValuePrimitive primitive = (MetricValuePrimitive) value;
+						snapshot.add(metric, primitive.getValueAsDouble(), value.getNumSamples(),
+								primitive.getMinAsDouble(), primitive.getMaxAsDouble(), value instanceof MetricValueTotal);
+					} else {
+						snapshot.add(metric, value.getValue().doubleValue(), value.getNumSamples(),
+								value.getMin().doubleValue(), value.getMax().doubleValue(),
+								value instanceof MetricValueTotal);
+					}
+				} else {
+					addDetailsToSnapshot(snapshot, metric, metric.getValueDetailsToPersist());
+				}
+			}
+		}
+
+		// if we have value persisters then extract the values from the snapshot
+		Map<ControlledMetric<?, ?>, Number> metricValueMap = null;
+		if (metricValuesPersisters.length > 0) {
+			metricValueMap = new HashMap<ControlledMetric<?, ?>, Number>(snapshot.size());
+			for (int i = 0; i < snapshot.size(); i++) {
+				double value = snapshot.getValue(i);
+				if (snapshot.isIntegral(i)) {
+					metricValueMap.put(snapshot.getMetric(i), (long) value);
+				} else {
+					metricValueMap.put(snapshot.getMetric(i), value);
+				}
+			}
+			metricValueMap = Collections.unmodifiableMap(metricValueMap);
+		}
+
+		callPersisters(metricValueMap, null, snapshot, timeCollectedMillis);
+	}
+
+	/**
+	 * Switch to the other snapshot and clear it. Must be called while synchronized on the snapshots.
+	 */
+	private MetricsSnapshot nextSnapshot(long timeCollectedMillis) {
+		snapshotIndex = 1 - snapshotIndex;
+		MetricsSnapshot snapshot = snapshots[snapshotIndex];
+		if (snapshot.isInUse()) {
+			// a persister that timed out may still be reading it so we leave it to them
+			snapshot = new MetricsSnapshot();
+			snapshots[snapshotIndex] = snapshot;
+		}
+		snapshot.clear(timeCollectedMillis);
+		return snapshot;
+	}
+
+	private static void addDetailsToSnapshot(MetricsSnapshot snapshot, ControlledMetric<?, ?> metric,
+			MetricValueDetails details) {
+		snapshot.add(metric, details);
+	}
+
+	/**
+	 * Call the value persisters, if the details map is not null the details persisters, and if the snapshot is not null
+	 * the snapshot persisters. Any exceptions are held so we can get through all persisters and the last one is thrown.
+	 */
+	private void callPersisters(final Map<ControlledMetric<?, ?>, Number> metricValueMap,
+			final Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetailMap, final MetricsSnapshot snapshot,
+			final long timeCollectedMillis) throws IOException {
+		List<PersisterCall> calls = new ArrayList<PersisterCall>();
+		for (final MetricValuesPersister valuesPersister : metricValuesPersisters) {
+			calls.add(new PersisterCall(valuesPersister) {
+				@Override
+				protected void persist() throws Exception {
+					valuesPersister.persist(metricValueMap, timeCollectedMillis);
+				}
+			});
+		}
+		if (metricValueDetailMap != null) {
+			for (final MetricDetailsPersister detailsPersister : metricDetailsPersisters) {
+				calls.add(new PersisterCall(detailsPersister) {
+					@Override
+					protected void persist() throws Exception {
+						detailsPersister.persist(metricValueDetailMap, timeCollectedMillis);
+					}
+				});
+			}
+		}
+		if (snapshot != null) {
+			for (final MetricsSnapshotPersister snapshotPersister : metricsSnapshotPersisters) {
+				// released when the persister returns, which may be after it times out
+				snapshot.acquire();
+				calls.add(new PersisterCall(snapshotPersister) {
+					@Override
+					protected void persist() throws Exception {
+						try {
+							snapshotPersister.persist(snapshot);
+						} finally {
+							snapshot.release();
+						}
+					}
+
+					@Override
+					protected void notRun() {
+						snapshot.release();
+					}
+				});
+			}
+		}
+
+		long startNanos = System.nanoTime();
+		ExecutorService executor = persisterExecutor;
+		if (executor == null) {
+			for (PersisterCall call : calls) {
+				call.call();
+			}
+		} else {
+			runConcurrently(executor, calls, startNanos);
+		}
+
+		int numFailed = 0;
+		int numTimedOut = 0;
+		Exception wasThrown = null;
+		for (PersisterCall call : calls) {
+			CallOutcome outcome = call.getOutcome();
+			PersisterStats stats = persisterStatsMap.get(call.persister);
+			if (stats == null) {
+				stats = new PersisterStats(call.persister);
+				PersisterStats existing = persisterStatsMap.putIfAbsent(call.persister, stats);
+				if (existing != null) {
+					stats = existing;
+				}
+			}
+			stats.recordCall(outcome.elapsedNanos, outcome.exception, outcome.timedOut);
+			if (outcome.exception != null) {
+				numFailed++;
+				if (outcome.timedOut) {
+					numTimedOut++;
+				}
+				wasThrown = outcome.exception;
+			}
+		}
+		lastPersistResult = new PersistResult(timeCollectedMillis,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), calls.size() - numFailed, numFailed,
+				numTimedOut);
+		persistCount++;
+		if (wasThrown != null) {
+			if (wasThrown instanceof IOException) {
+				throw (IOException) wasThrown;
+			} else {
+				throw new IOException(wasThrown);
+			}
+		}
+	}
+
+	private void runConcurrently(ExecutorService executor, List<PersisterCall> calls, long startNanos) {
+		List<Future<?>> futures = new ArrayList<Future<?>>(calls.size());
+		for (PersisterCall call : calls) {
+			futures.add(executor.submit(call));
+		}
+		long timeoutMillis = persisterTimeoutMillis;
+		long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		// in a bounded pool a persister may have to wait for each of the others to run before it starts
+		long startDeadlineNanos = startNanos + timeoutNanos * calls.size();
+		boolean interrupted = false;
+		for (int i = 0; i < calls.size(); i++) {
+			PersisterCall call = calls.get(i);
+			Future<?> future = futures.get(i);
+			try {
+				if (interrupted) {
+					// we have been interrupted so don't wait for the rest
+					throw new InterruptedException();
+				} else if (timeoutMillis <= 0) {
+					future.get();
+				} else if (!call.awaitStart(Math.max(0, startDeadlineNanos - System.nanoTime()))) {
+					// mark it before we cancel it in case it starts now
+					call.timedOut(new IOException("Persister " + call.persister + " did not start within "
+							+ TimeUnit.NANOSECONDS.toMillis(startDeadlineNanos - startNanos) + " millis"),
+							System.nanoTime() - startNanos);
+					future.cancel(true);
+					call.abandon();
+				} else {
+					// each persister has its own deadline from when it started running
+					future.get(Math.max(0, call.startedNanos + timeoutNanos - System.nanoTime()),
+							TimeUnit.NANOSECONDS);
+				}
+			} catch (TimeoutException te) {
+				// mark it before we cancel it so the exception from the interrupt is not recorded instead
+				call.timedOut(new IOException("Persister " + call.persister + " timed out after " + timeoutMillis
+						+ " millis"), System.nanoTime() - call.startedNanos);
+				future.cancel(true);
+			} catch (InterruptedException ie) {
+				interrupted = true;
+				call.timedOut(new IOException("Interrupted waiting for persister " + call.persister, ie),
+						System.nanoTime() - startNanos);
+				future.cancel(true);
+				call.abandon();
+			} catch (ExecutionException ee) {
+				// the calls catch their own exceptions so this should not happen
+				call.failed(new IOException(ee.getCause()), System.nanoTime() - startNanos);
+			} catch (CancellationException ce) {
+				call.failed(new IOException("Persister " + call.persister + " was cancelled", ce),
+						System.nanoTime() - startNanos);
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void updateConcurrently(ExecutorService executor, List<MetricsUpdater> updaters) {
+		long startNanos = System.nanoTime();
+		List<UpdaterStats> startedStats = new ArrayList<UpdaterStats>(updaters.size());
+		List<Future<?>> futures = new ArrayList<Future<?>>(updaters.size());
+		for (MetricsUpdater updater : updaters) {
+			UpdaterStats stats = updaterStatsMap.get(updater);
+			if (stats == null) {
+				// unregistered since we copied the list
+				continue;
+			}
+			// an updater that is still running from an earlier update is skipped instead of queued behind itself
+			if (!stats.tryStart()) {
+				stats.recordSkipped();
+				continue;
+			}
+			try {
+				futures.add(executor.submit(new UpdaterCall(updater, stats)));
+				startedStats.add(stats);
+			} catch (RejectedExecutionException ree) {
+				stats.recordRun(0, ree);
+			}
+		}
+		long timeoutMillis = updaterTimeoutMillis;
+		long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		boolean interrupted = false;
+		for (int i = 0; i < futures.size(); i++) {
+			UpdaterStats stats = startedStats.get(i);
+			Future<?> future = futures.get(i);
+			try {
+				if (interrupted) {
+					// we have been interrupted so don't wait for the rest
+					throw new InterruptedException();
+				} else if (timeoutMillis <= 0) {
+					future.get();
+				} else {
+					// all of the updaters started together so they share the same deadline
+					future.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+				}
+			} catch (TimeoutException te) {
+				// we leave it running, it records its run when it finishes
+				stats.recordTimeout();
+			} catch (InterruptedException ie) {
+				interrupted = true;
+				stats.recordTimeout();
+			} catch (ExecutionException ee) {
+				// an error thrown by the updater which the call has already recorded
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run of one of the updaters by the updater-executor which records how long it took and whether it failed.
+	 */
+	private static class UpdaterCall implements Runnable {
+		private final MetricsUpdater updater;
+		private final UpdaterStats stats;
+
+		public UpdaterCall(MetricsUpdater updater, UpdaterStats stats) {
+			this.updater = updater;
+			this.stats = stats;
+		}
+
+		@Override
+		public void run() {
+			try {
+				runUpdater(updater, stats);
+			} catch (RuntimeException re) {
+				// recorded in the stats
+			}
+		}
+	}
+
+	/**
+	 * Run an updater that has been started and record the run even if it throws an error so it is not left running.
+	 */
+	private static void runUpdater(MetricsUpdater updater, UpdaterStats stats) {
+		long startNanos = System.nanoTime();
+		RuntimeException exception = null;
+		try {
+			updater.updateMetrics();
+		} catch (RuntimeException re) {
+			exception = re;
+			throw re;
+		} catch (Error error) {
+			exception = new RuntimeException("Updater " + updater + " threw an error", error);
+			throw error;
+		} finally {
+			stats.recordRun(System.nanoTime() - startNanos, exception);
+		}
+	}
+
+	/**
+	 * Call to one of the persisters which records how long it took and whether it failed.
+	 */
+	private static abstract class PersisterCall implements Callable<Void> {
+		final Object persister;
+		// set once by either the thread that runs the call or the thread that gave up waiting for it
+		private final AtomicReference<CallOutcome> outcome = new AtomicReference<CallOutcome>();
+		private final CountDownLatch startedLatch = new CountDownLatch(1);
+		// set once by either the thread that runs the call or the thread that abandons it before it runs
+		private final AtomicBoolean claimed = new AtomicBoolean();
+		volatile long startedNanos;
+
+		public PersisterCall(Object persister) {
+			this.persister = persister;
+		}
+
+		@Override
+		public Void call() {
+			if (!claimed.compareAndSet(false, true)) {
+				// abandoned before it got a chance to run
+				return null;
+			}
+			long startNanos = System.nanoTime();
+			startedNanos = startNanos;
+			startedLatch.countDown();
+			Exception exception = null;
+			try {
+				persist();
+			} catch (Exception e) {
+				exception = e;
+			}
+			outcome.compareAndSet(null, new CallOutcome(System.nanoTime() - startNanos, exception, false));
+			return null;
+		}
+
+		/**
+		 * Wait for the call to start running.
+		 * 
+		 * @return True if it started otherwise false if the wait timed out.
+		 */
+		boolean awaitStart(long timeoutNanos) throws InterruptedException {
+			return startedLatch.await(timeoutNanos, TimeUnit.NANOSECONDS);
+		}
+
+		/**
+		 * Mark the call as having not finished in time unless it has just finished.
+		 */
+		void timedOut(Exception timeoutException, long waitedNanos) {
+			outcome.compareAndSet(null, new CallOutcome(waitedNanos, timeoutException, true));
+		}
+
+		/**
+		 * Mark the call as having failed without running to completion.
+		 */
+		void failed(Exception exception, long waitedNanos) {
+			outcome.compareAndSet(null, new CallOutcome(waitedNanos, exception, false));
+		}
+
+		/**
+		 * Make sure the call does not run if it has not started yet.
+		 */
+		void abandon() {
+			if (claimed.compareAndSet(false, true)) {
+				notRun();
+			}
+		}
+
+		CallOutcome getOutcome() {
+			return outcome.get();
+		}
+
+		protected abstract void persist() throws Exception;
+
+		/**
+		 * Called if the call was abandoned before it ran so {@link #persist()} will not be called.
+		 */
+		protected void notRun() {
+			// no-op by default
+		}
+	}
+
+	/**
+	 * How long a persister call took and whether it failed.
+	 */
+	private static class CallOutcome {
+		final long elapsedNanos;
+		final Exception exception;
+		final boolean timedOut;
+
+		public CallOutcome(long elapsedNanos, Exception exception, boolean timedOut) {
+			this.elapsedNanos = elapsedNanos;
+			this.exception = exception;
+			this.timedOut = timedOut;
+		}
+	}
+
+	/**
+	 * Identity of a metric in the index.
+	 */
+	private static class MetricKey {
+		private final String component;
+		private final String module;
+		private final String name;
+		private final String[] labelValues;
+		private final int hashCode;
+
+		public MetricKey(ControlledMetric<?, ?> metric) {
+			this(metric.getComponent(), metric.getModule(), metric.getName(),
+					(metric instanceof LabeledMetric ? ((LabeledMetric) metric).getLabelValues() : null));
+		}
+
+		public MetricKey(String component, String module, String name, String[] labelValues) {
+			this.component = component;
+			this.module = module;
+			this.name = name;
+			if (labelValues == null || labelValues.length == 0) {
+				this.labelValues = NO_LABEL_VALUES;
+			} else {
+				this.labelValues = labelValues;
+			}
+			final int prime = 31;
+			int result = prime + ((component == null) ? 0 : component.hashCode());
+			result = prime * result + ((module == null) ? 0 : module.hashCode());
+			result = prime * result + ((name == null) ? 0 : name.hashCode());
+			this.hashCode = prime * result + Arrays.hashCode(this.labelValues);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof MetricKey)) {
+				return false;
+			}
+			MetricKey other = (MetricKey) obj;
+			return hashCode == other.hashCode && isEquals(component, other.component)
+					&& isEquals(module, other.module) && isEquals(name, other.name)
+					&& Arrays.equals(labelValues, other.labelValues);
+		}
+
+		private static boolean isEquals(String str1, String str2) {
+			if (str1 == null) {
+				return (str2 == null);
+			} else {
+				return str1.equals(str2);
+			}
+		}
+	}
 }
@@ -12,6 +12,8 @@ import com.j256.simplejmx.common.JmxSelfNaming;
 import com.j256.simplejmx.server.JmxServer;
 import com.j256.simplemetrics.metric.ControlledMetric;
 import com.j256.simplemetrics.metric.ControlledMetricJmx;
+import com.j256.simplemetrics.metric.ControlledMetricRate;
+import com.j256.simplemetrics.metric.ControlledMetricRateJmx;
 
 /**
  * Class which optionally handles the JMX publishing of all of the metrics as JMX beans as well as the metrics-manager.
@@ -38,7 +40,12 @@ public class MetricsManagerJmx implements MetricsRegisterListener, JmxSelfNaming
 	@Override
 	public void metricRegistered(ControlledMetric<?, ?> metric) {
 		try {
-			jmxServer.register(new ControlledMetricJmx(metric, jmxDomainName, jmxFolderNames));
+			if (metric instanceof ControlledMetricRate) {
+				jmxServer.register(
+						new ControlledMetricRateJmx((ControlledMetricRate) metric, jmxDomainName, jmxFolderNames));
+			} else {
+				jmxServer.register(new ControlledMetricJmx(metric, jmxDomainName, jmxFolderNames));
+			}
 		} catch (JMException e) {
 			// ignored
 		}
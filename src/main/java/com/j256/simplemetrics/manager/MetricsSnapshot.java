@@ -0,0 +1,340 @@
+package com.j256.simplemetrics.manager;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.persister.MetricsSnapshotPersister;
+
+/**
+ * Values of the metrics collected by one persist of the {@link MetricsManager} stored in primitive columns, one row per
+ * metric, so persisting does not create a map entry and a {@link com.j256.simplemetrics.metric.MetricValueDetails} for
+ * each metric. The rows can be read by index or with a {@link Cursor}. See {@link MetricsSnapshotPersister}.
+ *
+ * <p>
+ * The percentiles, serialized sketch, and sampling rate are also kept for the metrics which have them so nothing is
+ * lost when a details persister is adapted to a snapshot. For the other metrics these columns are null or 1.0.
+ * </p>
+ *
+ * <p>
+ * <b>NOTE:</b> the manager reuses a snapshot once all of the persisters that it was passed to have returned. A
+ * persister that needs the values after it returns has to copy them.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class MetricsSnapshot {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long timeCollectedMillis;
+	private int size;
+	private ControlledMetric<?, ?>[] metrics = new ControlledMetric<?, ?>[INITIAL_CAPACITY];
+	private double[] values = new double[INITIAL_CAPACITY];
+	private int[] numSamples = new int[INITIAL_CAPACITY];
+	private double[] mins = new double[INITIAL_CAPACITY];
+	private double[] maxes = new double[INITIAL_CAPACITY];
+	private double[] samplingRates = new double[INITIAL_CAPACITY];
+	private double[][] percentiles = new double[INITIAL_CAPACITY][];
+	private double[][] percentileValues = new double[INITIAL_CAPACITY][];
+	private String[] serializedSketches = new String[INITIAL_CAPACITY];
+	private boolean[] totals = new boolean[INITIAL_CAPACITY];
+	// number of persister calls which have been given the snapshot and have not returned
+	private final AtomicInteger numReaders = new AtomicInteger();
+
+	/**
+	 * Return the time in millis when the metrics were collected.
+	 */
+	public long getTimeCollectedMillis() {
+		return timeCollectedMillis;
+	}
+
+	/**
+	 * Return the number of metrics in the snapshot.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return the metric in a row.
+	 */
+	public ControlledMetric<?, ?> getMetric(int index) {
+		checkIndex(index);
+		return metrics[index];
+	}
+
+	/**
+	 * Return the value of the metric in a row.
+	 */
+	public double getValue(int index) {
+		checkIndex(index);
+		return values[index];
+	}
+
+	/**
+	 * Return true if the value of the metric in a row is a whole number which can be reported as a long.
+	 */
+	public boolean isIntegral(int index) {
+		checkIndex(index);
+		return isIntegral(values[index]);
+	}
+
+	/**
+	 * Return the number of samples of the metric in a row.
+	 */
+	public int getNumSamples(int index) {
+		checkIndex(index);
+		return numSamples[index];
+	}
+
+	/**
+	 * Return the minimum value of the metric in a row.
+	 */
+	public double getMin(int index) {
+		checkIndex(index);
+		return mins[index];
+	}
+
+	/**
+	 * Return the maximum value of the metric in a row.
+	 */
+	public double getMax(int index) {
+		checkIndex(index);
+		return maxes[index];
+	}
+
+	/**
+	 * Return the fraction of the adjustments of the metric in a row that were recorded, see
+	 * {@link MetricValueDetails#getSamplingRate()}.
+	 */
+	public double getSamplingRate(int index) {
+		checkIndex(index);
+		return samplingRates[index];
+	}
+
+	/**
+	 * Return the percentiles of the metric in a row or null if none.
+	 */
+	public double[] getPercentiles(int index) {
+		checkIndex(index);
+		return percentiles[index];
+	}
+
+	/**
+	 * Return the values at the percentiles of the metric in a row or null if none.
+	 */
+	public double[] getPercentileValues(int index) {
+		checkIndex(index);
+		return percentileValues[index];
+	}
+
+	/**
+	 * Return the serialized sketch of the metric in a row or null if none.
+	 */
+	public String getSerializedSketch(int index) {
+		checkIndex(index);
+		return serializedSketches[index];
+	}
+
+	/**
+	 * Return true if the value of the metric in a row is a total, see {@link MetricValueDetails#isTotal()}.
+	 */
+	public boolean isTotal(int index) {
+		checkIndex(index);
+		return totals[index];
+	}
+
+	/**
+	 * Return a cursor positioned before the first row. Moving the cursor through the rows does not allocate any
+	 * objects.
+	 */
+	public Cursor cursor() {
+		return new Cursor(this);
+	}
+
+	/**
+	 * Empty the snapshot, keeping its columns, so it can be filled by the next persist.
+	 */
+	void clear(long timeCollectedMillis) {
+		// let go of the metrics so unregistered ones can be collected
+		Arrays.fill(metrics, 0, size, null);
+		Arrays.fill(percentiles, 0, size, null);
+		Arrays.fill(percentileValues, 0, size, null);
+		Arrays.fill(serializedSketches, 0, size, null);
+		this.size = 0;
+		this.timeCollectedMillis = timeCollectedMillis;
+	}
+
+	/**
+	 * Add a row to the snapshot.
+	 */
+	void add(ControlledMetric<?, ?> metric, double value, int numSamples, double min, double max) {
+		add(metric, value, numSamples, min, max, false);
+	}
+
+	/**
+	 * Add a row to the snapshot with the total flag.
+	 */
+	void add(ControlledMetric<?, ?> metric, double value, int numSamples, double min, double max, boolean total) {
+		if (size == metrics.length) {
+			int newCapacity = size * 2;
+			metrics = Arrays.copyOf(metrics, newCapacity);
+			values = Arrays.copyOf(values, newCapacity);
+			this.numSamples = Arrays.copyOf(this.numSamples, newCapacity);
+			mins = Arrays.copyOf(mins, newCapacity);
+			maxes = Arrays.copyOf(maxes, newCapacity);
+			samplingRates = Arrays.copyOf(samplingRates, newCapacity);
+			percentiles = Arrays.copyOf(percentiles, newCapacity);
+			percentileValues = Arrays.copyOf(percentileValues, newCapacity);
+			serializedSketches = Arrays.copyOf(serializedSketches, newCapacity);
+			totals = Arrays.copyOf(totals, newCapacity);
+		}
+		metrics[size] = metric;
+		values[size] = value;
+		this.numSamples[size] = numSamples;
+		mins[size] = min;
+		maxes[size] = max;
+		samplingRates[size] = 1.0;
+		totals[size] = total;
+		size++;
+	}
+
+	/**
+	 * Add a row to the snapshot from the details of a metric.
+	 */
+	void add(ControlledMetric<?, ?> metric, MetricValueDetails details) {
+		add(metric, details.getValue().doubleValue(), details.getNumSamples(), details.getMin().doubleValue(),
+				details.getMax().doubleValue(), details.isTotal());
+		int index = size - 1;
+		samplingRates[index] = details.getSamplingRate();
+		percentiles[index] = details.getPercentiles();
+		percentileValues[index] = details.getPercentileValues();
+		serializedSketches[index] = details.getSerializedSketch();
+	}
+
+	/**
+	 * Called before the snapshot is given to a persister.
+	 */
+	void acquire() {
+		numReaders.incrementAndGet();
+	}
+
+	/**
+	 * Called after a persister that was given the snapshot has returned.
+	 */
+	void release() {
+		numReaders.decrementAndGet();
+	}
+
+	/**
+	 * Return true if a persister that was given the snapshot has not returned so it can't be reused.
+	 */
+	boolean isInUse() {
+		return numReaders.get() > 0;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + " is not within snapshot of size " + size);
+		}
+	}
+
+	private static boolean isIntegral(double value) {
+		return (value == (long) value);
+	}
+
+	/**
+	 * Cursor over the rows of a snapshot.
+	 *
+	 * <pre>
+	 * MetricsSnapshot.Cursor cursor = snapshot.cursor();
+	 * while (cursor.next()) {
+	 * 	write(cursor.getMetric(), cursor.getValue());
+	 * }
+	 * </pre>
+	 */
+	public static class Cursor {
+
+		private final MetricsSnapshot snapshot;
+		private int index = -1;
+
+		private Cursor(MetricsSnapshot snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		/**
+		 * Move to the next row.
+		 *
+		 * @return True if there was another row otherwise false.
+		 */
+		public boolean next() {
+			if (index + 1 < snapshot.size) {
+				index++;
+				return true;
+			} else {
+				index = snapshot.size;
+				return false;
+			}
+		}
+
+		/**
+		 * Move the cursor back before the first row.
+		 */
+		public void reset() {
+			index = -1;
+		}
+
+		/**
+		 * Return the index of the current row.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public ControlledMetric<?, ?> getMetric() {
+			return snapshot.getMetric(index);
+		}
+
+		public double getValue() {
+			return snapshot.getValue(index);
+		}
+
+		public boolean isIntegral() {
+			return snapshot.isIntegral(index);
+		}
+
+		public int getNumSamples() {
+			return snapshot.getNumSamples(index);
+		}
+
+		public double getMin() {
+			return snapshot.getMin(index);
+		}
+
+		public double getMax() {
+			return snapshot.getMax(index);
+		}
+
+		public double getSamplingRate() {
+			return snapshot.getSamplingRate(index);
+		}
+
+		public double[] getPercentiles() {
+			return snapshot.getPercentiles(index);
+		}
+
+		public double[] getPercentileValues() {
+			return snapshot.getPercentileValues(index);
+		}
+
+		public String getSerializedSketch() {
+			return snapshot.getSerializedSketch(index);
+		}
+
+		public boolean isTotal() {
+			return snapshot.isTotal(index);
+		}
+	}
+}
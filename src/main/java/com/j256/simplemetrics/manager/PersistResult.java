@@ -0,0 +1,73 @@
+package com.j256.simplemetrics.manager;
+
+/**
+ * Aggregate result of calling all of the persisters in one persist of the {@link MetricsManager}. See
+ * {@link MetricsManager#getLastPersistResult()}.
+ * 
+ * @author graywatson
+ */
+public class PersistResult {
+
+	private final long timeCollectedMillis;
+	private final long elapsedMillis;
+	private final int numSucceeded;
+	private final int numFailed;
+	private final int numTimedOut;
+
+	public PersistResult(long timeCollectedMillis, long elapsedMillis, int numSucceeded, int numFailed,
+			int numTimedOut) {
+		this.timeCollectedMillis = timeCollectedMillis;
+		this.elapsedMillis = elapsedMillis;
+		this.numSucceeded = numSucceeded;
+		this.numFailed = numFailed;
+		this.numTimedOut = numTimedOut;
+	}
+
+	/**
+	 * Return the time in millis when the metrics were collected.
+	 */
+	public long getTimeCollectedMillis() {
+		return timeCollectedMillis;
+	}
+
+	/**
+	 * Return the number of milliseconds that it took to call all of the persisters.
+	 */
+	public long getElapsedMillis() {
+		return elapsedMillis;
+	}
+
+	/**
+	 * Return the number of persisters that succeeded.
+	 */
+	public int getNumSucceeded() {
+		return numSucceeded;
+	}
+
+	/**
+	 * Return the number of persisters that threw or timed out.
+	 */
+	public int getNumFailed() {
+		return numFailed;
+	}
+
+	/**
+	 * Return the number of persisters that timed out. These are also counted as failed.
+	 */
+	public int getNumTimedOut() {
+		return numTimedOut;
+	}
+
+	/**
+	 * Return true if all of the persisters succeeded.
+	 */
+	public boolean isSuccess() {
+		return (numFailed == 0);
+	}
+
+	@Override
+	public String toString() {
+		return "PersistResult [succeeded=" + numSucceeded + ", failed=" + numFailed + ", timedOut=" + numTimedOut
+				+ ", elapsedMillis=" + elapsedMillis + "]";
+	}
+}
@@ -0,0 +1,114 @@
+package com.j256.simplemetrics.manager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running statistics about the calls that the {@link MetricsManager} has made to one of its persisters so a slow or
+ * failing destination can be spotted. See {@link MetricsManager#getPersisterStats()}.
+ * 
+ * @author graywatson
+ */
+public class PersisterStats {
+
+	private final Object persister;
+	private long numSuccesses;
+	private long numFailures;
+	private long numTimeouts;
+	private long lastNanos;
+	private long maxNanos;
+	private long totalNanos;
+	private Exception lastException;
+
+	public PersisterStats(Object persister) {
+		this.persister = persister;
+	}
+
+	/**
+	 * Record a call to the persister. If the exception is not null then the call failed.
+	 */
+	synchronized void recordCall(long elapsedNanos, Exception exception, boolean timedOut) {
+		if (timedOut) {
+			numTimeouts++;
+			numFailures++;
+		} else if (exception == null) {
+			numSuccesses++;
+		} else {
+			numFailures++;
+		}
+		if (exception != null) {
+			lastException = exception;
+		}
+		lastNanos = elapsedNanos;
+		totalNanos += elapsedNanos;
+		if (elapsedNanos > maxNanos) {
+			maxNanos = elapsedNanos;
+		}
+	}
+
+	/**
+	 * Return the persister that the stats are about.
+	 */
+	public Object getPersister() {
+		return persister;
+	}
+
+	/**
+	 * Return the number of calls that succeeded.
+	 */
+	public synchronized long getNumSuccesses() {
+		return numSuccesses;
+	}
+
+	/**
+	 * Return the number of calls that threw or timed out.
+	 */
+	public synchronized long getNumFailures() {
+		return numFailures;
+	}
+
+	/**
+	 * Return the number of calls that timed out. These are also counted as failures.
+	 */
+	public synchronized long getNumTimeouts() {
+		return numTimeouts;
+	}
+
+	/**
+	 * Return the number of milliseconds that the last call took.
+	 */
+	public synchronized long getLastMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastNanos);
+	}
+
+	/**
+	 * Return the number of milliseconds that the longest call took.
+	 */
+	public synchronized long getMaxMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxNanos);
+	}
+
+	/**
+	 * Return the average number of milliseconds that the calls took or 0 if none.
+	 */
+	public synchronized double getAverageMillis() {
+		long numCalls = numSuccesses + numFailures;
+		if (numCalls == 0) {
+			return 0.0;
+		} else {
+			return (double) totalNanos / numCalls / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+	}
+
+	/**
+	 * Return the exception from the last call that failed or null if none.
+	 */
+	public synchronized Exception getLastException() {
+		return lastException;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "PersisterStats [persister=" + persister + ", successes=" + numSuccesses + ", failures=" + numFailures
+				+ ", timeouts=" + numTimeouts + ", lastMillis=" + getLastMillis() + "]";
+	}
+}
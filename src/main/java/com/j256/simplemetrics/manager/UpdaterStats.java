@@ -0,0 +1,170 @@
+package com.j256.simplemetrics.manager;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running statistics about the calls that the {@link MetricsManager} has made to one of its {@link MetricsUpdater}s so
+ * a slow or failing updater can be spotted. See {@link MetricsManager#getUpdaterStats()}.
+ *
+ * <p>
+ * When the updaters are run by an executor, an updater that does not finish in time is left running and is skipped by
+ * the following updates until it finishes. The metrics that it updates are stale until it next succeeds.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class UpdaterStats {
+
+	private final MetricsUpdater updater;
+	private long numSuccesses;
+	private long numFailures;
+	private long numTimeouts;
+	private long numSkipped;
+	private long lastNanos;
+	private long maxNanos;
+	private long totalNanos;
+	private RuntimeException lastException;
+	private boolean running;
+	private boolean stale;
+
+	public UpdaterStats(MetricsUpdater updater) {
+		this.updater = updater;
+	}
+
+	/**
+	 * Mark the updater as running.
+	 *
+	 * @return False if the updater is still running from an earlier update and should be skipped.
+	 */
+	synchronized boolean tryStart() {
+		if (running) {
+			return false;
+		}
+		running = true;
+		return true;
+	}
+
+	/**
+	 * Record that a run of the updater finished. If the exception is not null then it failed.
+	 */
+	synchronized void recordRun(long elapsedNanos, RuntimeException exception) {
+		running = false;
+		if (exception == null) {
+			numSuccesses++;
+			stale = false;
+		} else {
+			numFailures++;
+			lastException = exception;
+			stale = true;
+		}
+		lastNanos = elapsedNanos;
+		totalNanos += elapsedNanos;
+		if (elapsedNanos > maxNanos) {
+			maxNanos = elapsedNanos;
+		}
+	}
+
+	/**
+	 * Record that we stopped waiting for the updater. It will record its run when it finishes.
+	 */
+	synchronized void recordTimeout() {
+		numTimeouts++;
+		stale = true;
+	}
+
+	/**
+	 * Record that the updater was skipped because it was still running.
+	 */
+	synchronized void recordSkipped() {
+		numSkipped++;
+		stale = true;
+	}
+
+	/**
+	 * Return the updater that the stats are about.
+	 */
+	public MetricsUpdater getUpdater() {
+		return updater;
+	}
+
+	/**
+	 * Return the number of runs that succeeded.
+	 */
+	public synchronized long getNumSuccesses() {
+		return numSuccesses;
+	}
+
+	/**
+	 * Return the number of runs that threw.
+	 */
+	public synchronized long getNumFailures() {
+		return numFailures;
+	}
+
+	/**
+	 * Return the number of times that the manager stopped waiting for the updater.
+	 */
+	public synchronized long getNumTimeouts() {
+		return numTimeouts;
+	}
+
+	/**
+	 * Return the number of updates that skipped the updater because it was still running.
+	 */
+	public synchronized long getNumSkipped() {
+		return numSkipped;
+	}
+
+	/**
+	 * Return true if the updater is running.
+	 */
+	public synchronized boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Return true if the last update timed out, skipped, or failed the updater so its metrics may be out of date.
+	 */
+	public synchronized boolean isStale() {
+		return stale;
+	}
+
+	/**
+	 * Return the number of milliseconds that the last finished run took.
+	 */
+	public synchronized long getLastMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lastNanos);
+	}
+
+	/**
+	 * Return the number of milliseconds that the longest run took.
+	 */
+	public synchronized long getMaxMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(maxNanos);
+	}
+
+	/**
+	 * Return the average number of milliseconds that the finished runs took or 0 if none.
+	 */
+	public synchronized double getAverageMillis() {
+		long numRuns = numSuccesses + numFailures;
+		if (numRuns == 0) {
+			return 0.0;
+		} else {
+			return (double) totalNanos / numRuns / TimeUnit.MILLISECONDS.toNanos(1);
+		}
+	}
+
+	/**
+	 * Return the exception from the last run that failed or null if none.
+	 */
+	public synchronized RuntimeException getLastException() {
+		return lastException;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "UpdaterStats [updater=" + updater + ", successes=" + numSuccesses + ", failures=" + numFailures
+				+ ", timeouts=" + numTimeouts + ", skipped=" + numSkipped + ", lastMillis=" + getLastMillis() + "]";
+	}
+}
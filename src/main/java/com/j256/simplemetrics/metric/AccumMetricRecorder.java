@@ -0,0 +1,82 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.metric.AccumMetricRecorder.AccumBuffer;
+
+/**
+ * Recorder which buffers the counts added to a {@link ControlledMetricAccum} in per-thread buffers. See
+ * {@link MetricRecorder}.
+ *
+ * @author graywatson
+ */
+public class AccumMetricRecorder extends MetricRecorder<AccumBuffer> {
+
+	private final ControlledMetricAccum metric;
+
+	/**
+	 * Create a recorder with the {@link #DEFAULT_BATCH_SIZE}.
+	 */
+	public AccumMetricRecorder(ControlledMetricAccum metric, MetricsManager metricsManager) {
+		this(metric, metricsManager, DEFAULT_BATCH_SIZE);
+	}
+
+	public AccumMetricRecorder(ControlledMetricAccum metric, MetricsManager metricsManager, int batchSize) {
+		super(metric, metricsManager, batchSize);
+		this.metric = metric;
+	}
+
+	/**
+	 * Add a delta to the current thread's buffer.
+	 */
+	public void add(long delta) {
+		getThreadBuffer().add(delta);
+	}
+
+	/**
+	 * Add one to the current thread's buffer.
+	 */
+	public void increment() {
+		getThreadBuffer().add(1);
+	}
+
+	@Override
+	protected AccumBuffer createBuffer() {
+		return new AccumBuffer(metric, getBatchSize());
+	}
+
+	/**
+	 * Per-thread buffer of the total count added.
+	 */
+	public static class AccumBuffer extends ThreadBuffer {
+		private final ControlledMetricAccum metric;
+		private final AtomicLong total = new AtomicLong();
+		// guarded by this
+		private long folded;
+
+		private AccumBuffer(ControlledMetricAccum metric, int batchSize) {
+			super(batchSize);
+			this.metric = metric;
+		}
+
+		/**
+		 * Add a delta to the buffer. This must only be called by the thread that owns the buffer.
+		 */
+		public void add(long delta) {
+			// we are the only writer so we don't need a CAS
+			total.lazySet(total.get() + delta);
+			adjusted();
+		}
+
+		@Override
+		protected synchronized void fold() {
+			long current = total.get();
+			long delta = current - folded;
+			if (delta != 0) {
+				folded = current;
+				metric.add(delta);
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.utils.NanoClock;
+import com.j256.simplemetrics.utils.SystemNanoClock;
+
+/**
+ * Policy which can be set on a metric with {@link BaseControlledMetric#setAdaptiveSampler(AdaptiveSampler)} so that,
+ * when the metric is adjusted more often than a maximum rate, it only records 1 in N of the adjustments. Each recorded
+ * adjustment is weighted by N so the counts and sums are scaled back up and the averages are unchanged. The fraction of
+ * the adjustments that were recorded is reported in {@link MetricValueDetails#getSamplingRate()}.
+ *
+ * <p>
+ * N is recalculated at the end of each window of time from the estimated rate of adjustments in the window. Skipping an
+ * adjustment costs one thread-local random number and does not write any shared memory so the cost of recording stays
+ * bounded under overload. The same sampler should not be shared between metrics.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class AdaptiveSampler {
+
+	/** default length of the window that the rate of adjustments is measured over in milliseconds */
+	public static final long DEFAULT_WINDOW_MILLIS = 1000;
+
+	private static final int WINDOW_OBSERVED_SLOT = 0;
+	private static final int INTERVAL_RECORDED_SLOT = 0;
+	private static final int INTERVAL_OBSERVED_SLOT = 1;
+
+	private final long maxPerSecond;
+	private final long windowNanos;
+	private final NanoClock clock;
+	private final AtomicLong windowStartNanos;
+	private final StripedCells windowCells = new StripedCells(StripedCells.KIND_LONG_SUM);
+	private final StripedCells intervalCells =
+			new StripedCells(StripedCells.KIND_LONG_SUM, StripedCells.KIND_LONG_SUM);
+	private volatile int sampleEvery = 1;
+
+	/**
+	 * Create a sampler which measures the rate of adjustments over {@link #DEFAULT_WINDOW_MILLIS}.
+	 *
+	 * @param maxPerSecond
+	 *            Maximum number of adjustments per second that are recorded before the sampler starts to skip them.
+	 */
+	public AdaptiveSampler(long maxPerSecond) {
+		this(maxPerSecond, DEFAULT_WINDOW_MILLIS, TimeUnit.MILLISECONDS, new SystemNanoClock());
+	}
+
+	/**
+	 * @param maxPerSecond
+	 *            Maximum number of adjustments per second that are recorded before the sampler starts to skip them.
+	 * @param window
+	 *            Length of the window that the rate of adjustments is measured over in the window-unit.
+	 * @param windowUnit
+	 *            Unit of the window.
+	 * @param clock
+	 *            Clock used to measure the rate.
+	 */
+	public AdaptiveSampler(long maxPerSecond, long window, TimeUnit windowUnit, NanoClock clock) {
+		if (maxPerSecond < 1) {
+			throw new IllegalArgumentException("Max per second must be at least 1: " + maxPerSecond);
+		}
+		if (window < 1) {
+			throw new IllegalArgumentException("Window must be at least 1: " + window);
+		}
+		if (clock == null) {
+			throw new NullPointerException("Clock cannot be null");
+		}
+		this.maxPerSecond = maxPerSecond;
+		this.windowNanos = windowUnit.toNanos(window);
+		this.clock = clock;
+		this.windowStartNanos = new AtomicLong(clock.nanoTime());
+	}
+
+	/**
+	 * Decide whether an adjustment should be recorded. This does not allocate any objects.
+	 *
+	 * @return 0 if the adjustment should be skipped otherwise the weight, N, that it should be recorded with.
+	 */
+	public long sample() {
+		return sample(1);
+	}
+
+	/**
+	 * Decide whether a batch of adjustments should be recorded. The batch is kept or skipped as a whole and counts as
+	 * the number-adjustments towards the rate. This does not allocate any objects.
+	 *
+	 * @return 0 if the batch should be skipped otherwise the weight, N, that each of its adjustments should be recorded
+	 *         with.
+	 */
+	public long sample(long numAdjustments) {
+		int every = sampleEvery;
+		if (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0) {
+			return 0;
+		}
+		windowCells.add(WINDOW_OBSERVED_SLOT, every * numAdjustments);
+		intervalCells.add(INTERVAL_RECORDED_SLOT, numAdjustments);
+		intervalCells.add(INTERVAL_OBSERVED_SLOT, every * numAdjustments);
+		long start = windowStartNanos.get();
+		long now = clock.nanoTime();
+		if (now - start >= windowNanos && windowStartNanos.compareAndSet(start, now)) {
+			// we won the race to close the window so recalculate how many adjustments we skip
+			long[] results = new long[1];
+			windowCells.drain(results);
+			double perSecond = results[WINDOW_OBSERVED_SLOT] * (double) TimeUnit.SECONDS.toNanos(1) / (now - start);
+			sampleEvery = (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(perSecond / maxPerSecond)));
+		}
+		return every;
+	}
+
+	/**
+	 * Return the current N where 1 in N adjustments is recorded.
+	 */
+	public int getSampleEvery() {
+		return sampleEvery;
+	}
+
+	/**
+	 * Return the maximum number of adjustments per second that are recorded.
+	 */
+	public long getMaxPerSecond() {
+		return maxPerSecond;
+	}
+
+	/**
+	 * Return the fraction of the adjustments that were recorded since the metric was last persisted. If reset is true
+	 * then the next interval is started.
+	 */
+	double getSamplingRate(boolean reset) {
+		long[] results = new long[2];
+		if (reset) {
+			intervalCells.drain(results);
+		} else {
+			intervalCells.peek(results);
+		}
+		long recorded = results[INTERVAL_RECORDED_SLOT];
+		long observed = results[INTERVAL_OBSERVED_SLOT];
+		if (observed <= 0 || recorded >= observed) {
+			return 1.0;
+		} else {
+			return (double) recorded / observed;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 package com.j256.simplemetrics.metric;
 
+import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicReference;
 
 import com.j256.simplemetrics.utils.MiscUtils;
@@ -7,6 +8,14 @@ import com.j256.simplemetrics.utils.MiscUtils;
 /**
  * Base metric class which defines some common fields and methods.
  * 
+ * <p>
+ * Each persist closes an interval of the metric. Instead of persisting with a compare-and-set loop that fights with the
+ * writers, the persist flips to the next interval with a {@link WriterReaderPhaser} and waits for the writers of the
+ * previous interval to finish. The first writer of the new interval carries the persisted value of the previous
+ * interval forward so the persist reads it without ever retrying against the writers. Only the publishing of a new
+ * metric-value is inside of a writer critical section so the persist never waits for a fold or other expensive work.
+ * </p>
+ * 
  * @param <V>
  *            Value type that we use to adjust this metric-value.
  * @param <MV>
@@ -15,15 +24,23 @@ import com.j256.simplemetrics.utils.MiscUtils;
  * @author graywatson
  */
 public abstract class BaseControlledMetric<V, MV extends MetricValue<V, MV>>
-		implements ControlledMetric<V, MV>, Comparable<BaseControlledMetric<V, MV>> {
+		implements ControlledMetric<V, MV>, LabeledMetric, Comparable<BaseControlledMetric<V, MV>> {
+
+	private static final String[] NO_LABELS = new String[0];
 
 	private final String component;
 	private final String module;
 	private final String name;
 	private final String decription;
 	private final String unit;
+	private String[] labelNames = NO_LABELS;
+	private String[] labelValues = NO_LABELS;
 
-	private final AtomicReference<MV> metricValue = new AtomicReference<MV>(createInitialValue());
+	private final AtomicReference<IntervalValue<V, MV>> intervalValue =
+			new AtomicReference<IntervalValue<V, MV>>(new IntervalValue<V, MV>(createInitialValue(), 0, null));
+	private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+	private volatile long interval;
+	private volatile AdaptiveSampler sampler;
 
 	protected BaseControlledMetric(String component, String module, String name, String description, String unit) {
 		if (name == null) {
@@ -57,13 +74,14 @@ public abstract class BaseControlledMetric<V, MV extends MetricValue<V, MV>>
 	 * Stores the value into the metric.
 	 */
 	protected MV storeValue(V value) {
-		MV currentVal;
-		MV newVal;
-		do {
-			currentVal = metricValue.get();
-			newVal = currentVal.makeAdjusted(value);
-		} while (!metricValue.compareAndSet(currentVal, newVal));
-		return newVal;
+		while (true) {
+			IntervalValue<V, MV> current = intervalValue.get();
+			// build the new value outside of the writer section and then publish it if the interval hasn't changed
+			IntervalValue<V, MV> next = current.makeAdjusted(value, interval);
+			if (publishValue(current, next)) {
+				return next.value;
+			}
+		}
 	}
 
 	/**
@@ -81,7 +99,13 @@ public abstract class BaseControlledMetric<V, MV extends MetricValue<V, MV>>
 	 */
 	@Override
 	public MetricValueDetails getValueDetails() {
-		return new MetricValueDetails(getMetricValue(false));
+		MV value = getMetricValue(false);
+		AdaptiveSampler sampler = this.sampler;
+		if (sampler == null) {
+			return new MetricValueDetails(value);
+		} else {
+			return new MetricValueDetails(value, sampler.getSamplingRate(false));
+		}
 	}
 
 	/**
@@ -104,7 +128,27 @@ public abstract class BaseControlledMetric<V, MV extends MetricValue<V, MV>>
 	 */
 	@Override
 	public MetricValueDetails getValueDetailsToPersist() {
-		return new MetricValueDetails(getMetricValue(true));
+		MV value = getMetricValue(true);
+		AdaptiveSampler sampler = this.sampler;
+		if (sampler == null) {
+			return new MetricValueDetails(value);
+		} else {
+			return new MetricValueDetails(value, sampler.getSamplingRate(true));
+		}
+	}
+
+	/**
+	 * Get the current metric-value for persisting purposes without building a {@link MetricValueDetails} which may
+	 * copy the percentiles or serialize a sketch. This causes the metrics to be set to reset on next adjustment.
+	 */
+	public MV getMetricValueToPersist() {
+		MV value = getMetricValue(true);
+		AdaptiveSampler sampler = this.sampler;
+		if (sampler != null) {
+			// start the next sampling interval like getValueDetailsToPersist()
+			sampler.getSamplingRate(true);
+		}
+		return value;
 	}
 
 	@Override
@@ -147,6 +191,16 @@ public abstract class BaseControlledMetric<V, MV extends MetricValue<V, MV>>
 		return unit;
 	}
 
+	@Override
+	public String[] getLabelNames() {
+		return labelNames.clone();
+	}
+
+	@Override
+	public String[] getLabelValues() {
+		return labelValues.clone();
+	}
+
 	@Override
 	public int compareTo(BaseControlledMetric<V, MV> metric) {
 		int compare = component.compareTo(metric.component);
@@ -162,7 +216,17 @@ public abstract class BaseControlledMetric<V, MV extends MetricValue<V, MV>>
 				return compare;
 			}
 		}
-		return name.compareTo(metric.name);
+		compare = name.compareTo(metric.name);
+		if (compare != 0) {
+			return compare;
+		}
+		for (int i = 0; i < labelValues.length && i < metric.labelValues.length; i++) {
+			compare = labelValues[i].compareTo(metric.labelValues[i]);
+			if (compare != 0) {
+				return compare;
+			}
+		}
+		return labelValues.length - metric.labelValues.length;
 	}
 
 	@Override
@@ -171,6 +235,7 @@ public abstract class BaseControlledMetric<V, MV extends MetricValue<V, MV>>
 		int result = prime + component.hashCode();
 		result = prime * result + ((module == null) ? 0 : module.hashCode());
 		result = prime * result + name.hashCode();
+		result = prime * result + Arrays.hashCode(labelValues);
 		return result;
 	}
 
@@ -190,7 +255,8 @@ public abstract class BaseControlledMetric<V, MV extends MetricValue<V, MV>>
 		} else if (!module.equals(other.module)) {
 			return false;
 		}
-		return name.equals(other.name);
+		return name.equals(other.name) && Arrays.equals(labelNames, other.labelNames)
+				&& Arrays.equals(labelValues, other.labelValues);
 	}
 
 	@Override
@@ -198,24 +264,203 @@ public abstract class BaseControlledMetric<V, MV extends MetricValue<V, MV>>
 		return MiscUtils.metricToString(this);
 	}
 
+	/**
+	 * Set a policy which records only 1 in N of the adjustments when the metric is adjusted faster than a maximum rate.
+	 * Set to null to record every adjustment which is the default.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             If the metric does not support sampling its adjustments.
+	 */
+	public void setAdaptiveSampler(AdaptiveSampler sampler) {
+		if (sampler != null && !isSamplingSupported()) {
+			throw new UnsupportedOperationException("Metric " + this + " does not support adaptive sampling");
+		}
+		this.sampler = sampler;
+	}
+
+	/**
+	 * Return the adaptive sampler of the metric or null if none.
+	 */
+	public AdaptiveSampler getAdaptiveSampler() {
+		return sampler;
+	}
+
+	/**
+	 * Return true if the subclass calls {@link #sampleWeight()} when it is adjusted. By default this returns false.
+	 */
+	protected boolean isSamplingSupported() {
+		return false;
+	}
+
+	/**
+	 * Called by subclasses that support sampling on each adjustment.
+	 * 
+	 * @return 0 if the adjustment should be skipped otherwise the weight that it should be recorded with which is 1 if
+	 *         there is no sampler.
+	 */
+	protected long sampleWeight() {
+		AdaptiveSampler sampler = this.sampler;
+		if (sampler == null) {
+			return 1;
+		} else {
+			return sampler.sample();
+		}
+	}
+
+	/**
+	 * Called by subclasses that support sampling on each bulk adjustment. The batch is sampled as a whole.
+	 * 
+	 * @return 0 if the batch should be skipped otherwise the weight that each of its adjustments should be recorded with
+	 *         which is 1 if there is no sampler.
+	 */
+	protected long sampleWeight(long numAdjustments) {
+		AdaptiveSampler sampler = this.sampler;
+		if (sampler == null) {
+			return 1;
+		} else {
+			return sampler.sample(numAdjustments);
+		}
+	}
+
+	/**
+	 * Set the labels of the metric. This is called by the {@link ControlledMetricFamily} when it creates a child before
+	 * the child is published.
+	 */
+	void setLabels(String[] labelNames, String[] labelValues) {
+		this.labelNames = labelNames;
+		this.labelValues = labelValues;
+	}
+
+	/**
+	 * Check that the offset and length are within an array of the length, which is used by the bulk adjustment methods.
+	 */
+	static void checkArrayRange(int arrayLength, int offset, int length) {
+		if (offset < 0 || length < 0 || offset > arrayLength - length) {
+			throw new IndexOutOfBoundsException(
+					"Offset " + offset + " and length " + length + " are not within array of length " + arrayLength);
+		}
+	}
+
+	/**
+	 * Called before the metric-value is read so subclasses which record adjustments into their own primitive fields,
+	 * instead of creating a new metric-value on every adjustment, can fold them into the metric-value. By default this
+	 * does nothing.
+	 */
+	protected void foldPending() {
+		// no-op
+	}
+
+	/**
+	 * Return the current metric-value without folding in any pending adjustments. This must only be called from
+	 * {@link #foldPending()}.
+	 */
+	protected MV getCurrentMetricValue() {
+		while (true) {
+			IntervalValue<V, MV> current = intervalValue.get();
+			long interval = this.interval;
+			if (current.interval == interval) {
+				return current.value;
+			}
+			// the interval has been persisted so move the value into the new interval
+			IntervalValue<V, MV> next = current.moveToInterval(interval);
+			if (intervalValue.compareAndSet(current, next)) {
+				return next.value;
+			}
+		}
+	}
+
+	/**
+	 * Atomically set the metric-value to the new value if it is still the expected value. This is used by subclasses
+	 * that fold in their pending adjustments in {@link #foldPending()} and must only be called from there.
+	 */
+	protected boolean compareAndSetMetricValue(MV expected, MV newValue) {
+		IntervalValue<V, MV> current = intervalValue.get();
+		if (current.value != expected) {
+			return false;
+		}
+		return publishValue(current, new IntervalValue<V, MV>(newValue, current.interval, current.retired));
+	}
+
 	protected MV getMetricValue(boolean persisting) {
+		// the fold is outside of the writer section so an expensive fold does not hold up the flip
+		foldPending();
 		if (!persisting) {
 			// if we are not persisting, then just get the current value
-			return metricValue.get();
+			return getCurrentMetricValue();
 		}
 
-		MV newMetricValue;
-		MV currentMetricValue;
-		do {
-			currentMetricValue = metricValue.get();
+		phaser.readerLock();
+		try {
+			long previousInterval = interval;
+			long newInterval = previousInterval + 1;
+			interval = newInterval;
+			// wait for the writers that may not have seen the new interval
+			phaser.flipPhase();
+			IntervalValue<V, MV> current = intervalValue.get();
+			if (current.interval == newInterval) {
+				// a writer has already moved the value into the new interval and saved the persisted value
+				return current.retired;
+			}
 			/*
 			 * Next time we adjust the value, it will reset to 0. We do this so the metric itself retains its value
 			 * until the next time it is set or persisted so it doesn't immediately drop to 0 or something after each
 			 * persist which shows up in JMX or other direct monitoring.
 			 */
-			newMetricValue = currentMetricValue.makePersisted();
-		} while (!metricValue.compareAndSet(currentMetricValue, newMetricValue));
+			IntervalValue<V, MV> next = current.moveToInterval(newInterval);
+			if (intervalValue.compareAndSet(current, next)) {
+				return next.value;
+			} else {
+				// we only try once because if we failed then a writer moved the value for us
+				return intervalValue.get().retired;
+			}
+		} finally {
+			phaser.readerUnlock();
+		}
+	}
 
-		return newMetricValue;
+	/**
+	 * Publish the next value if it belongs to the current interval and no one has changed the value. This is the only
+	 * writer critical section so the flip in {@link #getMetricValue(boolean)} waits for at most a compare-and-set.
+	 */
+	private boolean publishValue(IntervalValue<V, MV> current, IntervalValue<V, MV> next) {
+		long token = phaser.writerEnter();
+		try {
+			// a value built before the flip must not be published into the old interval after it
+			return next.interval == interval && intervalValue.compareAndSet(current, next);
+		} finally {
+			phaser.writerExit(token);
+		}
+	}
+
+	/**
+	 * Metric-value with the persist interval that it belongs to. When the first adjustment of an interval is made, the
+	 * persisted value of the previous interval is saved as the retired value so the persist can read it.
+	 */
+	private static class IntervalValue<V, MV extends MetricValue<V, MV>> {
+		final MV value;
+		final long interval;
+		final MV retired;
+
+		public IntervalValue(MV value, long interval, MV retired) {
+			this.value = value;
+			this.interval = interval;
+			this.retired = retired;
+		}
+
+		/**
+		 * Return a value adjusted in the interval, moving it into the interval first if necessary.
+		 */
+		IntervalValue<V, MV> makeAdjusted(V adjustment, long newInterval) {
+			IntervalValue<V, MV> current = this;
+			if (interval != newInterval) {
+				current = moveToInterval(newInterval);
+			}
+			return new IntervalValue<V, MV>(current.value.makeAdjusted(adjustment), newInterval, current.retired);
+		}
+
+		IntervalValue<V, MV> moveToInterval(long newInterval) {
+			MV persisted = value.makePersisted();
+			return new IntervalValue<V, MV>(persisted, newInterval, persisted);
+		}
 	}
 }
@@ -8,12 +8,22 @@ import com.j256.simplemetrics.metric.ControlledMetricAccum.AccumValue;
  * Managed {@link ControlledMetric} for metrics like page-count or database-accesses that you are adding to continually
  * as opposed to a {@link ControlledMetricValue}.
  * 
+ * <p>
+ * If the metric is going to be adjusted from many threads at once then you should consider creating it as striped. A
+ * striped accumulator spreads the adjustments across a number of padded cells, hashed by thread, which are only summed
+ * when the value is retrieved or persisted so the throughput scales with the number of cores.
+ * </p>
+ * 
  * @author graywatson
  */
 public class ControlledMetricAccum extends BaseControlledMetric<Long, AccumValue> {
 
+	private static final int COUNT_SLOT = 0;
+
 	// We have this intermediate counter because we want to not have every increment cause another metric value object
-	private final AtomicLong counter = new AtomicLong();
+	private final AtomicLong counter;
+	// set instead of the counter if we are striped
+	private final StripedCells cells;
 
 	/**
 	 * @param component
@@ -28,7 +38,34 @@ public class ControlledMetricAccum extends BaseControlledMetric<Long, AccumValue
 	 *            Unit of the metric. Null if none.
 	 */
 	public ControlledMetricAccum(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, false);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my". Required.
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview". Null if none.
+	 * @param name
+	 *            String label description the metric. Required.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric. Null if none.
+	 * @param striped
+	 *            Set to true to spread the adjustments across striped cells which is recommended for metrics that are
+	 *            adjusted from a large number of threads at once.
+	 */
+	public ControlledMetricAccum(String component, String module, String name, String description, String unit,
+			boolean striped) {
 		super(component, module, name, description, unit);
+		if (striped) {
+			this.counter = null;
+			this.cells = new StripedCells(StripedCells.KIND_LONG_SUM);
+		} else {
+			this.counter = new AtomicLong();
+			this.cells = null;
+		}
 	}
 
 	@Override
@@ -48,61 +85,120 @@ public class ControlledMetricAccum extends BaseControlledMetric<Long, AccumValue
 
 	/**
 	 * Add a delta value to the metric. This is for metrics (like pageview count) which are incrementing over time.
+	 * 
+	 * @return The count that has been added since the value was last retrieved or 0 if the metric is striped because
+	 *         summing the cells on every adjustment would defeat the striping.
 	 */
 	public long add(long delta) {
-		return counter.addAndGet(delta);
+		long weight = sampleWeight();
+		if (weight == 0) {
+			return (cells == null ? counter.get() : 0);
+		}
+		// a sampled delta stands in for the weight number of deltas
+		return addUnsampled(delta * weight);
 	}
 
 	/**
 	 * Add one to the metric.
+	 * 
+	 * @return The count that has been added since the value was last retrieved or 0 if the metric is striped because
+	 *         summing the cells on every adjustment would defeat the striping.
 	 */
 	public long increment() {
-		return counter.incrementAndGet();
+		return add(1);
+	}
+
+	/**
+	 * Add a batch of delta values to the metric as a single adjustment.
+	 * 
+	 * @param deltas
+	 *            Array of deltas.
+	 * @param offset
+	 *            Index of the first delta in the array.
+	 * @param length
+	 *            Number of deltas to add.
+	 */
+	public void adjustValues(long[] deltas, int offset, int length) {
+		checkArrayRange(deltas.length, offset, length);
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			total += deltas[i];
+		}
+		addBatch(total, length);
+	}
+
+	/**
+	 * Same as {@link #adjustValues(long[], int, int)} but with double deltas which are each truncated to a long like
+	 * {@link #adjustValue(Number)}.
+	 */
+	public void adjustValues(double[] deltas, int offset, int length) {
+		checkArrayRange(deltas.length, offset, length);
+		long total = 0;
+		for (int i = offset; i < offset + length; i++) {
+			total += (long) deltas[i];
+		}
+		addBatch(total, length);
 	}
 
 	@Override
 	public void adjustValue(long value) {
 		// we overload this so so we don't generate a new object on every adjustment
-		counter.addAndGet(value);
+		add(value);
 	}
 
 	@Override
 	public void adjustValue(Number value) {
 		// we overload this so so we don't generate a new object on every adjustment
-		counter.addAndGet(value.longValue());
+		add(value.longValue());
 	}
 
-	@Override
-	public Number getValue() {
-		adjustValue();
-		return super.getValue();
+	/**
+	 * Returns true if the metric spreads its adjustments across striped cells.
+	 */
+	public boolean isStriped() {
+		return (cells != null);
 	}
 
 	@Override
-	public MetricValueDetails getValueDetails() {
-		adjustValue();
-		return super.getValueDetails();
+	public AggregationType getAggregationType() {
+		return AggregationType.SUM;
 	}
 
-	@Override
-	public Number getValueToPersist() {
-		adjustValue();
-		return super.getValueToPersist();
+	private void addBatch(long total, int length) {
+		if (total == 0) {
+			return;
+		}
+		long weight = sampleWeight(length);
+		if (weight != 0) {
+			// a sampled batch stands in for the weight number of batches
+			addUnsampled(total * weight);
+		}
 	}
 
-	@Override
-	public MetricValueDetails getValueDetailsToPersist() {
-		adjustValue();
-		return super.getValueDetailsToPersist();
+	private long addUnsampled(long delta) {
+		if (cells == null) {
+			return counter.addAndGet(delta);
+		} else {
+			cells.add(COUNT_SLOT, delta);
+			return 0;
+		}
 	}
 
 	@Override
-	public AggregationType getAggregationType() {
-		return AggregationType.SUM;
+	protected boolean isSamplingSupported() {
+		return true;
 	}
 
-	private void adjustValue() {
-		long value = counter.getAndSet(0);
+	@Override
+	protected void foldPending() {
+		long value;
+		if (cells == null) {
+			value = counter.getAndSet(0);
+		} else {
+			long[] results = new long[1];
+			cells.drain(results);
+			value = results[COUNT_SLOT];
+		}
 		if (value > 0) {
 			// we adjust here only when the value is needed so we don't generate a new object on every adjustment
 			super.adjustValue(value);
@@ -112,7 +208,7 @@ public class ControlledMetricAccum extends BaseControlledMetric<Long, AccumValue
 	/**
 	 * Wrapper around a long counter and a reset flag.
 	 */
-	public static class AccumValue implements MetricValue<Long, AccumValue> {
+	public static class AccumValue implements MetricValue<Long, AccumValue>, MetricValuePrimitive {
 		private final long value;
 		private final boolean persisted;
 
@@ -173,5 +269,20 @@ public class ControlledMetricAccum extends BaseControlledMetric<Long, AccumValue
 			// with an accumulator, the min/max is just the count
 			return Long.valueOf(value);
 		}
+
+		@Override
+		public double getValueAsDouble() {
+			return value;
+		}
+
+		@Override
+		public double getMinAsDouble() {
+			return value;
+		}
+
+		@Override
+		public double getMaxAsDouble() {
+			return value;
+		}
 	}
 }
@@ -0,0 +1,322 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.metric.ControlledMetricConcurrency.ConcurrencyValue;
+import com.j256.simplemetrics.utils.NanoClock;
+import com.j256.simplemetrics.utils.SystemNanoClock;
+
+/**
+ * Managed {@link ControlledMetric} which tracks the amount of in-flight work, such as the number of requests being
+ * handled, and reports the time-weighted average, min, and max concurrency since the metric was last persisted. Call
+ * {@link #increment()} when work starts and {@link #decrement()} when it finishes. Unlike sampling the in-flight count
+ * into a {@link ControlledMetricValue}, a burst that lasts 1 millisecond counts for 1 millisecond, which is what you
+ * want when sizing thread-pools.
+ *
+ * <p>
+ * The average is calculated from the times of the increments and decrements: the area under the in-flight count is the
+ * count at the start of the interval times its length plus, for each increment, the time from the increment to the end
+ * of the interval minus the same for each decrement. The counts and the sums of the times are recorded into striped
+ * primitive cells so adjusting does not lock or allocate any objects. There are two sets of cells which are flipped
+ * with a {@link WriterReaderPhaser} when the value is read so each increment or decrement is read as a whole. An
+ * adjustment that races with the flip may be counted a few nanoseconds into the wrong interval.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricConcurrency extends BaseControlledMetric<Long, ConcurrencyValue> {
+
+	private static final int INCREMENT_COUNT_SLOT = 0;
+	private static final int INCREMENT_TIME_SLOT = 1;
+	private static final int DECREMENT_COUNT_SLOT = 2;
+	private static final int DECREMENT_TIME_SLOT = 3;
+	private static final int MIN_SLOT = 4;
+	private static final int MAX_SLOT = 5;
+	private static final int NUM_SLOTS = 6;
+
+	private final NanoClock clock;
+	private final long startNanos;
+	private final AtomicLong inFlight = new AtomicLong();
+	private final WriterReaderPhaser phaser = new WriterReaderPhaser();
+	private final StripedCells evenCells = createCells();
+	private final StripedCells oddCells = createCells();
+	// guarded by the reader lock of the phaser
+	private long lastFoldNanos;
+	private long lastFoldInFlight;
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 */
+	public ControlledMetricConcurrency(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, new SystemNanoClock());
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param clock
+	 *            Clock used to time the changes of the in-flight count.
+	 */
+	public ControlledMetricConcurrency(String component, String module, String name, String description, String unit,
+			NanoClock clock) {
+		super(component, module, name, description, unit);
+		if (clock == null) {
+			throw new NullPointerException("Clock cannot be null");
+		}
+		this.clock = clock;
+		this.startNanos = clock.nanoTime();
+	}
+
+	@Override
+	public ConcurrencyValue createInitialValue() {
+		return ConcurrencyValue.createInitialValue();
+	}
+
+	@Override
+	public Long makeValueFromLong(long value) {
+		return Long.valueOf(value);
+	}
+
+	@Override
+	public Long makeValueFromNumber(Number value) {
+		return value.longValue();
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.AVERAGE;
+	}
+
+	/**
+	 * Record that a piece of work has started.
+	 *
+	 * @return The in-flight count after the increment.
+	 */
+	public long increment() {
+		return add(1);
+	}
+
+	/**
+	 * Record that a piece of work has finished.
+	 *
+	 * @return The in-flight count after the decrement.
+	 */
+	public long decrement() {
+		return add(-1);
+	}
+
+	/**
+	 * Add a delta to the in-flight count. This does not lock or allocate any objects.
+	 *
+	 * @return The in-flight count after the adjustment.
+	 */
+	public long add(long delta) {
+		// we get the time before entering so an adjustment in the old cells is always before a flip
+		double elapsed = clock.nanoTime() - startNanos;
+		long token = phaser.writerEnter();
+		try {
+			StripedCells cells = (WriterReaderPhaser.isOddPhase(token) ? oddCells : evenCells);
+			long count = inFlight.addAndGet(delta);
+			if (delta > 0) {
+				cells.add(INCREMENT_COUNT_SLOT, delta);
+				cells.addDouble(INCREMENT_TIME_SLOT, elapsed * delta);
+				cells.max(MAX_SLOT, count);
+			} else if (delta < 0) {
+				cells.add(DECREMENT_COUNT_SLOT, -delta);
+				cells.addDouble(DECREMENT_TIME_SLOT, elapsed * -delta);
+				cells.min(MIN_SLOT, count);
+			}
+			return count;
+		} finally {
+			phaser.writerExit(token);
+		}
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		add(value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		add(value.longValue());
+	}
+
+	/**
+	 * Return the current in-flight count.
+	 */
+	public long getInFlight() {
+		return inFlight.get();
+	}
+
+	@Override
+	protected void foldPending() {
+		long[] results = new long[NUM_SLOTS];
+		long intervalStart;
+		long intervalEnd;
+		long startInFlight;
+		long endInFlight;
+		phaser.readerLock();
+		try {
+			StripedCells cells = (phaser.isOddPhase() ? oddCells : evenCells);
+			// get the time right before the flip so it is as close as possible to when the cells are swapped
+			intervalEnd = clock.nanoTime() - startNanos;
+			phaser.flipPhase();
+			cells.drain(results);
+			intervalStart = lastFoldNanos;
+			startInFlight = lastFoldInFlight;
+			endInFlight = startInFlight + results[INCREMENT_COUNT_SLOT] - results[DECREMENT_COUNT_SLOT];
+			lastFoldNanos = intervalEnd;
+			lastFoldInFlight = endInFlight;
+		} finally {
+			phaser.readerUnlock();
+		}
+
+		long increments = results[INCREMENT_COUNT_SLOT];
+		long decrements = results[DECREMENT_COUNT_SLOT];
+		long duration = intervalEnd - intervalStart;
+		double area = (double) startInFlight * duration;
+		area += (double) increments * intervalEnd - Double.longBitsToDouble(results[INCREMENT_TIME_SLOT]);
+		area -= (double) decrements * intervalEnd - Double.longBitsToDouble(results[DECREMENT_TIME_SLOT]);
+		long min = Math.min(Math.min(startInFlight, endInFlight), results[MIN_SLOT]);
+		long max = Math.max(Math.max(startInFlight, endInFlight), results[MAX_SLOT]);
+		// adjustments that raced with the flip may be a little outside of the interval so keep the area sane
+		area = Math.max(area, (double) min * duration);
+		area = Math.min(area, (double) max * duration);
+
+		ConcurrencyValue current;
+		ConcurrencyValue newValue;
+		do {
+			current = getCurrentMetricValue();
+			newValue = current.makeAdjusted(area, duration, min, max, increments);
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
+	private static StripedCells createCells() {
+		return new StripedCells(StripedCells.KIND_LONG_SUM, StripedCells.KIND_DOUBLE_SUM, StripedCells.KIND_LONG_SUM,
+				StripedCells.KIND_DOUBLE_SUM, StripedCells.KIND_LONG_MIN, StripedCells.KIND_LONG_MAX);
+	}
+
+	/**
+	 * Area under the in-flight count, the length of time it covers, the min and max count, and the number of
+	 * increments.
+	 */
+	public static class ConcurrencyValue implements MetricValue<Long, ConcurrencyValue>, MetricValuePrimitive {
+		private final double area;
+		private final long durationNanos;
+		private final long min;
+		private final long max;
+		private final long increments;
+		private final boolean resetNext;
+
+		private ConcurrencyValue(double area, long durationNanos, long min, long max, long increments,
+				boolean resetNext) {
+			this.area = area;
+			this.durationNanos = durationNanos;
+			this.min = min;
+			this.max = max;
+			this.increments = increments;
+			this.resetNext = resetNext;
+		}
+
+		public static ConcurrencyValue createInitialValue() {
+			return new ConcurrencyValue(0.0, 0, 0, 0, 0, true);
+		}
+
+		@Override
+		public ConcurrencyValue makePersisted() {
+			/*
+			 * NOTE: this doesn't change the value because we don't want this to drop to 0 just because there wasn't an
+			 * adjustment event. The next interval starts at the next fold.
+			 */
+			return new ConcurrencyValue(area, durationNanos, min, max, increments, true);
+		}
+
+		@Override
+		public ConcurrencyValue makeAdjusted(Long value) {
+			// a count that is set directly is treated as a 1 nanosecond interval
+			return makeAdjusted(value, 1, value, value, 0);
+		}
+
+		/**
+		 * Make a new entry adjusted by an interval of time.
+		 */
+		ConcurrencyValue makeAdjusted(double intervalArea, long intervalNanos, long intervalMin, long intervalMax,
+				long intervalIncrements) {
+			if (resetNext) {
+				return new ConcurrencyValue(intervalArea, intervalNanos, intervalMin, intervalMax, intervalIncrements,
+						false);
+			}
+			return new ConcurrencyValue(area + intervalArea, durationNanos + intervalNanos, Math.min(min, intervalMin),
+					Math.max(max, intervalMax), increments + intervalIncrements, false);
+		}
+
+		@Override
+		public Number getValue() {
+			return Double.valueOf(getValueAsDouble());
+		}
+
+		/**
+		 * Returns the number of increments but at least 1 so the average is not lost when the work in-flight started
+		 * before the interval.
+		 */
+		@Override
+		public int getNumSamples() {
+			if (increments >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else if (increments <= 0) {
+				return 1;
+			} else {
+				return (int) increments;
+			}
+		}
+
+		@Override
+		public Number getMin() {
+			return Long.valueOf(min);
+		}
+
+		@Override
+		public Number getMax() {
+			return Long.valueOf(max);
+		}
+
+		@Override
+		public double getValueAsDouble() {
+			if (durationNanos <= 0) {
+				return max;
+			} else {
+				return area / durationNanos;
+			}
+		}
+
+		@Override
+		public double getMinAsDouble() {
+			return min;
+		}
+
+		@Override
+		public double getMaxAsDouble() {
+			return max;
+		}
+	}
+}
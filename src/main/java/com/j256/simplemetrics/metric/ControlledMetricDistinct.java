@@ -0,0 +1,306 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.j256.simplemetrics.metric.ControlledMetricDistinct.DistinctValue;
+
+/**
+ * Managed {@link ControlledMetric} which estimates the number of distinct items, such as unique users or source IPs,
+ * that have been added since the metric was last persisted. Like the {@link ControlledMetricAccum}, the count is reset
+ * after it has been persisted.
+ *
+ * <p>
+ * This uses a HyperLogLog array of 2^precision registers so the memory used is fixed no matter how many items are
+ * added. The standard error of the estimate is 1.04/sqrt(2^precision) so the default precision of 12 uses 4k of
+ * registers and has an error of ~1.6%. Longs and strings are hashed to 64 bits without allocating any objects and the
+ * registers are updated with lock-free compare-and-set.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricDistinct extends BaseControlledMetric<Long, DistinctValue> {
+
+	/** default precision which gives ~1.6% error */
+	public static final int DEFAULT_PRECISION = 12;
+	private static final int MIN_PRECISION = 4;
+	private static final int MAX_PRECISION = 16;
+	private static final int REGISTERS_PER_WORD = 4;
+	private static final int REGISTER_BITS = 8;
+	private static final int REGISTER_MASK = 0xFF;
+
+	private final int precision;
+	// registers are packed 4 bytes to an int
+	private final AtomicIntegerArray registers;
+
+	/**
+	 * Create a distinct metric with the {@link #DEFAULT_PRECISION}.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 */
+	public ControlledMetricDistinct(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, DEFAULT_PRECISION);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param precision
+	 *            Number of bits of the hash used to pick the register between 4 and 16. Each additional bit doubles the
+	 *            memory used and divides the error by sqrt(2).
+	 */
+	public ControlledMetricDistinct(String component, String module, String name, String description, String unit,
+			int precision) {
+		super(component, module, name, description, unit);
+		if (precision < MIN_PRECISION || precision > MAX_PRECISION) {
+			throw new IllegalArgumentException("Precision must be between " + MIN_PRECISION + " and " + MAX_PRECISION);
+		}
+		this.precision = precision;
+		this.registers = new AtomicIntegerArray((1 << precision) / REGISTERS_PER_WORD);
+	}
+
+	@Override
+	public DistinctValue createInitialValue() {
+		return DistinctValue.createInitialValue();
+	}
+
+	@Override
+	public Long makeValueFromLong(long value) {
+		return Long.valueOf(value);
+	}
+
+	@Override
+	public Long makeValueFromNumber(Number value) {
+		return value.longValue();
+	}
+
+	/**
+	 * Returns {@link AggregationType#AVERAGE} because the estimates of two persists can't be added together since the
+	 * same items may have been seen in both.
+	 */
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.AVERAGE;
+	}
+
+	/**
+	 * Add a long item such as a user-id.
+	 */
+	public void add(long item) {
+		addHash(MetricHashing.hash(item));
+	}
+
+	/**
+	 * Add a string item such as an API key or IP address. Null is ignored.
+	 */
+	public void add(CharSequence item) {
+		if (item == null) {
+			return;
+		}
+		addHash(MetricHashing.hash(item));
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		add(value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		add(value.longValue());
+	}
+
+	/**
+	 * Return the precision of the registers.
+	 */
+	public int getPrecision() {
+		return precision;
+	}
+
+	@Override
+	protected void foldPending() {
+		byte[] drained = null;
+		for (int word = 0; word < registers.length(); word++) {
+			if (registers.get(word) == 0) {
+				continue;
+			}
+			int bits = registers.getAndSet(word, 0);
+			if (drained == null) {
+				drained = new byte[1 << precision];
+			}
+			for (int i = 0; i < REGISTERS_PER_WORD; i++) {
+				drained[word * REGISTERS_PER_WORD + i] = (byte) ((bits >>> (i * REGISTER_BITS)) & REGISTER_MASK);
+			}
+		}
+		if (drained == null) {
+			return;
+		}
+		DistinctValue current;
+		DistinctValue newValue;
+		do {
+			current = getCurrentMetricValue();
+			newValue = current.makeAdjusted(drained);
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
+	private void addHash(long hash) {
+		int index = (int) (hash >>> (64 - precision));
+		// the rank is the position of the first 1 bit after the index bits, the sentinel bit caps it
+		long rest = (hash << precision) | (1L << (precision - 1));
+		int rank = Long.numberOfLeadingZeros(rest) + 1;
+		int word = index / REGISTERS_PER_WORD;
+		int shift = (index % REGISTERS_PER_WORD) * REGISTER_BITS;
+		while (true) {
+			int current = registers.get(word);
+			if (((current >>> shift) & REGISTER_MASK) >= rank) {
+				return;
+			}
+			int next = (current & ~(REGISTER_MASK << shift)) | (rank << shift);
+			if (registers.compareAndSet(word, current, next)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Return the HyperLogLog cardinality estimate of a register array.
+	 */
+	static long estimate(byte[] registerValues) {
+		int numRegisters = registerValues.length;
+		double sum = 0.0;
+		int numZeros = 0;
+		for (byte register : registerValues) {
+			sum += 1.0 / (1L << register);
+			if (register == 0) {
+				numZeros++;
+			}
+		}
+		double alpha;
+		if (numRegisters == 16) {
+			alpha = 0.673;
+		} else if (numRegisters == 32) {
+			alpha = 0.697;
+		} else if (numRegisters == 64) {
+			alpha = 0.709;
+		} else {
+			alpha = 0.7213 / (1.0 + 1.079 / numRegisters);
+		}
+		double estimate = alpha * numRegisters * numRegisters / sum;
+		if (estimate <= 2.5 * numRegisters && numZeros > 0) {
+			// linear counting is more accurate for small cardinalities
+			estimate = numRegisters * Math.log((double) numRegisters / numZeros);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Snapshot of the registers and their estimate with a persisted flag.
+	 */
+	public static class DistinctValue implements MetricValue<Long, DistinctValue>, MetricValuePrimitive {
+		private final byte[] registerValues;
+		private final long estimate;
+		private final boolean persisted;
+
+		private DistinctValue(byte[] registerValues, long estimate, boolean persisted) {
+			this.registerValues = registerValues;
+			this.estimate = estimate;
+			this.persisted = persisted;
+		}
+
+		public static DistinctValue createInitialValue() {
+			return new DistinctValue(null, 0, true);
+		}
+
+		@Override
+		public DistinctValue makePersisted() {
+			if (persisted) {
+				// like the accumulator, if we have already persisted this value then reset it
+				return new DistinctValue(null, 0, true);
+			} else {
+				return new DistinctValue(registerValues, estimate, true);
+			}
+		}
+
+		@Override
+		public DistinctValue makeAdjusted(Long value) {
+			// adjustments are made to the registers and folded in so this just adds to the estimate
+			if (persisted) {
+				return new DistinctValue(null, value, false);
+			} else {
+				return new DistinctValue(registerValues, estimate + value, false);
+			}
+		}
+
+		/**
+		 * Make a new value with the drained registers merged in.
+		 */
+		DistinctValue makeAdjusted(byte[] drained) {
+			if (persisted || registerValues == null || registerValues.length != drained.length) {
+				return new DistinctValue(drained, estimate(drained), false);
+			}
+			byte[] merged = registerValues.clone();
+			for (int i = 0; i < merged.length; i++) {
+				if (drained[i] > merged[i]) {
+					merged[i] = drained[i];
+				}
+			}
+			return new DistinctValue(merged, estimate(merged), false);
+		}
+
+		@Override
+		public Number getValue() {
+			return Long.valueOf(estimate);
+		}
+
+		@Override
+		public int getNumSamples() {
+			// one estimate, unless there were no items, so the estimates are not weighted by themselves when averaged
+			return (estimate == 0 ? 0 : 1);
+		}
+
+		@Override
+		public Number getMin() {
+			// like the accumulator, the min/max is just the estimate
+			return Long.valueOf(estimate);
+		}
+
+		@Override
+		public Number getMax() {
+			// like the accumulator, the min/max is just the estimate
+			return Long.valueOf(estimate);
+		}
+
+		@Override
+		public double getValueAsDouble() {
+			return estimate;
+		}
+
+		@Override
+		public double getMinAsDouble() {
+			return estimate;
+		}
+
+		@Override
+		public double getMaxAsDouble() {
+			return estimate;
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package com.j256.simplemetrics.metric;
+
+import com.j256.simplemetrics.metric.ControlledMetricDoubleAccum.DoubleAccumValue;
+
+/**
+ * Managed {@link ControlledMetric} like {@link ControlledMetricAccum} but for fractional amounts such as gigabytes,
+ * dollars, or CPU seconds that you are adding to continually. Like the accumulator, the value is reset after it has
+ * been persisted.
+ *
+ * <p>
+ * The additions are spread across striped primitive cells so they do not contend or allocate any objects. The rounding
+ * error of each addition is kept in a compensation sum so the total does not drift over billions of additions.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricDoubleAccum extends BaseControlledMetric<Double, DoubleAccumValue> {
+
+	private static final int SUM_SLOT = 0;
+	private static final int COMPENSATION_SLOT = 1;
+	private static final int COUNT_SLOT = 2;
+
+	private final StripedCells cells = new StripedCells(StripedCells.KIND_DOUBLE_SUM, StripedCells.KIND_DOUBLE_SUM,
+			StripedCells.KIND_LONG_SUM);
+
+	/**
+	 * @param component
+	 *            Component short name such as "my". Required.
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview". Null if none.
+	 * @param name
+	 *            String label description the metric. Required.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric. Null if none.
+	 */
+	public ControlledMetricDoubleAccum(String component, String module, String name, String description,
+			String unit) {
+		super(component, module, name, description, unit);
+	}
+
+	@Override
+	public DoubleAccumValue createInitialValue() {
+		return DoubleAccumValue.createInitialValue();
+	}
+
+	@Override
+	public Double makeValueFromLong(long value) {
+		return Double.valueOf(value);
+	}
+
+	@Override
+	public Double makeValueFromNumber(Number value) {
+		return value.doubleValue();
+	}
+
+	/**
+	 * Add a delta value to the metric. This does not allocate any objects.
+	 */
+	public void add(double delta) {
+		long weight = sampleWeight();
+		if (weight == 0) {
+			return;
+		}
+		// a sampled delta stands in for the weight number of deltas
+		cells.addDoubleCompensated(SUM_SLOT, COMPENSATION_SLOT, delta * weight);
+		cells.add(COUNT_SLOT, weight);
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		add(value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		add(value.doubleValue());
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.SUM;
+	}
+
+	@Override
+	protected boolean isSamplingSupported() {
+		return true;
+	}
+
+	@Override
+	protected void foldPending() {
+		long[] results = new long[3];
+		cells.drain(results);
+		long count = results[COUNT_SLOT];
+		double sum = Double.longBitsToDouble(results[SUM_SLOT]);
+		double compensation = Double.longBitsToDouble(results[COMPENSATION_SLOT]);
+		/*
+		 * An adjustment may have raced with our drain so its sum may arrive without its count or the other way around.
+		 * We can't put back a sum without its count because the count may already have been taken by this drain so the
+		 * sum would be stranded. The sum is what matters so we fold in whatever we got.
+		 */
+		if (count <= 0 && sum == 0.0 && compensation == 0.0) {
+			return;
+		}
+		DoubleAccumValue current;
+		DoubleAccumValue newValue;
+		do {
+			current = getCurrentMetricValue();
+			newValue = current.makeAdjusted(sum, compensation, count);
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
+	/**
+	 * Wrapper around a compensated double sum, the number of additions, and a persisted flag.
+	 */
+	public static class DoubleAccumValue implements MetricValue<Double, DoubleAccumValue>, MetricValueTotal,
+			MetricValuePrimitive {
+		private final double sum;
+		private final double compensation;
+		private final long count;
+		private final boolean persisted;
+
+		private DoubleAccumValue(double sum, double compensation, long count, boolean persisted) {
+			this.sum = sum;
+			this.compensation = compensation;
+			this.count = count;
+			this.persisted = persisted;
+		}
+
+		public static DoubleAccumValue createInitialValue() {
+			return new DoubleAccumValue(0.0, 0.0, 0, true);
+		}
+
+		@Override
+		public DoubleAccumValue makePersisted() {
+			if (persisted) {
+				/*
+				 * If we have already persisted this value then reset it immediately because this is an accumulator and
+				 * we don't want the persisted value to look like there were another value number of accumulator events.
+				 */
+				return new DoubleAccumValue(0.0, 0.0, 0, true);
+			} else {
+				return new DoubleAccumValue(sum, compensation, count, true);
+			}
+		}
+
+		@Override
+		public DoubleAccumValue makeAdjusted(Double newValue) {
+			return makeAdjusted(newValue, 0.0, 1);
+		}
+
+		/**
+		 * Make a new entry adjusted by a compensated sum of a number of additions.
+		 */
+		DoubleAccumValue makeAdjusted(double newSum, double newCompensation, long newCount) {
+			if (persisted) {
+				return new DoubleAccumValue(newSum, newCompensation, newCount, false);
+			}
+			// Knuth's two-sum so the rounding error of combining the sums is kept in the compensation
+			double total = sum + newSum;
+			double newPart = total - sum;
+			double error = (sum - (total - newPart)) + (newSum - newPart);
+			return new DoubleAccumValue(total, compensation + newCompensation + error, count + newCount, false);
+		}
+
+		@Override
+		public Number getValue() {
+			return Double.valueOf(getValueAsDouble());
+		}
+
+		@Override
+		public int getNumSamples() {
+			// the number of additions
+			if (count >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else {
+				return (int) count;
+			}
+		}
+
+		@Override
+		public Number getMin() {
+			// with an accumulator, the min/max is just the sum
+			return getValue();
+		}
+
+		@Override
+		public Number getMax() {
+			// with an accumulator, the min/max is just the sum
+			return getValue();
+		}
+
+		@Override
+		public double getValueAsDouble() {
+			return sum + compensation;
+		}
+
+		@Override
+		public double getMinAsDouble() {
+			return getValueAsDouble();
+		}
+
+		@Override
+		public double getMaxAsDouble() {
+			return getValueAsDouble();
+		}
+	}
+}
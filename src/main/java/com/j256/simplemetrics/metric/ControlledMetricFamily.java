@@ -0,0 +1,337 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+
+/**
+ * Family of metrics which share a component, module, and name but are further identified by a number of labels such as
+ * an endpoint or status-code. You give the label names when the family is constructed and then ask for the child metric
+ * for some label values:
+ *
+ * <pre>
+ * ControlledMetricFamily&lt;ControlledMetricAccum&gt; family = new ControlledMetricFamily&lt;ControlledMetricAccum&gt;(
+ * 		metricsManager, "web", "api", "requests", "API requests", null, new String[] { "endpoint", "status" },
+ * 		ControlledMetricFamily.accumFactory());
+ * ...
+ * family.getChild("/users", "200").increment();
+ * </pre>
+ *
+ * <p>
+ * The first time some label values are seen, the child is created and registered with the metrics manager. After that,
+ * finding the child is a lock-free lookup which does not allocate any objects if you use the methods that take 1 to 3
+ * label values. The children implement {@link LabeledMetric} so the persisters can publish their labels as dimensions.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricFamily<M extends BaseControlledMetric<?, ?>> {
+
+	private static final int INITIAL_TABLE_SIZE = 16;
+	private static final long HASH_SEED = 0x9e3779b97f4a7c15L;
+
+	private final MetricsManager metricsManager;
+	private final String component;
+	private final String module;
+	private final String name;
+	private final String description;
+	private final String unit;
+	private final String[] labelNames;
+	private final ChildFactory<M> childFactory;
+	private volatile AtomicReferenceArray<Node<M>> table = new AtomicReferenceArray<Node<M>>(INITIAL_TABLE_SIZE);
+	// guarded by this
+	private int numChildren;
+
+	/**
+	 * @param metricsManager
+	 *            Manager that the children are registered with when they are created or null if they should not be
+	 *            registered.
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param labelNames
+	 *            Names of the labels that identify the children.
+	 * @param childFactory
+	 *            Factory which creates the child metrics.
+	 */
+	public ControlledMetricFamily(MetricsManager metricsManager, String component, String module, String name,
+			String description, String unit, String[] labelNames, ChildFactory<M> childFactory) {
+		if (labelNames == null || labelNames.length == 0) {
+			throw new IllegalArgumentException("Family must have at least one label name");
+		}
+		for (String labelName : labelNames) {
+			if (labelName == null) {
+				throw new NullPointerException("Label names cannot be null");
+			}
+		}
+		if (childFactory == null) {
+			throw new NullPointerException("Child factory cannot be null");
+		}
+		this.metricsManager = metricsManager;
+		this.component = component;
+		this.module = module;
+		this.name = name;
+		this.description = description;
+		this.unit = unit;
+		this.labelNames = labelNames.clone();
+		this.childFactory = childFactory;
+	}
+
+	/**
+	 * Return the child for a family with one label.
+	 */
+	public M getChild(String value) {
+		checkNumValues(1);
+		checkValue(value);
+		long hash = hashValue(HASH_SEED, value);
+		Node<M> node = findNode(hash, value, null, null, null);
+		if (node == null) {
+			return createChild(hash, new String[] { value });
+		} else {
+			return node.child;
+		}
+	}
+
+	/**
+	 * Return the child for a family with two labels.
+	 */
+	public M getChild(String value1, String value2) {
+		checkNumValues(2);
+		checkValue(value1);
+		checkValue(value2);
+		long hash = hashValue(hashValue(HASH_SEED, value1), value2);
+		Node<M> node = findNode(hash, value1, value2, null, null);
+		if (node == null) {
+			return createChild(hash, new String[] { value1, value2 });
+		} else {
+			return node.child;
+		}
+	}
+
+	/**
+	 * Return the child for a family with three labels.
+	 */
+	public M getChild(String value1, String value2, String value3) {
+		checkNumValues(3);
+		checkValue(value1);
+		checkValue(value2);
+		checkValue(value3);
+		long hash = hashValue(hashValue(hashValue(HASH_SEED, value1), value2), value3);
+		Node<M> node = findNode(hash, value1, value2, value3, null);
+		if (node == null) {
+			return createChild(hash, new String[] { value1, value2, value3 });
+		} else {
+			return node.child;
+		}
+	}
+
+	/**
+	 * Return the child for the label values which must be in the same order as the label names.
+	 */
+	public M getChild(String... values) {
+		checkNumValues(values.length);
+		long hash = HASH_SEED;
+		for (String value : values) {
+			checkValue(value);
+			hash = hashValue(hash, value);
+		}
+		Node<M> node = findNode(hash, null, null, null, values);
+		if (node == null) {
+			return createChild(hash, values.clone());
+		} else {
+			return node.child;
+		}
+	}
+
+	/**
+	 * Return all of the children that have been created.
+	 */
+	public List<M> getChildren() {
+		AtomicReferenceArray<Node<M>> table = this.table;
+		List<M> children = new ArrayList<M>();
+		for (int i = 0; i < table.length(); i++) {
+			for (Node<M> node = table.get(i); node != null; node = node.next) {
+				children.add(node.child);
+			}
+		}
+		return children;
+	}
+
+	/**
+	 * Return the names of the labels.
+	 */
+	public String[] getLabelNames() {
+		return labelNames.clone();
+	}
+
+	/**
+	 * Return a factory which creates {@link ControlledMetricAccum} children.
+	 */
+	public static ChildFactory<ControlledMetricAccum> accumFactory() {
+		return new ChildFactory<ControlledMetricAccum>() {
+			@Override
+			public ControlledMetricAccum createMetric(String component, String module, String name, String description,
+					String unit) {
+				return new ControlledMetricAccum(component, module, name, description, unit);
+			}
+		};
+	}
+
+	/**
+	 * Return a factory which creates {@link ControlledMetricValue} children.
+	 */
+	public static ChildFactory<ControlledMetricValue> valueFactory() {
+		return new ChildFactory<ControlledMetricValue>() {
+			@Override
+			public ControlledMetricValue createMetric(String component, String module, String name, String description,
+					String unit) {
+				return new ControlledMetricValue(component, module, name, description, unit);
+			}
+		};
+	}
+
+	/**
+	 * Return a factory which creates {@link ControlledMetricOperation} children which report their latency in
+	 * {@link ControlledMetricOperation#DEFAULT_TIME_UNIT}. The unit of the family is not used.
+	 */
+	public static ChildFactory<ControlledMetricOperation> operationFactory() {
+		return new ChildFactory<ControlledMetricOperation>() {
+			@Override
+			public ControlledMetricOperation createMetric(String component, String module, String name,
+					String description, String unit) {
+				return new ControlledMetricOperation(component, module, name, description);
+			}
+		};
+	}
+
+	private Node<M> findNode(long hash, String value1, String value2, String value3, String[] values) {
+		AtomicReferenceArray<Node<M>> table = this.table;
+		for (Node<M> node = table.get(indexFor(hash, table.length())); node != null; node = node.next) {
+			if (node.hash == hash && node.matches(value1, value2, value3, values)) {
+				return node;
+			}
+		}
+		return null;
+	}
+
+	private M createChild(long hash, String[] values) {
+		M child;
+		synchronized (this) {
+			// see if someone else created it while we were waiting
+			Node<M> node = findNode(hash, null, null, null, values);
+			if (node != null) {
+				return node.child;
+			}
+			child = childFactory.createMetric(component, module, name, description, unit);
+			child.setLabels(labelNames, values);
+			if (metricsManager != null) {
+				// register before adding to the table so a failed registration leaves no orphaned child behind
+				child = metricsManager.getOrRegisterMetric(child);
+			}
+			AtomicReferenceArray<Node<M>> table = this.table;
+			if (numChildren >= table.length() * 3 / 4) {
+				table = resize(table);
+			}
+			int index = indexFor(hash, table.length());
+			table.set(index, new Node<M>(hash, values, child, table.get(index)));
+			numChildren++;
+		}
+		return child;
+	}
+
+	private AtomicReferenceArray<Node<M>> resize(AtomicReferenceArray<Node<M>> oldTable) {
+		AtomicReferenceArray<Node<M>> newTable = new AtomicReferenceArray<Node<M>>(oldTable.length() * 2);
+		for (int i = 0; i < oldTable.length(); i++) {
+			for (Node<M> node = oldTable.get(i); node != null; node = node.next) {
+				int index = indexFor(node.hash, newTable.length());
+				newTable.set(index, new Node<M>(node.hash, node.values, node.child, newTable.get(index)));
+			}
+		}
+		// readers see either the old or the new table which both hold all of the existing children
+		this.table = newTable;
+		return newTable;
+	}
+
+	private void checkNumValues(int numValues) {
+		if (numValues != labelNames.length) {
+			throw new IllegalArgumentException(
+					"Family has " + labelNames.length + " labels but " + numValues + " values were given");
+		}
+	}
+
+	private static void checkValue(String value) {
+		if (value == null) {
+			throw new NullPointerException("Label values cannot be null");
+		}
+	}
+
+	private static long hashValue(long hash, String value) {
+		return (hash * 31) ^ MetricHashing.hash(value);
+	}
+
+	private static int indexFor(long hash, int length) {
+		return (int) (hash ^ (hash >>> 32)) & (length - 1);
+	}
+
+	/**
+	 * Factory which creates the child metrics of a family. The children must not be registered with the metrics
+	 * manager, the family does that.
+	 */
+	public interface ChildFactory<M> {
+
+		/**
+		 * Create a child metric with the fields of the family.
+		 */
+		public M createMetric(String component, String module, String name, String description, String unit);
+	}
+
+	/**
+	 * Immutable entry in the hash chain which holds the interned label values of a child.
+	 */
+	private static class Node<M> {
+		final long hash;
+		final String[] values;
+		final M child;
+		final Node<M> next;
+
+		public Node(long hash, String[] values, M child, Node<M> next) {
+			this.hash = hash;
+			this.values = values;
+			this.child = child;
+			this.next = next;
+		}
+
+		/**
+		 * Matches either the values array or, if that is null, the individual values.
+		 */
+		boolean matches(String value1, String value2, String value3, String[] otherValues) {
+			if (otherValues != null) {
+				for (int i = 0; i < values.length; i++) {
+					if (!values[i].equals(otherValues[i])) {
+						return false;
+					}
+				}
+				return true;
+			}
+			if (!values[0].equals(value1)) {
+				return false;
+			}
+			if (values.length > 1 && !values[1].equals(value2)) {
+				return false;
+			}
+			if (values.length > 2 && !values[2].equals(value3)) {
+				return false;
+			}
+			return true;
+		}
+	}
+}
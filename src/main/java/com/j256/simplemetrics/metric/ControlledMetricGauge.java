@@ -0,0 +1,300 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.concurrent.TimeUnit;
+
+import com.j256.simplemetrics.metric.ControlledMetricGauge.GaugeValue;
+import com.j256.simplemetrics.utils.NanoClock;
+import com.j256.simplemetrics.utils.SystemNanoClock;
+
+/**
+ * Managed {@link ControlledMetric} whose value is read from a probe, such as the free space of a disk or the size of a
+ * queue, only when the metric is persisted or read through JMX. Unlike updating a {@link ControlledMetricValue} from a
+ * {@link com.j256.simplemetrics.manager.MetricsUpdater}, nothing needs to be registered and the value is never stale.
+ *
+ * <p>
+ * The value is cached for a time-to-live so a number of readers at the same time do not each evaluate an expensive
+ * probe. If the cached value has expired, one reader evaluates the probe and the others wait for its result.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricGauge extends BaseControlledMetric<Double, GaugeValue> {
+
+	/** default time-to-live of the cached value in milliseconds */
+	public static final long DEFAULT_TTL_MILLIS = 1000;
+
+	private final LongProbe longProbe;
+	private final DoubleProbe doubleProbe;
+	private final NanoClock clock;
+	private final long ttlNanos;
+	private volatile GaugeValue cachedValue;
+	private volatile long cachedNanos;
+
+	/**
+	 * Create a gauge of a long probe which caches the value for {@link #DEFAULT_TTL_MILLIS}.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param probe
+	 *            Probe which returns the value of the gauge.
+	 */
+	public ControlledMetricGauge(String component, String module, String name, String description, String unit,
+			LongProbe probe) {
+		this(component, module, name, description, unit, probe, null, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS,
+				new SystemNanoClock());
+	}
+
+	/**
+	 * Create a gauge of a double probe which caches the value for {@link #DEFAULT_TTL_MILLIS}.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param probe
+	 *            Probe which returns the value of the gauge.
+	 */
+	public ControlledMetricGauge(String component, String module, String name, String description, String unit,
+			DoubleProbe probe) {
+		this(component, module, name, description, unit, null, probe, DEFAULT_TTL_MILLIS, TimeUnit.MILLISECONDS,
+				new SystemNanoClock());
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param probe
+	 *            Probe which returns the value of the gauge.
+	 * @param ttl
+	 *            Time that the value is cached for in the ttl-unit. 0 means that the probe is evaluated on every read.
+	 * @param ttlUnit
+	 *            Unit of the ttl.
+	 * @param clock
+	 *            Clock used to expire the cached value.
+	 */
+	public ControlledMetricGauge(String component, String module, String name, String description, String unit,
+			LongProbe probe, long ttl, TimeUnit ttlUnit, NanoClock clock) {
+		this(component, module, name, description, unit, probe, null, ttl, ttlUnit, clock);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param probe
+	 *            Probe which returns the value of the gauge.
+	 * @param ttl
+	 *            Time that the value is cached for in the ttl-unit. 0 means that the probe is evaluated on every read.
+	 * @param ttlUnit
+	 *            Unit of the ttl.
+	 * @param clock
+	 *            Clock used to expire the cached value.
+	 */
+	public ControlledMetricGauge(String component, String module, String name, String description, String unit,
+			DoubleProbe probe, long ttl, TimeUnit ttlUnit, NanoClock clock) {
+		this(component, module, name, description, unit, null, probe, ttl, ttlUnit, clock);
+	}
+
+	private ControlledMetricGauge(String component, String module, String name, String description, String unit,
+			LongProbe longProbe, DoubleProbe doubleProbe, long ttl, TimeUnit ttlUnit, NanoClock clock) {
+		super(component, module, name, description, unit);
+		if (longProbe == null && doubleProbe == null) {
+			throw new NullPointerException("Probe cannot be null");
+		}
+		if (clock == null) {
+			throw new NullPointerException("Clock cannot be null");
+		}
+		if (ttl < 0) {
+			throw new IllegalArgumentException("TTL cannot be negative: " + ttl);
+		}
+		this.longProbe = longProbe;
+		this.doubleProbe = doubleProbe;
+		this.ttlNanos = ttlUnit.toNanos(ttl);
+		this.clock = clock;
+	}
+
+	@Override
+	public GaugeValue createInitialValue() {
+		return GaugeValue.createInitialValue();
+	}
+
+	@Override
+	public Double makeValueFromLong(long value) {
+		return Double.valueOf(value);
+	}
+
+	@Override
+	public Double makeValueFromNumber(Number value) {
+		return value.doubleValue();
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.AVERAGE;
+	}
+
+	/**
+	 * Gauges get their values from their probe so this sets the cached value which is reported until the ttl expires
+	 * and the probe is evaluated again.
+	 */
+	@Override
+	public void adjustValue(long value) {
+		setCachedValue(new GaugeValue(Long.valueOf(value)));
+	}
+
+	/**
+	 * Gauges get their values from their probe so this sets the cached value which is reported until the ttl expires
+	 * and the probe is evaluated again.
+	 */
+	@Override
+	public void adjustValue(Number value) {
+		setCachedValue(new GaugeValue(value));
+	}
+
+	@Override
+	protected void foldPending() {
+		GaugeValue newValue = getCachedValue();
+		GaugeValue current;
+		do {
+			current = getCurrentMetricValue();
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
+	private GaugeValue getCachedValue() {
+		GaugeValue value = cachedValue;
+		if (value != null && clock.nanoTime() - cachedNanos < ttlNanos) {
+			return value;
+		}
+		synchronized (this) {
+			// another reader may have evaluated the probe while we waited
+			value = cachedValue;
+			long now = clock.nanoTime();
+			if (value != null && now - cachedNanos < ttlNanos) {
+				return value;
+			}
+			try {
+				if (longProbe == null) {
+					value = new GaugeValue(Double.valueOf(doubleProbe.getValue()));
+				} else {
+					value = new GaugeValue(Long.valueOf(longProbe.getValue()));
+				}
+			} catch (RuntimeException re) {
+				// a failing probe must not stop the persisting of the other metrics so we keep the last value
+				if (value == null) {
+					value = new GaugeValue(Double.valueOf(Double.NaN));
+				}
+			}
+			cachedNanos = now;
+			cachedValue = value;
+			return value;
+		}
+	}
+
+	private synchronized void setCachedValue(GaugeValue value) {
+		cachedNanos = clock.nanoTime();
+		cachedValue = value;
+	}
+
+	/**
+	 * Probe which returns a long value for the gauge.
+	 */
+	public interface LongProbe {
+
+		/**
+		 * Return the current value of the gauge.
+		 */
+		public long getValue();
+	}
+
+	/**
+	 * Probe which returns a double value for the gauge.
+	 */
+	public interface DoubleProbe {
+
+		/**
+		 * Return the current value of the gauge.
+		 */
+		public double getValue();
+	}
+
+	/**
+	 * Value read from the probe.
+	 */
+	public static class GaugeValue implements MetricValue<Double, GaugeValue> {
+		private final Number value;
+
+		private GaugeValue(Number value) {
+			this.value = value;
+		}
+
+		public static GaugeValue createInitialValue() {
+			return new GaugeValue(Double.valueOf(0.0));
+		}
+
+		@Override
+		public GaugeValue makePersisted() {
+			// the value comes from the probe so it is not reset
+			return this;
+		}
+
+		@Override
+		public GaugeValue makeAdjusted(Double newValue) {
+			return new GaugeValue(newValue);
+		}
+
+		@Override
+		public Number getValue() {
+			return value;
+		}
+
+		@Override
+		public int getNumSamples() {
+			// a probe that has never returned a usable value has nothing to publish
+			double doubleValue = value.doubleValue();
+			if (Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)) {
+				return 0;
+			} else {
+				return 1;
+			}
+		}
+
+		@Override
+		public Number getMin() {
+			return value;
+		}
+
+		@Override
+		public Number getMax() {
+			return value;
+		}
+	}
+}
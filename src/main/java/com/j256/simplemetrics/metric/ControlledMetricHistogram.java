@@ -0,0 +1,426 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.j256.simplemetrics.metric.ControlledMetricHistogram.HistogramValue;
+
+/**
+ * Managed {@link ControlledMetric} which records long values, such as latencies, into a fixed number of log-linear
+ * buckets so it can report the values at a number of percentiles (p50, p99, p99.9, etc.) as well as the average, min,
+ * and max. The percentiles are available through {@link MetricValueDetails#getPercentileValues()}.
+ *
+ * <p>
+ * Values below 2^precisionBits each have their own bucket. Above that, each power of 2 is split into
+ * 2^(precisionBits-1) linear buckets so the relative error of a reported percentile is at most 1/2^precisionBits. The
+ * default of 7 bits is less than 1% error and uses ~75k of memory: ~30k for the buckets and ~45k for the scratch
+ * arrays that they are drained into. Recording a value is an atomic increment of its bucket plus atomic updates of the
+ * striped sum, min, and max cells and does not allocate any objects. The values that are read only hold the buckets
+ * which are not empty. Negative values are recorded as 0.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricHistogram extends BaseControlledMetric<Long, HistogramValue> {
+
+	/** default number of bits of precision which gives less than 1% error */
+	public static final int DEFAULT_PRECISION_BITS = 7;
+	/** default percentiles that are reported */
+	public static final double[] DEFAULT_PERCENTILES = new double[] { 50.0, 90.0, 99.0, 99.9 };
+	private static final int MIN_PRECISION_BITS = 1;
+	private static final int MAX_PRECISION_BITS = 10;
+
+	private static final int SUM_SLOT = 0;
+	private static final int MIN_SLOT = 1;
+	private static final int MAX_SLOT = 2;
+
+	private final int precisionBits;
+	private final double[] percentiles;
+	private final AtomicLongArray buckets;
+	// reused by the drain of the buckets which is synchronized on it
+	private final int[] scratchIndexes;
+	private final long[] scratchCounts;
+	private final StripedCells cells =
+			new StripedCells(StripedCells.KIND_DOUBLE_SUM, StripedCells.KIND_LONG_MIN, StripedCells.KIND_LONG_MAX);
+
+	/**
+	 * Create a histogram with the default precision of {@link #DEFAULT_PRECISION_BITS} and which reports the
+	 * {@link #DEFAULT_PERCENTILES}.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 */
+	public ControlledMetricHistogram(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, DEFAULT_PRECISION_BITS, DEFAULT_PERCENTILES);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param precisionBits
+	 *            Number of bits of precision for the buckets between 1 and 10. Each additional bit halves the error and
+	 *            doubles the memory used.
+	 * @param percentiles
+	 *            Percentiles to report such as 50.0, 99.0, and 99.9.
+	 */
+	public ControlledMetricHistogram(String component, String module, String name, String description, String unit,
+			int precisionBits, double[] percentiles) {
+		super(component, module, name, description, unit);
+		if (precisionBits < MIN_PRECISION_BITS || precisionBits > MAX_PRECISION_BITS) {
+			throw new IllegalArgumentException(
+					"Precision bits must be between " + MIN_PRECISION_BITS + " and " + MAX_PRECISION_BITS);
+		}
+		if (percentiles == null) {
+			throw new NullPointerException("Percentiles cannot be null");
+		}
+		for (double percentile : percentiles) {
+			if (percentile <= 0.0 || percentile > 100.0) {
+				throw new IllegalArgumentException("Invalid percentile " + percentile + ", must be > 0 and <= 100");
+			}
+		}
+		this.precisionBits = precisionBits;
+		this.percentiles = percentiles.clone();
+		this.buckets = new AtomicLongArray(bucketIndex(precisionBits, Long.MAX_VALUE) + 1);
+		this.scratchIndexes = new int[buckets.length()];
+		this.scratchCounts = new long[buckets.length()];
+	}
+
+	@Override
+	public HistogramValue createInitialValue() {
+		/*
+		 * NOTE: this is called from the super constructor before our fields are set so the initial value is empty and
+		 * picks up the precision and percentiles on the first adjustment.
+		 */
+		return HistogramValue.createInitialValue();
+	}
+
+	@Override
+	public Long makeValueFromLong(long value) {
+		return Long.valueOf(value);
+	}
+
+	@Override
+	public Long makeValueFromNumber(Number value) {
+		return value.longValue();
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.AVERAGE;
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		if (value < 0) {
+			value = 0;
+		}
+		buckets.getAndIncrement(bucketIndex(precisionBits, value));
+		cells.addDouble(SUM_SLOT, value);
+		cells.min(MIN_SLOT, value);
+		cells.max(MAX_SLOT, value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue(value.longValue());
+	}
+
+	/**
+	 * Return the precision bits of the buckets.
+	 */
+	public int getPrecisionBits() {
+		return precisionBits;
+	}
+
+	/**
+	 * Return the percentiles that are reported.
+	 */
+	public double[] getPercentiles() {
+		return percentiles.clone();
+	}
+
+	@Override
+	protected void foldPending() {
+		int[] indexes = null;
+		long[] counts = null;
+		long count = 0;
+		synchronized (scratchIndexes) {
+			int numBuckets = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				if (buckets.get(i) == 0) {
+					continue;
+				}
+				long bucketCount = buckets.getAndSet(i, 0);
+				if (bucketCount == 0) {
+					continue;
+				}
+				scratchIndexes[numBuckets] = i;
+				scratchCounts[numBuckets] = bucketCount;
+				numBuckets++;
+				count += bucketCount;
+			}
+			if (numBuckets > 0) {
+				// only copy out the buckets that have values
+				indexes = Arrays.copyOf(scratchIndexes, numBuckets);
+				counts = Arrays.copyOf(scratchCounts, numBuckets);
+			}
+		}
+		long[] results = new long[3];
+		cells.drain(results);
+		double sum = Double.longBitsToDouble(results[SUM_SLOT]);
+		long min = results[MIN_SLOT];
+		long max = results[MAX_SLOT];
+		/*
+		 * An adjustment may have raced with our drain so its sum may arrive without its bucket or the other way around.
+		 * We can't put back a sum without its bucket because the bucket may already have been taken by this drain so
+		 * the sum would be stranded. We fold in whatever we got.
+		 */
+		if (count == 0 && sum == 0.0) {
+			return;
+		}
+		HistogramValue current;
+		HistogramValue newValue;
+		do {
+			current = getCurrentMetricValue();
+			newValue = current.makeAdjusted(precisionBits, percentiles, indexes, counts, count, sum, min, max);
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
+	/**
+	 * Return the index of the bucket that holds the value.
+	 */
+	static int bucketIndex(int precisionBits, long value) {
+		long subBucketCount = 1L << precisionBits;
+		if (value < subBucketCount) {
+			return (int) value;
+		}
+		// shift the value so it lands in the top half of the sub-buckets
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - precisionBits + 1;
+		int halfCount = 1 << (precisionBits - 1);
+		return shift * halfCount + (int) (value >>> shift);
+	}
+
+	/**
+	 * Return the lowest value that is held by the bucket.
+	 */
+	static long bucketLowerBound(int precisionBits, int index) {
+		int subBucketCount = 1 << precisionBits;
+		if (index < subBucketCount) {
+			return index;
+		}
+		int halfCount = subBucketCount >> 1;
+		int shift = index / halfCount - 1;
+		long subBucket = index - shift * halfCount;
+		return subBucket << shift;
+	}
+
+	/**
+	 * Return the highest value that is held by the bucket.
+	 */
+	static long bucketUpperBound(int precisionBits, int index) {
+		int subBucketCount = 1 << precisionBits;
+		if (index < subBucketCount) {
+			return index;
+		}
+		int halfCount = subBucketCount >> 1;
+		int shift = index / halfCount - 1;
+		long subBucket = index - shift * halfCount;
+		// watch for the top bucket overflowing
+		long upper = ((subBucket + 1) << shift) - 1;
+		return (upper < 0 ? Long.MAX_VALUE : upper);
+	}
+
+	/**
+	 * Snapshot of the counts of the buckets which are not empty, sorted by bucket index, and the sum, count, min, and max
+	 * of the values.
+	 */
+	public static class HistogramValue implements MetricValue<Long, HistogramValue>, MetricValuePercentiles {
+		private final int precisionBits;
+		private final double[] percentiles;
+		private final int[] indexes;
+		private final long[] counts;
+		private final long count;
+		private final double sum;
+		private final long min;
+		private final long max;
+		private final boolean resetNext;
+
+		private HistogramValue(int precisionBits, double[] percentiles, int[] indexes, long[] counts, long count,
+				double sum, long min, long max, boolean resetNext) {
+			this.precisionBits = precisionBits;
+			this.percentiles = percentiles;
+			this.indexes = indexes;
+			this.counts = counts;
+			this.count = count;
+			this.sum = sum;
+			this.min = min;
+			this.max = max;
+			this.resetNext = resetNext;
+		}
+
+		public static HistogramValue createInitialValue() {
+			return new HistogramValue(DEFAULT_PRECISION_BITS, new double[0], null, null, 0, 0.0, 0, 0, true);
+		}
+
+		@Override
+		public HistogramValue makePersisted() {
+			/*
+			 * NOTE: this doesn't change the value because we don't want this to drop to 0 just because there wasn't an
+			 * adjustment event. This is different from the accumulator metrics.
+			 */
+			return new HistogramValue(precisionBits, percentiles, indexes, counts, count, sum, min, max, true);
+		}
+
+		@Override
+		public HistogramValue makeAdjusted(Long value) {
+			long longValue = Math.max(0, value);
+			return makeAdjusted(precisionBits, percentiles, new int[] { bucketIndex(precisionBits, longValue) },
+					new long[] { 1 }, 1, longValue, longValue, longValue);
+		}
+
+		/**
+		 * Make a new entry adjusted by a number of values that have already been bucketed together. The new indexes
+		 * must be sorted.
+		 */
+		HistogramValue makeAdjusted(int newPrecisionBits, double[] newPercentiles, int[] newIndexes, long[] newCounts,
+				long newCount, double newSum, long newMin, long newMax) {
+			// we may be holding a sum whose buckets were folded earlier
+			double keptSum = (resetNext ? 0.0 : sum);
+			if (newCount == 0) {
+				// the sum of values whose buckets were taken by an earlier drain
+				if (resetNext || counts == null || newPrecisionBits != precisionBits) {
+					return new HistogramValue(newPrecisionBits, newPercentiles, null, null, 0, keptSum + newSum, 0, 0,
+							false);
+				} else {
+					return new HistogramValue(precisionBits, percentiles, indexes, counts, count, sum + newSum, min,
+							max, false);
+				}
+			}
+			// the min or max may not have been seen if an adjustment raced with the drain of the cells
+			if (newMin == Long.MAX_VALUE) {
+				newMin = (long) (newSum / newCount);
+			}
+			if (newMax == Long.MIN_VALUE) {
+				newMax = (long) (newSum / newCount);
+			}
+			if (resetNext || counts == null || newPrecisionBits != precisionBits) {
+				return new HistogramValue(newPrecisionBits, newPercentiles, newIndexes, newCounts, newCount,
+						keptSum + newSum, newMin, newMax, false);
+			}
+			// merge the sorted buckets together
+			int[] mergedIndexes = new int[indexes.length + newIndexes.length];
+			long[] mergedCounts = new long[mergedIndexes.length];
+			int numBuckets = 0;
+			int thisPos = 0;
+			int newPos = 0;
+			while (thisPos < indexes.length || newPos < newIndexes.length) {
+				if (newPos >= newIndexes.length
+						|| (thisPos < indexes.length && indexes[thisPos] < newIndexes[newPos])) {
+					mergedIndexes[numBuckets] = indexes[thisPos];
+					mergedCounts[numBuckets] = counts[thisPos++];
+				} else if (thisPos >= indexes.length || newIndexes[newPos] < indexes[thisPos]) {
+					mergedIndexes[numBuckets] = newIndexes[newPos];
+					mergedCounts[numBuckets] = newCounts[newPos++];
+				} else {
+					mergedIndexes[numBuckets] = indexes[thisPos];
+					mergedCounts[numBuckets] = counts[thisPos++] + newCounts[newPos++];
+				}
+				numBuckets++;
+			}
+			if (numBuckets < mergedIndexes.length) {
+				mergedIndexes = Arrays.copyOf(mergedIndexes, numBuckets);
+				mergedCounts = Arrays.copyOf(mergedCounts, numBuckets);
+			}
+			return new HistogramValue(newPrecisionBits, newPercentiles, mergedIndexes, mergedCounts, count + newCount,
+					sum + newSum, Math.min(min, newMin), Math.max(max, newMax), false);
+		}
+
+		@Override
+		public Number getValue() {
+			if (count == 0) {
+				return Double.valueOf(0.0);
+			} else {
+				// value is an _average_ of all the adjustments
+				return Double.valueOf(sum / count);
+			}
+		}
+
+		@Override
+		public int getNumSamples() {
+			if (count >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else {
+				return (int) count;
+			}
+		}
+
+		@Override
+		public Number getMin() {
+			return Long.valueOf(min);
+		}
+
+		@Override
+		public Number getMax() {
+			return Long.valueOf(max);
+		}
+
+		@Override
+		public double[] getPercentiles() {
+			return percentiles.clone();
+		}
+
+		@Override
+		public double[] getPercentileValues() {
+			double[] values = new double[percentiles.length];
+			for (int i = 0; i < percentiles.length; i++) {
+				values[i] = getValueAtPercentile(percentiles[i]);
+			}
+			return values;
+		}
+
+		/**
+		 * Return the value at a particular percentile such as 99.9. This will be 0 if num-samples is 0.
+		 */
+		public double getValueAtPercentile(double percentile) {
+			if (count == 0) {
+				return 0.0;
+			}
+			// the rank of the value that we are looking for, 1 based
+			long rank = (long) Math.ceil(percentile / 100.0 * count);
+			if (rank < 1) {
+				rank = 1;
+			} else if (rank > count) {
+				rank = count;
+			}
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					// use the middle of the bucket but it can't be outside of what we've seen
+					long lower = Math.max(bucketLowerBound(precisionBits, indexes[i]), min);
+					long upper = Math.min(bucketUpperBound(precisionBits, indexes[i]), max);
+					return lower + (upper - lower) / 2.0;
+				}
+			}
+			return max;
+		}
+	}
+}
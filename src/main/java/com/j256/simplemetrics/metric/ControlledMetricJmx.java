@@ -1,5 +1,7 @@
 package com.j256.simplemetrics.metric;
 
+import javax.management.ObjectName;
+
 import com.j256.simplejmx.common.JmxAttributeMethod;
 import com.j256.simplejmx.common.JmxFolderName;
 import com.j256.simplejmx.common.JmxSelfNaming;
@@ -63,7 +65,43 @@ public class ControlledMetricJmx implements JmxSelfNaming {
 
 	@Override
 	public String getJmxBeanName() {
-		return metric.getName();
+		if (!(metric instanceof LabeledMetric)) {
+			return metric.getName();
+		}
+		// the children of a family share a name so the label values are added to make the bean name unique
+		StringBuilder sb = new StringBuilder(metric.getName());
+		boolean quote = false;
+		for (String labelValue : ((LabeledMetric) metric).getLabelValues()) {
+			sb.append('.').append(labelValue);
+			if (needsQuoting(labelValue)) {
+				quote = true;
+			}
+		}
+		if (quote) {
+			// label values come from the caller and may hold characters which are not allowed in an object-name
+			return ObjectName.quote(sb.toString());
+		} else {
+			return sb.toString();
+		}
+	}
+
+	private static boolean needsQuoting(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			switch (value.charAt(i)) {
+				case ',':
+				case '=':
+				case ':':
+				case '"':
+				case '*':
+				case '?':
+				case '\\':
+				case '\n':
+					return true;
+				default:
+					break;
+			}
+		}
+		return false;
 	}
 
 	@Override
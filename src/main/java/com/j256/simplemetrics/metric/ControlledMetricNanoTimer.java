@@ -0,0 +1,170 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import com.j256.simplemetrics.utils.NanoClock;
+import com.j256.simplemetrics.utils.SystemNanoClock;
+
+/**
+ * High resolution version of {@link ControlledMetricTimer} which uses a monotonic nanosecond clock so it can time
+ * sub-millisecond events and is not affected by wall-clock adjustments. The elapsed times are reported in a
+ * configurable unit, microseconds by default, with fractional precision. You can use the start and stop methods:
+ *
+ * <pre>
+ * ControlledMetricNanoTimer timer = new ControlledMetricNanoTimer(...);
+ * ...
+ * long nanos = timer.start();
+ * dao.createEntry(...);
+ * timer.stop(nanos);
+ * </pre>
+ *
+ * Or a try-with-resources block:
+ *
+ * <pre>
+ * try (ControlledMetricNanoTimer.TimerContext context = timer.time()) {
+ * 	dao.createEntry(...);
+ * }
+ * </pre>
+ *
+ * <p>
+ * The context returned by {@link #time()} is reused by each thread so timing a call does not allocate an object. The
+ * context can be nested but must be closed by the same thread that opened it.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricNanoTimer extends ControlledMetricValue {
+
+	/** default unit that the elapsed times are reported in */
+	public static final TimeUnit DEFAULT_TIME_UNIT = TimeUnit.MICROSECONDS;
+
+	private final NanoClock clock;
+	private final double nanosPerUnit;
+	private final ThreadLocal<TimerContext> threadContext = new ThreadLocal<TimerContext>() {
+		@Override
+		protected TimerContext initialValue() {
+			return new TimerContext(ControlledMetricNanoTimer.this);
+		}
+	};
+
+	/**
+	 * Create a timer which reports in {@link #DEFAULT_TIME_UNIT} using {@link System#nanoTime()}.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 */
+	public ControlledMetricNanoTimer(String component, String module, String name, String description) {
+		this(component, module, name, description, DEFAULT_TIME_UNIT, new SystemNanoClock());
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param timeUnit
+	 *            Unit that the elapsed times are reported in such as {@link TimeUnit#MILLISECONDS}. This also sets the
+	 *            unit of the metric.
+	 * @param clock
+	 *            Clock used to measure the elapsed times.
+	 */
+	public ControlledMetricNanoTimer(String component, String module, String name, String description,
+			TimeUnit timeUnit, NanoClock clock) {
+		super(component, module, name, description, timeUnit.name().toLowerCase());
+		if (clock == null) {
+			throw new NullPointerException("Clock cannot be null");
+		}
+		this.clock = clock;
+		this.nanosPerUnit = timeUnit.toNanos(1);
+	}
+
+	/**
+	 * Start the timer on a particular event. You should wrap the start and the stop around the event you want to track.
+	 *
+	 * @return Nanos which should be passed to {@link #stop(long)} as the argument.
+	 */
+	public long start() {
+		return clock.nanoTime();
+	}
+
+	/**
+	 * Stop the timer on a particular event. This will calculate the elapsed time and add it to the metric in the
+	 * reported unit.
+	 *
+	 * @param startNanos
+	 *            Value returned from a previous call to {@link #start()}.
+	 *
+	 * @return the elapsed nanoseconds.
+	 */
+	public long stop(long startNanos) {
+		long elapsed = clock.nanoTime() - startNanos;
+		recordNanos(elapsed);
+		return elapsed;
+	}
+
+	/**
+	 * Start timing an event returning the context for the current thread which will stop the timing when it is closed.
+	 * This is designed to be used in a try-with-resources block.
+	 */
+	public TimerContext time() {
+		TimerContext context = threadContext.get();
+		context.push(clock.nanoTime());
+		return context;
+	}
+
+	/**
+	 * Add an elapsed time in nanoseconds to the metric in the reported unit. A negative elapsed time is recorded as 0.
+	 */
+	public void recordNanos(long elapsedNanos) {
+		if (elapsedNanos < 0) {
+			elapsedNanos = 0;
+		}
+		adjustValue(elapsedNanos / nanosPerUnit);
+	}
+
+	/**
+	 * Per-thread context returned by {@link ControlledMetricNanoTimer#time()}. Closing it records the time elapsed
+	 * since the matching call to time.
+	 */
+	public static class TimerContext implements AutoCloseable {
+		private static final int INITIAL_DEPTH = 4;
+		private final ControlledMetricNanoTimer timer;
+		private long[] startNanos = new long[INITIAL_DEPTH];
+		private int depth;
+
+		private TimerContext(ControlledMetricNanoTimer timer) {
+			this.timer = timer;
+		}
+
+		/**
+		 * Stop the most recently started timing on this thread and record the elapsed time. This does nothing if there
+		 * is no timing in progress.
+		 */
+		@Override
+		public void close() {
+			if (depth == 0) {
+				return;
+			}
+			depth--;
+			timer.stop(startNanos[depth]);
+		}
+
+		private void push(long nanos) {
+			if (depth == startNanos.length) {
+				startNanos = Arrays.copyOf(startNanos, depth * 2);
+			}
+			startNanos[depth++] = nanos;
+		}
+	}
+}
@@ -0,0 +1,438 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.j256.simplemetrics.metric.ControlledMetricOperation.OperationValue;
+import com.j256.simplemetrics.utils.NanoClock;
+import com.j256.simplemetrics.utils.SystemNanoClock;
+
+/**
+ * Managed {@link ControlledMetric} which records the calls, errors, and latency of an operation such as an RPC endpoint
+ * in one metric instead of registering a {@link ControlledMetricAccum} for the calls, another for the errors, and a
+ * timer for the latency:
+ *
+ * <pre>
+ * ControlledMetricOperation operation = new ControlledMetricOperation(...);
+ * ...
+ * long nanos = operation.start();
+ * try {
+ * 	dao.createEntry(...);
+ * 	operation.success(nanos);
+ * } catch (SQLException e) {
+ * 	operation.failure(nanos);
+ * 	throw e;
+ * }
+ * </pre>
+ *
+ * <p>
+ * The value of the metric is the number of calls since it was last persisted. When it is persisted, the number of
+ * errors is persisted as a separate "name.errors" series and the latency of the calls, in a configurable unit, as a
+ * "name.latency" series. Each call is recorded into one stripe of primitive cells, which sits in a single cache-line, so
+ * recording does not allocate any objects. Like the {@link ControlledMetricAccum}, the counts are reset after they have
+ * been persisted.
+ * </p>
+ *
+ * <p>
+ * The parts of a call that races with a persist may be split across two persists. The errors reported are never more
+ * than the calls so errors whose calls have not been seen yet, and the latency of calls that have not been seen, are
+ * held until the next persist.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricOperation extends BaseControlledMetric<Long, OperationValue> implements MultiSeriesMetric {
+
+	/** default unit that the latency is reported in */
+	public static final TimeUnit DEFAULT_TIME_UNIT = TimeUnit.MICROSECONDS;
+	/** suffix of the name of the series of the number of errors */
+	public static final String ERRORS_SUFFIX = ".errors";
+	/** suffix of the name of the series of the latency */
+	public static final String LATENCY_SUFFIX = ".latency";
+
+	private static final int CALLS_SLOT = 0;
+	private static final int ERRORS_SLOT = 1;
+	private static final int LATENCY_SUM_SLOT = 2;
+	private static final int LATENCY_MIN_SLOT = 3;
+	private static final int LATENCY_MAX_SLOT = 4;
+
+	private final NanoClock clock;
+	private final TimeUnit timeUnit;
+	private final double nanosPerUnit;
+	private final StripedCells cells = new StripedCells(StripedCells.KIND_LONG_SUM, StripedCells.KIND_LONG_SUM,
+			StripedCells.KIND_LONG_SUM, StripedCells.KIND_LONG_MIN, StripedCells.KIND_LONG_MAX);
+	// the series are only used as keys of the persisted details so they are created once
+	private final ControlledMetricAccum errorsMetric;
+	private final ControlledMetricValue latencyMetric;
+
+	/**
+	 * Create an operation which reports the latency in {@link #DEFAULT_TIME_UNIT} using {@link System#nanoTime()}.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 */
+	public ControlledMetricOperation(String component, String module, String name, String description) {
+		this(component, module, name, description, DEFAULT_TIME_UNIT, new SystemNanoClock());
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param timeUnit
+	 *            Unit that the latency is reported in such as {@link TimeUnit#MILLISECONDS}. This also sets the unit of
+	 *            the latency series.
+	 * @param clock
+	 *            Clock used to measure the latency.
+	 */
+	public ControlledMetricOperation(String component, String module, String name, String description,
+			TimeUnit timeUnit, NanoClock clock) {
+		super(component, module, name, description, null);
+		if (clock == null) {
+			throw new NullPointerException("Clock cannot be null");
+		}
+		this.clock = clock;
+		this.timeUnit = timeUnit;
+		this.nanosPerUnit = timeUnit.toNanos(1);
+		this.errorsMetric = new ControlledMetricAccum(component, module, name + ERRORS_SUFFIX, description, null);
+		this.latencyMetric = new ControlledMetricValue(component, module, name + LATENCY_SUFFIX, description,
+				timeUnit.name().toLowerCase());
+	}
+
+	@Override
+	public OperationValue createInitialValue() {
+		return OperationValue.createInitialValue(nanosPerUnit);
+	}
+
+	@Override
+	public Long makeValueFromLong(long value) {
+		return Long.valueOf(value);
+	}
+
+	@Override
+	public Long makeValueFromNumber(Number value) {
+		return value.longValue();
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.SUM;
+	}
+
+	/**
+	 * Start timing a call.
+	 *
+	 * @return Nanos which should be passed to {@link #success(long)} or {@link #failure(long)} as the argument.
+	 */
+	public long start() {
+		return clock.nanoTime();
+	}
+
+	/**
+	 * Record a call which succeeded.
+	 *
+	 * @param startNanos
+	 *            Value returned from a previous call to {@link #start()}.
+	 * @return the elapsed nanoseconds.
+	 */
+	public long success(long startNanos) {
+		long elapsed = clock.nanoTime() - startNanos;
+		recordNanos(elapsed, true);
+		return elapsed;
+	}
+
+	/**
+	 * Record a call which failed.
+	 *
+	 * @param startNanos
+	 *            Value returned from a previous call to {@link #start()}.
+	 * @return the elapsed nanoseconds.
+	 */
+	public long failure(long startNanos) {
+		long elapsed = clock.nanoTime() - startNanos;
+		recordNanos(elapsed, false);
+		return elapsed;
+	}
+
+	/**
+	 * Record a call which took a number of nanoseconds. A negative elapsed time is recorded as 0. This does not allocate
+	 * any objects.
+	 */
+	public void recordNanos(long elapsedNanos, boolean success) {
+		if (elapsedNanos < 0) {
+			elapsedNanos = 0;
+		}
+		cells.add(CALLS_SLOT, 1);
+		if (!success) {
+			cells.add(ERRORS_SLOT, 1);
+		}
+		cells.add(LATENCY_SUM_SLOT, elapsedNanos);
+		cells.min(LATENCY_MIN_SLOT, elapsedNanos);
+		cells.max(LATENCY_MAX_SLOT, elapsedNanos);
+	}
+
+	/**
+	 * Records a successful call which took the value in the time-unit.
+	 */
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		recordNanos((long) (value * nanosPerUnit), true);
+	}
+
+	/**
+	 * Records a successful call which took the value in the time-unit.
+	 */
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		recordNanos((long) (value.doubleValue() * nanosPerUnit), true);
+	}
+
+	/**
+	 * Return the unit that the latency is reported in.
+	 */
+	public TimeUnit getTimeUnit() {
+		return timeUnit;
+	}
+
+	/**
+	 * Return the number of errors since the metric was last persisted.
+	 */
+	public long getErrors() {
+		return getMetricValue(false).getErrors();
+	}
+
+	@Override
+	public void addSeriesToPersist(Map<ControlledMetric<?, ?>, MetricValueDetails> seriesMap) {
+		OperationValue value = getMetricValue(true);
+		seriesMap.put(this, new MetricValueDetails(value));
+		// like an accumulator, the errors are their own samples, min, and max
+		Long errors = Long.valueOf(value.getErrors());
+		seriesMap.put(errorsMetric,
+				new MetricValueDetails(errors, value.getErrorSamples(), errors, errors, null, null, null, 1.0));
+		if (value.calls > 0) {
+			// no latency if there were no calls
+			double average = value.latencySumNanos / nanosPerUnit / value.calls;
+			Number latency;
+			if (average == (long) average) {
+				latency = Long.valueOf((long) average);
+			} else {
+				latency = Double.valueOf(average);
+			}
+			seriesMap.put(latencyMetric,
+					new MetricValueDetails(latency, value.getNumSamples(),
+							Double.valueOf(value.latencyMinNanos / nanosPerUnit),
+							Double.valueOf(value.latencyMaxNanos / nanosPerUnit), null, null, null, 1.0));
+		}
+	}
+
+	@Override
+	void setLabels(String[] labelNames, String[] labelValues) {
+		super.setLabels(labelNames, labelValues);
+		// the series carry our labels
+		errorsMetric.setLabels(labelNames, labelValues);
+		latencyMetric.setLabels(labelNames, labelValues);
+	}
+
+	@Override
+	protected void foldPending() {
+		long[] results = new long[5];
+		cells.drain(results);
+		long calls = results[CALLS_SLOT];
+		long errors = results[ERRORS_SLOT];
+		long latencySum = results[LATENCY_SUM_SLOT];
+		/*
+		 * A call may have raced with our drain so its parts may be split between two drains. We fold in whatever we got
+		 * because putting back a part could strand it if the other parts were already taken.
+		 */
+		if (calls == 0 && errors == 0 && latencySum == 0) {
+			return;
+		}
+		OperationValue current;
+		OperationValue newValue;
+		do {
+			current = getCurrentMetricValue();
+			newValue = current.makeAdjusted(calls, errors, latencySum, results[LATENCY_MIN_SLOT],
+					results[LATENCY_MAX_SLOT]);
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
+	/**
+	 * Number of calls and errors and the sum, min, and max of the latency in nanoseconds with a persisted flag.
+	 */
+	public static class OperationValue implements MetricValue<Long, OperationValue>, MetricValuePrimitive {
+		private final long calls;
+		private final long errors;
+		private final long latencySumNanos;
+		private final long latencyMinNanos;
+		private final long latencyMaxNanos;
+		private final double nanosPerUnit;
+		private final boolean persisted;
+
+		private OperationValue(long calls, long errors, long latencySumNanos, long latencyMinNanos,
+				long latencyMaxNanos, double nanosPerUnit, boolean persisted) {
+			this.calls = calls;
+			this.errors = errors;
+			this.latencySumNanos = latencySumNanos;
+			this.latencyMinNanos = latencyMinNanos;
+			this.latencyMaxNanos = latencyMaxNanos;
+			this.nanosPerUnit = nanosPerUnit;
+			this.persisted = persisted;
+		}
+
+		/**
+		 * Create an initial value whose {@link #makeAdjusted(Long)} takes latencies in units of nanosPerUnit nanoseconds.
+		 */
+		public static OperationValue createInitialValue(double nanosPerUnit) {
+			return new OperationValue(0, 0, 0, 0, 0, nanosPerUnit, true);
+		}
+
+		@Override
+		public OperationValue makePersisted() {
+			if (persisted) {
+				/*
+				 * If we have already persisted this value then reset it immediately because the calls are accumulated
+				 * and we don't want the persisted value to look like there were another value number of calls. We hold
+				 * onto the parts of calls that we have not seen yet.
+				 */
+				return new OperationValue(0, getHeldErrors(), getHeldLatencySum(), 0, 0, nanosPerUnit, true);
+			} else {
+				return new OperationValue(calls, errors, latencySumNanos, latencyMinNanos, latencyMaxNanos,
+						nanosPerUnit, true);
+			}
+		}
+
+		/**
+		 * Records a successful call which took the value in the time-unit, the same as
+		 * {@link ControlledMetricOperation#adjustValue(long)}.
+		 */
+		@Override
+		public OperationValue makeAdjusted(Long value) {
+			long nanos = (long) (value.longValue() * nanosPerUnit);
+			if (nanos < 0) {
+				nanos = 0;
+			}
+			return makeAdjusted(1, 0, nanos, nanos, nanos);
+		}
+
+		/**
+		 * Make a new entry adjusted by a number of calls.
+		 */
+		OperationValue makeAdjusted(long newCalls, long newErrors, long newLatencySum, long newLatencyMin,
+				long newLatencyMax) {
+			// the min or max may not have been seen if a call raced with the drain of the cells
+			if (newLatencyMin == Long.MAX_VALUE || newLatencyMax == Long.MIN_VALUE) {
+				long average = (newCalls > 0 ? newLatencySum / newCalls : 0);
+				if (newLatencyMin == Long.MAX_VALUE) {
+					newLatencyMin = average;
+				}
+				if (newLatencyMax == Long.MIN_VALUE) {
+					newLatencyMax = average;
+				}
+			}
+			if (persisted) {
+				// start over but hold onto the parts of calls that we have not seen yet
+				return new OperationValue(newCalls, getHeldErrors() + newErrors, getHeldLatencySum() + newLatencySum,
+						newLatencyMin, newLatencyMax, nanosPerUnit, false);
+			}
+			if (calls == 0) {
+				// we have no latency yet so don't take our min and max
+				return new OperationValue(newCalls, errors + newErrors, latencySumNanos + newLatencySum,
+						newLatencyMin, newLatencyMax, nanosPerUnit, false);
+			}
+			return new OperationValue(calls + newCalls, errors + newErrors, latencySumNanos + newLatencySum,
+					Math.min(latencyMinNanos, newLatencyMin), Math.max(latencyMaxNanos, newLatencyMax), nanosPerUnit,
+					false);
+		}
+
+		/**
+		 * Returns the number of calls.
+		 */
+		@Override
+		public Number getValue() {
+			return Long.valueOf(calls);
+		}
+
+		/**
+		 * Returns the number of errors which is never more than the number of calls.
+		 */
+		public long getErrors() {
+			return Math.min(errors, calls);
+		}
+
+		/**
+		 * Returns the number of errors as the number of samples of the errors series.
+		 */
+		int getErrorSamples() {
+			long reported = getErrors();
+			if (reported >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else {
+				return (int) reported;
+			}
+		}
+
+		@Override
+		public int getNumSamples() {
+			// the number of calls
+			if (calls >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else {
+				return (int) calls;
+			}
+		}
+
+		@Override
+		public Number getMin() {
+			// like an accumulator, the min/max is just the number of calls
+			return getValue();
+		}
+
+		@Override
+		public Number getMax() {
+			// like an accumulator, the min/max is just the number of calls
+			return getValue();
+		}
+
+		@Override
+		public double getValueAsDouble() {
+			return calls;
+		}
+
+		@Override
+		public double getMinAsDouble() {
+			return calls;
+		}
+
+		@Override
+		public double getMaxAsDouble() {
+			return calls;
+		}
+
+		/**
+		 * Errors whose calls have not been seen yet because they raced with a drain.
+		 */
+		private long getHeldErrors() {
+			return errors - getErrors();
+		}
+
+		/**
+		 * Latency of calls that have not been seen yet, which is only reported once there are calls.
+		 */
+		private long getHeldLatencySum() {
+			return (calls == 0 ? latencySumNanos : 0);
+		}
+	}
+}
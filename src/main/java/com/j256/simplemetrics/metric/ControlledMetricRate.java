@@ -0,0 +1,377 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.metric.ControlledMetricRate.RateValue;
+import com.j256.simplemetrics.utils.NanoClock;
+import com.j256.simplemetrics.utils.SystemNanoClock;
+
+/**
+ * Managed {@link ControlledMetric} which tracks the rate of events per second such as requests. It maintains
+ * exponentially weighted moving average rates over 1, 5, and 15 minutes, like the Unix load-average, as well as the
+ * mean rate since the metric was created. Unlike {@link ControlledMetricAccum}, the rates do not depend on when the
+ * metric was last persisted so they are good for JMX dashboards. One of the rates is chosen as the value of the metric
+ * which is what the persisters save.
+ *
+ * <p>
+ * Marking an event adds to striped cells and does not allocate any objects or take any locks. Every 5 seconds the
+ * thread that notices the interval has passed folds the marks into the moving averages.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricRate extends BaseControlledMetric<Long, RateValue> {
+
+	/** default unit of the rate metric */
+	public static final String DEFAULT_UNIT = "count/second";
+	/** interval at which the marks are folded into the moving averages */
+	public static final long TICK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+	private static final double TICK_INTERVAL_SECONDS = TICK_INTERVAL_NANOS / 1000000000.0;
+	private static final int UNCOUNTED_SLOT = 0;
+
+	private final RateWindow persistedWindow;
+	private final NanoClock clock;
+	private final long startNanos;
+	private final AtomicLong lastTickNanos;
+	private final AtomicLong tickedCount = new AtomicLong();
+	private final StripedCells uncounted = new StripedCells(StripedCells.KIND_LONG_SUM);
+	private final MovingAverage oneMinute = new MovingAverage(1);
+	private final MovingAverage fiveMinute = new MovingAverage(5);
+	private final MovingAverage fifteenMinute = new MovingAverage(15);
+
+	/**
+	 * Create a rate whose value is the {@link RateWindow#ONE_MINUTE} rate with a unit of {@link #DEFAULT_UNIT}.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 */
+	public ControlledMetricRate(String component, String module, String name, String description) {
+		this(component, module, name, description, DEFAULT_UNIT, RateWindow.ONE_MINUTE, new SystemNanoClock());
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param persistedWindow
+	 *            Which of the rates is the value of the metric and so is persisted.
+	 * @param clock
+	 *            Clock used to measure the rates.
+	 */
+	public ControlledMetricRate(String component, String module, String name, String description, String unit,
+			RateWindow persistedWindow, NanoClock clock) {
+		super(component, module, name, description, unit);
+		if (persistedWindow == null) {
+			throw new NullPointerException("Persisted window cannot be null");
+		}
+		if (clock == null) {
+			throw new NullPointerException("Clock cannot be null");
+		}
+		this.persistedWindow = persistedWindow;
+		this.clock = clock;
+		this.startNanos = clock.nanoTime();
+		this.lastTickNanos = new AtomicLong(startNanos);
+	}
+
+	@Override
+	public RateValue createInitialValue() {
+		return RateValue.createInitialValue();
+	}
+
+	@Override
+	public Long makeValueFromLong(long value) {
+		return Long.valueOf(value);
+	}
+
+	@Override
+	public Long makeValueFromNumber(Number value) {
+		return value.longValue();
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.AVERAGE;
+	}
+
+	/**
+	 * Mark the occurrence of an event.
+	 */
+	public void mark() {
+		mark(1);
+	}
+
+	/**
+	 * Mark the occurrence of a number of events.
+	 */
+	public void mark(long numEvents) {
+		uncounted.add(UNCOUNTED_SLOT, numEvents);
+		tickIfNecessary();
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		mark(value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		mark(value.longValue());
+	}
+
+	/**
+	 * Return the total number of events that have been marked.
+	 */
+	public long getCount() {
+		long[] results = new long[1];
+		uncounted.peek(results);
+		return tickedCount.get() + results[UNCOUNTED_SLOT];
+	}
+
+	/**
+	 * Return the mean rate of events per second since the metric was created.
+	 */
+	public double getMeanRate() {
+		long elapsed = clock.nanoTime() - startNanos;
+		if (elapsed <= 0) {
+			return 0.0;
+		} else {
+			return getCount() / (elapsed / 1000000000.0);
+		}
+	}
+
+	/**
+	 * Return the exponentially weighted rate of events per second over the last minute.
+	 */
+	public double getOneMinuteRate() {
+		tickIfNecessary();
+		return oneMinute.getRate();
+	}
+
+	/**
+	 * Return the exponentially weighted rate of events per second over the last 5 minutes.
+	 */
+	public double getFiveMinuteRate() {
+		tickIfNecessary();
+		return fiveMinute.getRate();
+	}
+
+	/**
+	 * Return the exponentially weighted rate of events per second over the last 15 minutes.
+	 */
+	public double getFifteenMinuteRate() {
+		tickIfNecessary();
+		return fifteenMinute.getRate();
+	}
+
+	/**
+	 * Return which of the rates is the value of the metric.
+	 */
+	public RateWindow getPersistedWindow() {
+		return persistedWindow;
+	}
+
+	@Override
+	protected void foldPending() {
+		tickIfNecessary();
+		RateValue newValue = new RateValue(getCount(), getMeanRate(), oneMinute.getRate(), fiveMinute.getRate(),
+				fifteenMinute.getRate(), persistedWindow);
+		RateValue current;
+		do {
+			current = getCurrentMetricValue();
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
+	/**
+	 * Fold the marks into the moving averages if a tick interval has passed. Only the thread that moves the last tick
+	 * time forward does the folding.
+	 */
+	private void tickIfNecessary() {
+		long lastTick = lastTickNanos.get();
+		long age = clock.nanoTime() - lastTick;
+		if (age < TICK_INTERVAL_NANOS) {
+			return;
+		}
+		long newTick = lastTick + age - age % TICK_INTERVAL_NANOS;
+		if (!lastTickNanos.compareAndSet(lastTick, newTick)) {
+			// another thread is doing the tick
+			return;
+		}
+		long[] results = new long[1];
+		uncounted.drain(results);
+		long count = results[UNCOUNTED_SLOT];
+		tickedCount.addAndGet(count);
+		long numTicks = age / TICK_INTERVAL_NANOS;
+		oneMinute.tick(count, numTicks);
+		fiveMinute.tick(count, numTicks);
+		fifteenMinute.tick(count, numTicks);
+	}
+
+	/**
+	 * Which of the rates is used as the value of the metric.
+	 */
+	public enum RateWindow {
+		/** mean rate since the metric was created */
+		MEAN,
+		/** exponentially weighted rate over the last minute */
+		ONE_MINUTE,
+		/** exponentially weighted rate over the last 5 minutes */
+		FIVE_MINUTE,
+		/** exponentially weighted rate over the last 15 minutes */
+		FIFTEEN_MINUTE,
+		// end
+		;
+	}
+
+	/**
+	 * Exponentially weighted moving average of the rate per second. This is only updated by the thread doing the tick.
+	 */
+	private static class MovingAverage {
+		private final double alpha;
+		private volatile boolean initialized;
+		private volatile double rate;
+
+		public MovingAverage(int minutes) {
+			this.alpha = 1.0 - Math.exp(-TICK_INTERVAL_SECONDS / (minutes * 60.0));
+		}
+
+		/**
+		 * Add in a count of events that were seen over one tick interval followed by a number of idle intervals.
+		 */
+		public void tick(long count, long numTicks) {
+			double instantRate = count / TICK_INTERVAL_SECONDS;
+			if (initialized) {
+				rate += alpha * (instantRate - rate);
+			} else {
+				rate = instantRate;
+				initialized = true;
+			}
+			if (numTicks > 1) {
+				// the intervals that we missed had no events so they only decay the rate
+				rate *= Math.pow(1.0 - alpha, numTicks - 1);
+			}
+		}
+
+		public double getRate() {
+			return rate;
+		}
+	}
+
+	/**
+	 * Snapshot of the rates and the count of events.
+	 */
+	public static class RateValue implements MetricValue<Long, RateValue>, MetricValuePrimitive {
+		private final long count;
+		private final double meanRate;
+		private final double oneMinuteRate;
+		private final double fiveMinuteRate;
+		private final double fifteenMinuteRate;
+		private final RateWindow window;
+
+		private RateValue(long count, double meanRate, double oneMinuteRate, double fiveMinuteRate,
+				double fifteenMinuteRate, RateWindow window) {
+			this.count = count;
+			this.meanRate = meanRate;
+			this.oneMinuteRate = oneMinuteRate;
+			this.fiveMinuteRate = fiveMinuteRate;
+			this.fifteenMinuteRate = fifteenMinuteRate;
+			this.window = window;
+		}
+
+		public static RateValue createInitialValue() {
+			return new RateValue(0, 0.0, 0.0, 0.0, 0.0, RateWindow.ONE_MINUTE);
+		}
+
+		@Override
+		public RateValue makePersisted() {
+			// the rates are not reset when they are persisted
+			return this;
+		}
+
+		@Override
+		public RateValue makeAdjusted(Long value) {
+			// the rates are only recalculated when the ticks are folded in
+			return new RateValue(count + value, meanRate, oneMinuteRate, fiveMinuteRate, fifteenMinuteRate, window);
+		}
+
+		@Override
+		public Number getValue() {
+			return Double.valueOf(getRate(window));
+		}
+
+		/**
+		 * Return the rate of events per second for a particular window.
+		 */
+		public double getRate(RateWindow rateWindow) {
+			switch (rateWindow) {
+				case MEAN:
+					return meanRate;
+				case FIVE_MINUTE:
+					return fiveMinuteRate;
+				case FIFTEEN_MINUTE:
+					return fifteenMinuteRate;
+				case ONE_MINUTE:
+				default:
+					return oneMinuteRate;
+			}
+		}
+
+		/**
+		 * Return the total number of events that have been marked.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public int getNumSamples() {
+			/*
+			 * One reading of the rates. The count of events is for the life of the metric so it would swamp the other
+			 * values if it was used as the weight of this one when they are averaged together.
+			 */
+			return 1;
+		}
+
+		@Override
+		public Number getMin() {
+			// with a rate, the min/max is just the rate
+			return getValue();
+		}
+
+		@Override
+		public Number getMax() {
+			// with a rate, the min/max is just the rate
+			return getValue();
+		}
+
+		@Override
+		public double getValueAsDouble() {
+			return getRate(window);
+		}
+
+		@Override
+		public double getMinAsDouble() {
+			return getRate(window);
+		}
+
+		@Override
+		public double getMaxAsDouble() {
+			return getRate(window);
+		}
+	}
+}
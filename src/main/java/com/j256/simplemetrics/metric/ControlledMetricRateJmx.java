@@ -0,0 +1,45 @@
+package com.j256.simplemetrics.metric;
+
+import com.j256.simplejmx.common.JmxAttributeMethod;
+import com.j256.simplejmx.common.JmxFolderName;
+
+/**
+ * Wrapper around a ControlledMetricRate that provides JMX publishing of the metric and all of its rates.
+ * 
+ * @author graywatson
+ */
+public class ControlledMetricRateJmx extends ControlledMetricJmx {
+
+	private final ControlledMetricRate metric;
+
+	public ControlledMetricRateJmx(ControlledMetricRate metric, String jmxDomainName,
+			JmxFolderName[] managerFolderNames) {
+		super(metric, jmxDomainName, managerFolderNames);
+		this.metric = metric;
+	}
+
+	@JmxAttributeMethod(description = "Total number of events marked.")
+	public long getCount() {
+		return metric.getCount();
+	}
+
+	@JmxAttributeMethod(description = "Mean rate per second since the metric was created.")
+	public double getMeanRate() {
+		return metric.getMeanRate();
+	}
+
+	@JmxAttributeMethod(description = "Moving average rate per second over 1 minute.")
+	public double getOneMinuteRate() {
+		return metric.getOneMinuteRate();
+	}
+
+	@JmxAttributeMethod(description = "Moving average rate per second over 5 minutes.")
+	public double getFiveMinuteRate() {
+		return metric.getFiveMinuteRate();
+	}
+
+	@JmxAttributeMethod(description = "Moving average rate per second over 15 minutes.")
+	public double getFifteenMinuteRate() {
+		return metric.getFifteenMinuteRate();
+	}
+}
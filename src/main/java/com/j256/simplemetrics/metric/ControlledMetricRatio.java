@@ -5,13 +5,28 @@ import com.j256.simplemetrics.metric.ControlledMetricRatio.RatioValue;
 
 /**
  * A metric which tracks the relationship between two values. For example, if you want to account for a cache hit ratio
- * or the average number of results per query. We manage this as a numerator and a denominator to ensure we don't lose
- * value resolution.
+ * or the average number of results per query. The value of the metric is the average of the ratios of each of the
+ * adjustments.
+ * 
+ * <p>
+ * Each adjustment is divided and the ratio added into compensated running sums held in striped primitive cells so
+ * recording does not allocate any objects and the value stays numerically stable over millions of adjustments. The
+ * cells are folded into the {@link RatioValue} only when the value is retrieved or persisted.
+ * </p>
  * 
  * @author graywatson
  */
 public class ControlledMetricRatio extends BaseControlledMetric<NumeratorDenominator, RatioValue> {
 
+	private static final int SUM_SLOT = 0;
+	private static final int COMPENSATION_SLOT = 1;
+	private static final int COUNT_SLOT = 2;
+	private static final int MIN_SLOT = 3;
+	private static final int MAX_SLOT = 4;
+
+	private final StripedCells cells = new StripedCells(StripedCells.KIND_DOUBLE_SUM, StripedCells.KIND_DOUBLE_SUM,
+			StripedCells.KIND_LONG_SUM, StripedCells.KIND_DOUBLE_MIN, StripedCells.KIND_DOUBLE_MAX);
+
 	/**
 	 * @param component
 	 *            Component short name such as "web".
@@ -48,17 +63,177 @@ public class ControlledMetricRatio extends BaseControlledMetric<NumeratorDenomin
 		return AggregationType.AVERAGE;
 	}
 
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue((double) value, 1.0);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue(value.doubleValue(), 1.0);
+	}
+
 	/**
-	 * Adjust the value of our numerator and denominator to set new values for it. These will be added to the running
-	 * values for the numerator and denominator. For example, if you want to account for a cache miss (i.e. a request
-	 * and a miss) then you would say adjustValue(0, 1). Or if you are counting the number of results per query you
-	 * might say adjustValue(3, 1).
+	 * Adjust the value of our numerator and denominator to set new values for it. The ratio of the numerator to the
+	 * denominator will be averaged in with the ratios of the other adjustments. For example, if you want to account
+	 * for a cache miss (i.e. a request and a miss) then you would say adjustValue(0, 1). Or if you are counting the
+	 * number of results per query you might say adjustValue(3, 1).
 	 * 
 	 * NOTE: if you just want to set the value of this ratio and not have it be a running total, then you should
 	 * consider just using a {@link ControlledMetricValue}.
 	 */
 	public void adjustValue(Number numerator, Number denominator) {
-		storeValue(new NumeratorDenominator(numerator.doubleValue(), denominator.doubleValue()));
+		adjustValue(numerator.doubleValue(), denominator.doubleValue());
+	}
+
+	/**
+	 * Same as {@link #adjustValue(Number, Number)} but with long primitives so no objects are allocated.
+	 */
+	public void adjustValue(long numerator, long denominator) {
+		adjustValue((double) numerator, (double) denominator);
+	}
+
+	/**
+	 * Same as {@link #adjustValue(Number, Number)} but with double primitives so no objects are allocated. A 0
+	 * denominator is recorded as a ratio of 0.
+	 */
+	public void adjustValue(double numerator, double denominator) {
+		long weight = sampleWeight();
+		if (weight == 0) {
+			return;
+		}
+		double ratio = calcRatio(numerator, denominator);
+		// a sampled ratio stands in for the weight number of ratios
+		cells.addDoubleCompensated(SUM_SLOT, COMPENSATION_SLOT, ratio * weight);
+		cells.minDouble(MIN_SLOT, ratio);
+		cells.maxDouble(MAX_SLOT, ratio);
+		cells.add(COUNT_SLOT, weight);
+	}
+
+	/**
+	 * Adjust the metric by a batch of values which each have a denominator of 1. The batch is combined in one pass and
+	 * recorded as a single adjustment.
+	 * 
+	 * @param values
+	 *            Array of values.
+	 * @param offset
+	 *            Index of the first value in the array.
+	 * @param length
+	 *            Number of values to record.
+	 */
+	public void adjustValues(long[] values, int offset, int length) {
+		checkArrayRange(values.length, offset, length);
+		RatioBatch batch = new RatioBatch();
+		for (int i = offset; i < offset + length; i++) {
+			batch.add(values[i]);
+		}
+		addBatch(batch, length);
+	}
+
+	/**
+	 * Same as {@link #adjustValues(long[], int, int)} but with double values.
+	 */
+	public void adjustValues(double[] values, int offset, int length) {
+		checkArrayRange(values.length, offset, length);
+		RatioBatch batch = new RatioBatch();
+		for (int i = offset; i < offset + length; i++) {
+			batch.add(values[i]);
+		}
+		addBatch(batch, length);
+	}
+
+	/**
+	 * Adjust the metric by a batch of numerators and denominators, the same as calling
+	 * {@link #adjustValue(long, long)} for each pair but combined in one pass and recorded as a single adjustment.
+	 * 
+	 * @param numerators
+	 *            Array of numerators.
+	 * @param denominators
+	 *            Array of denominators which lines up with the numerators.
+	 * @param offset
+	 *            Index of the first pair in the arrays.
+	 * @param length
+	 *            Number of pairs to record.
+	 */
+	public void adjustValues(long[] numerators, long[] denominators, int offset, int length) {
+		checkArrayRange(numerators.length, offset, length);
+		checkArrayRange(denominators.length, offset, length);
+		RatioBatch batch = new RatioBatch();
+		for (int i = offset; i < offset + length; i++) {
+			batch.add(calcRatio(numerators[i], denominators[i]));
+		}
+		addBatch(batch, length);
+	}
+
+	/**
+	 * Same as {@link #adjustValues(long[], long[], int, int)} but with double numerators and denominators.
+	 */
+	public void adjustValues(double[] numerators, double[] denominators, int offset, int length) {
+		checkArrayRange(numerators.length, offset, length);
+		checkArrayRange(denominators.length, offset, length);
+		RatioBatch batch = new RatioBatch();
+		for (int i = offset; i < offset + length; i++) {
+			batch.add(calcRatio(numerators[i], denominators[i]));
+		}
+		addBatch(batch, length);
+	}
+
+	@Override
+	protected boolean isSamplingSupported() {
+		return true;
+	}
+
+	@Override
+	protected void foldPending() {
+		long[] results = new long[5];
+		cells.drain(results);
+		long count = results[COUNT_SLOT];
+		double sum = Double.longBitsToDouble(results[SUM_SLOT]) + Double.longBitsToDouble(results[COMPENSATION_SLOT]);
+		/*
+		 * An adjustment may have raced with our drain so its sum may arrive without its count or the other way around.
+		 * We can't put back a sum without its count because the count may already have been taken by this drain so the
+		 * sum would be stranded. We fold in whatever we got.
+		 */
+		if (count <= 0 && sum == 0.0) {
+			return;
+		}
+		double min = Double.longBitsToDouble(results[MIN_SLOT]);
+		double max = Double.longBitsToDouble(results[MAX_SLOT]);
+		RatioValue current;
+		RatioValue newValue;
+		do {
+			current = getCurrentMetricValue();
+			newValue = current.makeAdjusted(sum, count, min, max);
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
+	private void addBatch(RatioBatch batch, int length) {
+		if (length == 0) {
+			return;
+		}
+		long weight = sampleWeight(length);
+		if (weight == 0) {
+			return;
+		}
+		// a sampled batch stands in for the weight number of batches
+		cells.addDoubleCompensated(SUM_SLOT, COMPENSATION_SLOT, batch.sum * weight);
+		if (batch.compensation != 0.0) {
+			cells.addDouble(COMPENSATION_SLOT, batch.compensation * weight);
+		}
+		cells.minDouble(MIN_SLOT, batch.min);
+		cells.maxDouble(MAX_SLOT, batch.max);
+		cells.add(COUNT_SLOT, length * weight);
+	}
+
+	private static double calcRatio(double numerator, double denominator) {
+		if (denominator == 0) {
+			// protect against div by 0
+			return 0;
+		} else {
+			return numerator / denominator;
+		}
 	}
 
 	/**
@@ -75,19 +250,43 @@ public class ControlledMetricRatio extends BaseControlledMetric<NumeratorDenomin
 	}
 
 	/**
-	 * Wrapper around a numerator and denominator.
+	 * Compensated sum, minimum, and maximum of a batch of ratios.
 	 */
-	public static class RatioValue implements MetricValue<NumeratorDenominator, RatioValue> {
-		private final double numerator;
-		private final double denominator;
-		private int count;
+	private static class RatioBatch {
+		double sum;
+		double compensation;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+
+		void add(double ratio) {
+			// Knuth's two-sum so the rounding error is kept in the compensation
+			double newSum = sum + ratio;
+			double ratioPart = newSum - sum;
+			compensation += (sum - (newSum - ratioPart)) + (ratio - ratioPart);
+			sum = newSum;
+			if (ratio < min) {
+				min = ratio;
+			}
+			if (ratio > max) {
+				max = ratio;
+			}
+		}
+	}
+
+	/**
+	 * Wrapper around the sum of the ratios of the adjustments and the number of adjustments. We used to hold the
+	 * numerator and denominator and cross multiply each adjustment in but that overflowed after a couple hundred
+	 * adjustments with denominators larger than 1.
+	 */
+	public static class RatioValue implements MetricValue<NumeratorDenominator, RatioValue>, MetricValuePrimitive {
+		private final double ratioSum;
+		private final int count;
 		private final boolean resetNext;
 		private final double min;
 		private final double max;
 
-		private RatioValue(double numerator, double denominator, int count, double min, double max, boolean resetNext) {
-			this.numerator = numerator;
-			this.denominator = denominator;
+		private RatioValue(double ratioSum, int count, double min, double max, boolean resetNext) {
+			this.ratioSum = ratioSum;
 			this.count = count;
 			this.min = min;
 			this.max = max;
@@ -95,7 +294,7 @@ public class ControlledMetricRatio extends BaseControlledMetric<NumeratorDenomin
 		}
 
 		public static RatioValue createInitialValue() {
-			return new RatioValue(0.0, 0.0, 0, 0.0, 0.0, true);
+			return new RatioValue(0.0, 0, 0.0, 0.0, true);
 		}
 
 		@Override
@@ -104,70 +303,52 @@ public class ControlledMetricRatio extends BaseControlledMetric<NumeratorDenomin
 			 * NOTE: this doesn't change the value because we don't want this to drop to 0 just because there wasn't an
 			 * adjustment event. This is different from the accumulator metrics.
 			 */
-			return new RatioValue(numerator, denominator, count, min, max, true);
+			return new RatioValue(ratioSum, count, min, max, true);
 		}
 
 		@Override
 		public RatioValue makeAdjusted(NumeratorDenominator value) {
+			double ratio = calcRatio(value.numerator, value.denominator);
+			return makeAdjusted(ratio, 1, ratio, ratio);
+		}
 
-			if (resetNext || count == 0) {
-				double result = 0;
-				if (value.denominator != 0) {
-					result = value.numerator / value.denominator;
+		/**
+		 * Make a new entry adjusted by a number of ratios that have already been summed together.
+		 */
+		RatioValue makeAdjusted(double ratioSum, long numSamples, double sampleMin, double sampleMax) {
+			if (numSamples <= 0) {
+				// the sum of an adjustment whose count was taken by an earlier drain
+				if (resetNext) {
+					return new RatioValue(ratioSum, 0, 0.0, 0.0, false);
+				} else {
+					return new RatioValue(this.ratioSum + ratioSum, count, min, max, false);
 				}
-				return new RatioValue(value.numerator, value.denominator, 1, result, result, false);
 			}
-
-			/*
-			 * This is a bit tricky. We store the numerator and denominator because we want to keep maximum precision
-			 * until the ratio value is persisted. Because we only have a numerator, denominator, and the count, when we
-			 * adjust the value, we can't just add in the new numerator and denominator values because later adjustments
-			 * would have more weight then previous ones if we are taking the straight average. 1/2 (1). 1/2 + 1/3 = 2/5
-			 * (2). 2/5 + 1/4 = 3/9 (3). 3/9 + 1/2 = 4/11 (4) = 0.3636363636 which isn't right.
-			 * 
-			 * The right thing to do is to add them using LCD but that is too expensive. So instead we do cross product
-			 * addition. Each time we adjust by another value and we will divide by the count at the very end when the
-			 * value is retrieved for maximum precision.
-			 * 
-			 * So if we are adding 1/2 we store 1/2 (1). 1/2 + 1/3 -> 3/6 + 2/6 = 5/6 (2). 5/6 + 1/4 should get 20/24 +
-			 * 6/24 = 26/24 (3). 26/24 + 1/2 -> 52/48 + 24/48 = 76/48 (4). Then the final result is 76/(48*4) =
-			 * 0.395833333.
-			 */
-			double newNumerator = this.numerator * value.denominator + value.numerator * this.denominator;
-			// denominator is the current denominator times the incoming one so 1/2 + 1/3 is some number of 6ths
-			double newDenominator = this.denominator * value.denominator;
-			int newCount = count + 1;
-
-			double result = 0;
-			if (newDenominator != 0) {
-				result = newNumerator / (newDenominator * newCount);
+			// the min or max may not have been seen if an adjustment raced with the drain of the cells
+			if (Double.isInfinite(sampleMin) || Double.isInfinite(sampleMax)) {
+				double average = ratioSum / numSamples;
+				if (Double.isInfinite(sampleMin)) {
+					sampleMin = average;
+				}
+				if (Double.isInfinite(sampleMax)) {
+					sampleMax = average;
+				}
 			}
-			double min;
-			double max;
-			if (result < this.min) {
-				min = result;
-				max = this.max;
-			} else if (result > this.max) {
-				min = this.min;
-				max = result;
-			} else {
-				min = this.min;
-				max = this.max;
+			if (resetNext) {
+				return new RatioValue(ratioSum, clampCount(numSamples), sampleMin, sampleMax, false);
 			}
-			return new RatioValue(newNumerator, newDenominator, newCount, min, max, false);
+			if (count == 0) {
+				// we may be holding a sum whose count was folded earlier but we have no min or max yet
+				return new RatioValue(this.ratioSum + ratioSum, clampCount(numSamples), sampleMin, sampleMax, false);
+			}
+			double min = Math.min(this.min, sampleMin);
+			double max = Math.max(this.max, sampleMax);
+			return new RatioValue(this.ratioSum + ratioSum, clampCount(this.count + numSamples), min, max, false);
 		}
 
 		@Override
 		public Number getValue() {
-			double value;
-			double adjustedDenominator = denominator * count;
-			if (adjustedDenominator == 0) {
-				// protect against div by 0
-				value = 0;
-			} else {
-				value = numerator / adjustedDenominator;
-			}
-			return Double.valueOf(value);
+			return Double.valueOf(getValueAsDouble());
 		}
 
 		@Override
@@ -184,5 +365,33 @@ public class ControlledMetricRatio extends BaseControlledMetric<NumeratorDenomin
 		public Number getMax() {
 			return Double.valueOf(max);
 		}
+
+		@Override
+		public double getValueAsDouble() {
+			if (count == 0) {
+				// protect against div by 0
+				return 0;
+			} else {
+				return ratioSum / count;
+			}
+		}
+
+		@Override
+		public double getMinAsDouble() {
+			return min;
+		}
+
+		@Override
+		public double getMaxAsDouble() {
+			return max;
+		}
+
+		private static int clampCount(long count) {
+			if (count >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else {
+				return (int) count;
+			}
+		}
 	}
 }
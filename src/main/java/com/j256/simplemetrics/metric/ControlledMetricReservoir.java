@@ -0,0 +1,614 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.j256.simplemetrics.metric.ControlledMetricReservoir.ReservoirValue;
+import com.j256.simplemetrics.utils.NanoClock;
+import com.j256.simplemetrics.utils.SystemNanoClock;
+
+/**
+ * Managed {@link ControlledMetric} like {@link ControlledMetricValue} for values which are adjusted at very high rates,
+ * such as tens of millions of times a minute, where a representative sample of the values is enough to report the
+ * percentiles. The count, sum, min, and max are exact but the percentiles are calculated from a fixed-size reservoir of
+ * samples so the memory used does not depend on the rate.
+ *
+ * <p>
+ * Each value is given a random priority and the reservoir keeps the values with the highest priorities. Most values
+ * have a priority less than the lowest in the reservoir, which is kept in a volatile field, so they are dropped without
+ * locking or allocating any objects. Only the few values that make it into the reservoir take its lock. By default
+ * the reservoir is a uniform sample of the values since the metric was last persisted. If a decay-alpha is specified
+ * then the priorities are scaled by exp(alpha * seconds) which biases the reservoir towards recent values and it is
+ * kept across persists. An alpha of {@link #DEFAULT_DECAY_ALPHA} represents roughly the last 5 minutes.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricReservoir extends BaseControlledMetric<Double, ReservoirValue> {
+
+	/** default number of samples in the reservoir */
+	public static final int DEFAULT_SIZE = 1028;
+	/** default percentiles that are reported */
+	public static final double[] DEFAULT_PERCENTILES = new double[] { 50.0, 90.0, 99.0, 99.9 };
+	/** decay-alpha per second which biases the reservoir towards roughly the last 5 minutes */
+	public static final double DEFAULT_DECAY_ALPHA = 0.015;
+
+	private static final int SUM_SLOT = 0;
+	private static final int COUNT_SLOT = 1;
+	private static final int MIN_SLOT = 2;
+	private static final int MAX_SLOT = 3;
+	private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private final int size;
+	private final double[] percentiles;
+	private final double decayAlpha;
+	private final NanoClock clock;
+	private final long startNanos;
+	private final Reservoir reservoir;
+	private final StripedCells cells = new StripedCells(StripedCells.KIND_DOUBLE_SUM, StripedCells.KIND_LONG_SUM,
+			StripedCells.KIND_DOUBLE_MIN, StripedCells.KIND_DOUBLE_MAX);
+
+	/**
+	 * Create a uniform reservoir of {@link #DEFAULT_SIZE} samples which reports the {@link #DEFAULT_PERCENTILES}.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 */
+	public ControlledMetricReservoir(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, DEFAULT_SIZE, DEFAULT_PERCENTILES);
+	}
+
+	/**
+	 * Create a uniform reservoir.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param size
+	 *            Number of samples in the reservoir.
+	 * @param percentiles
+	 *            Percentiles to report such as 50.0, 99.0, and 99.9.
+	 */
+	public ControlledMetricReservoir(String component, String module, String name, String description, String unit,
+			int size, double[] percentiles) {
+		this(component, module, name, description, unit, size, percentiles, 0.0, new SystemNanoClock());
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param size
+	 *            Number of samples in the reservoir.
+	 * @param percentiles
+	 *            Percentiles to report such as 50.0, 99.0, and 99.9.
+	 * @param decayAlpha
+	 *            How much the reservoir is biased towards recent values per second. 0 means that the reservoir is a
+	 *            uniform sample of the values since the metric was last persisted.
+	 * @param clock
+	 *            Clock used to decay the samples.
+	 */
+	public ControlledMetricReservoir(String component, String module, String name, String description, String unit,
+			int size, double[] percentiles, double decayAlpha, NanoClock clock) {
+		super(component, module, name, description, unit);
+		if (size < 1) {
+			throw new IllegalArgumentException("Size must be at least 1: " + size);
+		}
+		if (percentiles == null) {
+			throw new NullPointerException("Percentiles cannot be null");
+		}
+		for (double percentile : percentiles) {
+			if (percentile <= 0.0 || percentile > 100.0) {
+				throw new IllegalArgumentException("Invalid percentile " + percentile + ", must be > 0 and <= 100");
+			}
+		}
+		if (decayAlpha < 0.0) {
+			throw new IllegalArgumentException("Decay alpha cannot be negative: " + decayAlpha);
+		}
+		if (clock == null) {
+			throw new NullPointerException("Clock cannot be null");
+		}
+		this.size = size;
+		this.percentiles = percentiles.clone();
+		this.decayAlpha = decayAlpha;
+		this.clock = clock;
+		this.startNanos = clock.nanoTime();
+		this.reservoir = new Reservoir(size);
+	}
+
+	@Override
+	public ReservoirValue createInitialValue() {
+		/*
+		 * NOTE: this is called from the super constructor before our fields are set so the initial value is empty and
+		 * picks up the size and percentiles on the first read.
+		 */
+		return ReservoirValue.createInitialValue();
+	}
+
+	@Override
+	public Double makeValueFromLong(long value) {
+		return (double) value;
+	}
+
+	@Override
+	public Double makeValueFromNumber(Number value) {
+		return value.doubleValue();
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.AVERAGE;
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue((double) value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue(value.doubleValue());
+	}
+
+	/**
+	 * Adjust the value of the metric by a double primitive value. This does not allocate any objects and only locks if
+	 * the value is sampled into the reservoir.
+	 */
+	public void adjustValue(double value) {
+		cells.addDouble(SUM_SLOT, value);
+		cells.minDouble(MIN_SLOT, value);
+		cells.maxDouble(MAX_SLOT, value);
+		cells.add(COUNT_SLOT, 1);
+		// we keep the log of the priority, log(weight / random), so it doesn't overflow as the weight grows
+		double priority = -Math.log(1.0 - ThreadLocalRandom.current().nextDouble());
+		if (decayAlpha > 0.0) {
+			priority += decayAlpha * ((clock.nanoTime() - startNanos) / NANOS_PER_SECOND);
+		}
+		if (priority > reservoir.threshold) {
+			reservoir.offer(priority, value);
+		}
+	}
+
+	/**
+	 * Return the number of samples in the reservoir.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Return true if the reservoir is biased towards recent values.
+	 */
+	public boolean isDecaying() {
+		return (decayAlpha > 0.0);
+	}
+
+	/**
+	 * Return the lowest priority that a value needs to be sampled into the reservoir.
+	 */
+	double getThreshold() {
+		return reservoir.threshold;
+	}
+
+	@Override
+	protected void foldPending() {
+		configureInitialValue();
+		long[] results = new long[4];
+		cells.drain(results);
+		long count = results[COUNT_SLOT];
+		double sum = Double.longBitsToDouble(results[SUM_SLOT]);
+		double min = Double.longBitsToDouble(results[MIN_SLOT]);
+		double max = Double.longBitsToDouble(results[MAX_SLOT]);
+		double[][] samples = reservoir.drain();
+		/*
+		 * An adjustment may have raced with our drains so its parts may be split between two drains. We fold in whatever
+		 * we got because putting back a part could strand it if the other parts were already taken.
+		 */
+		if (count <= 0 && sum == 0.0 && samples[0].length == 0) {
+			return;
+		}
+		ReservoirValue current;
+		ReservoirValue newValue;
+		do {
+			current = getCurrentMetricValue();
+			newValue = current.makeAdjusted(size, percentiles, isDecaying(), samples[0], samples[1], sum, count, min,
+					max);
+		} while (!compareAndSetMetricValue(current, newValue));
+		// samples below the lowest priority that we are keeping would be dropped by the next merge anyway
+		reservoir.raiseThreshold(newValue.getLowestPriority());
+	}
+
+	@Override
+	protected ReservoirValue getMetricValue(boolean persisting) {
+		ReservoirValue value = super.getMetricValue(persisting);
+		if (persisting && !isDecaying()) {
+			// the samples that we kept are reset so the values since the persist have to fill the reservoir again
+			reservoir.resetThreshold();
+		}
+		return value;
+	}
+
+	/**
+	 * Replace the initial value, which was created before our fields were set, with one that has our configuration so
+	 * an idle reservoir still reports our percentiles.
+	 */
+	private void configureInitialValue() {
+		while (true) {
+			ReservoirValue current = getCurrentMetricValue();
+			if (current.percentiles == percentiles) {
+				return;
+			}
+			if (compareAndSetMetricValue(current, current.withConfig(size, percentiles, isDecaying()))) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Min-heap of the samples with the highest priorities since it was last drained. The threshold is the lowest priority
+	 * that can still be kept, either in the heap or once merged with the samples that were already drained.
+	 */
+	private static class Reservoir {
+		private final double[] priorities;
+		private final double[] values;
+		private int numSamples;
+		// lowest priority that can be kept so lower priorities can be dropped without locking
+		volatile double threshold = Double.NEGATIVE_INFINITY;
+
+		public Reservoir(int size) {
+			this.priorities = new double[size];
+			this.values = new double[size];
+		}
+
+		public synchronized void offer(double priority, double value) {
+			if (numSamples < priorities.length) {
+				int index = numSamples++;
+				// sift up
+				while (index > 0) {
+					int parent = (index - 1) >>> 1;
+					if (priorities[parent] <= priority) {
+						break;
+					}
+					priorities[index] = priorities[parent];
+					values[index] = values[parent];
+					index = parent;
+				}
+				priorities[index] = priority;
+				values[index] = value;
+				if (numSamples == priorities.length) {
+					threshold = Math.max(threshold, priorities[0]);
+				}
+			} else if (priority > priorities[0]) {
+				// replace the lowest priority and sift down
+				int index = 0;
+				while (true) {
+					int child = 2 * index + 1;
+					if (child >= numSamples) {
+						break;
+					}
+					if (child + 1 < numSamples && priorities[child + 1] < priorities[child]) {
+						child++;
+					}
+					if (priority <= priorities[child]) {
+						break;
+					}
+					priorities[index] = priorities[child];
+					values[index] = values[child];
+					index = child;
+				}
+				priorities[index] = priority;
+				values[index] = value;
+				threshold = Math.max(threshold, priorities[0]);
+			}
+		}
+
+		/**
+		 * Returns the priorities and the values of the samples and empties the reservoir. The threshold is left as is
+		 * since the samples are merged with the ones that were drained before.
+		 */
+		public synchronized double[][] drain() {
+			double[][] samples =
+					new double[][] { Arrays.copyOf(priorities, numSamples), Arrays.copyOf(values, numSamples) };
+			numSamples = 0;
+			return samples;
+		}
+
+		/**
+		 * Raise the threshold to the lowest priority of the full set of merged samples.
+		 */
+		public synchronized void raiseThreshold(double lowestPriority) {
+			if (lowestPriority > threshold) {
+				threshold = lowestPriority;
+			}
+		}
+
+		/**
+		 * Lower the threshold to what is in the reservoir when the merged samples are being reset.
+		 */
+		public synchronized void resetThreshold() {
+			if (numSamples == priorities.length) {
+				threshold = priorities[0];
+			} else {
+				threshold = Double.NEGATIVE_INFINITY;
+			}
+		}
+	}
+
+	/**
+	 * Exact sum, count, min, and max of the values plus the sampled values with their priorities.
+	 */
+	public static class ReservoirValue implements MetricValue<Double, ReservoirValue>, MetricValuePercentiles {
+		private final int size;
+		private final double[] percentiles;
+		private final boolean decaying;
+		private final double[] priorities;
+		private final double[] samples;
+		// sorted when the percentiles are first needed and shared with the values that have the same samples
+		private volatile double[] sortedSamples;
+		private final double sum;
+		private final long count;
+		private final double min;
+		private final double max;
+		private final boolean resetNext;
+
+		private ReservoirValue(int size, double[] percentiles, boolean decaying, double[] priorities, double[] samples,
+				double sum, long count, double min, double max, boolean resetNext) {
+			this(size, percentiles, decaying, priorities, samples, null, sum, count, min, max, resetNext);
+		}
+
+		private ReservoirValue(int size, double[] percentiles, boolean decaying, double[] priorities, double[] samples,
+				double[] sortedSamples, double sum, long count, double min, double max, boolean resetNext) {
+			this.size = size;
+			this.percentiles = percentiles;
+			this.decaying = decaying;
+			this.priorities = priorities;
+			this.samples = samples;
+			this.sortedSamples = sortedSamples;
+			this.sum = sum;
+			this.count = count;
+			this.min = min;
+			this.max = max;
+			this.resetNext = resetNext;
+		}
+
+		public static ReservoirValue createInitialValue() {
+			return new ReservoirValue(DEFAULT_SIZE, DEFAULT_PERCENTILES, false, new double[0], new double[0], 0.0, 0,
+					0.0, 0.0, true);
+		}
+
+		@Override
+		public ReservoirValue makePersisted() {
+			/*
+			 * NOTE: this doesn't change the value because we don't want this to drop to 0 just because there wasn't an
+			 * adjustment event. This is different from the accumulator metrics.
+			 */
+			return new ReservoirValue(size, percentiles, decaying, priorities, samples, sortedSamples, sum, count, min,
+					max, true);
+		}
+
+		/**
+		 * Return the value with a new configuration. This is only used on the initial value which has no samples.
+		 */
+		ReservoirValue withConfig(int newSize, double[] newPercentiles, boolean newDecaying) {
+			return new ReservoirValue(newSize, newPercentiles, newDecaying, priorities, samples, sortedSamples, sum,
+					count, min, max, resetNext);
+		}
+
+		@Override
+		public ReservoirValue makeAdjusted(Double value) {
+			double priority = -Math.log(1.0 - ThreadLocalRandom.current().nextDouble());
+			return makeAdjusted(size, percentiles, decaying, new double[] { priority }, new double[] { value }, value,
+					1, value, value);
+		}
+
+		/**
+		 * Make a new entry adjusted by samples drained from a reservoir and the exact sum, count, min, and max of the
+		 * values. The min and max may be infinite if they were not seen.
+		 */
+		ReservoirValue makeAdjusted(int newSize, double[] newPercentiles, boolean newDecaying, double[] newPriorities,
+				double[] newSamples, double newSum, long newCount, double newMin, double newMax) {
+			// the min or max may not have been seen if an adjustment raced with the drain of the cells
+			if (Double.isInfinite(newMin) || Double.isInfinite(newMax)) {
+				double average = (newCount > 0 ? newSum / newCount : 0.0);
+				if (Double.isInfinite(newMin)) {
+					newMin = average;
+				}
+				if (Double.isInfinite(newMax)) {
+					newMax = average;
+				}
+			}
+			if (resetNext) {
+				if (newDecaying) {
+					// the decayed samples are kept across persists because the priorities take care of their age
+					double[][] merged = mergeSamples(newSize, priorities, samples, newPriorities, newSamples);
+					return new ReservoirValue(newSize, newPercentiles, true, merged[0], merged[1], newSum, newCount,
+							newMin, newMax, false);
+				} else {
+					return new ReservoirValue(newSize, newPercentiles, false, newPriorities, newSamples, newSum,
+							newCount, newMin, newMax, false);
+				}
+			}
+			double[][] merged = mergeSamples(newSize, priorities, samples, newPriorities, newSamples);
+			if (count == 0) {
+				// we have no values yet so don't take our min and max
+				return new ReservoirValue(newSize, newPercentiles, newDecaying, merged[0], merged[1], sum + newSum,
+						newCount, newMin, newMax, false);
+			}
+			return new ReservoirValue(newSize, newPercentiles, newDecaying, merged[0], merged[1], sum + newSum,
+					count + newCount, Math.min(min, newMin), Math.max(max, newMax), false);
+		}
+
+		@Override
+		public Number getValue() {
+			if (count == 0) {
+				return Double.valueOf(0.0);
+			} else {
+				// value is an _average_ of all the adjustments
+				return Double.valueOf(sum / count);
+			}
+		}
+
+		@Override
+		public int getNumSamples() {
+			if (count >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else {
+				return (int) count;
+			}
+		}
+
+		/**
+		 * Return the number of values as a long.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public Number getMin() {
+			return Double.valueOf(min);
+		}
+
+		@Override
+		public Number getMax() {
+			return Double.valueOf(max);
+		}
+
+		/**
+		 * Return the lowest priority of the samples if there are as many as the size of the reservoir otherwise
+		 * negative infinity.
+		 */
+		double getLowestPriority() {
+			if (priorities.length < size) {
+				return Double.NEGATIVE_INFINITY;
+			}
+			double lowest = Double.POSITIVE_INFINITY;
+			for (double priority : priorities) {
+				if (priority < lowest) {
+					lowest = priority;
+				}
+			}
+			return lowest;
+		}
+
+		/**
+		 * Return a sorted copy of the values in the reservoir.
+		 */
+		public double[] getSampledValues() {
+			return getSortedSamples().clone();
+		}
+
+		@Override
+		public double[] getPercentiles() {
+			return percentiles.clone();
+		}
+
+		@Override
+		public double[] getPercentileValues() {
+			double[] values = new double[percentiles.length];
+			for (int i = 0; i < percentiles.length; i++) {
+				values[i] = getValueAtPercentile(percentiles[i]);
+			}
+			return values;
+		}
+
+		/**
+		 * Return the value at a particular percentile such as 99.9 estimated from the samples in the reservoir. This
+		 * will be 0 if there are no samples.
+		 */
+		public double getValueAtPercentile(double percentile) {
+			double[] sorted = getSortedSamples();
+			if (sorted.length == 0) {
+				return 0.0;
+			}
+			// the rank of the value that we are looking for, 0 based
+			int rank = (int) (percentile / 100.0 * (sorted.length - 1));
+			return sorted[rank];
+		}
+
+		private double[] getSortedSamples() {
+			double[] sorted = sortedSamples;
+			if (sorted == null) {
+				// if two threads race here they both sort the same samples
+				sorted = samples.clone();
+				Arrays.sort(sorted);
+				sortedSamples = sorted;
+			}
+			return sorted;
+		}
+
+		/**
+		 * Merge two sets of samples keeping the ones with the highest priorities.
+		 */
+		private static double[][] mergeSamples(int size, double[] priorities1, double[] samples1,
+				double[] priorities2, double[] samples2) {
+			int total = priorities1.length + priorities2.length;
+			double[] priorities = new double[Math.min(size, total)];
+			double[] samples = new double[priorities.length];
+			double cutoff = Double.NEGATIVE_INFINITY;
+			if (total > size) {
+				// find the lowest priority that we keep
+				double[] sorted = new double[total];
+				System.arraycopy(priorities1, 0, sorted, 0, priorities1.length);
+				System.arraycopy(priorities2, 0, sorted, priorities1.length, priorities2.length);
+				Arrays.sort(sorted);
+				cutoff = sorted[total - size];
+			}
+			int num = 0;
+			// first take the samples above the cutoff
+			num = copyAbove(priorities1, samples1, cutoff, priorities, samples, num);
+			num = copyAbove(priorities2, samples2, cutoff, priorities, samples, num);
+			// then fill with samples that tie the cutoff
+			num = copyEqual(priorities1, samples1, cutoff, priorities, samples, num);
+			copyEqual(priorities2, samples2, cutoff, priorities, samples, num);
+			return new double[][] { priorities, samples };
+		}
+
+		private static int copyAbove(double[] fromPriorities, double[] fromSamples, double cutoff, double[] priorities,
+				double[] samples, int num) {
+			for (int i = 0; i < fromPriorities.length && num < priorities.length; i++) {
+				if (fromPriorities[i] > cutoff) {
+					priorities[num] = fromPriorities[i];
+					samples[num++] = fromSamples[i];
+				}
+			}
+			return num;
+		}
+
+		private static int copyEqual(double[] fromPriorities, double[] fromSamples, double cutoff, double[] priorities,
+				double[] samples, int num) {
+			for (int i = 0; i < fromPriorities.length && num < priorities.length; i++) {
+				if (fromPriorities[i] == cutoff) {
+					priorities[num] = fromPriorities[i];
+					samples[num++] = fromSamples[i];
+				}
+			}
+			return num;
+		}
+	}
+}
@@ -0,0 +1,635 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.j256.simplemetrics.metric.ControlledMetricSketch.SketchValue;
+
+/**
+ * Managed {@link ControlledMetric} which records values into a DDSketch style quantile sketch. Unlike the averages
+ * persisted by the other metrics, the sketches from many hosts can be merged together, after they have been persisted,
+ * to get accurate fleet-wide percentiles. The serialized sketch is available through
+ * {@link MetricValueDetails#getSerializedSketch()} and can be merged with {@link #merge(String...)}.
+ *
+ * <p>
+ * A value v is counted in bin ceil(log(v) / log(gamma)) where gamma is (1 + accuracy) / (1 - accuracy) so any
+ * percentile that is reported is within the relative-accuracy of the real value. The number of bins is bounded and
+ * they reach down from {@link #MAX_INDEXABLE_VALUE}. If more are needed, either to reach down to small values or when
+ * merging sketches with very different values, the lowest bins are collapsed together so the accuracy of the upper
+ * percentiles is preserved. Values less than {@link #MIN_INDEXABLE_VALUE}, including negative values, are counted as 0
+ * and values larger than the max are counted in the top bin. Recording a value is an atomic increment of its bin plus
+ * updates of striped primitive cells and does not allocate any objects.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricSketch extends BaseControlledMetric<Double, SketchValue> {
+
+	/** default relative accuracy of the percentiles */
+	public static final double DEFAULT_RELATIVE_ACCURACY = 0.01;
+	/** default maximum number of bins */
+	public static final int DEFAULT_MAX_NUM_BINS = 2048;
+	/** default percentiles that are reported */
+	public static final double[] DEFAULT_PERCENTILES = new double[] { 50.0, 90.0, 99.0, 99.9 };
+	/** smallest value that is not counted as 0 */
+	public static final double MIN_INDEXABLE_VALUE = 1.0e-6;
+	/** largest value that has its own bin */
+	public static final double MAX_INDEXABLE_VALUE = 1.0e12;
+
+	private static final String SERIALIZED_PREFIX = "dds1";
+	private static final char FIELD_SEPARATOR = ';';
+	private static final char BIN_SEPARATOR = ',';
+	private static final char BIN_COUNT_SEPARATOR = ':';
+	private static final int SUM_SLOT = 0;
+	private static final int MIN_SLOT = 1;
+	private static final int MAX_SLOT = 2;
+
+	private final double relativeAccuracy;
+	private final int maxNumBins;
+	private final double[] percentiles;
+	private final double logGamma;
+	private final int indexOffset;
+	// the 0th entry is the count of zero values and the rest are the bins starting at the index-offset
+	private final AtomicLongArray bins;
+	private final StripedCells cells =
+			new StripedCells(StripedCells.KIND_DOUBLE_SUM, StripedCells.KIND_DOUBLE_MIN, StripedCells.KIND_DOUBLE_MAX);
+	// reused by the folds, which lock on the indexes, so reading the bins doesn't allocate max-bins sized arrays
+	private final int[] scratchIndexes;
+	private final long[] scratchCounts;
+
+	/**
+	 * Create a sketch with the {@link #DEFAULT_RELATIVE_ACCURACY}, {@link #DEFAULT_MAX_NUM_BINS}, and which reports the
+	 * {@link #DEFAULT_PERCENTILES}.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 */
+	public ControlledMetricSketch(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_NUM_BINS,
+				DEFAULT_PERCENTILES);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param relativeAccuracy
+	 *            Relative accuracy of the percentiles between 0 and 1 exclusive. Sketches can only be merged if they
+	 *            have the same accuracy.
+	 * @param maxNumBins
+	 *            Maximum number of bins which bounds the memory used. With the default accuracy 2048 bins reach from
+	 *            1e12 down to 1.6e-6.
+	 * @param percentiles
+	 *            Percentiles to report such as 50.0, 99.0, and 99.9.
+	 */
+	public ControlledMetricSketch(String component, String module, String name, String description, String unit,
+			double relativeAccuracy, int maxNumBins, double[] percentiles) {
+		super(component, module, name, description, unit);
+		if (relativeAccuracy <= 0.0 || relativeAccuracy >= 1.0) {
+			throw new IllegalArgumentException("Relative accuracy must be between 0 and 1: " + relativeAccuracy);
+		}
+		if (maxNumBins < 1) {
+			throw new IllegalArgumentException("Max number of bins must be at least 1: " + maxNumBins);
+		}
+		if (percentiles == null) {
+			throw new NullPointerException("Percentiles cannot be null");
+		}
+		for (double percentile : percentiles) {
+			if (percentile <= 0.0 || percentile > 100.0) {
+				throw new IllegalArgumentException("Invalid percentile " + percentile + ", must be > 0 and <= 100");
+			}
+		}
+		this.relativeAccuracy = relativeAccuracy;
+		this.maxNumBins = maxNumBins;
+		this.percentiles = percentiles.clone();
+		this.logGamma = calcLogGamma(relativeAccuracy);
+		// the top bin holds the max value and the bins reach down from there
+		this.indexOffset = calcIndex(logGamma, MAX_INDEXABLE_VALUE) - maxNumBins;
+		this.bins = new AtomicLongArray(maxNumBins + 1);
+		this.scratchIndexes = new int[maxNumBins];
+		this.scratchCounts = new long[maxNumBins];
+	}
+
+	@Override
+	public SketchValue createInitialValue() {
+		/*
+		 * NOTE: this is called from the super constructor before our fields are set so the initial value is empty and
+		 * picks up the accuracy, max-bins, and percentiles on the first read.
+		 */
+		return SketchValue.createInitialValue();
+	}
+
+	@Override
+	public Double makeValueFromLong(long value) {
+		return (double) value;
+	}
+
+	@Override
+	public Double makeValueFromNumber(Number value) {
+		return value.doubleValue();
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.AVERAGE;
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue((double) value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue(value.doubleValue());
+	}
+
+	/**
+	 * Adjust the value of the metric by a double primitive value. This does not allocate any objects.
+	 */
+	public void adjustValue(double value) {
+		long weight = sampleWeight();
+		if (weight == 0) {
+			return;
+		}
+		// a sampled value stands in for the weight number of values
+		if (value < MIN_INDEXABLE_VALUE) {
+			value = 0.0;
+			bins.getAndAdd(0, weight);
+		} else {
+			int binNum = calcIndex(logGamma, value) - indexOffset;
+			if (binNum < 1) {
+				// below our bottom bin so collapse it into the lowest one
+				binNum = 1;
+			} else if (binNum > maxNumBins) {
+				binNum = maxNumBins;
+			}
+			bins.getAndAdd(binNum, weight);
+		}
+		cells.addDouble(SUM_SLOT, value * weight);
+		cells.minDouble(MIN_SLOT, value);
+		cells.maxDouble(MAX_SLOT, value);
+	}
+
+	/**
+	 * Return the relative accuracy of the sketch.
+	 */
+	public double getRelativeAccuracy() {
+		return relativeAccuracy;
+	}
+
+	/**
+	 * Merge a number of serialized sketches, probably persisted from many hosts, together into one sketch. The
+	 * sketches must all have the same relative accuracy. If there are more bins than the largest max-bins of the
+	 * sketches then the lowest bins are collapsed together.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If one of the strings is not a valid sketch or if the sketches have different relative accuracies.
+	 */
+	public static SketchValue merge(String... serializedSketches) {
+		SketchValue[] sketches = new SketchValue[serializedSketches.length];
+		for (int i = 0; i < serializedSketches.length; i++) {
+			sketches[i] = SketchValue.fromSerializedString(serializedSketches[i]);
+		}
+		return merge(sketches);
+	}
+
+	/**
+	 * Merge a number of sketches together into one sketch. See {@link #merge(String...)}.
+	 */
+	public static SketchValue merge(SketchValue... sketches) {
+		SketchValue result = null;
+		for (SketchValue sketch : sketches) {
+			if (result == null) {
+				result = sketch;
+			} else {
+				result = result.merge(sketch);
+			}
+		}
+		if (result == null) {
+			return SketchValue.createInitialValue();
+		} else {
+			return result;
+		}
+	}
+
+	@Override
+	protected boolean isSamplingSupported() {
+		return true;
+	}
+
+	@Override
+	protected void foldPending() {
+		configureInitialValue();
+		int[] indexes;
+		long[] counts;
+		long zeroCount;
+		long count;
+		synchronized (scratchIndexes) {
+			int numBins = 0;
+			zeroCount = bins.getAndSet(0, 0);
+			count = zeroCount;
+			for (int binNum = 1; binNum < bins.length(); binNum++) {
+				if (bins.get(binNum) == 0) {
+					continue;
+				}
+				long binCount = bins.getAndSet(binNum, 0);
+				if (binCount == 0) {
+					continue;
+				}
+				scratchIndexes[numBins] = binNum + indexOffset;
+				scratchCounts[numBins] = binCount;
+				numBins++;
+				count += binCount;
+			}
+			// only copy out the bins that have values
+			indexes = Arrays.copyOf(scratchIndexes, numBins);
+			counts = Arrays.copyOf(scratchCounts, numBins);
+		}
+		long[] results = new long[3];
+		cells.drain(results);
+		double sum = Double.longBitsToDouble(results[SUM_SLOT]);
+		/*
+		 * An adjustment may have raced with our drain so its sum may arrive without its bin or the other way around. We
+		 * can't put back a sum without its bin because the bin may already have been taken by this drain so the sum
+		 * would be stranded. We fold in whatever we got.
+		 */
+		if (count == 0) {
+			if (sum == 0.0) {
+				return;
+			}
+			SketchValue current;
+			do {
+				current = getCurrentMetricValue();
+			} while (!compareAndSetMetricValue(current, current.addSum(sum)));
+			return;
+		}
+		double min = Double.longBitsToDouble(results[MIN_SLOT]);
+		double max = Double.longBitsToDouble(results[MAX_SLOT]);
+		// the min or max may not have been seen if an adjustment raced with the drain of the cells
+		if (Double.isInfinite(min)) {
+			min = sum / count;
+		}
+		if (Double.isInfinite(max)) {
+			max = sum / count;
+		}
+		SketchValue pending = new SketchValue(relativeAccuracy, maxNumBins, percentiles, indexes, counts, zeroCount,
+				count, sum, min, max, false);
+		SketchValue current;
+		SketchValue newValue;
+		do {
+			current = getCurrentMetricValue();
+			if (current.resetNext) {
+				newValue = pending;
+			} else {
+				// this keeps any sum that we are holding without its bins
+				newValue = current.merge(pending);
+			}
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
+	/**
+	 * Replace the initial value, which was created before our fields were set, with one that has our configuration so
+	 * an idle sketch still reports our percentiles.
+	 */
+	private void configureInitialValue() {
+		while (true) {
+			SketchValue current = getCurrentMetricValue();
+			if (current.percentiles == percentiles) {
+				return;
+			}
+			if (compareAndSetMetricValue(current, current.withConfig(relativeAccuracy, maxNumBins, percentiles))) {
+				return;
+			}
+		}
+	}
+
+	private static double calcLogGamma(double relativeAccuracy) {
+		return Math.log((1.0 + relativeAccuracy) / (1.0 - relativeAccuracy));
+	}
+
+	private static int calcIndex(double logGamma, double value) {
+		return (int) Math.ceil(Math.log(value) / logGamma);
+	}
+
+	/**
+	 * Immutable sketch of the values which holds the sorted non-empty bins as well as the sum, count, min, and max.
+	 */
+	public static class SketchValue implements MetricValue<Double, SketchValue>, MetricValuePercentiles,
+			MetricValueSketch {
+		private final double relativeAccuracy;
+		private final int maxNumBins;
+		private final double[] percentiles;
+		private final int[] indexes;
+		private final long[] counts;
+		private final long zeroCount;
+		private final long count;
+		private final double sum;
+		private final double min;
+		private final double max;
+		private final boolean resetNext;
+
+		private SketchValue(double relativeAccuracy, int maxNumBins, double[] percentiles, int[] indexes,
+				long[] counts, long zeroCount, long count, double sum, double min, double max, boolean resetNext) {
+			this.relativeAccuracy = relativeAccuracy;
+			this.maxNumBins = maxNumBins;
+			this.percentiles = percentiles;
+			this.indexes = indexes;
+			this.counts = counts;
+			this.zeroCount = zeroCount;
+			this.count = count;
+			this.sum = sum;
+			this.min = min;
+			this.max = max;
+			this.resetNext = resetNext;
+		}
+
+		public static SketchValue createInitialValue() {
+			return new SketchValue(DEFAULT_RELATIVE_ACCURACY, DEFAULT_MAX_NUM_BINS, DEFAULT_PERCENTILES, new int[0],
+					new long[0], 0, 0, 0.0, 0.0, 0.0, true);
+		}
+
+		/**
+		 * Return the sketch with a new configuration. This is only used on the initial value which has no bins.
+		 */
+		SketchValue withConfig(double newRelativeAccuracy, int newMaxNumBins, double[] newPercentiles) {
+			return new SketchValue(newRelativeAccuracy, newMaxNumBins, newPercentiles, indexes, counts, zeroCount, count,
+					sum, min, max, resetNext);
+		}
+
+		/**
+		 * Parse a sketch from its serialized form. See {@link #toSerializedString()}.
+		 *
+		 * @throws IllegalArgumentException
+		 *             If the string is not a valid serialized sketch.
+		 */
+		public static SketchValue fromSerializedString(String serialized) {
+			String[] fields = serialized.split(String.valueOf(FIELD_SEPARATOR), -1);
+			if (fields.length != 9 || !SERIALIZED_PREFIX.equals(fields[0])) {
+				throw new IllegalArgumentException("Invalid serialized sketch: " + serialized);
+			}
+			try {
+				double relativeAccuracy = Double.parseDouble(fields[1]);
+				int maxNumBins = Integer.parseInt(fields[2]);
+				long count = Long.parseLong(fields[3]);
+				double sum = Double.parseDouble(fields[4]);
+				double min = Double.parseDouble(fields[5]);
+				double max = Double.parseDouble(fields[6]);
+				long zeroCount = Long.parseLong(fields[7]);
+				int[] indexes;
+				long[] counts;
+				if (fields[8].length() == 0) {
+					indexes = new int[0];
+					counts = new long[0];
+				} else {
+					String[] binStrs = fields[8].split(String.valueOf(BIN_SEPARATOR));
+					indexes = new int[binStrs.length];
+					counts = new long[binStrs.length];
+					int index = 0;
+					for (int i = 0; i < binStrs.length; i++) {
+						int sepIndex = binStrs[i].indexOf(BIN_COUNT_SEPARATOR);
+						if (sepIndex < 0) {
+							throw new IllegalArgumentException("Invalid serialized sketch bin: " + binStrs[i]);
+						}
+						// the indexes are stored as deltas from the previous one
+						index += Integer.parseInt(binStrs[i].substring(0, sepIndex));
+						indexes[i] = index;
+						counts[i] = Long.parseLong(binStrs[i].substring(sepIndex + 1));
+					}
+				}
+				return new SketchValue(relativeAccuracy, maxNumBins, DEFAULT_PERCENTILES, indexes, counts, zeroCount,
+						count, sum, min, max, false);
+			} catch (NumberFormatException nfe) {
+				throw new IllegalArgumentException("Invalid serialized sketch: " + serialized, nfe);
+			}
+		}
+
+		/**
+		 * Returns the serialized form of the sketch which looks like:
+		 * dds1;accuracy;max-bins;count;sum;min;max;zero-count;index:count,index-delta:count,...
+		 */
+		@Override
+		public String toSerializedString() {
+			StringBuilder sb = new StringBuilder(64 + indexes.length * 8);
+			sb.append(SERIALIZED_PREFIX);
+			sb.append(FIELD_SEPARATOR).append(relativeAccuracy);
+			sb.append(FIELD_SEPARATOR).append(maxNumBins);
+			sb.append(FIELD_SEPARATOR).append(count);
+			sb.append(FIELD_SEPARATOR).append(sum);
+			sb.append(FIELD_SEPARATOR).append(min);
+			sb.append(FIELD_SEPARATOR).append(max);
+			sb.append(FIELD_SEPARATOR).append(zeroCount);
+			sb.append(FIELD_SEPARATOR);
+			int lastIndex = 0;
+			for (int i = 0; i < indexes.length; i++) {
+				if (i > 0) {
+					sb.append(BIN_SEPARATOR);
+				}
+				sb.append(indexes[i] - lastIndex).append(BIN_COUNT_SEPARATOR).append(counts[i]);
+				lastIndex = indexes[i];
+			}
+			return sb.toString();
+		}
+
+		@Override
+		public SketchValue makePersisted() {
+			/*
+			 * NOTE: this doesn't change the value because we don't want this to drop to 0 just because there wasn't an
+			 * adjustment event. This is different from the accumulator metrics.
+			 */
+			return new SketchValue(relativeAccuracy, maxNumBins, percentiles, indexes, counts, zeroCount, count, sum,
+					min, max, true);
+		}
+
+		@Override
+		public SketchValue makeAdjusted(Double value) {
+			double doubleValue = value;
+			SketchValue single;
+			if (doubleValue < MIN_INDEXABLE_VALUE) {
+				single = new SketchValue(relativeAccuracy, maxNumBins, percentiles, new int[0], new long[0], 1, 1, 0.0,
+						0.0, 0.0, false);
+			} else {
+				int index = calcIndex(calcLogGamma(relativeAccuracy), doubleValue);
+				single = new SketchValue(relativeAccuracy, maxNumBins, percentiles, new int[] { index },
+						new long[] { 1 }, 0, 1, doubleValue, doubleValue, doubleValue, false);
+			}
+			if (resetNext) {
+				return single;
+			} else {
+				return merge(single);
+			}
+		}
+
+		/**
+		 * Add the sum of values whose bins were taken by an earlier drain.
+		 */
+		SketchValue addSum(double extraSum) {
+			if (resetNext) {
+				return new SketchValue(relativeAccuracy, maxNumBins, percentiles, new int[0], new long[0], 0, 0,
+						extraSum, 0.0, 0.0, false);
+			} else {
+				return new SketchValue(relativeAccuracy, maxNumBins, percentiles, indexes, counts, zeroCount, count,
+						sum + extraSum, min, max, false);
+			}
+		}
+
+		/**
+		 * Merge this sketch with another returning a new sketch. The percentiles reported are those of this sketch.
+		 *
+		 * @throws IllegalArgumentException
+		 *             If the sketches have different relative accuracies.
+		 */
+		public SketchValue merge(SketchValue other) {
+			if (other.count == 0) {
+				return this;
+			}
+			if (count == 0) {
+				// we may be holding a sum whose bins were folded earlier
+				return new SketchValue(other.relativeAccuracy, other.maxNumBins, percentiles, other.indexes,
+						other.counts, other.zeroCount, other.count, sum + other.sum, other.min, other.max, false);
+			}
+			if (relativeAccuracy != other.relativeAccuracy) {
+				throw new IllegalArgumentException("Cannot merge sketches with different relative accuracies: "
+						+ relativeAccuracy + " and " + other.relativeAccuracy);
+			}
+			// merge the sorted bins together
+			int[] mergedIndexes = new int[indexes.length + other.indexes.length];
+			long[] mergedCounts = new long[mergedIndexes.length];
+			int numBins = 0;
+			int thisPos = 0;
+			int otherPos = 0;
+			while (thisPos < indexes.length || otherPos < other.indexes.length) {
+				if (otherPos >= other.indexes.length
+						|| (thisPos < indexes.length && indexes[thisPos] < other.indexes[otherPos])) {
+					mergedIndexes[numBins] = indexes[thisPos];
+					mergedCounts[numBins] = counts[thisPos++];
+				} else if (thisPos >= indexes.length || other.indexes[otherPos] < indexes[thisPos]) {
+					mergedIndexes[numBins] = other.indexes[otherPos];
+					mergedCounts[numBins] = other.counts[otherPos++];
+				} else {
+					mergedIndexes[numBins] = indexes[thisPos];
+					mergedCounts[numBins] = counts[thisPos++] + other.counts[otherPos++];
+				}
+				numBins++;
+			}
+			int newMaxNumBins = Math.max(maxNumBins, other.maxNumBins);
+			// collapse the lowest bins into one if we have too many so we keep the accuracy of the upper percentiles
+			int start = 0;
+			if (numBins > newMaxNumBins) {
+				start = numBins - newMaxNumBins;
+				long collapsed = 0;
+				for (int i = 0; i <= start; i++) {
+					collapsed += mergedCounts[i];
+				}
+				mergedCounts[start] = collapsed;
+			}
+			int[] resultIndexes = new int[numBins - start];
+			long[] resultCounts = new long[numBins - start];
+			System.arraycopy(mergedIndexes, start, resultIndexes, 0, resultIndexes.length);
+			System.arraycopy(mergedCounts, start, resultCounts, 0, resultCounts.length);
+			return new SketchValue(relativeAccuracy, newMaxNumBins, percentiles, resultIndexes, resultCounts,
+					zeroCount + other.zeroCount, count + other.count, sum + other.sum, Math.min(min, other.min),
+					Math.max(max, other.max), false);
+		}
+
+		@Override
+		public Number getValue() {
+			if (count == 0) {
+				return Double.valueOf(0.0);
+			} else {
+				// value is an _average_ of all the adjustments
+				return Double.valueOf(sum / count);
+			}
+		}
+
+		@Override
+		public int getNumSamples() {
+			if (count >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else {
+				return (int) count;
+			}
+		}
+
+		/**
+		 * Return the number of samples as a long.
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public Number getMin() {
+			return Double.valueOf(min);
+		}
+
+		@Override
+		public Number getMax() {
+			return Double.valueOf(max);
+		}
+
+		/**
+		 * Return the relative accuracy of the sketch.
+		 */
+		public double getRelativeAccuracy() {
+			return relativeAccuracy;
+		}
+
+		@Override
+		public double[] getPercentiles() {
+			return percentiles.clone();
+		}
+
+		@Override
+		public double[] getPercentileValues() {
+			double[] values = new double[percentiles.length];
+			for (int i = 0; i < percentiles.length; i++) {
+				values[i] = getValueAtPercentile(percentiles[i]);
+			}
+			return values;
+		}
+
+		/**
+		 * Return the value at a particular percentile such as 99.9 which is within the relative accuracy of the real
+		 * value. This will be 0 if num-samples is 0.
+		 */
+		public double getValueAtPercentile(double percentile) {
+			if (count == 0) {
+				return 0.0;
+			}
+			// the rank of the value that we are looking for, 0 based
+			long rank = (long) (percentile / 100.0 * (count - 1));
+			long seen = zeroCount;
+			if (seen > rank) {
+				return 0.0;
+			}
+			double gamma = Math.exp(calcLogGamma(relativeAccuracy));
+			for (int i = 0; i < indexes.length; i++) {
+				seen += counts[i];
+				if (seen > rank) {
+					// this is the value with the least relative error in the bin
+					double value = 2.0 * Math.pow(gamma, indexes[i]) / (gamma + 1.0);
+					return Math.max(min, Math.min(max, value));
+				}
+			}
+			return max;
+		}
+	}
+}
@@ -11,7 +11,8 @@ package com.j256.simplemetrics.metric;
  * timer.end(millis);
  * </pre>
  * 
- * The rest is done by the class and the metric system.
+ * The rest is done by the class and the metric system. See {@link ControlledMetricNanoTimer} for a higher resolution
+ * timer which is not affected by wall-clock adjustments.
  * 
  * @author graywatson
  */
@@ -0,0 +1,429 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.j256.simplemetrics.metric.ControlledMetricAccum.AccumValue;
+
+/**
+ * Managed {@link ControlledMetric} which finds the heavy-hitter keys, such as the tenants or IPs that are sending the
+ * most requests, using a fixed number of counters no matter how many different keys are added. The value of the metric
+ * is the total count since it was last persisted and, when it is persisted, the top K keys and their counts are each
+ * persisted as a separate series named "name.key". Like the {@link ControlledMetricAccum}, the counts are reset after
+ * they have been persisted.
+ *
+ * <p>
+ * This uses the Space-Saving algorithm. When a new key arrives and all of the counters are in use, the key replaces the
+ * key with the smallest count and inherits its count as its possible over-count error. Any key whose count is more than
+ * the total divided by the number of counters is guaranteed to be found. To reduce contention, each thread counts into
+ * one of a number of stripes with their own counters which are merged when the metric is persisted. String and long
+ * keys are hashed without allocating and long keys are not boxed.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricTopK extends BaseControlledMetric<Long, AccumValue> implements MultiSeriesMetric {
+
+	/** default number of keys that are persisted */
+	public static final int DEFAULT_TOP_K = 10;
+	/** default number of counters in each stripe for each of the top K */
+	public static final int DEFAULT_COUNTERS_PER_KEY = 10;
+	private static final int NUM_STRIPES = nextPowerOfTwo(Runtime.getRuntime().availableProcessors());
+	private static final int TOTAL_SLOT = 0;
+
+	private final int topK;
+	private final int numCounters;
+	private final Summary[] summaries;
+	private final StripedCells totalCells = new StripedCells(StripedCells.KIND_LONG_SUM);
+	// series of the keys last persisted which are only used as keys of the persisted details, synchronized on this
+	private Map<Object, ControlledMetricAccum> keyMetrics = new HashMap<Object, ControlledMetricAccum>();
+
+	/**
+	 * Create a metric which persists the {@link #DEFAULT_TOP_K} keys.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 */
+	public ControlledMetricTopK(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, DEFAULT_TOP_K, DEFAULT_TOP_K * DEFAULT_COUNTERS_PER_KEY);
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param topK
+	 *            Number of keys with the highest counts which are persisted.
+	 * @param numCounters
+	 *            Number of counters in each stripe. More counters make the counts more accurate. Must be at least topK.
+	 */
+	public ControlledMetricTopK(String component, String module, String name, String description, String unit,
+			int topK, int numCounters) {
+		super(component, module, name, description, unit);
+		if (topK <= 0) {
+			throw new IllegalArgumentException("Top K must be positive: " + topK);
+		}
+		if (numCounters < topK) {
+			throw new IllegalArgumentException("Number of counters " + numCounters + " must be at least top K " + topK);
+		}
+		this.topK = topK;
+		this.numCounters = numCounters;
+		this.summaries = new Summary[NUM_STRIPES];
+		for (int i = 0; i < NUM_STRIPES; i++) {
+			summaries[i] = new Summary(numCounters);
+		}
+	}
+
+	@Override
+	public AccumValue createInitialValue() {
+		return AccumValue.createInitialValue();
+	}
+
+	@Override
+	public Long makeValueFromLong(long value) {
+		return Long.valueOf(value);
+	}
+
+	@Override
+	public Long makeValueFromNumber(Number value) {
+		return value.longValue();
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.SUM;
+	}
+
+	/**
+	 * Count one occurrence of a string key. Null is ignored.
+	 */
+	public void add(String key) {
+		add(key, 1);
+	}
+
+	/**
+	 * Count a number of occurrences of a string key. Null is ignored.
+	 */
+	public void add(String key, long count) {
+		if (key == null) {
+			return;
+		}
+		stripeSummary().add(key, 0, MetricHashing.hash(key), count);
+		totalCells.add(TOTAL_SLOT, count);
+	}
+
+	/**
+	 * Count one occurrence of a long key.
+	 */
+	public void add(long key) {
+		add(key, 1);
+	}
+
+	/**
+	 * Count a number of occurrences of a long key.
+	 */
+	public void add(long key, long count) {
+		stripeSummary().add(null, key, MetricHashing.hash(key), count);
+		totalCells.add(TOTAL_SLOT, count);
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		add(value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		add(value.longValue());
+	}
+
+	/**
+	 * Return the number of keys that are persisted.
+	 */
+	public int getTopK() {
+		return topK;
+	}
+
+	/**
+	 * Return the number of counters in each stripe.
+	 */
+	public int getNumCounters() {
+		return numCounters;
+	}
+
+	/**
+	 * Return the current top K keys and their counts, highest count first, without resetting them.
+	 */
+	public List<KeyCount> getTopKeyCounts() {
+		return findTopKeys(false);
+	}
+
+	@Override
+	public void addSeriesToPersist(Map<ControlledMetric<?, ?>, MetricValueDetails> seriesMap) {
+		List<KeyCount> keyCounts = findTopKeys(true);
+		seriesMap.put(this, getValueDetailsToPersist());
+		synchronized (this) {
+			// reuse the series of the keys that are still at the top and let go of the others
+			Map<Object, ControlledMetricAccum> newKeyMetrics =
+					new HashMap<Object, ControlledMetricAccum>(keyCounts.size() * 2);
+			for (KeyCount keyCount : keyCounts) {
+				ControlledMetricAccum keyMetric = keyMetrics.get(keyCount.getKey());
+				if (keyMetric == null) {
+					keyMetric = new ControlledMetricAccum(getComponent(), getModule(),
+							getName() + "." + keyCount.getKey(), getDescription(), getUnit());
+				}
+				newKeyMetrics.put(keyCount.getKey(), keyMetric);
+				// like an accumulator, the count is its own samples, min, and max
+				long count = keyCount.getCount();
+				Long countValue = Long.valueOf(count);
+				seriesMap.put(keyMetric, new MetricValueDetails(countValue,
+						(count >= Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) count), countValue, countValue, null,
+						null, null, 1.0));
+			}
+			keyMetrics = newKeyMetrics;
+		}
+	}
+
+	@Override
+	protected void foldPending() {
+		long[] results = new long[1];
+		totalCells.drain(results);
+		long value = results[TOTAL_SLOT];
+		if (value > 0) {
+			super.adjustValue(value);
+		}
+	}
+
+	private Summary stripeSummary() {
+		return summaries[(int) Thread.currentThread().getId() & (NUM_STRIPES - 1)];
+	}
+
+	private List<KeyCount> findTopKeys(boolean reset) {
+		Map<Object, long[]> merged = new HashMap<Object, long[]>();
+		for (Summary summary : summaries) {
+			summary.mergeInto(merged, reset);
+		}
+		List<KeyCount> keyCounts = new ArrayList<KeyCount>(merged.size());
+		for (Entry<Object, long[]> entry : merged.entrySet()) {
+			long[] countError = entry.getValue();
+			keyCounts.add(new KeyCount(entry.getKey(), countError[0], countError[1]));
+		}
+		Collections.sort(keyCounts, new Comparator<KeyCount>() {
+			@Override
+			public int compare(KeyCount first, KeyCount second) {
+				long firstCount = first.getCount();
+				long secondCount = second.getCount();
+				return (firstCount > secondCount ? -1 : (firstCount == secondCount ? 0 : 1));
+			}
+		});
+		if (keyCounts.size() > topK) {
+			return new ArrayList<KeyCount>(keyCounts.subList(0, topK));
+		} else {
+			return keyCounts;
+		}
+	}
+
+	private static int nextPowerOfTwo(int value) {
+		int result = 1;
+		while (result < value) {
+			result <<= 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Key with its count and the maximum that the count may be over.
+	 */
+	public static class KeyCount {
+		private final Object key;
+		private final long count;
+		private final long error;
+
+		public KeyCount(Object key, long count, long error) {
+			this.key = key;
+			this.count = count;
+			this.error = error;
+		}
+
+		/**
+		 * Return the key which is either a String or a Long.
+		 */
+		public Object getKey() {
+			return key;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * Return the maximum amount that the count may be over the real count.
+		 */
+		public long getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return key + "=" + count;
+		}
+	}
+
+	/**
+	 * Space-Saving counters for one stripe. The counters are found through an open-addressing table of indexes.
+	 */
+	private static class Summary {
+		private final int capacity;
+		private final long[] counts;
+		private final long[] errors;
+		private final long[] hashes;
+		private final String[] stringKeys;
+		private final long[] longKeys;
+		// index + 1 of the counter in each slot or 0 if the slot is empty
+		private final int[] table;
+		private final int mask;
+		private int size;
+
+		public Summary(int capacity) {
+			this.capacity = capacity;
+			this.counts = new long[capacity];
+			this.errors = new long[capacity];
+			this.hashes = new long[capacity];
+			this.stringKeys = new String[capacity];
+			this.longKeys = new long[capacity];
+			this.table = new int[nextPowerOfTwo(capacity * 2)];
+			this.mask = table.length - 1;
+		}
+
+		/**
+		 * Add to the counter of a key which is a string if not null otherwise the long.
+		 */
+		public synchronized void add(String stringKey, long longKey, long hash, long count) {
+			int slot = findSlot(stringKey, longKey, hash);
+			int index = table[slot] - 1;
+			if (index >= 0) {
+				counts[index] += count;
+				return;
+			}
+			if (size < capacity) {
+				index = size++;
+				errors[index] = 0;
+				counts[index] = count;
+			} else {
+				// replace the key with the smallest count which gives its count to the new key as the error
+				index = 0;
+				for (int i = 1; i < capacity; i++) {
+					if (counts[i] < counts[index]) {
+						index = i;
+					}
+				}
+				removeFromTable(index);
+				errors[index] = counts[index];
+				counts[index] += count;
+				// the slot may have moved during the removal
+				slot = findSlot(stringKey, longKey, hash);
+			}
+			hashes[index] = hash;
+			stringKeys[index] = stringKey;
+			longKeys[index] = longKey;
+			table[slot] = index + 1;
+		}
+
+		/**
+		 * Add our counts and errors into the merged map and optionally reset the counters.
+		 */
+		public synchronized void mergeInto(Map<Object, long[]> merged, boolean reset) {
+			for (int i = 0; i < size; i++) {
+				Object key = (stringKeys[i] == null ? Long.valueOf(longKeys[i]) : stringKeys[i]);
+				long[] countError = merged.get(key);
+				if (countError == null) {
+					merged.put(key, new long[] { counts[i], errors[i] });
+				} else {
+					countError[0] += counts[i];
+					countError[1] += errors[i];
+				}
+			}
+			if (reset) {
+				Arrays.fill(table, 0);
+				Arrays.fill(stringKeys, 0, size, null);
+				size = 0;
+			}
+		}
+
+		/**
+		 * Return the slot in the table that holds the key or the empty slot where it should go.
+		 */
+		private int findSlot(String stringKey, long longKey, long hash) {
+			int slot = (int) hash & mask;
+			while (true) {
+				int index = table[slot] - 1;
+				if (index < 0 || matches(index, stringKey, longKey, hash)) {
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+
+		private boolean matches(int index, String stringKey, long longKey, long hash) {
+			if (hashes[index] != hash) {
+				return false;
+			} else if (stringKey == null) {
+				return (stringKeys[index] == null && longKeys[index] == longKey);
+			} else {
+				return stringKey.equals(stringKeys[index]);
+			}
+		}
+
+		/**
+		 * Remove the counter from the table shifting back any entries after it so the probe sequences stay intact.
+		 */
+		private void removeFromTable(int index) {
+			int empty = findSlot(stringKeys[index], longKeys[index], hashes[index]);
+			table[empty] = 0;
+			int slot = empty;
+			while (true) {
+				slot = (slot + 1) & mask;
+				int moving = table[slot] - 1;
+				if (moving < 0) {
+					return;
+				}
+				int ideal = (int) hashes[moving] & mask;
+				// move the entry back if its ideal slot is not between the empty slot and where it is now
+				boolean between;
+				if (empty <= slot) {
+					between = (empty < ideal && ideal <= slot);
+				} else {
+					between = (empty < ideal || ideal <= slot);
+				}
+				if (!between) {
+					table[empty] = table[slot];
+					table[slot] = 0;
+					empty = slot;
+				}
+			}
+		}
+	}
+}
@@ -8,10 +8,24 @@ import com.j256.simplemetrics.metric.ControlledMetricValue.ValueCount;
  * you are reseting it each time as opposed to a {@link ControlledMetricAccum}. If you need to poll a system property or
  * other object value then you may want your class to implement {@link MetricsUpdater}.
  * 
+ * <p>
+ * Adjustments are recorded into striped primitive cells holding the sum, count, minimum, and maximum so recording a
+ * sample does not allocate any objects. The cells are folded into the {@link ValueCount} only when the value is
+ * retrieved or persisted.
+ * </p>
+ * 
  * @author graywatson
  */
 public class ControlledMetricValue extends BaseControlledMetric<Double, ValueCount> {
 
+	private static final int SUM_SLOT = 0;
+	private static final int COUNT_SLOT = 1;
+	private static final int MIN_SLOT = 2;
+	private static final int MAX_SLOT = 3;
+
+	private final StripedCells cells = new StripedCells(StripedCells.KIND_DOUBLE_SUM, StripedCells.KIND_LONG_SUM,
+			StripedCells.KIND_DOUBLE_MIN, StripedCells.KIND_DOUBLE_MAX);
+
 	/**
 	 * @param component
 	 *            Component short name such as "my".
@@ -48,10 +62,141 @@ public class ControlledMetricValue extends BaseControlledMetric<Double, ValueCou
 		return AggregationType.AVERAGE;
 	}
 
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue((double) value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue(value.doubleValue());
+	}
+
+	/**
+	 * Adjust the value of the metric by a double primitive value. This does not allocate any objects.
+	 */
+	public void adjustValue(double value) {
+		long weight = sampleWeight();
+		if (weight == 0) {
+			return;
+		}
+		// a sampled value stands in for the weight number of values
+		cells.addDouble(SUM_SLOT, value * weight);
+		cells.minDouble(MIN_SLOT, value);
+		cells.maxDouble(MAX_SLOT, value);
+		cells.add(COUNT_SLOT, weight);
+	}
+
+	/**
+	 * Adjust the value of the metric by a batch of samples. The batch is combined in one pass and recorded as a single
+	 * adjustment of the sum, count, minimum, and maximum.
+	 * 
+	 * @param values
+	 *            Array of samples.
+	 * @param offset
+	 *            Index of the first sample in the array.
+	 * @param length
+	 *            Number of samples to record.
+	 */
+	public void adjustValues(long[] values, int offset, int length) {
+		checkArrayRange(values.length, offset, length);
+		if (length == 0) {
+			return;
+		}
+		double sum = 0.0;
+		long min = Long.MAX_VALUE;
+		long max = Long.MIN_VALUE;
+		for (int i = offset; i < offset + length; i++) {
+			long value = values[i];
+			sum += value;
+			if (value < min) {
+				min = value;
+			}
+			if (value > max) {
+				max = value;
+			}
+		}
+		adjustSampled(sum, length, min, max);
+	}
+
+	/**
+	 * Same as {@link #adjustValues(long[], int, int)} but with double samples.
+	 */
+	public void adjustValues(double[] values, int offset, int length) {
+		checkArrayRange(values.length, offset, length);
+		if (length == 0) {
+			return;
+		}
+		double sum = 0.0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = offset; i < offset + length; i++) {
+			double value = values[i];
+			sum += value;
+			if (value < min) {
+				min = value;
+			}
+			if (value > max) {
+				max = value;
+			}
+		}
+		adjustSampled(sum, length, min, max);
+	}
+
+	/**
+	 * Adjust the metric by a number of samples that have already been combined. The min and max may be infinite if
+	 * they were not seen.
+	 */
+	void adjustSamples(double sum, long count, double min, double max) {
+		cells.addDouble(SUM_SLOT, sum);
+		cells.minDouble(MIN_SLOT, min);
+		cells.maxDouble(MAX_SLOT, max);
+		cells.add(COUNT_SLOT, count);
+	}
+
+	private void adjustSampled(double sum, int length, double min, double max) {
+		long weight = sampleWeight(length);
+		if (weight != 0) {
+			// a sampled batch stands in for the weight number of batches
+			adjustSamples(sum * weight, length * weight, min, max);
+		}
+	}
+
+	@Override
+	protected boolean isSamplingSupported() {
+		return true;
+	}
+
+	@Override
+	protected void foldPending() {
+		long[] results = new long[4];
+		cells.drain(results);
+		long count = results[COUNT_SLOT];
+		double sum = Double.longBitsToDouble(results[SUM_SLOT]);
+		double min = Double.longBitsToDouble(results[MIN_SLOT]);
+		double max = Double.longBitsToDouble(results[MAX_SLOT]);
+		/*
+		 * An adjustment may have raced with our drain so its sum may arrive without its count or the other way around.
+		 * We can't put back a sum without its count because the count may already have been taken by this drain so the
+		 * sum would be stranded. We fold in whatever we got.
+		 */
+		if (count <= 0 && sum == 0.0) {
+			return;
+		}
+		ValueCount current;
+		ValueCount newValue;
+		do {
+			current = getCurrentMetricValue();
+			newValue = current.makeAdjusted(sum, count, min, max);
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
 	/**
 	 * Wrapper around a current value and count so we can calculate averages internally.
 	 */
-	public static class ValueCount implements MetricValue<Double, ValueCount> {
+	public static class ValueCount implements MetricValue<Double, ValueCount>, MetricValuePrimitive {
 		private final double value;
 		private final int count;
 		private final double min;
@@ -84,6 +229,10 @@ public class ControlledMetricValue extends BaseControlledMetric<Double, ValueCou
 			if (resetNext) {
 				return new ValueCount(value, 1, value, value, false);
 			}
+			if (count == 0) {
+				// we may be holding a sum whose count was folded earlier but we have no min or max yet
+				return new ValueCount(this.value + value, 1, value, value, false);
+			}
 			double min = this.min;
 			double max = this.max;
 			if (value < min) {
@@ -95,14 +244,42 @@ public class ControlledMetricValue extends BaseControlledMetric<Double, ValueCou
 			return new ValueCount(this.value + value, this.count + 1, min, max, false);
 		}
 
+		/**
+		 * Make a new entry adjusted by a number of samples that have already been summed together.
+		 */
+		ValueCount makeAdjusted(double valueSum, long numSamples, double sampleMin, double sampleMax) {
+			if (numSamples <= 0) {
+				// the sum of an adjustment whose count was taken by an earlier drain
+				if (resetNext) {
+					return new ValueCount(valueSum, 0, 0.0, 0.0, false);
+				} else {
+					return new ValueCount(this.value + valueSum, count, min, max, false);
+				}
+			}
+			// the min or max may not have been seen if an adjustment raced with the drain of the cells
+			if (Double.isInfinite(sampleMin) || Double.isInfinite(sampleMax)) {
+				double average = valueSum / numSamples;
+				if (Double.isInfinite(sampleMin)) {
+					sampleMin = average;
+				}
+				if (Double.isInfinite(sampleMax)) {
+					sampleMax = average;
+				}
+			}
+			if (resetNext) {
+				return new ValueCount(valueSum, clampCount(numSamples), sampleMin, sampleMax, false);
+			}
+			if (count == 0) {
+				return new ValueCount(this.value + valueSum, clampCount(numSamples), sampleMin, sampleMax, false);
+			}
+			double min = Math.min(this.min, sampleMin);
+			double max = Math.max(this.max, sampleMax);
+			return new ValueCount(this.value + valueSum, clampCount(this.count + numSamples), min, max, false);
+		}
+
 		@Override
 		public Number getValue() {
-			double doubleValue = value;
-			if (count > 1) {
-				// value is an _average_ of all the adjustments
-				doubleValue /= count;
-			}
-			return Double.valueOf(doubleValue);
+			return Double.valueOf(getValueAsDouble());
 		}
 
 		@Override
@@ -119,5 +296,36 @@ public class ControlledMetricValue extends BaseControlledMetric<Double, ValueCou
 		public Number getMax() {
 			return Double.valueOf(max);
 		}
+
+		@Override
+		public double getValueAsDouble() {
+			if (count == 0) {
+				// a sum that arrived without its count is not a value yet
+				return 0.0;
+			} else if (count > 1) {
+				// value is an _average_ of all the adjustments
+				return value / count;
+			} else {
+				return value;
+			}
+		}
+
+		@Override
+		public double getMinAsDouble() {
+			return min;
+		}
+
+		@Override
+		public double getMaxAsDouble() {
+			return max;
+		}
+
+		private static int clampCount(long count) {
+			if (count >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else {
+				return (int) count;
+			}
+		}
 	}
 }
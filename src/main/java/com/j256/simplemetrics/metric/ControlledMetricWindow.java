@@ -0,0 +1,328 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.j256.simplemetrics.metric.ControlledMetricWindow.WindowValue;
+import com.j256.simplemetrics.utils.NanoClock;
+import com.j256.simplemetrics.utils.SystemNanoClock;
+
+/**
+ * Managed {@link ControlledMetric} which reports the average, min, max, and count of the values adjusted over a
+ * sliding window of recent time such as the last 60 seconds. Unlike {@link ControlledMetricValue}, the value does not
+ * depend on when the metric was last persisted so JMX and the persisters all see the same well-defined window.
+ *
+ * <p>
+ * The window is a ring of fixed-duration slices. Each adjustment is added to the primitive cells of the slice for the
+ * current time and a slice is reset when the ring wraps around to it again so rotation is O(1) and adjustments do not
+ * allocate any objects. The window covers the current partial slice and the previous full slices so it is between
+ * (numSlices - 1) and numSlices slices long.
+ * </p>
+ *
+ * @author graywatson
+ */
+public class ControlledMetricWindow extends BaseControlledMetric<Double, WindowValue> {
+
+	/** default length of the window in seconds */
+	public static final int DEFAULT_WINDOW_SECONDS = 60;
+	/** default number of slices in the window */
+	public static final int DEFAULT_NUM_SLICES = 60;
+
+	private static final int COUNT_OFFSET = 0;
+	private static final int SUM_OFFSET = 1;
+	private static final int MIN_OFFSET = 2;
+	private static final int MAX_OFFSET = 3;
+	// 8 longs is 64 bytes which is the most common cache-line size
+	private static final int SLICE_STRIDE = 8;
+	private static final long EMPTY_STAMP = -1;
+	private static final long IDENTITY_MIN = Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+	private static final long IDENTITY_MAX = Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY);
+	private static final long IDENTITY_SUM = Double.doubleToRawLongBits(0.0);
+
+	private final NanoClock clock;
+	private final long startNanos;
+	private final long sliceNanos;
+	private final int numSlices;
+	// slice-id that each slice in the ring currently holds
+	private final AtomicLongArray stamps;
+	private final AtomicLongArray slices;
+
+	/**
+	 * Create a window of the last {@link #DEFAULT_WINDOW_SECONDS} in {@link #DEFAULT_NUM_SLICES} slices.
+	 *
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 */
+	public ControlledMetricWindow(String component, String module, String name, String description, String unit) {
+		this(component, module, name, description, unit, DEFAULT_WINDOW_SECONDS, TimeUnit.SECONDS, DEFAULT_NUM_SLICES,
+				new SystemNanoClock());
+	}
+
+	/**
+	 * @param component
+	 *            Component short name such as "my".
+	 * @param module
+	 *            Module name to identify the part of the component such as "pageview".
+	 * @param name
+	 *            String label description the metric.
+	 * @param description
+	 *            Description for more information which may not be persisted.
+	 * @param unit
+	 *            Unit of the metric.
+	 * @param windowDuration
+	 *            Length of the window in the window-unit.
+	 * @param windowUnit
+	 *            Unit of the window-duration.
+	 * @param numSlices
+	 *            Number of slices that the window is divided into. More slices make the window slide more smoothly.
+	 * @param clock
+	 *            Clock used to pick the slice.
+	 */
+	public ControlledMetricWindow(String component, String module, String name, String description, String unit,
+			long windowDuration, TimeUnit windowUnit, int numSlices, NanoClock clock) {
+		super(component, module, name, description, unit);
+		if (numSlices < 2) {
+			throw new IllegalArgumentException("Number of slices must be at least 2");
+		}
+		if (clock == null) {
+			throw new NullPointerException("Clock cannot be null");
+		}
+		long sliceNanos = windowUnit.toNanos(windowDuration) / numSlices;
+		if (sliceNanos <= 0) {
+			throw new IllegalArgumentException("Window duration is too short for " + numSlices + " slices");
+		}
+		this.clock = clock;
+		this.startNanos = clock.nanoTime();
+		this.sliceNanos = sliceNanos;
+		this.numSlices = numSlices;
+		this.stamps = new AtomicLongArray(numSlices);
+		this.slices = new AtomicLongArray(numSlices * SLICE_STRIDE);
+		for (int i = 0; i < numSlices; i++) {
+			stamps.set(i, EMPTY_STAMP);
+			resetSlice(i * SLICE_STRIDE);
+		}
+	}
+
+	@Override
+	public WindowValue createInitialValue() {
+		return WindowValue.createInitialValue();
+	}
+
+	@Override
+	public Double makeValueFromLong(long value) {
+		return Double.valueOf(value);
+	}
+
+	@Override
+	public Double makeValueFromNumber(Number value) {
+		return value.doubleValue();
+	}
+
+	@Override
+	public AggregationType getAggregationType() {
+		return AggregationType.AVERAGE;
+	}
+
+	@Override
+	public void adjustValue(long value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue((double) value);
+	}
+
+	@Override
+	public void adjustValue(Number value) {
+		// we overload this so we don't generate a new object on every adjustment
+		adjustValue(value.doubleValue());
+	}
+
+	/**
+	 * Adjust the value of the metric by a double primitive value. This does not allocate any objects.
+	 */
+	public void adjustValue(double value) {
+		long sliceId = currentSliceId();
+		int index = (int) (sliceId % numSlices);
+		if (stamps.get(index) != sliceId) {
+			rotate(index, sliceId);
+		}
+		int offset = index * SLICE_STRIDE;
+		slices.getAndIncrement(offset + COUNT_OFFSET);
+		while (true) {
+			long current = slices.get(offset + SUM_OFFSET);
+			long next = Double.doubleToRawLongBits(Double.longBitsToDouble(current) + value);
+			if (slices.compareAndSet(offset + SUM_OFFSET, current, next)) {
+				break;
+			}
+		}
+		long bits = Double.doubleToRawLongBits(value);
+		while (true) {
+			long current = slices.get(offset + MIN_OFFSET);
+			if (value >= Double.longBitsToDouble(current) || slices.compareAndSet(offset + MIN_OFFSET, current, bits)) {
+				break;
+			}
+		}
+		while (true) {
+			long current = slices.get(offset + MAX_OFFSET);
+			if (value <= Double.longBitsToDouble(current) || slices.compareAndSet(offset + MAX_OFFSET, current, bits)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Return the length of each of the slices in nanoseconds.
+	 */
+	public long getSliceNanos() {
+		return sliceNanos;
+	}
+
+	/**
+	 * Return the number of slices in the window.
+	 */
+	public int getNumSlices() {
+		return numSlices;
+	}
+
+	@Override
+	protected void foldPending() {
+		long currentId = currentSliceId();
+		long count = 0;
+		double sum = 0.0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < numSlices; i++) {
+			long stamp = stamps.get(i);
+			if (stamp == EMPTY_STAMP || stamp <= currentId - numSlices || stamp > currentId) {
+				continue;
+			}
+			int offset = i * SLICE_STRIDE;
+			long sliceCount = slices.get(offset + COUNT_OFFSET);
+			double sliceSum = Double.longBitsToDouble(slices.get(offset + SUM_OFFSET));
+			double sliceMin = Double.longBitsToDouble(slices.get(offset + MIN_OFFSET));
+			double sliceMax = Double.longBitsToDouble(slices.get(offset + MAX_OFFSET));
+			if (stamps.get(i) != stamp) {
+				// the slice was recycled while we were reading it so it is no longer in our window
+				continue;
+			}
+			count += sliceCount;
+			sum += sliceSum;
+			min = Math.min(min, sliceMin);
+			max = Math.max(max, sliceMax);
+		}
+		WindowValue newValue = new WindowValue(count, sum, min, max);
+		WindowValue current;
+		do {
+			current = getCurrentMetricValue();
+		} while (!compareAndSetMetricValue(current, newValue));
+	}
+
+	private long currentSliceId() {
+		long elapsed = clock.nanoTime() - startNanos;
+		return (elapsed < 0 ? 0 : elapsed / sliceNanos);
+	}
+
+	/**
+	 * Reset a slice that holds an older part of the ring so it can hold the new slice. This only happens once per slice
+	 * each time around the ring.
+	 */
+	private synchronized void rotate(int index, long sliceId) {
+		if (stamps.get(index) >= sliceId) {
+			// another thread has already rotated it
+			return;
+		}
+		resetSlice(index * SLICE_STRIDE);
+		// the stamp is set last so adjustments that see it see the reset slice
+		stamps.set(index, sliceId);
+	}
+
+	private void resetSlice(int offset) {
+		slices.set(offset + COUNT_OFFSET, 0);
+		slices.set(offset + SUM_OFFSET, IDENTITY_SUM);
+		slices.set(offset + MIN_OFFSET, IDENTITY_MIN);
+		slices.set(offset + MAX_OFFSET, IDENTITY_MAX);
+	}
+
+	/**
+	 * Snapshot of the count, sum, min, and max of the values in the window.
+	 */
+	public static class WindowValue implements MetricValue<Double, WindowValue>, MetricValuePrimitive {
+		private final long count;
+		private final double sum;
+		private final double min;
+		private final double max;
+
+		private WindowValue(long count, double sum, double min, double max) {
+			this.count = count;
+			this.sum = sum;
+			this.min = min;
+			this.max = max;
+		}
+
+		public static WindowValue createInitialValue() {
+			return new WindowValue(0, 0.0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		}
+
+		@Override
+		public WindowValue makePersisted() {
+			// the window is not reset when it is persisted
+			return this;
+		}
+
+		@Override
+		public WindowValue makeAdjusted(Double value) {
+			// the window is recalculated from the slices when the value is read
+			return new WindowValue(count + 1, sum + value, Math.min(min, value), Math.max(max, value));
+		}
+
+		@Override
+		public Number getValue() {
+			return Double.valueOf(getValueAsDouble());
+		}
+
+		@Override
+		public int getNumSamples() {
+			if (count >= Integer.MAX_VALUE) {
+				return Integer.MAX_VALUE;
+			} else {
+				return (int) count;
+			}
+		}
+
+		@Override
+		public Number getMin() {
+			return Double.valueOf(getMinAsDouble());
+		}
+
+		@Override
+		public Number getMax() {
+			return Double.valueOf(getMaxAsDouble());
+		}
+
+		@Override
+		public double getValueAsDouble() {
+			if (count == 0) {
+				return 0.0;
+			} else {
+				// value is an _average_ of the adjustments in the window
+				return sum / count;
+			}
+		}
+
+		@Override
+		public double getMinAsDouble() {
+			return (count == 0 ? 0.0 : min);
+		}
+
+		@Override
+		public double getMaxAsDouble() {
+			return (count == 0 ? 0.0 : max);
+		}
+	}
+}
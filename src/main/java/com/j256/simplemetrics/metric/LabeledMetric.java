@@ -0,0 +1,21 @@
+package com.j256.simplemetrics.metric;
+
+/**
+ * Implemented by metrics which can be further identified by label names and values, such as an endpoint or status-code,
+ * in addition to their component, module, and name. Persisters can publish the labels as dimensions. See
+ * {@link ControlledMetricFamily}.
+ *
+ * @author graywatson
+ */
+public interface LabeledMetric {
+
+	/**
+	 * Return the names of the labels or an empty array if none.
+	 */
+	public String[] getLabelNames();
+
+	/**
+	 * Return the values of the labels, in the same order as the names, or an empty array if none.
+	 */
+	public String[] getLabelValues();
+}
@@ -0,0 +1,48 @@
+package com.j256.simplemetrics.metric;
+
+/**
+ * Allocation free 64-bit hashing of the longs and strings that are recorded by the key based metrics.
+ *
+ * @author graywatson
+ */
+final class MetricHashing {
+
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private MetricHashing() {
+		// only static methods
+	}
+
+	/**
+	 * Return the 64-bit hash of a long value.
+	 */
+	static long hash(long value) {
+		return mix(value);
+	}
+
+	/**
+	 * Return the 64-bit hash of the chars of a string.
+	 */
+	static long hash(CharSequence value) {
+		// FNV-1a over the chars and then mixed so we don't have to get the bytes of the string
+		long hash = FNV_OFFSET_BASIS;
+		for (int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * 64-bit finalizer from MurmurHash3 which spreads the bits of the value across the whole hash.
+	 */
+	private static long mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		value *= 0xc4ceb9fe1a85ec53L;
+		value ^= value >>> 33;
+		return value;
+	}
+}
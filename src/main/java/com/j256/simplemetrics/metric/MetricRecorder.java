@@ -0,0 +1,187 @@
+package com.j256.simplemetrics.metric;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.manager.MetricsUpdater;
+
+/**
+ * Base class for the recorders which buffer the adjustments to a metric in per-thread primitive buffers for very hot
+ * code paths. Each thread only writes to its own buffer so recording does not contend with other threads. The buffers
+ * are folded into the metric every batch-size adjustments and whenever the recorder is flushed.
+ *
+ * <p>
+ * The recorder is a {@link MetricsUpdater} and registers itself with the metrics manager so
+ * {@link MetricsManager#persist()} flushes all of the buffers, including those of threads that have since died, before
+ * the metrics are persisted. Call {@link #flush()} yourself if you need the metric to be up to date at other times.
+ * Call {@link #close()} when the recorder is no longer needed so the manager lets go of it.
+ * </p>
+ *
+ * @author graywatson
+ */
+public abstract class MetricRecorder<B extends MetricRecorder.ThreadBuffer> implements MetricsUpdater {
+
+	/** default number of adjustments that a thread buffers before it folds them into the metric */
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	private final MetricsManager metricsManager;
+	private final int batchSize;
+	private final List<B> buffers = new ArrayList<B>();
+	private final ThreadLocal<B> threadBuffer = new ThreadLocal<B>() {
+		@Override
+		protected B initialValue() {
+			B buffer = createBuffer();
+			synchronized (buffers) {
+				buffers.add(buffer);
+			}
+			return buffer;
+		}
+	};
+
+	/**
+	 * @param metric
+	 *            Metric that the buffers are folded into which is only checked here and saved by the subclass.
+	 * @param metricsManager
+	 *            Manager that we register with as an updater so the buffers are flushed before persisting or null if
+	 *            none.
+	 * @param batchSize
+	 *            Number of adjustments that a thread buffers before it folds them into the metric.
+	 */
+	protected MetricRecorder(ControlledMetric<?, ?> metric, MetricsManager metricsManager, int batchSize) {
+		// the arguments are all checked before we register so a bad recorder is never left registered
+		if (metric == null) {
+			throw new NullPointerException("Metric cannot be null");
+		}
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("Batch size must be positive: " + batchSize);
+		}
+		this.metricsManager = metricsManager;
+		this.batchSize = batchSize;
+		if (metricsManager != null) {
+			metricsManager.registerUpdater(this);
+		}
+	}
+
+	/**
+	 * Return the buffer for the current thread. For the tightest loops, you can get the buffer once and then record
+	 * into it directly but it must only be used by the thread that got it.
+	 */
+	public B getThreadBuffer() {
+		return threadBuffer.get();
+	}
+
+	/**
+	 * Fold all of the thread buffers into the metric. The buffers of threads that have died are then dropped.
+	 */
+	public void flush() {
+		List<B> copy;
+		synchronized (buffers) {
+			copy = new ArrayList<B>(buffers);
+		}
+		List<B> dead = null;
+		for (B buffer : copy) {
+			buffer.fold();
+			if (!buffer.isOwnerAlive()) {
+				if (dead == null) {
+					dead = new ArrayList<B>();
+				}
+				dead.add(buffer);
+			}
+		}
+		if (dead != null) {
+			synchronized (buffers) {
+				for (Iterator<B> iterator = buffers.iterator(); iterator.hasNext();) {
+					if (dead.contains(iterator.next())) {
+						iterator.remove();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Flush the buffers and unregister the recorder from the metrics manager so it can be garbage collected.
+	 */
+	public void close() {
+		flush();
+		if (metricsManager != null) {
+			metricsManager.unregisterUpdater(this);
+		}
+	}
+
+	/**
+	 * Called by the metrics manager before it persists so we flush the buffers.
+	 */
+	@Override
+	public void updateMetrics() {
+		flush();
+	}
+
+	/**
+	 * Return the number of thread buffers that have not been dropped.
+	 */
+	public int getNumBuffers() {
+		synchronized (buffers) {
+			return buffers.size();
+		}
+	}
+
+	/**
+	 * Return the number of adjustments that a thread buffers before it folds them into the metric.
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Create the buffer for the current thread.
+	 */
+	protected abstract B createBuffer();
+
+	/**
+	 * Per-thread buffer of adjustments. Only the owning thread writes to the buffer fields which are published with
+	 * lazy-sets. Folding into the metric can be done by any thread so it is synchronized and works from watermarks of
+	 * what has already been folded so no adjustments are lost.
+	 */
+	public static abstract class ThreadBuffer {
+		private final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+		private final int batchSize;
+		// only touched by the owning thread
+		private int numSinceFold;
+
+		protected ThreadBuffer(int batchSize) {
+			this.batchSize = batchSize;
+		}
+
+		/**
+		 * Called by the owning thread after each adjustment to fold the buffer when it reaches the batch-size.
+		 */
+		protected void adjusted() {
+			if (++numSinceFold >= batchSize) {
+				numSinceFold = 0;
+				foldByOwner();
+			}
+		}
+
+		/**
+		 * Fold the buffered adjustments into the metric.
+		 */
+		protected abstract void fold();
+
+		/**
+		 * Fold the buffered adjustments into the metric from the owning thread. Since no other thread writes to the
+		 * buffer, subclasses can override this to reset the buffer. By default this calls {@link #fold()}.
+		 */
+		protected void foldByOwner() {
+			fold();
+		}
+
+		boolean isOwnerAlive() {
+			Thread thread = owner.get();
+			return (thread != null && thread.isAlive());
+		}
+	}
+}
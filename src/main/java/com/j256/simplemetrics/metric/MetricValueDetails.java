@@ -1,5 +1,7 @@
 package com.j256.simplemetrics.metric;
 
+import com.j256.simplemetrics.utils.MiscUtils;
+
 /**
  * Value detail information for the metric.
  * 
@@ -11,8 +13,23 @@ public class MetricValueDetails {
 	private final int numSamples;
 	private final Number min;
 	private final Number max;
+	private final double[] percentiles;
+	private final double[] percentileValues;
+	private final String serializedSketch;
+	private final double samplingRate;
+	private final boolean total;
 
 	public MetricValueDetails(MetricValue<?, ?> metricValue) {
+		this(metricValue, 1.0);
+	}
+
+	/**
+	 * @param metricValue
+	 *            Value of the metric.
+	 * @param samplingRate
+	 *            Fraction of the adjustments that were recorded, see {@link AdaptiveSampler}.
+	 */
+	public MetricValueDetails(MetricValue<?, ?> metricValue, double samplingRate) {
 		Number value = metricValue.getValue();
 		// convert the value to a long if possible
 		if (value.doubleValue() == value.longValue()) {
@@ -23,6 +40,45 @@ public class MetricValueDetails {
 		this.numSamples = metricValue.getNumSamples();
 		this.min = metricValue.getMin();
 		this.max = metricValue.getMax();
+		if (metricValue instanceof MetricValuePercentiles) {
+			MetricValuePercentiles percentileValue = (MetricValuePercentiles) metricValue;
+			this.percentiles = percentileValue.getPercentiles();
+			this.percentileValues = percentileValue.getPercentileValues();
+		} else {
+			this.percentiles = null;
+			this.percentileValues = null;
+		}
+		if (metricValue instanceof MetricValueSketch) {
+			this.serializedSketch = ((MetricValueSketch) metricValue).toSerializedString();
+		} else {
+			this.serializedSketch = null;
+		}
+		this.samplingRate = samplingRate;
+		this.total = (metricValue instanceof MetricValueTotal);
+	}
+
+	/**
+	 * Create details from their parts such as when combining the details of two persists.
+	 */
+	public MetricValueDetails(Number value, int numSamples, Number min, Number max, double[] percentiles,
+			double[] percentileValues, String serializedSketch, double samplingRate) {
+		this(value, numSamples, min, max, percentiles, percentileValues, serializedSketch, samplingRate, false);
+	}
+
+	/**
+	 * Create details from their parts with the total flag, see {@link #isTotal()}.
+	 */
+	public MetricValueDetails(Number value, int numSamples, Number min, Number max, double[] percentiles,
+			double[] percentileValues, String serializedSketch, double samplingRate, boolean total) {
+		this.value = value;
+		this.numSamples = numSamples;
+		this.min = min;
+		this.max = max;
+		this.percentiles = percentiles;
+		this.percentileValues = percentileValues;
+		this.serializedSketch = serializedSketch;
+		this.samplingRate = samplingRate;
+		this.total = total;
 	}
 
 	/**
@@ -53,9 +109,63 @@ public class MetricValueDetails {
 		return max;
 	}
 
+	/**
+	 * Get the percentiles, such as 50.0 or 99.9, that are reported by the metric or null if the metric does not report
+	 * percentiles.
+	 */
+	public double[] getPercentiles() {
+		return percentiles;
+	}
+
+	/**
+	 * Get the values of the metric at each of the percentiles in the same order as {@link #getPercentiles()} or null if
+	 * the metric does not report percentiles.
+	 */
+	public double[] getPercentileValues() {
+		return percentileValues;
+	}
+
+	/**
+	 * Get the serialized sketch of the distribution of the values or null if the metric does not hold a sketch. See
+	 * {@link ControlledMetricSketch#merge(String...)}.
+	 */
+	public String getSerializedSketch() {
+		return serializedSketch;
+	}
+
+	/**
+	 * Get the fraction of the adjustments that were recorded by the metric. This is 1.0 unless the metric has an
+	 * {@link AdaptiveSampler} which skipped some of them, in which case the counts have already been scaled back up.
+	 */
+	public double getSamplingRate() {
+		return samplingRate;
+	}
+
+	/**
+	 * Returns true if the value is a total, such as a number of gigabytes, which can't be split into a number of samples
+	 * of 1 like the counts of the other metrics with the SUM aggregation type. See {@link MetricValueTotal}.
+	 */
+	public boolean isTotal() {
+		return total;
+	}
+
 	@Override
 	public String toString() {
-		return "MetricValueDetails [value=" + value + ", numSamples=" + numSamples + ", min=" + min + ", max=" + max
-				+ "]";
+		StringBuilder sb = new StringBuilder();
+		sb.append("MetricValueDetails [value=").append(value);
+		sb.append(", numSamples=").append(numSamples);
+		sb.append(", min=").append(min);
+		sb.append(", max=").append(max);
+		if (percentiles != null) {
+			for (int i = 0; i < percentiles.length; i++) {
+				sb.append(", ").append(MiscUtils.percentileToString(percentiles[i]));
+				sb.append('=').append(percentileValues[i]);
+			}
+		}
+		if (samplingRate < 1.0) {
+			sb.append(", samplingRate=").append(samplingRate);
+		}
+		sb.append(']');
+		return sb.toString();
 	}
 }
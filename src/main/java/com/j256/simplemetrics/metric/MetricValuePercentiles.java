@@ -0,0 +1,22 @@
+package com.j256.simplemetrics.metric;
+
+/**
+ * Implemented by metric values which can report the values at a number of percentiles such as the 99th percentile
+ * latency. These are exposed through {@link MetricValueDetails#getPercentiles()} and
+ * {@link MetricValueDetails#getPercentileValues()}.
+ * 
+ * @author graywatson
+ */
+public interface MetricValuePercentiles {
+
+	/**
+	 * Return the percentiles, such as 50.0 or 99.9, that are being reported.
+	 */
+	public double[] getPercentiles();
+
+	/**
+	 * Return the values of the metric at each of the percentiles in the same order as {@link #getPercentiles()}. These
+	 * will be 0 if num-samples is 0.
+	 */
+	public double[] getPercentileValues();
+}
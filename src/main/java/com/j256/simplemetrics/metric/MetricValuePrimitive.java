@@ -0,0 +1,26 @@
+package com.j256.simplemetrics.metric;
+
+/**
+ * Implemented by metric values which can return their value, min, and max as primitive doubles so the
+ * {@link com.j256.simplemetrics.manager.MetricsManager} can fill a snapshot from them without boxing a {@link Number}
+ * for each.
+ *
+ * @author graywatson
+ */
+public interface MetricValuePrimitive {
+
+	/**
+	 * Same as {@link MetricValue#getValue()} but as a double.
+	 */
+	public double getValueAsDouble();
+
+	/**
+	 * Same as {@link MetricValue#getMin()} but as a double.
+	 */
+	public double getMinAsDouble();
+
+	/**
+	 * Same as {@link MetricValue#getMax()} but as a double.
+	 */
+	public double getMaxAsDouble();
+}
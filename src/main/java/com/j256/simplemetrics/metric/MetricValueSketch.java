@@ -0,0 +1,16 @@
+package com.j256.simplemetrics.metric;
+
+/**
+ * Implemented by metric values which hold a mergeable sketch of the distribution of the values. The serialized form is
+ * exposed through {@link MetricValueDetails#getSerializedSketch()} so persisters can save it and the sketches from many
+ * hosts can be merged later with {@link ControlledMetricSketch#merge(String...)}.
+ *
+ * @author graywatson
+ */
+public interface MetricValueSketch {
+
+	/**
+	 * Return the compact serialized form of the sketch.
+	 */
+	public String toSerializedString();
+}
@@ -0,0 +1,12 @@
+package com.j256.simplemetrics.metric;
+
+/**
+ * Implemented by metric values with the {@link ControlledMetric.AggregationType#SUM} aggregation type whose value is a
+ * total, such as a number of gigabytes, instead of a count of events. The value can't be split into a number of samples
+ * of 1 so persisters should post it as is. This is exposed through {@link MetricValueDetails#isTotal()}.
+ *
+ * @author graywatson
+ */
+public interface MetricValueTotal {
+	// marker interface
+}
@@ -0,0 +1,19 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.Map;
+
+/**
+ * Implemented by metrics which are persisted as a number of separate series, such as a series per key, instead of a
+ * single value. The {@link com.j256.simplemetrics.manager.MetricsManager} calls {@link #addSeriesToPersist(Map)} in
+ * place of {@link ControlledMetric#getValueDetailsToPersist()} when it persists the metric.
+ *
+ * @author graywatson
+ */
+public interface MultiSeriesMetric {
+
+	/**
+	 * Add the series to persist for this metric, and their value-details, into the map. Like
+	 * {@link ControlledMetric#getValueDetailsToPersist()}, this causes the metric to be reset if appropriate.
+	 */
+	public void addSeriesToPersist(Map<ControlledMetric<?, ?>, MetricValueDetails> seriesMap);
+}
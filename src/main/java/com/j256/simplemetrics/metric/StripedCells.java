@@ -0,0 +1,330 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Set of primitive cells that are striped across threads so that hot metrics do not have every adjustment from every
+ * thread fighting over the same cache-line. Each stripe holds a number of slots (for example a sum, count, min, and
+ * max) which are all stored as raw long bits. Until a CAS fails, all threads update a single un-padded base stripe. On
+ * the first failed CAS we inflate to a padded stripe per processor and each thread then picks its stripe using a
+ * per-thread probe which it re-hashes whenever it sees contention. The stripes are only combined when the metric value
+ * is needed.
+ *
+ * @author graywatson
+ */
+final class StripedCells {
+
+	/** slot which holds a long sum */
+	static final int KIND_LONG_SUM = 1;
+	/** slot which holds the bits of a double sum */
+	static final int KIND_DOUBLE_SUM = 2;
+	/** slot which holds a long minimum */
+	static final int KIND_LONG_MIN = 3;
+	/** slot which holds a long maximum */
+	static final int KIND_LONG_MAX = 4;
+	/** slot which holds the bits of a double minimum */
+	static final int KIND_DOUBLE_MIN = 5;
+	/** slot which holds the bits of a double maximum */
+	static final int KIND_DOUBLE_MAX = 6;
+
+	private static final int OP_ADD_LONG = 1;
+	private static final int OP_ADD_DOUBLE = 2;
+	private static final int OP_MIN_LONG = 3;
+	private static final int OP_MAX_LONG = 4;
+	private static final int OP_MIN_DOUBLE = 5;
+	private static final int OP_MAX_DOUBLE = 6;
+
+	// 8 longs is 64 bytes which is the most common cache-line size
+	private static final int PADDING_LONGS = 8;
+	private static final int NUM_STRIPES = nextPowerOfTwo(Runtime.getRuntime().availableProcessors());
+	private static final AtomicInteger probeSeed = new AtomicInteger();
+	private static final ThreadLocal<Probe> threadProbe = new ThreadLocal<Probe>() {
+		@Override
+		protected Probe initialValue() {
+			return new Probe(probeSeed.addAndGet(0x9e3779b9));
+		}
+	};
+
+	private final int[] kinds;
+	private final long[] identities;
+	private final int stride;
+	private final AtomicLongArray base;
+	private volatile AtomicLongArray cells;
+
+	/**
+	 * @param kinds
+	 *            Kind of each of the slots in a stripe. One of the KIND_* constants.
+	 */
+	StripedCells(int... kinds) {
+		this.kinds = kinds;
+		this.identities = new long[kinds.length];
+		for (int i = 0; i < kinds.length; i++) {
+			identities[i] = identityForKind(kinds[i]);
+		}
+		// round the slots up to a full cache-line and then add another line of padding between stripes
+		this.stride = ((kinds.length + PADDING_LONGS - 1) / PADDING_LONGS) * PADDING_LONGS + PADDING_LONGS;
+		this.base = new AtomicLongArray(kinds.length);
+		resetArray(base, 0);
+	}
+
+	/**
+	 * Add a delta to a long sum slot.
+	 */
+	void add(int slot, long delta) {
+		update(slot, OP_ADD_LONG, delta);
+	}
+
+	/**
+	 * Add a delta to a double sum slot.
+	 */
+	void addDouble(int slot, double delta) {
+		update(slot, OP_ADD_DOUBLE, Double.doubleToRawLongBits(delta));
+	}
+
+	/**
+	 * Add a delta to a double sum slot and add the rounding error of that addition into the compensation slot. The real
+	 * sum is then the sum slot plus the compensation slot which keeps the sum stable over millions of additions.
+	 */
+	void addDoubleCompensated(int sumSlot, int compensationSlot, double delta) {
+		double previous = Double.longBitsToDouble(update(sumSlot, OP_ADD_DOUBLE, Double.doubleToRawLongBits(delta)));
+		// Knuth's two-sum which calculates the exact error of the addition that we just stored
+		double sum = previous + delta;
+		double deltaPart = sum - previous;
+		double error = (previous - (sum - deltaPart)) + (delta - deltaPart);
+		if (error != 0.0) {
+			update(compensationSlot, OP_ADD_DOUBLE, Double.doubleToRawLongBits(error));
+		}
+	}
+
+	/**
+	 * Lower the long minimum slot to the value if necessary.
+	 */
+	void min(int slot, long value) {
+		update(slot, OP_MIN_LONG, value);
+	}
+
+	/**
+	 * Raise the long maximum slot to the value if necessary.
+	 */
+	void max(int slot, long value) {
+		update(slot, OP_MAX_LONG, value);
+	}
+
+	/**
+	 * Lower the double minimum slot to the value if necessary.
+	 */
+	void minDouble(int slot, double value) {
+		update(slot, OP_MIN_DOUBLE, Double.doubleToRawLongBits(value));
+	}
+
+	/**
+	 * Raise the double maximum slot to the value if necessary.
+	 */
+	void maxDouble(int slot, double value) {
+		update(slot, OP_MAX_DOUBLE, Double.doubleToRawLongBits(value));
+	}
+
+	/**
+	 * Combine all of the stripes into the results array, one entry per slot as raw long bits, and reset the stripes
+	 * back to their initial values. Each cell is atomically swapped so no adjustments are lost although an adjustment
+	 * that touches multiple slots may be split across two drains.
+	 */
+	void drain(long[] results) {
+		for (int slot = 0; slot < kinds.length; slot++) {
+			results[slot] = base.getAndSet(slot, identities[slot]);
+		}
+		AtomicLongArray cells = this.cells;
+		if (cells == null) {
+			return;
+		}
+		for (int stripe = 0; stripe < NUM_STRIPES; stripe++) {
+			int offset = PADDING_LONGS + stripe * stride;
+			for (int slot = 0; slot < kinds.length; slot++) {
+				long cellValue = cells.getAndSet(offset + slot, identities[slot]);
+				results[slot] = combine(kinds[slot], results[slot], cellValue);
+			}
+		}
+	}
+
+	/**
+	 * Combine all of the stripes into the results array, one entry per slot as raw long bits, without resetting them.
+	 */
+	void peek(long[] results) {
+		for (int slot = 0; slot < kinds.length; slot++) {
+			results[slot] = base.get(slot);
+		}
+		AtomicLongArray cells = this.cells;
+		if (cells == null) {
+			return;
+		}
+		for (int stripe = 0; stripe < NUM_STRIPES; stripe++) {
+			int offset = PADDING_LONGS + stripe * stride;
+			for (int slot = 0; slot < kinds.length; slot++) {
+				results[slot] = combine(kinds[slot], results[slot], cells.get(offset + slot));
+			}
+		}
+	}
+
+	/**
+	 * Put previously drained values back into the cells. This is used when a drain picked up only part of an
+	 * adjustment that raced with it so the parts can be combined with the rest of the adjustment on the next drain.
+	 */
+	void restore(long[] values) {
+		for (int slot = 0; slot < kinds.length; slot++) {
+			if (values[slot] != identities[slot]) {
+				update(slot, opForKind(kinds[slot]), values[slot]);
+			}
+		}
+	}
+
+	/**
+	 * Return the initial value of a slot as raw long bits.
+	 */
+	long getIdentity(int slot) {
+		return identities[slot];
+	}
+
+	/**
+	 * Returns true if we have inflated into multiple stripes.
+	 */
+	boolean isStriped() {
+		return cells != null;
+	}
+
+	/**
+	 * Update a slot returning the previous value of the cell that we updated.
+	 */
+	private long update(int slot, int op, long operand) {
+		AtomicLongArray array = cells;
+		long current;
+		long next;
+		if (array == null) {
+			current = base.get(slot);
+			next = apply(op, current, operand);
+			if (next == current || base.compareAndSet(slot, current, next)) {
+				return current;
+			}
+			// we saw contention on the base so stripe from now on
+			array = inflate();
+		}
+		Probe probe = threadProbe.get();
+		while (true) {
+			int index = PADDING_LONGS + (probe.hash & (NUM_STRIPES - 1)) * stride + slot;
+			current = array.get(index);
+			next = apply(op, current, operand);
+			if (next == current || array.compareAndSet(index, current, next)) {
+				return current;
+			}
+			// someone else is using our stripe so move to another one
+			probe.advance();
+		}
+	}
+
+	private synchronized AtomicLongArray inflate() {
+		AtomicLongArray array = cells;
+		if (array == null) {
+			array = new AtomicLongArray(PADDING_LONGS + NUM_STRIPES * stride);
+			for (int stripe = 0; stripe < NUM_STRIPES; stripe++) {
+				resetArray(array, PADDING_LONGS + stripe * stride);
+			}
+			cells = array;
+		}
+		return array;
+	}
+
+	private void resetArray(AtomicLongArray array, int offset) {
+		for (int slot = 0; slot < kinds.length; slot++) {
+			array.set(offset + slot, identities[slot]);
+		}
+	}
+
+	private static long apply(int op, long current, long operand) {
+		switch (op) {
+			case OP_ADD_LONG:
+				return current + operand;
+			case OP_ADD_DOUBLE:
+				return Double.doubleToRawLongBits(Double.longBitsToDouble(current) + Double.longBitsToDouble(operand));
+			case OP_MIN_LONG:
+				return (operand < current ? operand : current);
+			case OP_MAX_LONG:
+				return (operand > current ? operand : current);
+			case OP_MIN_DOUBLE:
+				return (Double.longBitsToDouble(operand) < Double.longBitsToDouble(current) ? operand : current);
+			case OP_MAX_DOUBLE:
+				return (Double.longBitsToDouble(operand) > Double.longBitsToDouble(current) ? operand : current);
+			default:
+				throw new IllegalArgumentException("Unknown cell operation: " + op);
+		}
+	}
+
+	private static long combine(int kind, long first, long second) {
+		return apply(opForKind(kind), first, second);
+	}
+
+	private static int opForKind(int kind) {
+		switch (kind) {
+			case KIND_LONG_SUM:
+				return OP_ADD_LONG;
+			case KIND_DOUBLE_SUM:
+				return OP_ADD_DOUBLE;
+			case KIND_LONG_MIN:
+				return OP_MIN_LONG;
+			case KIND_LONG_MAX:
+				return OP_MAX_LONG;
+			case KIND_DOUBLE_MIN:
+				return OP_MIN_DOUBLE;
+			case KIND_DOUBLE_MAX:
+				return OP_MAX_DOUBLE;
+			default:
+				throw new IllegalArgumentException("Unknown cell kind: " + kind);
+		}
+	}
+
+	private static long identityForKind(int kind) {
+		switch (kind) {
+			case KIND_LONG_SUM:
+				return 0L;
+			case KIND_DOUBLE_SUM:
+				return Double.doubleToRawLongBits(0.0);
+			case KIND_LONG_MIN:
+				return Long.MAX_VALUE;
+			case KIND_LONG_MAX:
+				return Long.MIN_VALUE;
+			case KIND_DOUBLE_MIN:
+				return Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+			case KIND_DOUBLE_MAX:
+				return Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY);
+			default:
+				throw new IllegalArgumentException("Unknown cell kind: " + kind);
+		}
+	}
+
+	private static int nextPowerOfTwo(int value) {
+		int result = 1;
+		while (result < value) {
+			result <<= 1;
+		}
+		return result;
+	}
+
+	/**
+	 * Per-thread hash which picks the stripe for the thread.
+	 */
+	private static class Probe {
+		int hash;
+
+		public Probe(int seed) {
+			this.hash = (seed == 0 ? 1 : seed);
+		}
+
+		void advance() {
+			// xorshift to move to another stripe
+			int value = hash;
+			value ^= value << 13;
+			value ^= value >>> 17;
+			value ^= value << 5;
+			hash = (value == 0 ? 1 : value);
+		}
+	}
+}
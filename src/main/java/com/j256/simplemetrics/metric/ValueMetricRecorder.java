@@ -0,0 +1,108 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.metric.ValueMetricRecorder.ValueBuffer;
+
+/**
+ * Recorder which buffers the samples adjusted into a {@link ControlledMetricValue} in per-thread buffers. See
+ * {@link MetricRecorder}.
+ *
+ * @author graywatson
+ */
+public class ValueMetricRecorder extends MetricRecorder<ValueBuffer> {
+
+	private final ControlledMetricValue metric;
+
+	/**
+	 * Create a recorder with the {@link #DEFAULT_BATCH_SIZE}.
+	 */
+	public ValueMetricRecorder(ControlledMetricValue metric, MetricsManager metricsManager) {
+		this(metric, metricsManager, DEFAULT_BATCH_SIZE);
+	}
+
+	public ValueMetricRecorder(ControlledMetricValue metric, MetricsManager metricsManager, int batchSize) {
+		super(metric, metricsManager, batchSize);
+		this.metric = metric;
+	}
+
+	/**
+	 * Record a sample in the current thread's buffer.
+	 */
+	public void record(double value) {
+		getThreadBuffer().record(value);
+	}
+
+	@Override
+	protected ValueBuffer createBuffer() {
+		return new ValueBuffer(metric, getBatchSize());
+	}
+
+	/**
+	 * Per-thread buffer of the sum and count of the samples in the current batch and their min and max since the last
+	 * fold.
+	 */
+	public static class ValueBuffer extends ThreadBuffer {
+		private static final long IDENTITY_MIN = Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+		private static final long IDENTITY_MAX = Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY);
+
+		private final ControlledMetricValue metric;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sumBits = new AtomicLong(Double.doubleToRawLongBits(0.0));
+		private final AtomicLong minBits = new AtomicLong(IDENTITY_MIN);
+		private final AtomicLong maxBits = new AtomicLong(IDENTITY_MAX);
+		// guarded by this
+		private long foldedCount;
+		private double foldedSum;
+
+		private ValueBuffer(ControlledMetricValue metric, int batchSize) {
+			super(batchSize);
+			this.metric = metric;
+		}
+
+		/**
+		 * Record a sample in the buffer. This must only be called by the thread that owns the buffer.
+		 */
+		public void record(double value) {
+			// we are the only writer so we don't need CAS, the sum is written before the count
+			sumBits.lazySet(Double.doubleToRawLongBits(Double.longBitsToDouble(sumBits.get()) + value));
+			if (value < Double.longBitsToDouble(minBits.get())) {
+				minBits.lazySet(Double.doubleToRawLongBits(value));
+			}
+			if (value > Double.longBitsToDouble(maxBits.get())) {
+				maxBits.lazySet(Double.doubleToRawLongBits(value));
+			}
+			count.lazySet(count.get() + 1);
+			adjusted();
+		}
+
+		@Override
+		protected synchronized void fold() {
+			long currentCount = count.get();
+			if (currentCount == foldedCount) {
+				return;
+			}
+			double currentSum = Double.longBitsToDouble(sumBits.get());
+			// the min and max are reset so a sample that races with us may be in the next fold
+			double min = Double.longBitsToDouble(minBits.getAndSet(IDENTITY_MIN));
+			double max = Double.longBitsToDouble(maxBits.getAndSet(IDENTITY_MAX));
+			metric.adjustSamples(currentSum - foldedSum, currentCount - foldedCount, min, max);
+			foldedCount = currentCount;
+			foldedSum = currentSum;
+		}
+
+		@Override
+		protected synchronized void foldByOwner() {
+			fold();
+			/*
+			 * We are the only writer so we can start the next batch from 0. This keeps the sum to a batch of samples so
+			 * taking the folded sum away from it doesn't lose the precision of the small samples.
+			 */
+			sumBits.lazySet(Double.doubleToRawLongBits(0.0));
+			count.lazySet(0);
+			foldedSum = 0.0;
+			foldedCount = 0;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+package com.j256.simplemetrics.metric;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Phaser which lets a reader flip from one phase to the next and then wait for the writers that were in a critical
+ * section during the old phase to finish. Writers never block or retry: entering and exiting their critical section
+ * are each a single atomic increment. Readers are serialized by a lock. This is the same idea as the HdrHistogram
+ * WriterReaderPhaser.
+ *
+ * @author graywatson
+ */
+final class WriterReaderPhaser {
+
+	// negative when we are in the odd phase
+	private final AtomicLong startEpoch = new AtomicLong(0);
+	private final AtomicLong evenEndEpoch = new AtomicLong(0);
+	private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+	private final ReentrantLock readerLock = new ReentrantLock();
+
+	/**
+	 * Enter a writer critical section returning the token that must be passed to {@link #writerExit(long)}.
+	 */
+	long writerEnter() {
+		return startEpoch.getAndIncrement();
+	}
+
+	/**
+	 * Exit a writer critical section that was entered with {@link #writerEnter()}.
+	 */
+	void writerExit(long token) {
+		if (isOddPhase(token)) {
+			oddEndEpoch.getAndIncrement();
+		} else {
+			evenEndEpoch.getAndIncrement();
+		}
+	}
+
+	/**
+	 * Returns true if the token from {@link #writerEnter()} was given out during an odd phase. Writers can use this to
+	 * pick which of two sets of data to write into.
+	 */
+	static boolean isOddPhase(long token) {
+		return token < 0;
+	}
+
+	/**
+	 * Returns true if we are currently in an odd phase. A reader that holds the lock can use this to find the data that
+	 * will be retired by the next flip.
+	 */
+	boolean isOddPhase() {
+		return startEpoch.get() < 0;
+	}
+
+	/**
+	 * Lock out other readers. This must be held when calling {@link #flipPhase()}.
+	 */
+	void readerLock() {
+		readerLock.lock();
+	}
+
+	void readerUnlock() {
+		readerLock.unlock();
+	}
+
+	/**
+	 * Flip to the next phase and wait until all of the writers that entered during the previous phase have exited. This
+	 * must not be called from inside of a writer critical section.
+	 */
+	void flipPhase() {
+		if (!readerLock.isHeldByCurrentThread()) {
+			throw new IllegalStateException("Reader lock must be held when flipping the phase");
+		}
+		boolean nextPhaseIsEven = (startEpoch.get() < 0);
+		long initialStartValue = (nextPhaseIsEven ? 0 : Long.MIN_VALUE);
+		// reset the end of the next phase before any writers can enter it
+		if (nextPhaseIsEven) {
+			evenEndEpoch.lazySet(initialStartValue);
+		} else {
+			oddEndEpoch.lazySet(initialStartValue);
+		}
+		long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+		AtomicLong previousEndEpoch = (nextPhaseIsEven ? oddEndEpoch : evenEndEpoch);
+		// writer critical sections are tiny so we just yield until they are done
+		while (previousEndEpoch.get() != startValueAtFlip) {
+			Thread.yield();
+		}
+	}
+}
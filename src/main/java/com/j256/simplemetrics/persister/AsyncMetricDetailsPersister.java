@@ -0,0 +1,113 @@
+package com.j256.simplemetrics.persister;
+
+import java.util.Map;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.ControlledMetricSketch;
+import com.j256.simplemetrics.metric.ControlledMetricSketch.SketchValue;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+
+/**
+ * Details persister which queues the metric value-details so they are persisted by a wrapped details persister, such
+ * as the {@link CloudWatchMetricsPersister}, on a dedicated worker thread. See {@link BaseAsyncMetricsPersister}. When
+ * details are coalesced, the values of averaged metrics are weighted by their number of samples and serialized sketches
+ * are merged. Percentiles without a sketch can't be combined so they are left off of the coalesced details.
+ * 
+ * @author graywatson
+ */
+public class AsyncMetricDetailsPersister extends BaseAsyncMetricsPersister<MetricValueDetails>
+		implements MetricDetailsPersister {
+
+	private MetricDetailsPersister metricDetailsPersister;
+
+	public AsyncMetricDetailsPersister() {
+		// for spring
+	}
+
+	/**
+	 * Create the persister and call {@link #initialize()}.
+	 */
+	public AsyncMetricDetailsPersister(MetricDetailsPersister metricDetailsPersister, int queueSize,
+			DropPolicy dropPolicy) {
+		super(queueSize, dropPolicy);
+		this.metricDetailsPersister = metricDetailsPersister;
+		initialize();
+	}
+
+	@Override
+	public void initialize() {
+		if (metricDetailsPersister == null) {
+			throw new IllegalStateException("Metric details persister was not set");
+		}
+		super.initialize();
+	}
+
+	@Override
+	public void persist(Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails, long timeCollectedMillis) {
+		enqueue(metricValueDetails, timeCollectedMillis);
+	}
+
+	/**
+	 * Set the details persister that is called by the worker thread.
+	 */
+	// @Required
+	public void setMetricDetailsPersister(MetricDetailsPersister metricDetailsPersister) {
+		this.metricDetailsPersister = metricDetailsPersister;
+	}
+
+	@Override
+	protected void persistQueued(Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails,
+			long timeCollectedMillis) throws Exception {
+		metricDetailsPersister.persist(metricValueDetails, timeCollectedMillis);
+	}
+
+	@Override
+	protected MetricValueDetails coalesceValue(ControlledMetric<?, ?> metric, MetricValueDetails older,
+			MetricValueDetails newer) {
+		int numSamples = (int) Math.min(Integer.MAX_VALUE, (long) older.getNumSamples() + newer.getNumSamples());
+		double samplingRate = Math.min(older.getSamplingRate(), newer.getSamplingRate());
+		Number value;
+		Number min;
+		Number max;
+		if (metric.getAggregationType() == AggregationType.SUM) {
+			value = addNumbers(older.getValue(), newer.getValue());
+			// with a sum, the min/max is just the value
+			min = value;
+			max = value;
+		} else if (older.getNumSamples() == 0) {
+			return newer;
+		} else if (newer.getNumSamples() == 0) {
+			return older;
+		} else {
+			// average weighted by the number of samples
+			value = (older.getValue().doubleValue() * older.getNumSamples()
+					+ newer.getValue().doubleValue() * newer.getNumSamples()) / numSamples;
+			min = (older.getMin().doubleValue() <= newer.getMin().doubleValue() ? older.getMin() : newer.getMin());
+			max = (older.getMax().doubleValue() >= newer.getMax().doubleValue() ? older.getMax() : newer.getMax());
+		}
+
+		// percentiles can only be combined through the sketches so they are left off if there aren't any
+		double[] percentiles = null;
+		double[] percentileValues = null;
+		String serializedSketch = null;
+		if (older.getSerializedSketch() != null && newer.getSerializedSketch() != null) {
+			try {
+				SketchValue merged =
+						ControlledMetricSketch.merge(older.getSerializedSketch(), newer.getSerializedSketch());
+				serializedSketch = merged.toSerializedString();
+				percentiles = newer.getPercentiles();
+				if (percentiles != null) {
+					percentileValues = new double[percentiles.length];
+					for (int i = 0; i < percentiles.length; i++) {
+						percentileValues[i] = merged.getValueAtPercentile(percentiles[i]);
+					}
+				}
+			} catch (IllegalArgumentException iae) {
+				// the sketches can't be merged so we leave them off
+			}
+		}
+		return new MetricValueDetails(value, numSamples, min, max, percentiles, percentileValues, serializedSketch,
+				samplingRate, newer.isTotal());
+	}
+}
@@ -0,0 +1,74 @@
+package com.j256.simplemetrics.persister;
+
+import java.util.Map;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+
+/**
+ * Values persister which queues the metric values so they are persisted by a wrapped values persister, such as the
+ * {@link TextFileMetricsPersister}, on a dedicated worker thread. See {@link BaseAsyncMetricsPersister}.
+ * 
+ * <p>
+ * <b>NOTE:</b> The values don't have their number of samples so when they are coalesced, only the newer value of a
+ * metric with the {@link AggregationType#AVERAGE} aggregation type is kept and the older one is lost. Use the
+ * {@link AsyncMetricDetailsPersister} if you need the averages to be weighted or use another {@link DropPolicy}.
+ * </p>
+ * 
+ * @author graywatson
+ */
+public class AsyncMetricValuesPersister extends BaseAsyncMetricsPersister<Number> implements MetricValuesPersister {
+
+	private MetricValuesPersister metricValuesPersister;
+
+	public AsyncMetricValuesPersister() {
+		// for spring
+	}
+
+	/**
+	 * Create the persister and call {@link #initialize()}.
+	 */
+	public AsyncMetricValuesPersister(MetricValuesPersister metricValuesPersister, int queueSize,
+			DropPolicy dropPolicy) {
+		super(queueSize, dropPolicy);
+		this.metricValuesPersister = metricValuesPersister;
+		initialize();
+	}
+
+	@Override
+	public void initialize() {
+		if (metricValuesPersister == null) {
+			throw new IllegalStateException("Metric values persister was not set");
+		}
+		super.initialize();
+	}
+
+	@Override
+	public void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeCollectedMillis) {
+		enqueue(metricValues, timeCollectedMillis);
+	}
+
+	/**
+	 * Set the values persister that is called by the worker thread.
+	 */
+	// @Required
+	public void setMetricValuesPersister(MetricValuesPersister metricValuesPersister) {
+		this.metricValuesPersister = metricValuesPersister;
+	}
+
+	@Override
+	protected void persistQueued(Map<ControlledMetric<?, ?>, Number> metricValues, long timeCollectedMillis)
+			throws Exception {
+		metricValuesPersister.persist(metricValues, timeCollectedMillis);
+	}
+
+	@Override
+	protected Number coalesceValue(ControlledMetric<?, ?> metric, Number olderValue, Number newerValue) {
+		if (metric.getAggregationType() == AggregationType.SUM) {
+			return addNumbers(olderValue, newerValue);
+		} else {
+			// without the number of samples we can't average them so we take the newer value
+			return newerValue;
+		}
+	}
+}
@@ -0,0 +1,301 @@
+package com.j256.simplemetrics.persister;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+
+/**
+ * Base class for the persisters which wrap another persister, such as the {@link CloudWatchMetricsPersister}, so that
+ * the metrics are enqueued and persisted by a dedicated worker thread. The persist call returns as soon as the metrics
+ * are queued so a backed-up destination does not delay the thread that is persisting. If you are using the no-arg
+ * constructor (like with Spring) you will need to make sure that {@link #initialize()} is called.
+ * 
+ * <p>
+ * The queue is bounded. When it is full, the {@link DropPolicy} decides whether the oldest or the newest metrics are
+ * dropped or whether the newest metrics are coalesced into the last queued ones. Coalescing adds together the values of
+ * metrics with the {@link AggregationType#SUM} aggregation type so no counts are lost. The number of dropped and
+ * coalesced persists are counted.
+ * </p>
+ * 
+ * @param <T>
+ *            Type of the values in the map of metrics that is persisted.
+ * 
+ * @author graywatson
+ */
+public abstract class BaseAsyncMetricsPersister<T> implements Runnable {
+
+	/** default number of persists that can be queued */
+	public static final int DEFAULT_QUEUE_SIZE = 10;
+
+	private int queueSize = DEFAULT_QUEUE_SIZE;
+	private DropPolicy dropPolicy = DropPolicy.DROP_OLDEST;
+	private boolean daemonThread = true;
+
+	private final ArrayDeque<QueuedPersist<T>> queue = new ArrayDeque<QueuedPersist<T>>();
+	private final AtomicLong numEnqueued = new AtomicLong();
+	private final AtomicLong numPersisted = new AtomicLong();
+	private final AtomicLong numFailed = new AtomicLong();
+	private final AtomicLong numDropped = new AtomicLong();
+	private final AtomicLong numCoalesced = new AtomicLong();
+	private volatile Exception lastException;
+	private Thread thread;
+
+	protected BaseAsyncMetricsPersister() {
+		// for spring
+	}
+
+	protected BaseAsyncMetricsPersister(int queueSize, DropPolicy dropPolicy) {
+		this.queueSize = queueSize;
+		this.dropPolicy = dropPolicy;
+	}
+
+	/**
+	 * Should be called if the no-arg construct is being used and after the persister has been set. Maybe by Spring's
+	 * init mechanism?
+	 */
+	public void initialize() {
+		if (queueSize < 1) {
+			throw new IllegalArgumentException("Queue size must be at least 1: " + queueSize);
+		}
+		if (dropPolicy == null) {
+			throw new NullPointerException("Drop policy cannot be null");
+		}
+		this.thread = new Thread(this, getClass().getSimpleName());
+		this.thread.setDaemon(daemonThread);
+		this.thread.start();
+	}
+
+	/**
+	 * Call when you want to shutdown the worker thread. Any queued metrics are not persisted. You should call
+	 * {@link #destroyAndJoin()} if you want to destroy the thread _and_ join with it after it has terminated.
+	 */
+	public void destroy() {
+		// we may not have been initialized
+		if (this.thread != null) {
+			this.thread.interrupt();
+		}
+		// NOTE: we are not waiting for the thread to finish on purpose
+	}
+
+	/**
+	 * Call when you want to destroy the worker thread and then wait for it to finish.
+	 */
+	public void destroyAndJoin() {
+		destroy();
+		if (this.thread == null) {
+			return;
+		}
+		try {
+			this.thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Run by the thread to persist the queued metrics.
+	 */
+	@Override
+	public void run() {
+		while (true) {
+			QueuedPersist<T> queued;
+			synchronized (queue) {
+				while (queue.isEmpty()) {
+					try {
+						queue.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				queued = queue.removeFirst();
+			}
+			try {
+				persistQueued(queued.metrics, queued.timeCollectedMillis);
+				numPersisted.incrementAndGet();
+			} catch (Exception e) {
+				// ignore it but count it so we can keep up with the queue
+				numFailed.incrementAndGet();
+				lastException = e;
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Return the number of persists that have been queued.
+	 */
+	public long getNumEnqueued() {
+		return numEnqueued.get();
+	}
+
+	/**
+	 * Return the number of queued persists that were passed to the wrapped persister successfully.
+	 */
+	public long getNumPersisted() {
+		return numPersisted.get();
+	}
+
+	/**
+	 * Return the number of queued persists that the wrapped persister threw on.
+	 */
+	public long getNumFailed() {
+		return numFailed.get();
+	}
+
+	/**
+	 * Return the number of persists that were dropped because the queue was full.
+	 */
+	public long getNumDropped() {
+		return numDropped.get();
+	}
+
+	/**
+	 * Return the number of persists that were coalesced into the last queued one because the queue was full.
+	 */
+	public long getNumCoalesced() {
+		return numCoalesced.get();
+	}
+
+	/**
+	 * Return the last exception thrown by the wrapped persister or null if none.
+	 */
+	public Exception getLastException() {
+		return lastException;
+	}
+
+	/**
+	 * Return the number of persists that are waiting in the queue.
+	 */
+	public int getQueueLength() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * Maximum number of persists that can be queued.
+	 */
+	// @NotRequired("Default is " + DEFAULT_QUEUE_SIZE)
+	public void setQueueSize(int queueSize) {
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * What to do when the queue is full.
+	 */
+	// @NotRequired("Default is DROP_OLDEST")
+	public void setDropPolicy(DropPolicy dropPolicy) {
+		this.dropPolicy = dropPolicy;
+	}
+
+	/**
+	 * Whether or not the thread is a daemon thread. If true then the JVM will quit even if this thread is still
+	 * running.
+	 */
+	// @NotRequired("Default is true")
+	public void setDaemonThread(boolean daemonThread) {
+		this.daemonThread = daemonThread;
+	}
+
+	/**
+	 * Add the metrics to the queue to be persisted by the worker thread.
+	 */
+	protected void enqueue(Map<ControlledMetric<?, ?>, T> metrics, long timeCollectedMillis) {
+		numEnqueued.incrementAndGet();
+		QueuedPersist<T> queued = new QueuedPersist<T>(metrics, timeCollectedMillis);
+		synchronized (queue) {
+			if (queue.size() >= queueSize) {
+				switch (dropPolicy) {
+					case DROP_NEWEST:
+						numDropped.incrementAndGet();
+						return;
+					case COALESCE:
+						queue.addLast(coalesce(queue.removeLast(), queued));
+						numCoalesced.incrementAndGet();
+						return;
+					case DROP_OLDEST:
+					default:
+						queue.removeFirst();
+						numDropped.incrementAndGet();
+						break;
+				}
+			}
+			queue.addLast(queued);
+			queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Called by the worker thread to pass the metrics to the wrapped persister.
+	 */
+	protected abstract void persistQueued(Map<ControlledMetric<?, ?>, T> metrics, long timeCollectedMillis)
+			throws Exception;
+
+	/**
+	 * Combine the older and the newer value of a metric when the queue is full.
+	 */
+	protected abstract T coalesceValue(ControlledMetric<?, ?> metric, T olderValue, T newerValue);
+
+	/**
+	 * Add two numbers together keeping them as a long if possible.
+	 */
+	protected static Number addNumbers(Number num1, Number num2) {
+		if ((num1 instanceof Long || num1 instanceof Integer) && (num2 instanceof Long || num2 instanceof Integer)) {
+			return num1.longValue() + num2.longValue();
+		} else {
+			return num1.doubleValue() + num2.doubleValue();
+		}
+	}
+
+	private QueuedPersist<T> coalesce(QueuedPersist<T> older, QueuedPersist<T> newer) {
+		Map<ControlledMetric<?, ?>, T> metrics = new HashMap<ControlledMetric<?, ?>, T>(older.metrics);
+		for (Entry<ControlledMetric<?, ?>, T> entry : newer.metrics.entrySet()) {
+			ControlledMetric<?, ?> metric = entry.getKey();
+			T olderValue = metrics.get(metric);
+			if (olderValue == null) {
+				metrics.put(metric, entry.getValue());
+			} else {
+				metrics.put(metric, coalesceValue(metric, olderValue, entry.getValue()));
+			}
+		}
+		return new QueuedPersist<T>(metrics, newer.timeCollectedMillis);
+	}
+
+	/**
+	 * What to do when the queue is full.
+	 */
+	public enum DropPolicy {
+		/** drop the oldest queued metrics to make room for the newest */
+		DROP_OLDEST,
+		/** drop the newest metrics */
+		DROP_NEWEST,
+		/**
+		 * combine the newest metrics with the last queued metrics, see the async persisters for how the values are
+		 * combined
+		 */
+		COALESCE,
+		// end
+		;
+	}
+
+	/**
+	 * Metrics that are waiting to be persisted.
+	 */
+	private static class QueuedPersist<T> {
+		final Map<ControlledMetric<?, ?>, T> metrics;
+		final long timeCollectedMillis;
+
+		public QueuedPersist(Map<ControlledMetric<?, ?>, T> metrics, long timeCollectedMillis) {
+			this.metrics = metrics;
+			this.timeCollectedMillis = timeCollectedMillis;
+		}
+	}
+}
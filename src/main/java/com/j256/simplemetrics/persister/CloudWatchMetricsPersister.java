@@ -9,6 +9,7 @@ import java.net.Inet4Address;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +28,7 @@ import com.amazonaws.services.cloudwatch.model.StandardUnit;
 import com.amazonaws.services.cloudwatch.model.StatisticSet;
 import com.j256.simplemetrics.metric.ControlledMetric;
 import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.LabeledMetric;
 import com.j256.simplemetrics.metric.MetricValueDetails;
 import com.j256.simplemetrics.utils.MiscUtils;
 
@@ -87,6 +89,15 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 		AWS_UNIT_MAP.put("msec", StandardUnit.Milliseconds);
 		AWS_UNIT_MAP.put("msecs", StandardUnit.Milliseconds);
 		AWS_UNIT_MAP.put("bps", StandardUnit.BytesSecond);
+		AWS_UNIT_MAP.put("count/second", StandardUnit.CountSecond);
+		// lowercased TimeUnit names used by the operation and timer metrics, CloudWatch has no nanos, minutes or more
+		AWS_UNIT_MAP.put("nanoseconds", StandardUnit.None);
+		AWS_UNIT_MAP.put("microseconds", StandardUnit.Microseconds);
+		AWS_UNIT_MAP.put("milliseconds", StandardUnit.Milliseconds);
+		AWS_UNIT_MAP.put("seconds", StandardUnit.Seconds);
+		AWS_UNIT_MAP.put("minutes", StandardUnit.None);
+		AWS_UNIT_MAP.put("hours", StandardUnit.None);
+		AWS_UNIT_MAP.put("days", StandardUnit.None);
 		AWS_UNIT_MAP.put("%", StandardUnit.Percent);
 		AWS_UNIT_MAP.put("percentage", StandardUnit.Percent);
 		AWS_UNIT_MAP.put("many", StandardUnit.Count);
@@ -220,19 +231,31 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 			ControlledMetric<?, ?> metric = entry.getKey();
 			MetricValueDetails details = entry.getValue();
 
+			double value = details.getValue().doubleValue();
+			int numSamples = details.getNumSamples();
+			double min = details.getMin().doubleValue();
+			double max = details.getMax().doubleValue();
+			if (!isFinite(value) || !isFinite(min) || !isFinite(max)) {
+				// CloudWatch rejects the entire post if one datum is NaN or infinite so we skip the metric
+				continue;
+			}
+
 			List<MetricDatum> nameSpaceMetrics = metricMap.get(applicationName);
 			if (nameSpaceMetrics == null) {
 				nameSpaceMetrics = new ArrayList<MetricDatum>();
 				metricMap.put(applicationName, nameSpaceMetrics);
 			}
 
-			double value = details.getValue().doubleValue();
-			int numSamples = details.getNumSamples();
-			double min = details.getMin().doubleValue();
-			double max = details.getMax().doubleValue();
-
 			// we do something special if it is an accumulator
-			if (metric.getAggregationType() == AggregationType.SUM) {
+			if (details.isTotal()) {
+				/*
+				 * Totals, such as bytes in GB, can't be flipped into counts so we post the total. We check the flag and
+				 * not the value because a whole total, such as 3.0, is converted to a long.
+				 */
+				numSamples = 1;
+				min = value;
+				max = value;
+			} else if (metric.getAggregationType() == AggregationType.SUM) {
 				/*
 				 * Looking at the ELB stats to see how AWS does it, if there were 100 requests in a minute then the
 				 * value for each of them is a 1 and the number of samples for the minute was 100. Since our accumulator
@@ -253,11 +276,20 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 
 			MetricDatum datum =
 					new MetricDatum().withMetricName(metric.getName()).withUnit(convertUnit(metric.getUnit()));
-			List<Dimension> dimensions = new ArrayList<Dimension>(3 /* max */);
+			List<Dimension> dimensions = new ArrayList<Dimension>(3);
 			dimensions.add(new Dimension().withName(COMPONENT_DIMENSION).withValue(metric.getComponent()));
 			if (metric.getModule() != null) {
 				dimensions.add(new Dimension().withName(MODULE_DIMENSION).withValue(metric.getModule()));
 			}
+			if (metric instanceof LabeledMetric) {
+				// the labels of the metric become dimensions
+				LabeledMetric labeled = (LabeledMetric) metric;
+				String[] labelNames = labeled.getLabelNames();
+				String[] labelValues = labeled.getLabelValues();
+				for (int i = 0; i < labelNames.length; i++) {
+					dimensions.add(new Dimension().withName(labelNames[i]).withValue(labelValues[i]));
+				}
+			}
 			datum.withDimensions(dimensions);
 
 			// create a statisticSet or just a value
@@ -281,19 +313,42 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 			}
 
 			nameSpaceMetrics.add(datum);
+			List<MetricDatum> metricData = Collections.singletonList(datum);
+
+			// add a datum for each of the percentiles, named like "latency.p99", if the metric reports them
+			double[] percentiles = details.getPercentiles();
+			if (percentiles != null && details.getNumSamples() > 0) {
+				metricData = new ArrayList<MetricDatum>(metricData);
+				double[] percentileValues = details.getPercentileValues();
+				for (int i = 0; i < percentiles.length; i++) {
+					MetricDatum percentileDatum = new MetricDatum()
+							.withMetricName(metric.getName() + "." + MiscUtils.percentileToString(percentiles[i]))
+							.withUnit(datum.getUnit())
+							.withDimensions(dimensions)
+							.withValue(percentileValues[i]);
+					nameSpaceMetrics.add(percentileDatum);
+					metricData.add(percentileDatum);
+				}
+			}
 
-			// copy our metric and add another one in with the instance-id
+			// copy our metrics and add another one in with the instance-id
 			if (instanceId != null) {
-				MetricDatum instanceDatum = copyDatum(datum);
 				dimensions.add(new Dimension().withName(INSTANCE_ID_DIMENSION).withValue(instanceId));
-				instanceDatum.withDimensions(dimensions);
-				nameSpaceMetrics.add(instanceDatum);
+				for (MetricDatum metricDatum : metricData) {
+					MetricDatum instanceDatum = copyDatum(metricDatum);
+					instanceDatum.withDimensions(dimensions);
+					nameSpaceMetrics.add(instanceDatum);
+				}
 			}
 		}
 
 		return metricMap;
 	}
 
+	private static boolean isFinite(double value) {
+		return !(Double.isNaN(value) || Double.isInfinite(value));
+	}
+
 	private MetricDatum copyDatum(MetricDatum datum) {
 		MetricDatum copy = new MetricDatum().withMetricName(datum.getMetricName()).withUnit(datum.getUnit());
 		Double datumValue = datum.getValue();
@@ -308,7 +363,7 @@ public class CloudWatchMetricsPersister implements MetricDetailsPersister {
 	/**
 	 * Convert the unit from the metric into one that CloudWatch likes.
 	 */
-	private StandardUnit convertUnit(String unitString) {
+	static StandardUnit convertUnit(String unitString) {
 		if (unitString == null) {
 			return StandardUnit.None;
 		}
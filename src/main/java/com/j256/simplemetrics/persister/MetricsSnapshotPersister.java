@@ -0,0 +1,26 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.IOException;
+
+import com.j256.simplemetrics.manager.MetricsSnapshot;
+
+/**
+ * Persister which reads the metrics from the columns of a {@link MetricsSnapshot} instead of from maps so that
+ * persisting does not allocate objects per metric. Existing {@link MetricValuesPersister} and
+ * {@link MetricDetailsPersister} implementations can be used through a {@link MetricsSnapshotPersisterAdapter}.
+ *
+ * @author graywatson
+ */
+public interface MetricsSnapshotPersister {
+
+	/**
+	 * Persists the metrics in the snapshot to disk or some repository. The snapshot is reused by the manager after this
+	 * returns so it should not be held onto.
+	 *
+	 * @param snapshot
+	 *            The metrics and their values which we are persisting.
+	 * @throws IOException
+	 *             If there was an i/o error while persisting.
+	 */
+	public void persist(MetricsSnapshot snapshot) throws IOException;
+}
@@ -0,0 +1,89 @@
+package com.j256.simplemetrics.persister;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.j256.simplemetrics.manager.MetricsSnapshot;
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+
+/**
+ * Adapts a {@link MetricValuesPersister} or a {@link MetricDetailsPersister} so it can be called with a
+ * {@link MetricsSnapshot}. This builds the map that the persister expects from the snapshot each time so it gives up
+ * the allocation savings of the snapshot.
+ *
+ * @author graywatson
+ */
+public class MetricsSnapshotPersisterAdapter implements MetricsSnapshotPersister {
+
+	private final MetricValuesPersister valuesPersister;
+	private final MetricDetailsPersister detailsPersister;
+
+	public MetricsSnapshotPersisterAdapter(MetricValuesPersister valuesPersister) {
+		if (valuesPersister == null) {
+			throw new NullPointerException("Values persister cannot be null");
+		}
+		this.valuesPersister = valuesPersister;
+		this.detailsPersister = null;
+	}
+
+	public MetricsSnapshotPersisterAdapter(MetricDetailsPersister detailsPersister) {
+		if (detailsPersister == null) {
+			throw new NullPointerException("Details persister cannot be null");
+		}
+		this.valuesPersister = null;
+		this.detailsPersister = detailsPersister;
+	}
+
+	@Override
+	public void persist(MetricsSnapshot snapshot) throws IOException {
+		MetricsSnapshot.Cursor cursor = snapshot.cursor();
+		if (valuesPersister != null) {
+			Map<ControlledMetric<?, ?>, Number> metricValues =
+					new HashMap<ControlledMetric<?, ?>, Number>(snapshot.size());
+			while (cursor.next()) {
+				metricValues.put(cursor.getMetric(), toNumber(cursor.getValue()));
+			}
+			valuesPersister.persist(Collections.unmodifiableMap(metricValues), snapshot.getTimeCollectedMillis());
+		} else {
+			Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails =
+					new HashMap<ControlledMetric<?, ?>, MetricValueDetails>(snapshot.size());
+			while (cursor.next()) {
+				MetricValueDetails details = new MetricValueDetails(toNumber(cursor.getValue()),
+						cursor.getNumSamples(), toNumber(cursor.getMin()), toNumber(cursor.getMax()),
+						cursor.getPercentiles(), cursor.getPercentileValues(), cursor.getSerializedSketch(),
+						cursor.getSamplingRate(), cursor.isTotal());
+				metricValueDetails.put(cursor.getMetric(), details);
+			}
+			detailsPersister.persist(Collections.unmodifiableMap(metricValueDetails),
+					snapshot.getTimeCollectedMillis());
+		}
+	}
+
+	/**
+	 * Return the persister that we are adapting.
+	 */
+	public Object getPersister() {
+		if (valuesPersister == null) {
+			return detailsPersister;
+		} else {
+			return valuesPersister;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + "[" + getPersister() + "]";
+	}
+
+	private static Number toNumber(double value) {
+		// convert the value to a long if possible
+		if (value == (long) value) {
+			return (long) value;
+		} else {
+			return value;
+		}
+	}
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.net.Socket;
 
 import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.LabeledMetric;
 
 /**
  * Set of common utility methods copied from the Net.
@@ -73,7 +74,7 @@ public class MiscUtils {
 	}
 
 	/**
-	 * Return the name of the metric build by looking at the fields.
+	 * Return the name of the metric build by looking at the fields. Any labels are appended like "{status=200}".
 	 */
 	public static String metricToString(ControlledMetric<?, ?> metric) {
 		StringBuilder sb = new StringBuilder();
@@ -83,6 +84,34 @@ public class MiscUtils {
 			sb.append('.').append(mod);
 		}
 		sb.append('.').append(metric.getName());
+		if (metric instanceof LabeledMetric) {
+			LabeledMetric labeled = (LabeledMetric) metric;
+			String[] labelNames = labeled.getLabelNames();
+			if (labelNames.length > 0) {
+				String[] labelValues = labeled.getLabelValues();
+				sb.append('{');
+				for (int i = 0; i < labelNames.length; i++) {
+					if (i > 0) {
+						sb.append(',');
+					}
+					sb.append(labelNames[i]).append('=').append(labelValues[i]);
+				}
+				sb.append('}');
+			}
+		}
 		return sb.toString();
 	}
+
+	/**
+	 * Return a short name for a percentile. So 50.0 returns "p50" and 99.9 returns "p999".
+	 */
+	public static String percentileToString(double percentile) {
+		String str;
+		if (percentile == (long) percentile) {
+			str = Long.toString((long) percentile);
+		} else {
+			str = Double.toString(percentile).replace(".", "");
+		}
+		return "p" + str;
+	}
 }
@@ -0,0 +1,16 @@
+package com.j256.simplemetrics.utils;
+
+/**
+ * Source of monotonic nanosecond time stamps used by the timing metrics. This can be replaced with a controllable clock
+ * for deterministic tests.
+ * 
+ * @author graywatson
+ */
+public interface NanoClock {
+
+	/**
+	 * Return the current value of the clock in nanoseconds. Like {@link System#nanoTime()}, this is only meaningful
+	 * when compared with another value from the same clock.
+	 */
+	public long nanoTime();
+}
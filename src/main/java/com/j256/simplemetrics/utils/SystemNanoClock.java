@@ -0,0 +1,14 @@
+package com.j256.simplemetrics.utils;
+
+/**
+ * {@link NanoClock} which uses {@link System#nanoTime()} so it is not affected by wall-clock adjustments.
+ * 
+ * @author graywatson
+ */
+public class SystemNanoClock implements NanoClock {
+
+	@Override
+	public long nanoTime() {
+		return System.nanoTime();
+	}
+}
@@ -6,6 +6,7 @@ import org.junit.Test;
 
 import com.j256.simplejmx.server.JmxServer;
 import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricRate;
 
 public class MetricsManagerJmxTest {
 
@@ -22,6 +23,8 @@ public class MetricsManagerJmxTest {
 			manager.registerMetric(metric);
 			manager.unregisterMetric(metric);
 			manager.registerMetric(metric);
+			ControlledMetricRate rate = new ControlledMetricRate("comp", "mod", "rate", "desc");
+			manager.registerMetric(rate);
 			managerJmx.getMetricValues();
 			managerJmx.persist();
 			manager.unregisterMetric(metric);
@@ -5,23 +5,36 @@ import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.easymock.EasyMock;
 import org.junit.Test;
 
 import com.j256.simplemetrics.metric.ControlledMetric;
 import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricDoubleAccum;
+import com.j256.simplemetrics.metric.ControlledMetricFamily;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram;
+import com.j256.simplemetrics.metric.ControlledMetricTopK;
 import com.j256.simplemetrics.metric.ControlledMetricValue;
 import com.j256.simplemetrics.metric.MetricValueDetails;
 import com.j256.simplemetrics.persister.MetricDetailsPersister;
 import com.j256.simplemetrics.persister.MetricValuesPersister;
+import com.j256.simplemetrics.persister.MetricsSnapshotPersister;
+import com.j256.simplemetrics.persister.MetricsSnapshotPersisterAdapter;
 
 public class MetricsManagerTest {
 
@@ -159,6 +172,36 @@ public class MetricsManagerTest {
 
 	}
 
+	@Test
+	public void testMultiSeriesPersist() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricTopK metric = new ControlledMetricTopK("comp", "mod", "tenant", "desc", null, 2, 10);
+		manager.registerMetric(metric);
+		TestValuesPersister valuesPersister = new TestValuesPersister();
+		manager.setMetricValuesPersisters(new MetricValuesPersister[] { valuesPersister });
+
+		metric.add("a", 5);
+		metric.add("b", 3);
+		metric.add("c", 1);
+		manager.persistValuesOnly();
+		assertEquals(3, valuesPersister.lastValueMap.size());
+		assertEquals(9L, valuesPersister.lastValueMap.get(metric));
+		assertEquals(5L, valuesPersister.lastValueMap
+				.get(new ControlledMetricAccum("comp", "mod", "tenant.a", "desc", null)));
+		assertEquals(3L, valuesPersister.lastValueMap
+				.get(new ControlledMetricAccum("comp", "mod", "tenant.b", "desc", null)));
+
+		TestDetailsPersister detailsPersister = new TestDetailsPersister();
+		manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { detailsPersister });
+		metric.add("c", 2);
+		manager.persist();
+		assertEquals(2, detailsPersister.lastValueMap.size());
+		assertEquals(2L, detailsPersister.lastValueMap
+				.get(new ControlledMetricAccum("comp", "mod", "tenant.c", "desc", null))
+				.getValue());
+		assertEquals(2L, valuesPersister.lastValueMap.get(metric));
+	}
+
 	@Test
 	public void testLongVersusDouble() throws IOException {
 		MetricsManager manager = new MetricsManager();
@@ -273,6 +316,586 @@ public class MetricsManagerTest {
 		verify(detailsPersister, valuesPersister);
 	}
 
+	@Test
+	public void testDuplicates() {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricAccum metric = new ControlledMetricAccum("comp", "mod", "name", "desc", null);
+		manager.registerMetric(metric);
+		// registering the same metric again does nothing
+		manager.registerMetric(metric);
+		assertEquals(1, manager.getMetrics().size());
+		try {
+			manager.registerMetric(new ControlledMetricAccum("comp", "mod", "name", "other", null));
+			fail("Should have thrown");
+		} catch (IllegalArgumentException iae) {
+			// expected
+		}
+		assertSame(metric,
+				manager.getOrRegisterMetric(new ControlledMetricAccum("comp", "mod", "name", "desc", null)));
+		try {
+			manager.getOrRegisterMetric(new ControlledMetricValue("comp", "mod", "name", "desc", null));
+			fail("Should have thrown");
+		} catch (IllegalArgumentException iae) {
+			// expected
+		}
+		assertEquals(1, manager.getMetrics().size());
+
+		// a different instance is not unregistered
+		manager.unregisterMetric(new ControlledMetricAccum("comp", "mod", "name", "desc", null));
+		assertEquals(1, manager.getMetrics().size());
+		manager.unregisterMetric(metric);
+		assertEquals(0, manager.getMetrics().size());
+	}
+
+	@Test
+	public void testGetMetric() {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricValue metric = new ControlledMetricValue("comp", null, "name", "desc", null);
+		manager.registerMetric(metric);
+		assertSame(metric, manager.getMetric("comp", null, "name"));
+		assertNull(manager.getMetric("comp", "mod", "name"));
+		assertNull(manager.getMetric("comp", null, "name", "label"));
+
+		ControlledMetricFamily<ControlledMetricAccum> family = new ControlledMetricFamily<ControlledMetricAccum>(
+				manager, "comp", "mod", "requests", "desc", null, new String[] { "endpoint", "status" },
+				ControlledMetricFamily.accumFactory());
+		ControlledMetricAccum child = family.getChild("/home", "200");
+		assertSame(child, manager.getMetric("comp", "mod", "requests", "/home", "200"));
+		assertNull(manager.getMetric("comp", "mod", "requests", "/home", "500"));
+		assertNull(manager.getMetric("comp", "mod", "requests"));
+	}
+
+	@Test(timeout = 10000)
+	public void testConcurrentRegistration() throws Exception {
+		final MetricsManager manager = new MetricsManager();
+		final int numMetrics = 1000;
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numMetrics; j++) {
+						ControlledMetricAccum metric = manager.getOrRegisterMetric(
+								new ControlledMetricAccum("comp", "mod", "name" + j, "desc", null));
+						metric.increment();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				// iterating does not block the registrations
+				manager.getMetricValuesMap();
+			}
+			thread.join();
+		}
+		assertEquals(numMetrics, manager.getMetrics().size());
+		for (int j = 0; j < numMetrics; j++) {
+			assertEquals(threads.length, manager.getMetric("comp", "mod", "name" + j).getValue().longValue());
+		}
+	}
+
+	@Test
+	public void testPersisterStats() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		manager.registerMetric(new ControlledMetricAccum("comp", "mod", "name", "desc", null));
+		TestValuesPersister valuesPersister = new TestValuesPersister();
+		manager.setMetricValuesPersisters(new MetricValuesPersister[] { valuesPersister });
+		assertNull(manager.getLastPersistResult());
+		manager.persist();
+		manager.persist();
+		PersisterStats stats = manager.getPersisterStats(valuesPersister);
+		assertNotNull(stats);
+		assertSame(valuesPersister, stats.getPersister());
+		assertEquals(2, stats.getNumSuccesses());
+		assertEquals(0, stats.getNumFailures());
+		assertNull(stats.getLastException());
+		assertEquals(1, manager.getPersisterStats().size());
+		PersistResult result = manager.getLastPersistResult();
+		assertTrue(result.isSuccess());
+		assertEquals(1, result.getNumSucceeded());
+	}
+
+	@Test(timeout = 10000)
+	public void testParallelPersistersTimeout() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		manager.registerMetric(new ControlledMetricAccum("comp", "mod", "name", "desc", null));
+		final CountDownLatch hungLatch = new CountDownLatch(1);
+		MetricValuesPersister hungPersister = new MetricValuesPersister() {
+			@Override
+			public void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeCollectedMillis)
+					throws IOException {
+				try {
+					// wait until we are interrupted by the timeout
+					hungLatch.await();
+				} catch (InterruptedException ie) {
+					throw new IOException(ie);
+				}
+			}
+		};
+		TestValuesPersister valuesPersister = new TestValuesPersister();
+		TestDetailsPersister detailsPersister = new TestDetailsPersister();
+		manager.setMetricValuesPersisters(new MetricValuesPersister[] { hungPersister, valuesPersister });
+		manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { detailsPersister });
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			manager.setPersisterExecutor(executor);
+			manager.setPersisterTimeoutMillis(100);
+			try {
+				manager.persist();
+				fail("Should have thrown");
+			} catch (IOException ioe) {
+				assertTrue(ioe.getMessage().contains("timed out"));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		// the other persisters were not stalled
+		assertNotNull(valuesPersister.lastValueMap);
+		assertNotNull(detailsPersister.lastValueMap);
+		PersistResult result = manager.getLastPersistResult();
+		assertEquals(2, result.getNumSucceeded());
+		assertEquals(1, result.getNumFailed());
+		assertEquals(1, result.getNumTimedOut());
+		PersisterStats stats = manager.getPersisterStats(hungPersister);
+		assertEquals(1, stats.getNumTimeouts());
+		assertEquals(1, stats.getNumFailures());
+		assertTrue(stats.getLastMillis() >= 100);
+		assertEquals(1, manager.getPersisterStats(valuesPersister).getNumSuccesses());
+		assertEquals(1, manager.getPersistCount());
+	}
+
+	@Test(timeout = 10000)
+	public void testSinglePersisterTimeout() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		final CountDownLatch hungLatch = new CountDownLatch(1);
+		MetricValuesPersister hungPersister = new MetricValuesPersister() {
+			@Override
+			public void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeCollectedMillis)
+					throws IOException {
+				try {
+					hungLatch.await();
+				} catch (InterruptedException ie) {
+					throw new IOException(ie);
+				}
+			}
+		};
+		manager.setMetricValuesPersisters(new MetricValuesPersister[] { hungPersister });
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			manager.setPersisterExecutor(executor);
+			manager.setPersisterTimeoutMillis(100);
+			try {
+				manager.persist();
+				fail("Should have thrown");
+			} catch (IOException ioe) {
+				assertTrue(ioe.getMessage().contains("timed out"));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, manager.getPersisterStats(hungPersister).getNumTimeouts());
+	}
+
+	@Test(timeout = 10000)
+	public void testQueuedPersistersOwnDeadlines() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		SlowValuesPersister persister1 = new SlowValuesPersister(150);
+		SlowValuesPersister persister2 = new SlowValuesPersister(150);
+		manager.setMetricValuesPersisters(new MetricValuesPersister[] { persister1, persister2 });
+		// one thread so the second persister waits for the first before it starts
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			manager.setPersisterExecutor(executor);
+			manager.setPersisterTimeoutMillis(250);
+			manager.persist();
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals(1, manager.getPersisterStats(persister1).getNumSuccesses());
+		assertEquals(1, manager.getPersisterStats(persister2).getNumSuccesses());
+		assertEquals(0, manager.getLastPersistResult().getNumFailed());
+	}
+
+	@Test
+	public void testSnapshotPersister() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricValue metric = new ControlledMetricValue("comp", "mod", "name", "desc", null);
+		manager.registerMetric(metric);
+		ControlledMetricTopK topK = new ControlledMetricTopK("comp", "mod", "tenant", "desc", null, 2, 10);
+		manager.registerMetric(topK);
+		TestSnapshotPersister snapshotPersister = new TestSnapshotPersister();
+		TestValuesPersister valuesPersister = new TestValuesPersister();
+		manager.setMetricsSnapshotPersisters(new MetricsSnapshotPersister[] { snapshotPersister,
+				new MetricsSnapshotPersisterAdapter(valuesPersister) });
+
+		metric.adjustValue(10);
+		metric.adjustValue(20);
+		topK.add("a", 5);
+		manager.persist();
+		MetricsSnapshot first = snapshotPersister.lastSnapshot;
+		// the value metric, the top-k total, and its key
+		assertEquals(3, first.size());
+		assertEquals(3, valuesPersister.lastValueMap.size());
+		assertEquals(15L, valuesPersister.lastValueMap.get(metric));
+		assertEquals(5L, valuesPersister.lastValueMap.get(topK));
+		MetricsSnapshot.Cursor cursor = first.cursor();
+		boolean found = false;
+		while (cursor.next()) {
+			if (cursor.getMetric() == metric) {
+				assertEquals(15.0, cursor.getValue(), 0);
+				assertEquals(2, cursor.getNumSamples());
+				assertEquals(10.0, cursor.getMin(), 0);
+				assertEquals(20.0, cursor.getMax(), 0);
+				found = true;
+			}
+		}
+		assertTrue(found);
+
+		// the snapshots are double buffered and reused
+		manager.persist();
+		MetricsSnapshot second = snapshotPersister.lastSnapshot;
+		assertNotSame(first, second);
+		assertEquals(3, first.size());
+		manager.persist();
+		assertSame(first, snapshotPersister.lastSnapshot);
+
+		// the snapshot is filled from the details when there are details persisters
+		TestDetailsPersister detailsPersister = new TestDetailsPersister();
+		manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { detailsPersister });
+		metric.adjustValue(7);
+		manager.persist();
+		// the top-k key was not adjusted since the last persist
+		assertEquals(2, detailsPersister.lastValueMap.size());
+		assertEquals(7L, valuesPersister.lastValueMap.get(metric));
+		assertEquals(4, manager.getPersistCount());
+		assertEquals(4, manager.getPersisterStats(snapshotPersister).getNumSuccesses());
+	}
+
+	@Test
+	public void testSnapshotPrimitives() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", null);
+		manager.registerMetric(accum);
+		ControlledMetricDoubleAccum doubleAccum =
+				new ControlledMetricDoubleAccum("comp", "mod", "bytes", "desc", null);
+		manager.registerMetric(doubleAccum);
+		TestSnapshotPersister snapshotPersister = new TestSnapshotPersister();
+		manager.setMetricsSnapshotPersisters(new MetricsSnapshotPersister[] { snapshotPersister });
+
+		// the values are read as primitives without going through a boxed number
+		accum.add(1000);
+		doubleAccum.add(2.5);
+		manager.persist();
+		MetricsSnapshot.Cursor cursor = snapshotPersister.lastSnapshot.cursor();
+		int found = 0;
+		while (cursor.next()) {
+			if (cursor.getMetric() == accum) {
+				assertEquals(1000.0, cursor.getValue(), 0);
+				assertTrue(cursor.isIntegral());
+				assertEquals(1000.0, cursor.getMin(), 0);
+				assertEquals(1000.0, cursor.getMax(), 0);
+				assertFalse(cursor.isTotal());
+				found++;
+			} else if (cursor.getMetric() == doubleAccum) {
+				assertEquals(2.5, cursor.getValue(), 0);
+				assertEquals(2.5, cursor.getMax(), 0);
+				assertTrue(cursor.isTotal());
+				found++;
+			}
+		}
+		assertEquals(2, found);
+	}
+
+	@Test
+	public void testSnapshotPercentiles() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricHistogram histogram = new ControlledMetricHistogram("comp", "mod", "latency", "desc", null);
+		manager.registerMetric(histogram);
+		TestDetailsPersister detailsPersister = new TestDetailsPersister();
+		manager.setMetricsSnapshotPersisters(
+				new MetricsSnapshotPersister[] { new MetricsSnapshotPersisterAdapter(detailsPersister) });
+		for (int i = 1; i <= 100; i++) {
+			histogram.adjustValue(i);
+		}
+		manager.persist();
+		MetricValueDetails details = detailsPersister.lastValueMap.get(histogram);
+		assertEquals(100, details.getNumSamples());
+		assertNotNull(details.getPercentiles());
+		assertEquals(details.getPercentiles().length, details.getPercentileValues().length);
+		assertEquals(1.0, details.getSamplingRate(), 0);
+	}
+
+	@Test
+	public void testSnapshotInUseNotReused() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		manager.registerMetric(new ControlledMetricValue("comp", "mod", "name", "desc", null));
+		final CountDownLatch hungLatch = new CountDownLatch(1);
+		final MetricsSnapshot[] hungSnapshot = new MetricsSnapshot[1];
+		MetricsSnapshotPersister hungPersister = new MetricsSnapshotPersister() {
+			@Override
+			public void persist(MetricsSnapshot snapshot) throws IOException {
+				if (hungSnapshot[0] == null) {
+					hungSnapshot[0] = snapshot;
+					// ignore the interrupt from the cancel so we keep reading the snapshot
+					while (hungLatch.getCount() > 0) {
+						try {
+							hungLatch.await();
+						} catch (InterruptedException ie) {
+							// keep waiting
+						}
+					}
+				}
+			}
+		};
+		TestSnapshotPersister snapshotPersister = new TestSnapshotPersister();
+		manager.setMetricsSnapshotPersisters(new MetricsSnapshotPersister[] { hungPersister, snapshotPersister });
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			manager.setPersisterExecutor(executor);
+			manager.setPersisterTimeoutMillis(100);
+			try {
+				manager.persist();
+				fail("Should have thrown");
+			} catch (IOException ioe) {
+				assertTrue(ioe.getMessage().contains("timed out"));
+			}
+			MetricsSnapshot first = snapshotPersister.lastSnapshot;
+			assertSame(hungSnapshot[0], first);
+			manager.persist();
+			assertNotSame(first, snapshotPersister.lastSnapshot);
+			// the hung persister is still reading the first snapshot so a new one is used
+			manager.persist();
+			assertNotSame(first, snapshotPersister.lastSnapshot);
+			assertEquals(1, first.size());
+			hungLatch.countDown();
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testUpdaterStats() {
+		MetricsManager manager = new MetricsManager();
+		LocalMetricsUpdater updater = new LocalMetricsUpdater();
+		manager.registerUpdater(updater);
+		final RuntimeException thrown = new RuntimeException("stuck");
+		MetricsUpdater throwingUpdater = new MetricsUpdater() {
+			@Override
+			public void updateMetrics() {
+				throw thrown;
+			}
+		};
+		manager.registerUpdater(throwingUpdater);
+		assertEquals(2, manager.getUpdaterStats().size());
+		try {
+			manager.updateMetrics();
+			fail("Should have thrown");
+		} catch (RuntimeException re) {
+			assertSame(thrown, re);
+		}
+		UpdaterStats stats = manager.getUpdaterStats(updater);
+		assertEquals(1, stats.getNumSuccesses());
+		assertFalse(stats.isStale());
+		assertFalse(stats.isRunning());
+		stats = manager.getUpdaterStats(throwingUpdater);
+		assertEquals(1, stats.getNumFailures());
+		assertSame(thrown, stats.getLastException());
+		assertTrue(stats.isStale());
+		assertNull(manager.getUpdaterStats(new LocalMetricsUpdater()));
+	}
+
+	@Test
+	public void testUnregisterUpdater() {
+		MetricsManager manager = new MetricsManager();
+		LocalMetricsUpdater updater = new LocalMetricsUpdater();
+		manager.registerUpdater(updater);
+		manager.registerUpdater(updater);
+		manager.updateMetrics();
+		assertEquals(2, updater.pollCount);
+		manager.unregisterUpdater(updater);
+		// still registered once
+		assertNotNull(manager.getUpdaterStats(updater));
+		manager.updateMetrics();
+		assertEquals(3, updater.pollCount);
+		manager.unregisterUpdater(updater);
+		assertNull(manager.getUpdaterStats(updater));
+		assertEquals(0, manager.getUpdaterStats().size());
+		manager.updateMetrics();
+		assertEquals(3, updater.pollCount);
+		// not registered so nothing happens
+		manager.unregisterUpdater(updater);
+	}
+
+	@Test(timeout = 10000)
+	public void testRegisterWhileUpdating() throws Exception {
+		final MetricsManager manager = new MetricsManager();
+		final LocalMetricsUpdater otherUpdater = new LocalMetricsUpdater();
+		final AtomicBoolean registered = new AtomicBoolean();
+		MetricsUpdater registeringUpdater = new MetricsUpdater() {
+			@Override
+			public void updateMetrics() {
+				// the updaters are not run under the lock so another thread can register while we run
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						manager.registerUpdater(otherUpdater);
+						registered.set(true);
+					}
+				});
+				thread.start();
+				try {
+					thread.join(5000);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				// and we can unregister ourselves without breaking the iteration
+				manager.unregisterUpdater(this);
+			}
+		};
+		manager.registerUpdater(registeringUpdater);
+		manager.updateMetrics();
+		assertTrue(registered.get());
+		assertNull(manager.getUpdaterStats(registeringUpdater));
+		// registered after the list was copied so it runs the next time
+		assertEquals(0, otherUpdater.pollCount);
+		manager.updateMetrics();
+		assertEquals(1, otherUpdater.pollCount);
+	}
+
+	@Test(timeout = 10000)
+	public void testUpdaterError() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		final Error thrown = new AssertionError("broken");
+		MetricsUpdater errorUpdater = new MetricsUpdater() {
+			@Override
+			public void updateMetrics() {
+				throw thrown;
+			}
+		};
+		manager.registerUpdater(errorUpdater);
+		try {
+			manager.updateMetrics();
+			fail("Should have thrown");
+		} catch (Error e) {
+			assertSame(thrown, e);
+		}
+		UpdaterStats stats = manager.getUpdaterStats(errorUpdater);
+		// the run was recorded so the updater is not left running and skipped forever
+		assertFalse(stats.isRunning());
+		assertEquals(1, stats.getNumFailures());
+		assertSame(thrown, stats.getLastException().getCause());
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			manager.setUpdaterExecutor(executor);
+			manager.setUpdaterTimeoutMillis(1000);
+			manager.updateMetrics();
+			assertFalse(stats.isRunning());
+			assertEquals(2, stats.getNumFailures());
+			manager.updateMetrics();
+			assertEquals(0, stats.getNumSkipped());
+			assertEquals(3, stats.getNumFailures());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testConcurrentUpdates() throws Exception {
+		final MetricsManager manager = new MetricsManager();
+		MetricsUpdater slowUpdater = new MetricsUpdater() {
+			@Override
+			public void updateMetrics() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		manager.registerUpdater(slowUpdater);
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			manager.setUpdaterExecutor(executor);
+			manager.setUpdaterTimeoutMillis(5000);
+			// such as a JMX read at the same time as a persist
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					manager.updateMetrics();
+				}
+			});
+			thread.start();
+			manager.updateMetrics();
+			thread.join();
+		} finally {
+			executor.shutdownNow();
+		}
+		UpdaterStats stats = manager.getUpdaterStats(slowUpdater);
+		// the second update waited for the first instead of skipping the updater
+		assertEquals(2, stats.getNumSuccesses());
+		assertEquals(0, stats.getNumSkipped());
+		assertFalse(stats.isStale());
+	}
+
+	@Test(timeout = 10000)
+	public void testParallelUpdatersTimeout() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		final CountDownLatch hungLatch = new CountDownLatch(1);
+		final CountDownLatch finishedLatch = new CountDownLatch(1);
+		MetricsUpdater hungUpdater = new MetricsUpdater() {
+			@Override
+			public void updateMetrics() {
+				try {
+					// the manager does not interrupt us so we wait until the test releases us
+					hungLatch.await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				finishedLatch.countDown();
+			}
+		};
+		LocalMetricsUpdater updater = new LocalMetricsUpdater();
+		manager.registerUpdater(hungUpdater);
+		manager.registerUpdater(updater);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			manager.setUpdaterExecutor(executor);
+			manager.setUpdaterTimeoutMillis(100);
+			manager.updateMetrics();
+			// the other updater was not stalled
+			assertEquals(1, updater.pollCount);
+			UpdaterStats hungStats = manager.getUpdaterStats(hungUpdater);
+			assertEquals(1, hungStats.getNumTimeouts());
+			assertTrue(hungStats.isStale());
+			assertTrue(hungStats.isRunning());
+
+			// the hung updater is skipped instead of blocking the update
+			manager.updateMetrics();
+			assertEquals(2, updater.pollCount);
+			assertEquals(1, hungStats.getNumSkipped());
+			assertEquals(1, hungStats.getNumTimeouts());
+
+			hungLatch.countDown();
+			finishedLatch.await();
+			// wait for the run to be recorded
+			while (hungStats.isRunning()) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, hungStats.getNumSuccesses());
+			// it ran for at least the time that we waited for it
+			assertTrue(hungStats.getLastMillis() >= 90);
+			manager.updateMetrics();
+			assertEquals(2, hungStats.getNumSuccesses());
+			assertFalse(hungStats.isStale());
+			assertEquals(3, manager.getUpdaterStats(updater).getNumSuccesses());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
 	private static class LocalMetricsUpdater implements MetricsUpdater {
 
 		int pollCount = 0;
@@ -301,4 +924,31 @@ public class MetricsManagerTest {
 			lastValueMap = metricValueDetails;
 		}
 	}
+
+	private static class SlowValuesPersister implements MetricValuesPersister {
+		private final long sleepMillis;
+
+		public SlowValuesPersister(long sleepMillis) {
+			this.sleepMillis = sleepMillis;
+		}
+
+		@Override
+		public void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeCollectedMillis)
+				throws IOException {
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException ie) {
+				throw new IOException(ie);
+			}
+		}
+	}
+
+	private static class TestSnapshotPersister implements MetricsSnapshotPersister {
+		MetricsSnapshot lastSnapshot;
+
+		@Override
+		public void persist(MetricsSnapshot snapshot) {
+			lastSnapshot = snapshot;
+		}
+	}
 }
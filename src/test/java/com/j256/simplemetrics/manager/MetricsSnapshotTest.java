@@ -0,0 +1,137 @@
+package com.j256.simplemetrics.manager;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.persister.MetricDetailsPersister;
+import com.j256.simplemetrics.persister.MetricsSnapshotPersisterAdapter;
+
+public class MetricsSnapshotTest {
+
+	@Test
+	public void testAddAndCursor() {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		snapshot.clear(1000);
+		assertEquals(1000, snapshot.getTimeCollectedMillis());
+		assertFalse(snapshot.cursor().next());
+		ControlledMetricValue[] metrics = new ControlledMetricValue[100];
+		for (int i = 0; i < metrics.length; i++) {
+			metrics[i] = new ControlledMetricValue("comp", "mod", "name" + i, "desc", null);
+			snapshot.add(metrics[i], i + 0.5, i, 0.0, i);
+		}
+		assertEquals(metrics.length, snapshot.size());
+		MetricsSnapshot.Cursor cursor = snapshot.cursor();
+		for (int i = 0; i < metrics.length; i++) {
+			assertTrue(cursor.next());
+			assertEquals(i, cursor.getIndex());
+			assertSame(metrics[i], cursor.getMetric());
+			assertEquals(i + 0.5, cursor.getValue(), 0);
+			assertFalse(cursor.isIntegral());
+			assertEquals(i, cursor.getNumSamples());
+			assertEquals(0.0, cursor.getMin(), 0);
+			assertEquals(i, cursor.getMax(), 0);
+		}
+		assertFalse(cursor.next());
+		assertFalse(cursor.next());
+		cursor.reset();
+		assertTrue(cursor.next());
+		assertSame(metrics[0], cursor.getMetric());
+
+		// reuse the columns
+		snapshot.clear(2000);
+		assertEquals(0, snapshot.size());
+		snapshot.add(metrics[1], 10, 1, 10, 10);
+		assertEquals(1, snapshot.size());
+		assertTrue(snapshot.isIntegral(0));
+		assertSame(metrics[1], snapshot.getMetric(0));
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testBadIndex() {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		snapshot.add(new ControlledMetricValue("comp", "mod", "name", "desc", null), 1, 1, 1, 1);
+		snapshot.getValue(1);
+	}
+
+	@Test
+	public void testDetailsAdapter() throws IOException {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		snapshot.clear(1000);
+		final ControlledMetricValue metric = new ControlledMetricValue("comp", "mod", "name", "desc", null);
+		snapshot.add(metric, 1.5, 2, 1, 2);
+		final MetricValueDetails[] persisted = new MetricValueDetails[1];
+		final long[] persistedTime = new long[1];
+		MetricsSnapshotPersisterAdapter adapter = new MetricsSnapshotPersisterAdapter(new MetricDetailsPersister() {
+			@Override
+			public void persist(Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails,
+					long timeCollectedMillis) {
+				persisted[0] = metricValueDetails.get(metric);
+				persistedTime[0] = timeCollectedMillis;
+			}
+		});
+		adapter.persist(snapshot);
+		assertEquals(1000, persistedTime[0]);
+		MetricValueDetails details = persisted[0];
+		assertEquals(1.5, details.getValue());
+		assertEquals(2, details.getNumSamples());
+		assertEquals(1L, details.getMin());
+		assertEquals(2L, details.getMax());
+		assertNull(details.getPercentiles());
+		assertNull(details.getSerializedSketch());
+		assertEquals(1.0, details.getSamplingRate(), 0);
+		assertFalse(details.isTotal());
+
+		// the percentiles, sketch, and sampling rate make it through the adapter
+		snapshot.clear(2000);
+		double[] percentiles = new double[] { 0.5, 0.99 };
+		double[] percentileValues = new double[] { 10.0, 20.0 };
+		snapshot.add(metric,
+				new MetricValueDetails(15.0, 10, 5.0, 25.0, percentiles, percentileValues, "sketch", 0.25));
+		adapter.persist(snapshot);
+		details = persisted[0];
+		assertEquals(15L, details.getValue());
+		assertEquals(10, details.getNumSamples());
+		assertArrayEquals(percentiles, details.getPercentiles(), 0);
+		assertArrayEquals(percentileValues, details.getPercentileValues(), 0);
+		assertEquals("sketch", details.getSerializedSketch());
+		assertEquals(0.25, details.getSamplingRate(), 0);
+
+		// as does the total flag
+		snapshot.clear(2500);
+		snapshot.add(metric, 1.75, 2, 1.75, 1.75, true);
+		adapter.persist(snapshot);
+		assertTrue(persisted[0].isTotal());
+
+		// the object columns are let go when cleared
+		snapshot.clear(3000);
+		snapshot.add(metric, 1, 1, 1, 1);
+		assertNull(snapshot.getPercentiles(0));
+		assertNull(snapshot.getSerializedSketch(0));
+		assertEquals(1.0, snapshot.getSamplingRate(0), 0);
+	}
+
+	@Test
+	public void testInUse() {
+		MetricsSnapshot snapshot = new MetricsSnapshot();
+		assertFalse(snapshot.isInUse());
+		snapshot.acquire();
+		snapshot.acquire();
+		assertTrue(snapshot.isInUse());
+		snapshot.release();
+		assertTrue(snapshot.isInUse());
+		snapshot.release();
+		assertFalse(snapshot.isInUse());
+	}
+}
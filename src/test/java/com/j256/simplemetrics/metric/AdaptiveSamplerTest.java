@@ -0,0 +1,154 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveSamplerTest {
+
+	@Test
+	public void testSampleEvery() {
+		ManualClock clock = new ManualClock();
+		AdaptiveSampler sampler = new AdaptiveSampler(100, 1, TimeUnit.SECONDS, clock);
+		assertEquals(100, sampler.getMaxPerSecond());
+		assertEquals(1, sampler.getSampleEvery());
+		for (int i = 0; i < 999; i++) {
+			assertEquals(1, sampler.sample());
+		}
+		clock.nanos += TimeUnit.SECONDS.toNanos(1);
+		// this closes the window of 1000 adjustments
+		assertEquals(1, sampler.sample());
+		assertEquals(10, sampler.getSampleEvery());
+		assertEquals(1.0, sampler.getSamplingRate(true), 0);
+
+		int numRecorded = 0;
+		for (int i = 0; i < 100000; i++) {
+			long weight = sampler.sample();
+			if (weight != 0) {
+				assertEquals(10, weight);
+				numRecorded++;
+			}
+		}
+		assertEquals(10000, numRecorded, 1000);
+		assertEquals(0.1, sampler.getSamplingRate(true), 0);
+
+		// the rate drops so the next window records everything again
+		clock.nanos += TimeUnit.SECONDS.toNanos(10000);
+		while (sampler.sample() == 0) {
+			// wait for an adjustment to be recorded which closes the window
+		}
+		assertEquals(1, sampler.getSampleEvery());
+	}
+
+	@Test
+	public void testAccum() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricAccum metric = new ControlledMetricAccum("c", "m", "n", "d", null);
+		assertNull(metric.getAdaptiveSampler());
+		AdaptiveSampler sampler = new AdaptiveSampler(1000, 1, TimeUnit.SECONDS, clock);
+		metric.setAdaptiveSampler(sampler);
+		assertSame(sampler, metric.getAdaptiveSampler());
+		for (int i = 0; i < 10000; i++) {
+			metric.increment();
+		}
+		clock.nanos += TimeUnit.SECONDS.toNanos(1);
+		for (int i = 0; i < 100000; i++) {
+			metric.increment();
+		}
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		// the skipped increments are scaled back up
+		assertEquals(110000, details.getValue().longValue(), 10000);
+		assertTrue(details.getSamplingRate() < 0.5);
+		assertTrue(details.toString().contains("samplingRate="));
+
+		metric.setAdaptiveSampler(null);
+		metric.increment();
+		details = metric.getValueDetailsToPersist();
+		assertEquals(1L, details.getValue());
+		assertEquals(1.0, details.getSamplingRate(), 0);
+	}
+
+	@Test
+	public void testValue() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricValue metric = new ControlledMetricValue("c", "m", "n", "d", null);
+		metric.setAdaptiveSampler(new AdaptiveSampler(10, 1, TimeUnit.SECONDS, clock));
+		for (int i = 0; i < 100; i++) {
+			metric.adjustValue(5);
+		}
+		clock.nanos += TimeUnit.SECONDS.toNanos(1);
+		for (int i = 0; i < 10000; i++) {
+			metric.adjustValue(5);
+		}
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		// the average is not changed by the sampling
+		assertEquals(5L, details.getValue());
+		assertEquals(10100, details.getNumSamples(), 2000);
+		assertTrue(details.getSamplingRate() < 0.5);
+	}
+
+	@Test
+	public void testRatio() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricRatio metric = new ControlledMetricRatio("c", "m", "n", "d", null);
+		metric.setAdaptiveSampler(new AdaptiveSampler(10, 1, TimeUnit.SECONDS, clock));
+		for (int i = 0; i < 100; i++) {
+			metric.adjustValue(1, 2);
+		}
+		clock.nanos += TimeUnit.SECONDS.toNanos(1);
+		for (int i = 0; i < 10000; i++) {
+			metric.adjustValue(1, 2);
+		}
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		// the average is not changed by the sampling
+		assertEquals(0.5, details.getValue().doubleValue(), 0);
+		assertEquals(10100, details.getNumSamples(), 2000);
+		assertTrue(details.getSamplingRate() < 0.5);
+	}
+
+	@Test
+	public void testBulk() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricAccum accum = new ControlledMetricAccum("c", "m", "accum", "d", null);
+		accum.setAdaptiveSampler(new AdaptiveSampler(1000, 1, TimeUnit.SECONDS, clock));
+		ControlledMetricValue value = new ControlledMetricValue("c", "m", "value", "d", null);
+		value.setAdaptiveSampler(new AdaptiveSampler(1000, 1, TimeUnit.SECONDS, clock));
+		long[] batch = new long[] { 1, 1, 1, 1, 1, 1, 1, 1, 1, 1 };
+		// the batches count each of their adjustments towards the rate
+		for (int i = 0; i < 999; i++) {
+			accum.adjustValues(batch, 0, batch.length);
+			value.adjustValues(batch, 0, batch.length);
+		}
+		clock.nanos += TimeUnit.SECONDS.toNanos(1);
+		// the first batch closes the window of 10000 adjustments
+		for (int i = 0; i < 10001; i++) {
+			accum.adjustValues(batch, 0, batch.length);
+			value.adjustValues(batch, 0, batch.length);
+		}
+		assertEquals(10, accum.getAdaptiveSampler().getSampleEvery());
+		MetricValueDetails details = accum.getValueDetailsToPersist();
+		// the skipped batches are scaled back up
+		assertEquals(110000, details.getValue().longValue(), 20000);
+		assertTrue(details.getSamplingRate() < 0.5);
+		details = value.getValueDetailsToPersist();
+		assertEquals(1L, details.getValue());
+		assertEquals(110000, details.getNumSamples(), 20000);
+		assertTrue(details.getSamplingRate() < 0.5);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testNotSupported() {
+		ControlledMetricRate metric = new ControlledMetricRate("c", "m", "n", "d");
+		metric.setAdaptiveSampler(new AdaptiveSampler(10));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadMax() {
+		new AdaptiveSampler(0);
+	}
+}
@@ -0,0 +1,204 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetricAccum.AccumValue;
+
+public class BaseControlledMetricTest {
+
+	@Test
+	public void testPersistIntervals() {
+		StoredMetric metric = new StoredMetric();
+		metric.adjustValue(10);
+		metric.adjustValue(5);
+		assertEquals(15L, metric.getValueToPersist());
+		// retains the value until the next adjustment
+		assertEquals(15L, metric.getValue());
+		assertEquals(0L, metric.getValueToPersist());
+		assertEquals(0L, metric.getValueToPersist());
+		metric.adjustValue(3);
+		assertEquals(3L, metric.getValue());
+		assertEquals(3L, metric.getValueToPersist());
+	}
+
+	@Test(timeout = 20000)
+	public void testPersistDuringAdjustments() throws Exception {
+		final StoredMetric metric = new StoredMetric();
+		final int numThreads = 4;
+		final int numAdjustments = 100000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdjustments; j++) {
+						metric.adjustValue(1);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		long total = 0;
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				total += metric.getValueToPersist().longValue();
+				// transient reads while persisting should not disturb the intervals
+				metric.getValue();
+			}
+			thread.join();
+		}
+		total += metric.getValueToPersist().longValue();
+		assertEquals(numThreads * numAdjustments, total);
+	}
+
+	@Test(timeout = 20000)
+	public void testFoldDuringPersists() throws Exception {
+		final FoldingMetric metric = new FoldingMetric();
+		final int numThreads = 4;
+		final int numAdjustments = 100000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdjustments; j++) {
+						metric.adjustValue(1);
+						if (j % 100 == 0) {
+							// transient reads fold concurrently with the persists
+							metric.getValue();
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		long total = 0;
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				total += metric.getValueToPersist().longValue();
+			}
+			thread.join();
+		}
+		total += metric.getValueToPersist().longValue();
+		assertEquals(numThreads * numAdjustments, total);
+	}
+
+	@Test(timeout = 20000)
+	public void testSlowFoldDoesNotStallPersist() throws Exception {
+		final FoldingMetric metric = new FoldingMetric();
+		final CountDownLatch folding = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				metric.slowFoldThread = Thread.currentThread();
+				metric.folding = folding;
+				metric.release = release;
+				metric.getValue();
+			}
+		});
+		reader.start();
+		folding.await();
+		metric.adjustValue(2);
+		// the persist finishes while the other reader is still in the middle of its fold
+		assertEquals(2L, metric.getValueToPersist());
+		release.countDown();
+		reader.join();
+	}
+
+	/**
+	 * Metric which stores every adjustment into the metric-value.
+	 */
+	private static class StoredMetric extends BaseControlledMetric<Long, AccumValue> {
+
+		public StoredMetric() {
+			super("c", null, "n", null, null);
+		}
+
+		@Override
+		public AccumValue createInitialValue() {
+			return AccumValue.createInitialValue();
+		}
+
+		@Override
+		public Long makeValueFromLong(long value) {
+			return value;
+		}
+
+		@Override
+		public Long makeValueFromNumber(Number value) {
+			return value.longValue();
+		}
+
+		@Override
+		public AggregationType getAggregationType() {
+			return AggregationType.SUM;
+		}
+	}
+
+	/**
+	 * Metric which records adjustments into a pending counter and folds them in when it is read.
+	 */
+	private static class FoldingMetric extends BaseControlledMetric<Long, AccumValue> {
+
+		private final AtomicLong pending = new AtomicLong();
+		volatile Thread slowFoldThread;
+		volatile CountDownLatch folding;
+		volatile CountDownLatch release;
+
+		public FoldingMetric() {
+			super("c", null, "n", null, null);
+		}
+
+		@Override
+		public void adjustValue(long value) {
+			pending.addAndGet(value);
+		}
+
+		@Override
+		protected void foldPending() {
+			if (Thread.currentThread() == slowFoldThread) {
+				folding.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+			long sum = pending.getAndSet(0);
+			if (sum == 0) {
+				return;
+			}
+			AccumValue current;
+			do {
+				current = getCurrentMetricValue();
+			} while (!compareAndSetMetricValue(current, current.makeAdjusted(sum)));
+		}
+
+		@Override
+		public AccumValue createInitialValue() {
+			return AccumValue.createInitialValue();
+		}
+
+		@Override
+		public Long makeValueFromLong(long value) {
+			return value;
+		}
+
+		@Override
+		public Long makeValueFromNumber(Number value) {
+			return value.longValue();
+		}
+
+		@Override
+		public AggregationType getAggregationType() {
+			return AggregationType.SUM;
+		}
+	}
+}
@@ -159,4 +159,62 @@ public class ControlledMetricAccumTest {
 
 		assertEquals((long) (delta * numberIncrements), metric.getValue());
 	}
+
+	@Test
+	public void testStriped() {
+		ControlledMetricAccum metric = new ControlledMetricAccum("c", "m", "n", "d", null, true);
+		assertTrue(metric.isStriped());
+		assertEquals(0L, metric.getValue());
+		metric.add(100);
+		metric.increment();
+		metric.adjustValue(10L);
+		metric.adjustValue((Number) 5);
+		assertEquals(116L, metric.getValue());
+		assertEquals(116L, metric.getValueToPersist());
+		assertEquals(0L, metric.getValueToPersist());
+		metric.increment();
+		assertEquals(1L, metric.getValueDetailsToPersist().getValue());
+		assertFalse(new ControlledMetricAccum("c", "m", "n", "d", null).isStriped());
+	}
+
+	@Test
+	public void testStripedThreads() throws Exception {
+		final ControlledMetricAccum metric = new ControlledMetricAccum("c", "m", "n", "d", null, true);
+		final int numIncrements = 100000;
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int x = 0; x < numIncrements; x++) {
+						metric.increment();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals((long) threads.length * numIncrements, metric.getValueToPersist());
+	}
+
+	@Test
+	public void testAdjustValues() {
+		ControlledMetricAccum metric = new ControlledMetricAccum("c", "m", "n", "d", null);
+		metric.adjustValues(new long[] { 1000, 1, 2, 3 }, 1, 3);
+		assertEquals(6L, metric.getValue());
+		metric.adjustValues(new double[] { 1.9, 2.1 }, 0, 2);
+		assertEquals(9L, metric.getValue());
+
+		ControlledMetricAccum striped = new ControlledMetricAccum("c", "m", "n", "d", null, true);
+		striped.adjustValues(new long[] { 5, 10 }, 0, 2);
+		assertEquals(15L, striped.getValueToPersist());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testAdjustValuesOutOfRange() {
+		ControlledMetricAccum metric = new ControlledMetricAccum("c", "m", "n", "d", null);
+		metric.adjustValues(new long[] { 1, 2 }, -1, 1);
+	}
 }
@@ -0,0 +1,113 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+
+public class ControlledMetricConcurrencyTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void testTimeWeighted() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricConcurrency metric = new ControlledMetricConcurrency("c", "m", "n", "d", null, clock);
+		assertEquals(AggregationType.AVERAGE, metric.getAggregationType());
+
+		// 1 in-flight for 6 seconds with a burst of 10 more for 1 second
+		assertEquals(1, metric.increment());
+		clock.nanos += 2 * SECOND;
+		metric.add(10);
+		assertEquals(11, metric.getInFlight());
+		clock.nanos += SECOND;
+		metric.add(-10);
+		clock.nanos += 3 * SECOND;
+
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		// (1 * 6 + 10 * 1) / 6
+		assertEquals(16.0 / 6, details.getValue().doubleValue(), 0.0000001);
+		// nothing was in-flight when the metric was created
+		assertEquals(0L, details.getMin());
+		assertEquals(11L, details.getMax());
+		assertEquals(11, details.getNumSamples());
+
+		// the next interval starts with the 1 still in-flight
+		clock.nanos += 2 * SECOND;
+		metric.decrement();
+		clock.nanos += 2 * SECOND;
+		details = metric.getValueDetailsToPersist();
+		assertEquals(0.5, details.getValue().doubleValue(), 0.0000001);
+		assertEquals(0L, details.getMin());
+		assertEquals(1L, details.getMax());
+		assertEquals(1, details.getNumSamples());
+		assertEquals(0, metric.getInFlight());
+	}
+
+	@Test
+	public void testLongRunningWork() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricConcurrency metric = new ControlledMetricConcurrency("c", "m", "n", "d", null, clock);
+		metric.adjustValue(3);
+		clock.nanos += SECOND;
+		assertEquals(3.0, metric.getValueToPersist().doubleValue(), 0);
+		// nothing changes but the work is still in-flight
+		clock.nanos += SECOND;
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(3.0, details.getValue().doubleValue(), 0);
+		assertEquals(3L, details.getMin());
+		assertEquals(3L, details.getMax());
+	}
+
+	@Test
+	public void testReadsAccumulate() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricConcurrency metric = new ControlledMetricConcurrency("c", "m", "n", "d", null, clock);
+		metric.adjustValue(Long.valueOf(2));
+		clock.nanos += SECOND;
+		// transient reads fold the time so far into the same interval
+		assertEquals(2.0, metric.getValue().doubleValue(), 0);
+		metric.add(-2);
+		clock.nanos += SECOND;
+		assertEquals(1.0, metric.getValue().doubleValue(), 0);
+		assertEquals(1.0, metric.getValueToPersist().doubleValue(), 0);
+	}
+
+	@Test(timeout = 10000)
+	public void testThreads() throws Exception {
+		final ControlledMetricConcurrency metric = new ControlledMetricConcurrency("c", "m", "n", "d", null);
+		final int numThreads = 4;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 100000; j++) {
+						metric.increment();
+						metric.decrement();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				MetricValueDetails details = metric.getValueDetailsToPersist();
+				assertTrue(details.getMin().longValue() >= 0);
+				assertTrue(details.getMax().longValue() <= numThreads);
+				double value = details.getValue().doubleValue();
+				assertTrue(details.toString(), value >= 0.0 && value <= numThreads);
+			}
+			thread.join();
+		}
+		metric.getValueToPersist();
+		assertEquals(0, metric.getInFlight());
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(0.0, details.getValue().doubleValue(), 0);
+		assertEquals(0L, details.getMax());
+	}
+}
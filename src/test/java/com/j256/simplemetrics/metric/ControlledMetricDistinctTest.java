@@ -0,0 +1,109 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+
+public class ControlledMetricDistinctTest {
+
+	@Test
+	public void testSmall() {
+		ControlledMetricDistinct metric = new ControlledMetricDistinct("comp", "mod", "name", "desc", "users");
+		assertEquals(AggregationType.AVERAGE, metric.getAggregationType());
+		assertEquals(ControlledMetricDistinct.DEFAULT_PRECISION, metric.getPrecision());
+		assertEquals(0L, metric.getValue());
+		for (int i = 0; i < 3; i++) {
+			metric.add(1L);
+			metric.add("192.168.1.1");
+			metric.adjustValue(2L);
+			metric.adjustValue(Integer.valueOf(3));
+		}
+		metric.add((String) null);
+		assertEquals(4L, metric.getValue());
+	}
+
+	@Test
+	public void testLarge() {
+		ControlledMetricDistinct metric = new ControlledMetricDistinct("comp", "mod", "name", "desc", "users");
+		int numItems = 100000;
+		for (int i = 0; i < numItems; i++) {
+			metric.add(i);
+			// duplicates are not counted
+			metric.add(i);
+		}
+		long estimate = metric.getValue().longValue();
+		assertTrue("estimate " + estimate, Math.abs(estimate - numItems) < numItems * 0.05);
+	}
+
+	@Test
+	public void testStrings() {
+		ControlledMetricDistinct metric = new ControlledMetricDistinct("comp", "mod", "name", "desc", "keys", 14);
+		int numItems = 20000;
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < numItems; i++) {
+			sb.setLength(0);
+			sb.append("key-").append(i);
+			metric.add(sb);
+			metric.add(sb.toString());
+		}
+		long estimate = metric.getValue().longValue();
+		assertTrue("estimate " + estimate, Math.abs(estimate - numItems) < numItems * 0.05);
+	}
+
+	@Test
+	public void testPersistResets() {
+		ControlledMetricDistinct metric = new ControlledMetricDistinct("comp", "mod", "name", "desc", "users");
+		for (int i = 0; i < 10; i++) {
+			metric.add(i);
+		}
+		assertEquals(10L, metric.getValueToPersist());
+		// still shows the value until the next adjustment
+		assertEquals(10L, metric.getValue());
+		metric.add(100);
+		metric.add(101);
+		metric.add(1);
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(3L, details.getValue());
+		assertEquals(1, details.getNumSamples());
+		// persisting again without adjustments resets
+		assertEquals(0L, metric.getValueToPersist());
+	}
+
+	@Test
+	public void testEstimateEmpty() {
+		assertEquals(0, ControlledMetricDistinct.estimate(new byte[16]));
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		final ControlledMetricDistinct metric = new ControlledMetricDistinct("comp", "mod", "name", "desc", "users");
+		final int numThreads = 4;
+		final int numItems = 20000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					// all threads add the same items
+					for (int j = 0; j < numItems; j++) {
+						metric.add(j);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long estimate = metric.getValue().longValue();
+		assertTrue("estimate " + estimate, Math.abs(estimate - numItems) < numItems * 0.05);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadPrecision() {
+		new ControlledMetricDistinct("comp", "mod", "name", "desc", "users", 3);
+	}
+}
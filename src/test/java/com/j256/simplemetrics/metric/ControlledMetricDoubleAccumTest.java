@@ -0,0 +1,98 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+
+public class ControlledMetricDoubleAccumTest {
+
+	@Test
+	public void testStuff() {
+		ControlledMetricDoubleAccum metric = new ControlledMetricDoubleAccum("c", "m", "n", "d", "Gigabytes");
+		assertEquals(0.0, metric.getValue().doubleValue(), 0);
+		metric.add(1.25);
+		metric.add(0.5);
+		metric.adjustValue(2L);
+		metric.adjustValue(Double.valueOf(0.25));
+		assertEquals(4.0, metric.getValue().doubleValue(), 0);
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(4, details.getNumSamples());
+		assertEquals(4.0, details.getMin().doubleValue(), 0);
+		assertEquals(4.0, details.getMax().doubleValue(), 0);
+		assertTrue(details.isTotal());
+		assertEquals(AggregationType.SUM, metric.getAggregationType());
+	}
+
+	@Test
+	public void testDoublePersist() {
+		ControlledMetricDoubleAccum metric = new ControlledMetricDoubleAccum("c", "m", "n", "d", null);
+		metric.add(1.5);
+		assertEquals(1.5, metric.getValueToPersist().doubleValue(), 0);
+		// like the accumulator, the value is kept until the next adjustment
+		assertEquals(1.5, metric.getValue().doubleValue(), 0);
+		assertEquals(0.0, metric.getValueToPersist().doubleValue(), 0);
+
+		metric.add(0.75);
+		assertEquals(0.75, metric.getValue().doubleValue(), 0);
+		assertEquals(0.75, metric.getValueToPersist().doubleValue(), 0);
+	}
+
+	@Test
+	public void testCompensation() {
+		ControlledMetricDoubleAccum metric = new ControlledMetricDoubleAccum("c", "m", "n", "d", null);
+		int numAdds = 10000000;
+		for (int i = 0; i < numAdds; i++) {
+			metric.add(0.1);
+		}
+		double exact = new BigDecimal(0.1).multiply(BigDecimal.valueOf(numAdds)).doubleValue();
+		assertEquals(exact, metric.getValue().doubleValue(), 1e-9);
+		assertEquals(numAdds, metric.getValueDetails().getNumSamples());
+	}
+
+	@Test
+	public void testFoldsIntoExisting() {
+		ControlledMetricDoubleAccum metric = new ControlledMetricDoubleAccum("c", "m", "n", "d", null);
+		metric.add(1e16);
+		assertEquals(1e16, metric.getValue().doubleValue(), 0);
+		// these would be lost if added to the total without compensation
+		metric.add(1.0);
+		metric.getValue();
+		metric.add(1.0);
+		metric.add(-1e16);
+		assertEquals(2.0, metric.getValue().doubleValue(), 0);
+	}
+
+	@Test(timeout = 10000)
+	public void testThreads() throws Exception {
+		final ControlledMetricDoubleAccum metric = new ControlledMetricDoubleAccum("c", "m", "n", "d", null);
+		final int numThreads = 4;
+		final int numAdds = 100000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdds; j++) {
+						metric.add(0.5);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		double total = 0.0;
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				// persist while the adders are running to race with the drain
+				total += metric.getValueToPersist().doubleValue();
+			}
+			thread.join();
+		}
+		total += metric.getValueToPersist().doubleValue();
+		assertEquals(numThreads * numAdds * 0.5, total, 0);
+	}
+}
@@ -0,0 +1,174 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+
+public class ControlledMetricFamilyTest {
+
+	@Test
+	public void testChildren() {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricFamily<ControlledMetricAccum> family = new ControlledMetricFamily<ControlledMetricAccum>(
+				manager, "comp", "mod", "requests", "desc", null, new String[] { "endpoint", "status" },
+				ControlledMetricFamily.accumFactory());
+		assertArrayEquals(new String[] { "endpoint", "status" }, family.getLabelNames());
+		ControlledMetricAccum child = family.getChild("/users", "200");
+		assertSame(child, family.getChild("/users", "200"));
+		assertSame(child, family.getChild(new String[] { "/users", "200" }));
+		ControlledMetricAccum other = family.getChild("/users", "500");
+		assertFalse(child == other);
+		assertFalse(child.equals(other));
+		assertEquals("requests", child.getName());
+		assertArrayEquals(new String[] { "endpoint", "status" }, child.getLabelNames());
+		assertArrayEquals(new String[] { "/users", "200" }, child.getLabelValues());
+		assertEquals("comp.mod.requests{endpoint=/users,status=200}", child.toString());
+
+		// the children are registered lazily
+		assertEquals(2, manager.getMetrics().size());
+		assertEquals(2, family.getChildren().size());
+
+		child.increment();
+		other.add(2);
+		assertEquals(1L, manager.getMetricValuesMap().get(child));
+		assertEquals(2L, manager.getMetricValuesMap().get(other));
+	}
+
+	@Test
+	public void testLabelsInIdentity() {
+		ControlledMetricFamily<ControlledMetricValue> family = new ControlledMetricFamily<ControlledMetricValue>(null,
+				"comp", "mod", "latency", "desc", "ms", new String[] { "endpoint" },
+				ControlledMetricFamily.valueFactory());
+		ControlledMetricValue child = family.getChild("/a");
+		ControlledMetricValue plain = new ControlledMetricValue("comp", "mod", "latency", "desc", "ms");
+		assertFalse(child.equals(plain));
+		assertFalse(plain.equals(child));
+		assertTrue(child.compareTo(plain) > 0);
+		assertTrue(child.compareTo(family.getChild("/b")) < 0);
+		assertEquals(0, child.compareTo(child));
+		assertEquals(0, plain.getLabelNames().length);
+	}
+
+	@Test
+	public void testManyChildren() {
+		ControlledMetricFamily<ControlledMetricAccum> family = new ControlledMetricFamily<ControlledMetricAccum>(null,
+				"comp", "mod", "requests", "desc", null, new String[] { "a", "b", "c" },
+				ControlledMetricFamily.accumFactory());
+		int numChildren = 1000;
+		for (int i = 0; i < numChildren; i++) {
+			family.getChild("x" + i, "y", Integer.toString(i % 3)).increment();
+		}
+		assertEquals(numChildren, family.getChildren().size());
+		for (int i = 0; i < numChildren; i++) {
+			assertEquals(1L, family.getChild("x" + i, "y", Integer.toString(i % 3)).getValue());
+		}
+	}
+
+	@Test
+	public void testMoreLabels() {
+		ControlledMetricFamily<ControlledMetricAccum> family = new ControlledMetricFamily<ControlledMetricAccum>(null,
+				"comp", "mod", "requests", "desc", null, new String[] { "a", "b", "c", "d" },
+				ControlledMetricFamily.accumFactory());
+		ControlledMetricAccum child = family.getChild("1", "2", "3", "4");
+		assertSame(child, family.getChild("1", "2", "3", "4"));
+		assertFalse(child == family.getChild("1", "2", "3", "5"));
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		final MetricsManager manager = new MetricsManager();
+		final ControlledMetricFamily<ControlledMetricAccum> family =
+				new ControlledMetricFamily<ControlledMetricAccum>(manager, "comp", "mod", "requests", "desc", null,
+						new String[] { "status" }, ControlledMetricFamily.accumFactory());
+		final int numThreads = 8;
+		final int numValues = 100;
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Set<ControlledMetricAccum> children =
+				Collections.synchronizedSet(new HashSet<ControlledMetricAccum>());
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						latch.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < numValues; j++) {
+						ControlledMetricAccum child = family.getChild(Integer.toString(j));
+						child.increment();
+						children.add(child);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		latch.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(numValues, children.size());
+		assertEquals(numValues, manager.getMetrics().size());
+		for (ControlledMetricAccum child : children) {
+			assertEquals((long) numThreads, child.getValue());
+		}
+	}
+
+	@Test
+	public void testSameIdentityOtherFamily() {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricFamily<ControlledMetricAccum> family = new ControlledMetricFamily<ControlledMetricAccum>(
+				manager, "comp", "mod", "requests", "desc", null, new String[] { "a" },
+				ControlledMetricFamily.accumFactory());
+		ControlledMetricAccum child = family.getChild("1");
+		// a family of the same class shares the registered child
+		ControlledMetricFamily<ControlledMetricAccum> same = new ControlledMetricFamily<ControlledMetricAccum>(manager,
+				"comp", "mod", "requests", "desc", null, new String[] { "a" }, ControlledMetricFamily.accumFactory());
+		assertSame(child, same.getChild("1"));
+		ControlledMetricFamily<ControlledMetricValue> other = new ControlledMetricFamily<ControlledMetricValue>(manager,
+				"comp", "mod", "requests", "desc", null, new String[] { "a" }, ControlledMetricFamily.valueFactory());
+		try {
+			other.getChild("1");
+			fail("should have thrown");
+		} catch (IllegalArgumentException iae) {
+			// expected
+		}
+		// no orphaned child was left behind
+		assertTrue(other.getChildren().isEmpty());
+		assertEquals(1, manager.getMetrics().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWrongNumValues() {
+		ControlledMetricFamily<ControlledMetricAccum> family = new ControlledMetricFamily<ControlledMetricAccum>(null,
+				"comp", "mod", "requests", "desc", null, new String[] { "a", "b" },
+				ControlledMetricFamily.accumFactory());
+		family.getChild("1");
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testNullValue() {
+		ControlledMetricFamily<ControlledMetricAccum> family = new ControlledMetricFamily<ControlledMetricAccum>(null,
+				"comp", "mod", "requests", "desc", null, new String[] { "a" }, ControlledMetricFamily.accumFactory());
+		family.getChild((String) null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoLabels() {
+		new ControlledMetricFamily<ControlledMetricAccum>(null, "comp", "mod", "requests", "desc", null, new String[0],
+				ControlledMetricFamily.accumFactory());
+	}
+}
@@ -0,0 +1,183 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.metric.ControlledMetricGauge.DoubleProbe;
+import com.j256.simplemetrics.metric.ControlledMetricGauge.LongProbe;
+import com.j256.simplemetrics.persister.MetricDetailsPersister;
+
+public class ControlledMetricGaugeTest {
+
+	@Test
+	public void testLazyTtl() {
+		ManualClock clock = new ManualClock();
+		final AtomicInteger numCalls = new AtomicInteger();
+		ControlledMetricGauge gauge =
+				new ControlledMetricGauge("comp", "mod", "name", "desc", "bytes", new LongProbe() {
+					@Override
+					public long getValue() {
+						return numCalls.incrementAndGet() * 100L;
+					}
+				}, 10, TimeUnit.SECONDS, clock);
+		// not evaluated until read
+		assertEquals(0, numCalls.get());
+		assertEquals(100L, gauge.getValue());
+		assertEquals(100L, gauge.getValueToPersist());
+		assertEquals(100L, gauge.getValueDetails().getMax());
+		assertEquals(1, gauge.getValueDetails().getNumSamples());
+		assertEquals(1, numCalls.get());
+		clock.nanos += TimeUnit.SECONDS.toNanos(10);
+		assertEquals(200L, gauge.getValue());
+		assertEquals(2, numCalls.get());
+	}
+
+	@Test
+	public void testNoTtl() {
+		final AtomicInteger numCalls = new AtomicInteger();
+		ControlledMetricGauge gauge = new ControlledMetricGauge("comp", "mod", "name", "desc", "bytes",
+				new DoubleProbe() {
+					@Override
+					public double getValue() {
+						return numCalls.incrementAndGet() / 2.0;
+					}
+				}, 0, TimeUnit.SECONDS, new ManualClock());
+		assertEquals(0.5, gauge.getValue().doubleValue(), 0.0);
+		assertEquals(1.0, gauge.getValue().doubleValue(), 0.0);
+	}
+
+	@Test
+	public void testNoUpdaterNeeded() {
+		MetricsManager manager = new MetricsManager();
+		final AtomicInteger queueSize = new AtomicInteger(5);
+		ControlledMetricGauge gauge = new ControlledMetricGauge("comp", "mod", "name", "desc", "bytes", new LongProbe() {
+			@Override
+			public long getValue() {
+				return queueSize.get();
+			}
+		}, 0, TimeUnit.SECONDS, new ManualClock());
+		manager.registerMetric(gauge);
+		assertEquals(5L, manager.getMetricValuesMap().get(gauge));
+		queueSize.set(7);
+		assertEquals(7L, manager.getMetricValueDetailsMap().get(gauge).getValue());
+	}
+
+	@Test
+	public void testConcurrentReadersEvaluateOnce() throws Exception {
+		final AtomicInteger numCalls = new AtomicInteger();
+		final CountDownLatch probeLatch = new CountDownLatch(1);
+		final ControlledMetricGauge gauge =
+				new ControlledMetricGauge("comp", "mod", "name", "desc", "bytes", new LongProbe() {
+					@Override
+					public long getValue() {
+						numCalls.incrementAndGet();
+						try {
+							probeLatch.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+						return 1;
+					}
+				});
+		Thread[] threads = new Thread[4];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					gauge.getValue();
+				}
+			});
+			threads[i].start();
+		}
+		Thread.sleep(100);
+		probeLatch.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, numCalls.get());
+	}
+
+	@Test
+	public void testAdjust() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricGauge gauge =
+				new ControlledMetricGauge("comp", "mod", "name", "desc", "bytes", new LongProbe() {
+					@Override
+					public long getValue() {
+						return 1;
+					}
+				}, 10, TimeUnit.SECONDS, clock);
+		// the adjusted value is used until the ttl expires
+		gauge.adjustValue(5);
+		assertEquals(5L, gauge.getValue());
+		gauge.adjustValue(Double.valueOf(6.5));
+		assertEquals(6.5, gauge.getValue());
+		clock.nanos += TimeUnit.SECONDS.toNanos(11);
+		assertEquals(1L, gauge.getValue());
+	}
+
+	@Test
+	public void testProbeThrows() throws Exception {
+		ManualClock clock = new ManualClock();
+		final AtomicInteger numCalls = new AtomicInteger();
+		ControlledMetricGauge gauge =
+				new ControlledMetricGauge("comp", "mod", "name", "desc", "bytes", new LongProbe() {
+					@Override
+					public long getValue() {
+						if (numCalls.incrementAndGet() % 2 == 0) {
+							throw new IllegalStateException("probe failed");
+						}
+						return 100;
+					}
+				}, 0, TimeUnit.SECONDS, clock);
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", null);
+		manager.registerMetric(gauge);
+		manager.registerMetric(accum);
+		assertEquals(100L, gauge.getValue());
+		// the failed probe keeps the last value
+		assertEquals(100L, gauge.getValueDetailsToPersist().getValue());
+		accum.add(3);
+		numCalls.set(1);
+		// the failing probe does not stop the other metrics from being persisted
+		Map<ControlledMetric<?, ?>, MetricValueDetails> details = persistDetails(manager);
+		assertEquals(100L, details.get(gauge).getValue());
+		assertEquals(3L, details.get(accum).getValue());
+
+		ControlledMetricGauge neverGauge =
+				new ControlledMetricGauge("comp", "mod", "never", "desc", "bytes", new DoubleProbe() {
+					@Override
+					public double getValue() {
+						throw new IllegalStateException("probe failed");
+					}
+				});
+		assertTrue(Double.isNaN(neverGauge.getValue().doubleValue()));
+		// nothing to publish
+		assertEquals(0, neverGauge.getValueDetailsToPersist().getNumSamples());
+	}
+
+	private Map<ControlledMetric<?, ?>, MetricValueDetails> persistDetails(MetricsManager manager) throws IOException {
+		final List<Map<ControlledMetric<?, ?>, MetricValueDetails>> persisted =
+				new ArrayList<Map<ControlledMetric<?, ?>, MetricValueDetails>>();
+		manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { new MetricDetailsPersister() {
+			@Override
+			public void persist(Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails,
+					long timeCollectedMillis) {
+				persisted.add(metricValueDetails);
+			}
+		} });
+		manager.persist();
+		return persisted.get(0);
+	}
+}
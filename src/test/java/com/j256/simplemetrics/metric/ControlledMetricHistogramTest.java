@@ -0,0 +1,176 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram.HistogramValue;
+
+public class ControlledMetricHistogramTest {
+
+	@Test
+	public void testPercentiles() {
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "ms");
+		assertEquals(AggregationType.AVERAGE, metric.getAggregationType());
+		assertEquals(ControlledMetricHistogram.DEFAULT_PRECISION_BITS, metric.getPrecisionBits());
+		assertArrayEquals(ControlledMetricHistogram.DEFAULT_PERCENTILES, metric.getPercentiles(), 0);
+		for (int i = 1; i <= 1000; i++) {
+			metric.adjustValue(i);
+		}
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(1000, details.getNumSamples());
+		assertEquals(500.5, details.getValue().doubleValue(), 0);
+		assertEquals(1L, details.getMin());
+		assertEquals(1000L, details.getMax());
+		assertArrayEquals(ControlledMetricHistogram.DEFAULT_PERCENTILES, details.getPercentiles(), 0);
+		double[] values = details.getPercentileValues();
+		double[] expected = new double[] { 500, 900, 990, 999 };
+		for (int i = 0; i < expected.length; i++) {
+			// relative error is at most 1/2^precision-bits
+			assertEquals(expected[i], values[i], expected[i] / (1 << metric.getPrecisionBits()));
+		}
+		assertTrue(details.toString().contains("p999="));
+	}
+
+	@Test
+	public void testPersist() {
+		ControlledMetricHistogram metric =
+				new ControlledMetricHistogram("c", "m", "n", "d", "ms", 4, new double[] { 50.0, 100.0 });
+		metric.adjustValue(10L);
+		metric.adjustValue((Number) 20);
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(2, details.getNumSamples());
+		assertEquals(15L, details.getValue());
+		// still there after the persist
+		assertEquals(2, metric.getValueDetails().getNumSamples());
+
+		// but reset after the next adjustment
+		metric.adjustValue(-5L);
+		details = metric.getValueDetails();
+		assertEquals(1, details.getNumSamples());
+		assertEquals(0L, details.getMin());
+		assertArrayEquals(new double[] { 0.0, 0.0 }, details.getPercentileValues(), 0);
+	}
+
+	@Test
+	public void testMergeAcrossReads() {
+		ControlledMetricHistogram metric =
+				new ControlledMetricHistogram("c", "m", "n", "d", "ms", 7, new double[] { 25.0, 50.0, 75.0, 100.0 });
+		// each read folds a few buckets which have to be merged with the ones already folded
+		metric.adjustValue(1000L);
+		metric.getValueDetails();
+		metric.adjustValue(10L);
+		metric.adjustValue(1000L);
+		metric.getValueDetails();
+		metric.adjustValue(100L);
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(4, details.getNumSamples());
+		assertEquals(10L, details.getMin());
+		assertEquals(1000L, details.getMax());
+		double[] values = details.getPercentileValues();
+		assertEquals(10.0, values[0], 0);
+		assertEquals(100.0, values[1], 0);
+		assertEquals(1000.0, values[2], 1000.0 / (1 << metric.getPrecisionBits()));
+		assertEquals(1000.0, values[3], 0);
+	}
+
+	@Test
+	public void testNoSamples() {
+		ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", "ms");
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(0, details.getNumSamples());
+		assertEquals(0L, details.getValue());
+		assertEquals(0, details.getPercentileValues().length);
+	}
+
+	@Test
+	public void testBuckets() {
+		Random random = new Random();
+		for (int bits = 1; bits <= 10; bits++) {
+			int lastIndex = -1;
+			for (long value = 0; value < 10000; value++) {
+				int index = ControlledMetricHistogram.bucketIndex(bits, value);
+				// buckets are contiguous
+				assertTrue(index == lastIndex || index == lastIndex + 1);
+				lastIndex = index;
+				assertTrue(ControlledMetricHistogram.bucketLowerBound(bits, index) <= value);
+				assertTrue(ControlledMetricHistogram.bucketUpperBound(bits, index) >= value);
+			}
+			for (int i = 0; i < 1000; i++) {
+				long value = random.nextLong() & Long.MAX_VALUE;
+				int index = ControlledMetricHistogram.bucketIndex(bits, value);
+				long lower = ControlledMetricHistogram.bucketLowerBound(bits, index);
+				long upper = ControlledMetricHistogram.bucketUpperBound(bits, index);
+				assertTrue(lower <= value && value <= upper);
+				assertTrue((upper - lower) / (double) lower <= 1.0 / (1 << (bits - 1)));
+			}
+			int top = ControlledMetricHistogram.bucketIndex(bits, Long.MAX_VALUE);
+			assertEquals(Long.MAX_VALUE, ControlledMetricHistogram.bucketUpperBound(bits, top));
+		}
+	}
+
+	@Test
+	public void testValueMakeAdjusted() {
+		HistogramValue value = HistogramValue.createInitialValue().makeAdjusted(100L);
+		assertEquals(1, value.getNumSamples());
+		assertEquals(100.0, value.getValueAtPercentile(50.0), 0);
+	}
+
+	@Test
+	public void testNotHistogram() {
+		MetricValueDetails details = new ControlledMetricValue("c", "m", "n", "d", null).getValueDetails();
+		assertNull(details.getPercentiles());
+		assertNull(details.getPercentileValues());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadPrecision() {
+		new ControlledMetricHistogram("c", "m", "n", "d", "ms", 11, new double[] { 50.0 });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadPercentile() {
+		new ControlledMetricHistogram("c", "m", "n", "d", "ms", 5, new double[] { 101.0 });
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testNullPercentiles() {
+		new ControlledMetricHistogram("c", "m", "n", "d", "ms", 5, null);
+	}
+
+	@Test(timeout = 10000)
+	public void testReadsRaceWithAdjusts() throws Exception {
+		final ControlledMetricHistogram metric = new ControlledMetricHistogram("c", "m", "n", "d", null);
+		final int numThreads = 4;
+		final int numAdjusts = 100000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdjusts; j++) {
+						metric.adjustValue(5);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				// read while the adjusters are running to race with the drain
+				metric.getValueDetails();
+			}
+			thread.join();
+		}
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(numThreads * numAdjusts, details.getNumSamples());
+		// a sum that raced without its count would be lost and pull down the average
+		assertEquals(5.0, details.getValue().doubleValue(), 0);
+	}
+}
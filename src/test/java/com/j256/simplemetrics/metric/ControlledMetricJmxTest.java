@@ -2,6 +2,8 @@ package com.j256.simplemetrics.metric;
 
 import static org.junit.Assert.assertEquals;
 
+import javax.management.ObjectName;
+
 import org.junit.Test;
 
 import com.j256.simplejmx.common.JmxFolderName;
@@ -25,4 +27,26 @@ public class ControlledMetricJmxTest {
 		assertEquals(description, metricJmx.getDescription());
 		assertEquals(unit, metricJmx.getUnit());
 	}
+
+	@Test
+	public void testLabeledBeanName() {
+		ControlledMetricFamily<ControlledMetricAccum> family = new ControlledMetricFamily<ControlledMetricAccum>(null,
+				"c", "m", "n", "d", null, new String[] { "endpoint", "status" }, ControlledMetricFamily.accumFactory());
+		ControlledMetricJmx metricJmx = new ControlledMetricJmx(family.getChild("users", "200"), "com.j256",
+				new JmxFolderName[] { new JmxFolderName("metrics") });
+		assertEquals("n", metricJmx.getName());
+		assertEquals("n.users.200", metricJmx.getJmxBeanName());
+	}
+
+	@Test
+	public void testLabeledBeanNameQuoted() throws Exception {
+		ControlledMetricFamily<ControlledMetricAccum> family = new ControlledMetricFamily<ControlledMetricAccum>(null,
+				"c", "m", "n", "d", null, new String[] { "query" }, ControlledMetricFamily.accumFactory());
+		ControlledMetricJmx metricJmx = new ControlledMetricJmx(family.getChild("a=1,b=\"*\""), "com.j256",
+				new JmxFolderName[] { new JmxFolderName("metrics") });
+		String beanName = metricJmx.getJmxBeanName();
+		assertEquals("n.a=1,b=\"*\"", ObjectName.unquote(beanName));
+		// must be a legal object-name value
+		new ObjectName("com.j256:name=" + beanName);
+	}
 }
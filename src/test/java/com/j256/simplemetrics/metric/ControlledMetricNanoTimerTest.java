@@ -0,0 +1,96 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ControlledMetricNanoTimerTest {
+
+	@Test
+	public void testStartStop() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricNanoTimer timer = new ControlledMetricNanoTimer("comp", "mod", "name", "desc",
+				TimeUnit.MILLISECONDS, clock);
+		assertEquals("milliseconds", timer.getUnit());
+		long start = timer.start();
+		clock.nanos += 1500000;
+		assertEquals(1500000, timer.stop(start));
+		start = timer.start();
+		clock.nanos += 500000;
+		assertEquals(500000, timer.stop(start));
+		MetricValueDetails details = timer.getValueDetails();
+		assertEquals(1.0, details.getValue().doubleValue(), 0.0);
+		assertEquals(2, details.getNumSamples());
+		assertEquals(0.5, details.getMin().doubleValue(), 0.0);
+		assertEquals(1.5, details.getMax().doubleValue(), 0.0);
+	}
+
+	@Test
+	public void testTryWithResources() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricNanoTimer timer =
+				new ControlledMetricNanoTimer("comp", "mod", "name", "desc", TimeUnit.NANOSECONDS, clock);
+		ControlledMetricNanoTimer.TimerContext first;
+		try (ControlledMetricNanoTimer.TimerContext outer = timer.time()) {
+			first = outer;
+			clock.nanos += 10;
+			try (ControlledMetricNanoTimer.TimerContext inner = timer.time()) {
+				// the context is reused by the thread
+				assertSame(outer, inner);
+				clock.nanos += 20;
+			}
+			clock.nanos += 30;
+		}
+		assertSame(first, timer.time());
+		MetricValueDetails details = timer.getValueDetails();
+		assertEquals(2, details.getNumSamples());
+		assertEquals(20.0, details.getMin().doubleValue(), 0.0);
+		assertEquals(60.0, details.getMax().doubleValue(), 0.0);
+	}
+
+	@Test
+	public void testExtraCloseIgnored() {
+		ControlledMetricNanoTimer timer = new ControlledMetricNanoTimer("comp", "mod", "name", "desc",
+				TimeUnit.MICROSECONDS, new ManualClock());
+		timer.time().close();
+		timer.time().close();
+		// nothing was started so this is ignored
+		timer.time();
+		ControlledMetricNanoTimer.TimerContext context = timer.time();
+		for (int i = 0; i < 10; i++) {
+			context.close();
+		}
+		assertEquals(4, timer.getValueDetails().getNumSamples());
+	}
+
+	@Test
+	public void testNegativeElapsed() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricNanoTimer timer = new ControlledMetricNanoTimer("comp", "mod", "name", "desc",
+				TimeUnit.MICROSECONDS, clock);
+		assertEquals("microseconds", timer.getUnit());
+		long start = timer.start();
+		clock.nanos -= 1000;
+		timer.stop(start);
+		assertEquals(0.0, timer.getValue().doubleValue(), 0.0);
+	}
+
+	@Test
+	public void testSystemClock() throws Exception {
+		ControlledMetricNanoTimer timer = new ControlledMetricNanoTimer("comp", "mod", "name", "desc");
+		try (ControlledMetricNanoTimer.TimerContext context = timer.time()) {
+			Thread.sleep(1);
+		}
+		// at least 1ms in microseconds
+		assertTrue(timer.getValue().doubleValue() >= 1000.0);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testNullClock() {
+		new ControlledMetricNanoTimer("comp", "mod", "name", "desc", TimeUnit.MICROSECONDS, null);
+	}
+}
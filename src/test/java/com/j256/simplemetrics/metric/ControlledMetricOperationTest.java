@@ -0,0 +1,184 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.ControlledMetricOperation.OperationValue;
+
+public class ControlledMetricOperationTest {
+
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	@Test
+	public void testStuff() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricOperation operation =
+				new ControlledMetricOperation("c", "m", "rpc", "d", TimeUnit.MILLISECONDS, clock);
+		assertEquals(AggregationType.SUM, operation.getAggregationType());
+		assertEquals(TimeUnit.MILLISECONDS, operation.getTimeUnit());
+		assertNull(operation.getUnit());
+
+		long start = operation.start();
+		clock.nanos += 2 * MILLIS;
+		assertEquals(2 * MILLIS, operation.success(start));
+		start = operation.start();
+		clock.nanos += 6 * MILLIS;
+		assertEquals(6 * MILLIS, operation.failure(start));
+		operation.adjustValue(4);
+		operation.recordNanos(-1, true);
+
+		assertEquals(4L, operation.getValue());
+		assertEquals(1, operation.getErrors());
+
+		Map<ControlledMetric<?, ?>, MetricValueDetails> seriesMap =
+				new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+		operation.addSeriesToPersist(seriesMap);
+		assertEquals(3, seriesMap.size());
+		assertEquals(4L, seriesMap.get(operation).getValue());
+		MetricValueDetails errors = seriesMap.get(new ControlledMetricAccum("c", "m", "rpc.errors", "d", null));
+		assertEquals(1L, errors.getValue());
+		MetricValueDetails latency = seriesMap.get(new ControlledMetricValue("c", "m", "rpc.latency", "d", null));
+		assertEquals(3.0, latency.getValue().doubleValue(), 0);
+		assertEquals(4, latency.getNumSamples());
+		assertEquals(0.0, latency.getMin());
+		assertEquals(6.0, latency.getMax());
+
+		// nothing more so no latency
+		seriesMap.clear();
+		operation.addSeriesToPersist(seriesMap);
+		assertEquals(2, seriesMap.size());
+		assertEquals(0L, seriesMap.get(operation).getValue());
+		assertEquals(0L, seriesMap.get(new ControlledMetricAccum("c", "m", "rpc.errors", "d", null)).getValue());
+	}
+
+	@Test
+	public void testPersistResets() {
+		ControlledMetricOperation operation = new ControlledMetricOperation("c", "m", "rpc", "d");
+		operation.failure(operation.start());
+		assertEquals(1L, operation.getValueToPersist());
+		// keeps its value until the next call
+		assertEquals(1L, operation.getValue());
+		operation.success(operation.start());
+		assertEquals(1L, operation.getValue());
+		assertEquals(0, operation.getErrors());
+	}
+
+	@Test
+	public void testFamily() {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricFamily<ControlledMetricOperation> family = new ControlledMetricFamily<ControlledMetricOperation>(
+				manager, "c", null, "rpc", null, null, new String[] { "endpoint" },
+				ControlledMetricFamily.operationFactory());
+		ControlledMetricOperation operation = family.getChild("/users");
+		operation.recordNanos(1000, false);
+
+		Map<ControlledMetric<?, ?>, MetricValueDetails> seriesMap =
+				new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+		operation.addSeriesToPersist(seriesMap);
+		for (ControlledMetric<?, ?> metric : seriesMap.keySet()) {
+			// the series carry the labels of the child
+			assertEquals("/users", ((LabeledMetric) metric).getLabelValues()[0]);
+		}
+		ControlledMetricValue latencyMetric = new ControlledMetricValue("c", null, "rpc.latency", null, null);
+		latencyMetric.setLabels(new String[] { "endpoint" }, new String[] { "/users" });
+		assertEquals(1.0, seriesMap.get(latencyMetric).getValue().doubleValue(), 0);
+	}
+
+	@Test(timeout = 10000)
+	public void testThreads() throws Exception {
+		final ControlledMetricOperation operation = new ControlledMetricOperation("c", "m", "rpc", "d");
+		final int numThreads = 4;
+		final int numCalls = 100000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numCalls; j++) {
+						operation.recordNanos(j, (j % 4 != 0));
+					}
+				}
+			});
+			threads[i].start();
+		}
+		long calls = 0;
+		long errors = 0;
+		Map<ControlledMetric<?, ?>, MetricValueDetails> seriesMap =
+				new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+		ControlledMetricAccum errorsMetric = new ControlledMetricAccum("c", "m", "rpc.errors", "d", null);
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				seriesMap.clear();
+				operation.addSeriesToPersist(seriesMap);
+				long intervalCalls = seriesMap.get(operation).getValue().longValue();
+				long intervalErrors = seriesMap.get(errorsMetric).getValue().longValue();
+				assertTrue(intervalErrors <= intervalCalls);
+				calls += intervalCalls;
+				errors += intervalErrors;
+			}
+			thread.join();
+		}
+		seriesMap.clear();
+		operation.addSeriesToPersist(seriesMap);
+		calls += seriesMap.get(operation).getValue().longValue();
+		errors += seriesMap.get(errorsMetric).getValue().longValue();
+		assertEquals(numThreads * numCalls, calls);
+		assertEquals(numThreads * numCalls / 4, errors);
+	}
+
+	@Test
+	public void testMakeAdjusted() {
+		// like adjustValue, a single successful call with that latency in the time-unit
+		OperationValue value = OperationValue.createInitialValue(MILLIS).makeAdjusted(4L);
+		assertEquals(1L, value.getValue());
+		assertEquals(0, value.getErrors());
+		value = value.makeAdjusted(2L);
+		assertEquals(2L, value.getValue());
+
+		ControlledMetricOperation operation =
+				new ControlledMetricOperation("c", "m", "rpc", "d", TimeUnit.MILLISECONDS, new ManualClock());
+		operation.adjustValue(4);
+		operation.adjustValue(2);
+		assertEquals(value.getValue(), operation.getValue());
+
+		Map<ControlledMetric<?, ?>, MetricValueDetails> seriesMap =
+				new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+		operation.addSeriesToPersist(seriesMap);
+		MetricValueDetails latency = seriesMap.get(new ControlledMetricValue("c", "m", "rpc.latency", "d", null));
+		assertEquals(3.0, latency.getValue().doubleValue(), 0);
+		assertEquals(2.0, latency.getMin());
+		assertEquals(4.0, latency.getMax());
+	}
+
+	@Test
+	public void testPartialDrain() {
+		// the errors and latency of a call were drained without the call
+		OperationValue value = OperationValue.createInitialValue(MILLIS).makeAdjusted(0, 1, 5 * MILLIS,
+				Long.MAX_VALUE, Long.MIN_VALUE);
+		assertEquals(0L, value.getValue());
+		assertEquals(0, value.getErrors());
+		// the call arrives after a persist
+		value = value.makePersisted().makeAdjusted(1, 0, 0, Long.MAX_VALUE, Long.MIN_VALUE);
+		assertEquals(1L, value.getValue());
+		assertEquals(1, value.getErrors());
+
+		// the error beyond the calls is held through the persists until its call arrives
+		value = value.makeAdjusted(0, 1, 2 * MILLIS, Long.MAX_VALUE, Long.MIN_VALUE);
+		assertEquals(1, value.getErrors());
+		value = value.makePersisted().makePersisted();
+		assertEquals(0L, value.getValue());
+		assertEquals(0, value.getErrors());
+		value = value.makeAdjusted(1, 0, 2 * MILLIS, 2 * MILLIS, 2 * MILLIS);
+		assertEquals(1L, value.getValue());
+		assertEquals(1, value.getErrors());
+	}
+}
@@ -0,0 +1,25 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.j256.simplejmx.common.JmxFolderName;
+
+public class ControlledMetricRateJmxTest {
+
+	@Test
+	public void testRates() {
+		ControlledMetricRate metric = new ControlledMetricRate("c", "m", "n", "d");
+		ControlledMetricRateJmx metricJmx =
+				new ControlledMetricRateJmx(metric, "com.j256", new JmxFolderName[] { new JmxFolderName("metrics") });
+		metric.mark(3);
+		assertEquals("n", metricJmx.getJmxBeanName());
+		assertEquals(ControlledMetricRate.DEFAULT_UNIT, metricJmx.getUnit());
+		assertEquals(3, metricJmx.getCount());
+		assertEquals(0.0, metricJmx.getOneMinuteRate(), 0.0);
+		assertEquals(0.0, metricJmx.getFiveMinuteRate(), 0.0);
+		assertEquals(0.0, metricJmx.getFifteenMinuteRate(), 0.0);
+		metricJmx.getMeanRate();
+	}
+}
@@ -0,0 +1,128 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.ControlledMetricRate.RateWindow;
+
+public class ControlledMetricRateTest {
+
+	private static final long TICK = ControlledMetricRate.TICK_INTERVAL_NANOS;
+
+	@Test
+	public void testFirstTick() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricRate rate = new ControlledMetricRate("comp", "mod", "name", "desc",
+				ControlledMetricRate.DEFAULT_UNIT, RateWindow.ONE_MINUTE, clock);
+		assertEquals(AggregationType.AVERAGE, rate.getAggregationType());
+		for (int i = 0; i < 50; i++) {
+			rate.mark();
+		}
+		// no tick yet
+		assertEquals(0.0, rate.getOneMinuteRate(), 0.0);
+		assertEquals(50, rate.getCount());
+		clock.nanos += TICK;
+		// 50 events over 5 seconds
+		assertEquals(10.0, rate.getOneMinuteRate(), 0.0001);
+		assertEquals(10.0, rate.getFiveMinuteRate(), 0.0001);
+		assertEquals(10.0, rate.getFifteenMinuteRate(), 0.0001);
+		assertEquals(10.0, rate.getMeanRate(), 0.0001);
+		assertEquals(10.0, rate.getValue().doubleValue(), 0.0001);
+		assertEquals(50, rate.getCount());
+	}
+
+	@Test
+	public void testDecay() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricRate rate = new ControlledMetricRate("comp", "mod", "name", "desc",
+				ControlledMetricRate.DEFAULT_UNIT, RateWindow.FIVE_MINUTE, clock);
+		rate.mark(50);
+		clock.nanos += TICK;
+		assertEquals(10.0, rate.getValue().doubleValue(), 0.0001);
+		// a minute of no events
+		clock.nanos += 12 * TICK;
+		double oneMinute = rate.getOneMinuteRate();
+		double fiveMinute = rate.getFiveMinuteRate();
+		double fifteenMinute = rate.getFifteenMinuteRate();
+		// one minute rate decays by 1/e over a minute
+		assertEquals(10.0 / Math.E, oneMinute, 0.0001);
+		assertTrue(oneMinute < fiveMinute);
+		assertTrue(fiveMinute < fifteenMinute);
+		assertEquals(fiveMinute, rate.getValue().doubleValue(), 0.0);
+		assertEquals(50.0 / 65.0, rate.getMeanRate(), 0.0001);
+	}
+
+	@Test
+	public void testMissedTicksSameAsIdleTicks() {
+		ManualClock clock1 = new ManualClock();
+		ControlledMetricRate rate1 = new ControlledMetricRate("comp", "mod", "name", "desc",
+				ControlledMetricRate.DEFAULT_UNIT, RateWindow.ONE_MINUTE, clock1);
+		ManualClock clock2 = new ManualClock();
+		ControlledMetricRate rate2 = new ControlledMetricRate("comp", "mod", "name", "desc",
+				ControlledMetricRate.DEFAULT_UNIT, RateWindow.ONE_MINUTE, clock2);
+		rate1.mark(100);
+		rate2.mark(100);
+		for (int i = 0; i < 10; i++) {
+			clock1.nanos += TICK;
+			rate1.getOneMinuteRate();
+		}
+		clock2.nanos += 10 * TICK + TICK / 2;
+		assertEquals(rate1.getOneMinuteRate(), rate2.getOneMinuteRate(), 0.0000001);
+		// the half tick is remembered
+		clock2.nanos += TICK / 2;
+		rate2.mark(5);
+		clock1.nanos += TICK;
+		rate1.mark(5);
+		assertEquals(rate1.getOneMinuteRate(), rate2.getOneMinuteRate(), 0.0000001);
+	}
+
+	@Test
+	public void testPersist() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricRate rate = new ControlledMetricRate("comp", "mod", "name", "desc",
+				ControlledMetricRate.DEFAULT_UNIT, RateWindow.MEAN, clock);
+		assertEquals(RateWindow.MEAN, rate.getPersistedWindow());
+		rate.adjustValue(20);
+		rate.adjustValue(Integer.valueOf(20));
+		clock.nanos += 2 * TICK;
+		MetricValueDetails details = rate.getValueDetailsToPersist();
+		assertEquals(4.0, details.getValue().doubleValue(), 0.0001);
+		// one reading of the rate, not the number of events
+		assertEquals(1, details.getNumSamples());
+		assertEquals(40, rate.getCount());
+		// the rate does not reset when persisted
+		assertEquals(4.0, rate.getValueToPersist().doubleValue(), 0.0001);
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		final ControlledMetricRate rate = new ControlledMetricRate("comp", "mod", "name", "desc");
+		final int numThreads = 8;
+		final int numMarks = 10000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numMarks; j++) {
+						rate.mark();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(numThreads * numMarks, rate.getCount());
+		assertTrue(rate.getMeanRate() > 0.0);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testNullWindow() {
+		new ControlledMetricRate("comp", "mod", "name", "desc", null, null, new ManualClock());
+	}
+}
@@ -5,6 +5,8 @@ import static org.junit.Assert.assertEquals;
 import org.junit.Test;
 
 import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.ControlledMetricRatio.NumeratorDenominator;
+import com.j256.simplemetrics.metric.ControlledMetricRatio.RatioValue;
 
 public class ControlledMetricRatioTest {
 
@@ -27,7 +29,8 @@ public class ControlledMetricRatioTest {
 
 		double result2 = (((double) num1 / (double) denom1) + ((double) num2 / (double) denom2)) / 2.0;
 		assertEquals(result2, (Double) metric.getValue(), 0.00001);
-		assertEquals(result2, (Double) metric.getValueDetails().getMin(), 0.0001);
+		// min and max are of the ratios of the adjustments
+		assertEquals((double) num2 / (double) denom2, (Double) metric.getValueDetails().getMin(), 0.0001);
 		assertEquals((double) num1 / (double) denom1, (Double) metric.getValueDetails().getMax(), 0);
 		assertEquals(2, metric.getValueDetails().getNumSamples());
 
@@ -38,8 +41,8 @@ public class ControlledMetricRatioTest {
 		double result3 = (((double) num1 / (double) denom1) + ((double) num2 / (double) denom2)
 				+ ((double) num3 / (double) denom3)) / 3.0;
 		assertEquals(result3, (Double) metric.getValue(), 0.00001);
-		assertEquals(result2, (Double) metric.getValueDetails().getMin(), 0.0001);
-		assertEquals(result3, (Double) metric.getValueDetails().getMax(), 0.0001);
+		assertEquals((double) num2 / (double) denom2, (Double) metric.getValueDetails().getMin(), 0.0001);
+		assertEquals((double) num3 / (double) denom3, (Double) metric.getValueDetails().getMax(), 0.0001);
 		assertEquals(3, metric.getValueDetails().getNumSamples());
 	}
 
@@ -145,4 +148,95 @@ public class ControlledMetricRatioTest {
 		details = metric.getValue();
 		assertEquals(0.3958333333, (Double) details, 0.0000000001);
 	}
+
+	@Test
+	public void testLargeDenominators() {
+		ControlledMetricRatio metric = new ControlledMetricRatio("component", "module", "name", "desc", null);
+		int num = 100000;
+		for (int i = 0; i < num; i++) {
+			// this used to overflow to infinity after a couple hundred adjustments
+			metric.adjustValue(1, 1000);
+			metric.adjustValue(3.0, 1000.0);
+		}
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(0.002, details.getValue().doubleValue(), 0.0000000001);
+		assertEquals(num * 2, details.getNumSamples());
+		assertEquals(0.001, details.getMin().doubleValue(), 0);
+		assertEquals(0.003, details.getMax().doubleValue(), 0);
+	}
+
+	@Test
+	public void testZeroDenominator() {
+		ControlledMetricRatio metric = new ControlledMetricRatio("component", "module", "name", "desc", null);
+		metric.adjustValue(1, 0);
+		metric.adjustValue(1, 1);
+		assertEquals(0.5, (Double) metric.getValue(), 0);
+	}
+
+	@Test
+	public void testNumberAdjust() {
+		ControlledMetricRatio metric = new ControlledMetricRatio("component", "module", "name", "desc", null);
+		metric.adjustValue((Number) 1, (Number) 4);
+		metric.adjustValue((Number) 3);
+		assertEquals(1.625, (Double) metric.getValue(), 0);
+		// the old style of adjusting directly through the metric value
+		RatioValue value = metric.createInitialValue().makeAdjusted(new NumeratorDenominator(1, 4));
+		assertEquals(0.25, (Double) value.getValue(), 0);
+	}
+
+	@Test
+	public void testAdjustValues() {
+		ControlledMetricRatio metric = new ControlledMetricRatio("c", "m", "n", "d", null);
+		metric.adjustValues(new long[] { 1, 2, 3 }, new long[] { 2, 4, 0 }, 0, 3);
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(3, details.getNumSamples());
+		// 0.5, 0.5, and 0 for the div by 0
+		assertEquals(1.0 / 3, details.getValue().doubleValue(), 0.0000001);
+		assertEquals(0.0, details.getMin());
+		assertEquals(0.5, details.getMax());
+
+		metric.adjustValues(new double[] { 3.0, 1.0 }, new double[] { 4.0, 4.0 }, 1, 1);
+		metric.adjustValues(new long[] { 2 }, 0, 1);
+		metric.adjustValues(new double[] { 0.75 }, 0, 1);
+		details = metric.getValueDetails();
+		assertEquals(6, details.getNumSamples());
+		assertEquals(4.0 / 6, details.getValue().doubleValue(), 0.0000001);
+		assertEquals(2.0, details.getMax());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testAdjustValuesMismatchedArrays() {
+		ControlledMetricRatio metric = new ControlledMetricRatio("c", "m", "n", "d", null);
+		metric.adjustValues(new long[] { 1, 2 }, new long[] { 1 }, 0, 2);
+	}
+
+	@Test(timeout = 10000)
+	public void testReadsRaceWithAdjusts() throws Exception {
+		final ControlledMetricRatio metric = new ControlledMetricRatio("c", "m", "n", "d", null);
+		final int numThreads = 4;
+		final int numAdjusts = 100000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdjusts; j++) {
+						metric.adjustValue(1, 2);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				// read while the adjusters are running to race with the drain
+				metric.getValueDetails();
+			}
+			thread.join();
+		}
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(numThreads * numAdjusts, details.getNumSamples());
+		// a sum that raced without its count would be lost and pull down the average
+		assertEquals(0.5, details.getValue().doubleValue(), 0);
+	}
 }
@@ -0,0 +1,190 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.ControlledMetricReservoir.ReservoirValue;
+
+public class ControlledMetricReservoirTest {
+
+	@Test
+	public void testPercentiles() {
+		ControlledMetricReservoir metric = new ControlledMetricReservoir("c", "m", "n", "d", "ms");
+		assertEquals(AggregationType.AVERAGE, metric.getAggregationType());
+		assertEquals(ControlledMetricReservoir.DEFAULT_SIZE, metric.getSize());
+		for (int i = 1; i <= 100000; i++) {
+			metric.adjustValue(i);
+		}
+		MetricValueDetails details = metric.getValueDetails();
+		// the count, average, min, and max are exact
+		assertEquals(100000, details.getNumSamples());
+		assertEquals(50000.5, details.getValue().doubleValue(), 0);
+		assertEquals(1.0, details.getMin());
+		assertEquals(100000.0, details.getMax());
+		assertArrayEquals(ControlledMetricReservoir.DEFAULT_PERCENTILES, details.getPercentiles(), 0);
+		double[] values = details.getPercentileValues();
+		// the percentiles are sampled
+		assertEquals(50000, values[0], 5000);
+		assertEquals(90000, values[1], 5000);
+		assertEquals(99000, values[2], 2000);
+	}
+
+	@Test
+	public void testFixedSize() {
+		ControlledMetricReservoir metric =
+				new ControlledMetricReservoir("c", "m", "n", "d", null, 100, new double[] { 50.0 });
+		for (int i = 0; i < 50; i++) {
+			metric.adjustValue(i);
+		}
+		ReservoirValue value = metric.getMetricValue(false);
+		// everything fits
+		assertEquals(50, value.getSampledValues().length);
+		assertEquals(0.0, value.getSampledValues()[0], 0);
+		for (int i = 0; i < 100000; i++) {
+			metric.adjustValue(i);
+		}
+		value = metric.getMetricValue(false);
+		assertEquals(100, value.getSampledValues().length);
+		assertEquals(100050, value.getCount());
+	}
+
+	@Test
+	public void testThresholdKeptAfterRead() {
+		ControlledMetricReservoir metric =
+				new ControlledMetricReservoir("c", "m", "n", "d", null, 100, new double[] { 50.0 });
+		for (int i = 0; i < 10000; i++) {
+			metric.adjustValue(i);
+		}
+		metric.getMetricValue(false);
+		// the reservoir was drained but values below the kept samples are still dropped without locking
+		double threshold = metric.getThreshold();
+		assertTrue(threshold > Double.NEGATIVE_INFINITY);
+		assertEquals(metric.getMetricValue(false).getLowestPriority(), threshold, 0);
+		for (int i = 0; i < 10000; i++) {
+			metric.adjustValue(i);
+		}
+		ReservoirValue value = metric.getMetricValue(false);
+		assertTrue(metric.getThreshold() >= threshold);
+		assertEquals(100, value.getSampledValues().length);
+		assertEquals(20000, value.getCount());
+
+		// a uniform reservoir starts again after it is persisted so it needs all of the values
+		metric.getValueToPersist();
+		assertEquals(Double.NEGATIVE_INFINITY, metric.getThreshold(), 0);
+		metric.adjustValue(1);
+		assertEquals(1, metric.getMetricValue(false).getSampledValues().length);
+	}
+
+	@Test
+	public void testIdleConfigured() {
+		ControlledMetricReservoir metric =
+				new ControlledMetricReservoir("c", "m", "n", "d", "ms", 10, new double[] { 95.0 });
+		// an idle reservoir reports its own percentiles and not the defaults
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(0, details.getNumSamples());
+		assertArrayEquals(new double[] { 95.0 }, details.getPercentiles(), 0);
+		assertArrayEquals(new double[] { 0.0 }, details.getPercentileValues(), 0);
+		details = metric.getValueDetailsToPersist();
+		assertArrayEquals(new double[] { 95.0 }, details.getPercentiles(), 0);
+	}
+
+	@Test
+	public void testPersist() {
+		ControlledMetricReservoir metric = new ControlledMetricReservoir("c", "m", "n", "d", "ms");
+		metric.adjustValue(10);
+		metric.adjustValue(20);
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(2, details.getNumSamples());
+		assertEquals(2, metric.getValueDetails().getNumSamples());
+		metric.adjustValue(30);
+		ReservoirValue value = metric.getMetricValue(false);
+		assertEquals(1, value.getNumSamples());
+		assertEquals(30L, metric.getValue().longValue());
+		// a uniform reservoir starts again after it is persisted
+		assertArrayEquals(new double[] { 30.0 }, value.getSampledValues(), 0);
+	}
+
+	@Test
+	public void testDecaying() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricReservoir metric = new ControlledMetricReservoir("c", "m", "n", "d", null, 100,
+				new double[] { 50.0 }, ControlledMetricReservoir.DEFAULT_DECAY_ALPHA, clock);
+		assertTrue(metric.isDecaying());
+		for (int i = 0; i < 10000; i++) {
+			metric.adjustValue(1);
+		}
+		metric.getValueToPersist();
+		// the old samples are kept across the persist
+		assertEquals(100, metric.getMetricValue(false).getSampledValues().length);
+		clock.nanos += TimeUnit.MINUTES.toNanos(30);
+		for (int i = 0; i < 10000; i++) {
+			metric.adjustValue(2);
+		}
+		ReservoirValue value = metric.getMetricValue(false);
+		assertEquals(10000, value.getCount());
+		assertEquals(2.0, value.getValue().doubleValue(), 0);
+		// the recent values have pushed out the old ones
+		assertEquals(2.0, value.getValueAtPercentile(1.0), 0);
+		assertEquals(100, value.getSampledValues().length);
+	}
+
+	@Test
+	public void testMakeAdjusted() {
+		ReservoirValue value = ReservoirValue.createInitialValue();
+		assertEquals(0.0, value.getValueAtPercentile(50.0), 0);
+		value = value.makeAdjusted(10.0).makeAdjusted(0.0);
+		assertEquals(2, value.getNumSamples());
+		assertEquals(5.0, value.getValue().doubleValue(), 0);
+		assertEquals(0.0, value.getValueAtPercentile(1.0), 0);
+		assertEquals(10.0, value.getValueAtPercentile(100.0), 0);
+	}
+
+	@Test(timeout = 10000)
+	public void testThreads() throws Exception {
+		final ControlledMetricReservoir metric =
+				new ControlledMetricReservoir("c", "m", "n", "d", null, 64, new double[] { 50.0 });
+		final int numThreads = 4;
+		final int numValues = 100000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numValues; j++) {
+						metric.adjustValue(j % 10);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				ReservoirValue value = metric.getMetricValue(false);
+				assertTrue(value.getSampledValues().length <= 64);
+				double max = value.getMax().doubleValue();
+				assertTrue(max >= 0.0 && max <= 9.0);
+			}
+			thread.join();
+		}
+		ReservoirValue value = metric.getMetricValue(false);
+		assertEquals(numThreads * numValues, value.getCount());
+		assertEquals(64, value.getSampledValues().length);
+		assertEquals(4.5, value.getValue().doubleValue(), 0.0001);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadSize() {
+		new ControlledMetricReservoir("c", "m", "n", "d", null, 0, new double[] { 50.0 });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadPercentile() {
+		new ControlledMetricReservoir("c", "m", "n", "d", null, 10, new double[] { 101.0 });
+	}
+}
@@ -0,0 +1,204 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.ControlledMetricSketch.SketchValue;
+
+public class ControlledMetricSketchTest {
+
+	@Test
+	public void testPercentiles() {
+		ControlledMetricSketch metric = new ControlledMetricSketch("c", "m", "n", "d", "ms");
+		assertEquals(AggregationType.AVERAGE, metric.getAggregationType());
+		assertEquals(ControlledMetricSketch.DEFAULT_RELATIVE_ACCURACY, metric.getRelativeAccuracy(), 0);
+		for (int i = 1; i <= 1000; i++) {
+			metric.adjustValue(i);
+		}
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(1000, details.getNumSamples());
+		assertEquals(500.5, details.getValue().doubleValue(), 0);
+		assertEquals(1.0, details.getMin());
+		assertEquals(1000.0, details.getMax());
+		double[] values = details.getPercentileValues();
+		double[] expected = new double[] { 500, 900, 990, 999 };
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], values[i], expected[i] * ControlledMetricSketch.DEFAULT_RELATIVE_ACCURACY);
+		}
+		assertTrue(details.getSerializedSketch().startsWith("dds1;"));
+	}
+
+	@Test
+	public void testMergeAccuracy() {
+		double accuracy = 0.02;
+		Random random = new Random();
+		int numHosts = 10;
+		int numValues = 10000;
+		double[] allValues = new double[numHosts * numValues];
+		String[] serialized = new String[numHosts];
+		for (int host = 0; host < numHosts; host++) {
+			ControlledMetricSketch metric = new ControlledMetricSketch("c", "m", "n", "d", "ms", accuracy, 1024,
+					new double[] { 50.0, 99.0 });
+			for (int i = 0; i < numValues; i++) {
+				// each host sees a different distribution
+				double value = Math.exp(random.nextGaussian() + host / 2.0);
+				metric.adjustValue(value);
+				allValues[host * numValues + i] = value;
+			}
+			serialized[host] = metric.getValueDetailsToPersist().getSerializedSketch();
+		}
+		Arrays.sort(allValues);
+
+		SketchValue merged = ControlledMetricSketch.merge(serialized);
+		assertEquals(allValues.length, merged.getCount());
+		assertEquals(allValues[0], merged.getMin().doubleValue(), 0);
+		assertEquals(allValues[allValues.length - 1], merged.getMax().doubleValue(), 0);
+		for (double percentile : new double[] { 10.0, 50.0, 90.0, 99.0, 99.9 }) {
+			double real = allValues[(int) (percentile / 100.0 * (allValues.length - 1))];
+			assertEquals(real, merged.getValueAtPercentile(percentile), real * accuracy);
+		}
+	}
+
+	@Test
+	public void testSerializeRoundTrip() {
+		ControlledMetricSketch metric = new ControlledMetricSketch("c", "m", "n", "d", "ms");
+		metric.adjustValue(0);
+		metric.adjustValue(-1L);
+		metric.adjustValue(5.5);
+		metric.adjustValue((Number) 1000000);
+		String serialized = metric.getValueDetails().getSerializedSketch();
+		SketchValue value = SketchValue.fromSerializedString(serialized);
+		assertEquals(serialized, value.toSerializedString());
+		assertEquals(4, value.getNumSamples());
+		assertEquals(0.0, value.getValueAtPercentile(50.0), 0);
+		assertEquals(1000000.0, value.getValueAtPercentile(100.0),
+				1000000.0 * ControlledMetricSketch.DEFAULT_RELATIVE_ACCURACY);
+		// negative values are counted as 0
+		assertEquals(0.0, value.getMin());
+	}
+
+	@Test
+	public void testPersist() {
+		ControlledMetricSketch metric = new ControlledMetricSketch("c", "m", "n", "d", "ms");
+		metric.adjustValue(10);
+		metric.adjustValue(20);
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(2, details.getNumSamples());
+		assertEquals(2, metric.getValueDetails().getNumSamples());
+		metric.adjustValue(30);
+		assertEquals(1, metric.getValueDetails().getNumSamples());
+		assertEquals(30L, metric.getValue().longValue());
+	}
+
+	@Test
+	public void testIdleConfigured() {
+		ControlledMetricSketch metric =
+				new ControlledMetricSketch("c", "m", "n", "d", "ms", 0.02, 100, new double[] { 95.0 });
+		// an idle sketch reports its own configuration and not the defaults
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(0, details.getNumSamples());
+		assertArrayEquals(new double[] { 95.0 }, details.getPercentiles(), 0);
+		assertEquals(0.02, SketchValue.fromSerializedString(details.getSerializedSketch()).getRelativeAccuracy(), 0);
+		metric.adjustValue(10);
+		details = metric.getValueDetailsToPersist();
+		assertArrayEquals(new double[] { 95.0 }, details.getPercentiles(), 0);
+		assertEquals(10.0, details.getPercentileValues()[0], 10.0 * 0.02);
+	}
+
+	@Test
+	public void testMakeAdjusted() {
+		SketchValue value = SketchValue.createInitialValue().makeAdjusted(10.0);
+		value = value.makeAdjusted(0.0);
+		assertEquals(2, value.getNumSamples());
+		assertEquals(10.0, value.getValueAtPercentile(100.0), 0.1);
+		assertEquals(0.0, value.getValueAtPercentile(1.0), 0);
+		assertSame(value, value.merge(SketchValue.createInitialValue()));
+		assertEquals(0, ControlledMetricSketch.merge(new SketchValue[0]).getNumSamples());
+	}
+
+	@Test
+	public void testCollapse() {
+		// two sketches with 10 bins each far apart from each other
+		SketchValue first = SketchValue
+				.fromSerializedString("dds1;0.01;10;10;10.0;1.0;1.0;0;0:1,1:1,1:1,1:1,1:1,1:1,1:1,1:1,1:1,1:1");
+		SketchValue second = SketchValue
+				.fromSerializedString("dds1;0.01;10;10;10.0;1.0;100.0;0;100:1,1:1,1:1,1:1,1:1,1:1,1:1,1:1,1:1,1:1");
+		SketchValue merged = first.merge(second);
+		assertEquals(first.getCount() + second.getCount(), merged.getCount());
+		// the lowest bins have been collapsed but the upper percentiles are kept
+		assertTrue(merged.toSerializedString().endsWith(";100:11,1:1,1:1,1:1,1:1,1:1,1:1,1:1,1:1,1:1"));
+		assertEquals(second.getValueAtPercentile(99.0), merged.getValueAtPercentile(99.0), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMergeDifferentAccuracy() {
+		ControlledMetricSketch metric1 =
+				new ControlledMetricSketch("c", "m", "n", "d", "ms", 0.01, 100, new double[] { 99.0 });
+		metric1.adjustValue(1);
+		ControlledMetricSketch metric2 =
+				new ControlledMetricSketch("c", "m", "n", "d", "ms", 0.02, 100, new double[] { 99.0 });
+		metric2.adjustValue(1);
+		ControlledMetricSketch.merge(metric1.getValueDetails().getSerializedSketch(),
+				metric2.getValueDetails().getSerializedSketch());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadSerialized() {
+		SketchValue.fromSerializedString("dds1;0.01;x;1;1;1;1;0;");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadSerializedPrefix() {
+		SketchValue.fromSerializedString("foo");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadAccuracy() {
+		new ControlledMetricSketch("c", "m", "n", "d", "ms", 1.0, 100, new double[] { 99.0 });
+	}
+
+	@Test
+	public void testNotSketch() {
+		assertNull(new ControlledMetricValue("c", "m", "n", "d", null).getValueDetails().getSerializedSketch());
+		assertArrayEquals(new double[4], SketchValue.createInitialValue().getPercentileValues(), 0);
+	}
+
+	@Test(timeout = 10000)
+	public void testReadsRaceWithAdjusts() throws Exception {
+		final ControlledMetricSketch metric = new ControlledMetricSketch("c", "m", "n", "d", null);
+		final int numThreads = 4;
+		final int numAdjusts = 100000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdjusts; j++) {
+						metric.adjustValue(2.0);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				// read while the adjusters are running to race with the drain
+				metric.getValueDetails();
+			}
+			thread.join();
+		}
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(numThreads * numAdjusts, details.getNumSamples());
+		// a sum that raced without its count would be lost and pull down the average
+		assertEquals(2.0, details.getValue().doubleValue(), 0);
+	}
+}
@@ -0,0 +1,157 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
+import com.j256.simplemetrics.metric.ControlledMetricTopK.KeyCount;
+
+public class ControlledMetricTopKTest {
+
+	@Test
+	public void testExact() {
+		ControlledMetricTopK metric = new ControlledMetricTopK("comp", "mod", "name", "desc", "requests");
+		assertEquals(AggregationType.SUM, metric.getAggregationType());
+		assertEquals(ControlledMetricTopK.DEFAULT_TOP_K, metric.getTopK());
+		for (int i = 0; i < 5; i++) {
+			metric.add("tenant1");
+		}
+		metric.add("tenant2", 3);
+		metric.add(1234L, 5);
+		metric.adjustValue(Long.valueOf(1234));
+		metric.add((String) null);
+		List<KeyCount> keyCounts = metric.getTopKeyCounts();
+		assertEquals(3, keyCounts.size());
+		assertEquals(1234L, keyCounts.get(0).getKey());
+		assertEquals(6, keyCounts.get(0).getCount());
+		assertEquals(0, keyCounts.get(0).getError());
+		assertEquals("tenant1", keyCounts.get(1).getKey());
+		assertEquals(5, keyCounts.get(1).getCount());
+		assertEquals("tenant2", keyCounts.get(2).getKey());
+		assertEquals(3, keyCounts.get(2).getCount());
+		assertEquals(14L, metric.getValue());
+	}
+
+	@Test
+	public void testHeavyHittersFound() {
+		ControlledMetricTopK metric = new ControlledMetricTopK("comp", "mod", "name", "desc", "requests", 3, 20);
+		Random random = new Random(1);
+		for (int i = 0; i < 100000; i++) {
+			int choice = random.nextInt(10);
+			if (choice < 3) {
+				metric.add("heavy1");
+			} else if (choice < 5) {
+				metric.add("heavy2");
+			} else if (choice < 6) {
+				metric.add("heavy3");
+			} else {
+				// lots of different rare keys which keep evicting each other
+				metric.add(random.nextInt(100000));
+			}
+		}
+		List<KeyCount> keyCounts = metric.getTopKeyCounts();
+		assertEquals(3, keyCounts.size());
+		assertEquals("heavy1", keyCounts.get(0).getKey());
+		assertEquals("heavy2", keyCounts.get(1).getKey());
+		assertEquals("heavy3", keyCounts.get(2).getKey());
+		for (KeyCount keyCount : keyCounts) {
+			assertTrue(keyCount.getCount() - keyCount.getError() > 0);
+		}
+	}
+
+	@Test
+	public void testManyEvictions() {
+		// evict with a tiny table to exercise the removals from the open-addressing table
+		ControlledMetricTopK metric = new ControlledMetricTopK("comp", "mod", "name", "desc", "requests", 2, 3);
+		for (int i = 0; i < 1000; i++) {
+			metric.add(i % 7);
+			metric.add("key");
+		}
+		List<KeyCount> keyCounts = metric.getTopKeyCounts();
+		assertEquals(2, keyCounts.size());
+		assertEquals("key", keyCounts.get(0).getKey());
+		assertEquals(1000, keyCounts.get(0).getCount());
+		assertEquals(0, keyCounts.get(0).getError());
+	}
+
+	@Test
+	public void testSeriesToPersist() {
+		ControlledMetricTopK metric = new ControlledMetricTopK("comp", "mod", "name", "desc", "requests", 2, 4);
+		metric.add("a", 10);
+		metric.add("b", 20);
+		metric.add("c", 5);
+		Map<ControlledMetric<?, ?>, MetricValueDetails> seriesMap =
+				new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+		metric.addSeriesToPersist(seriesMap);
+		assertEquals(3, seriesMap.size());
+		assertEquals(35L, seriesMap.get(metric).getValue());
+		ControlledMetricAccum seriesB = new ControlledMetricAccum("comp", "mod", "name.b", "desc", "requests");
+		assertEquals(20L, seriesMap.get(seriesB).getValue());
+		ControlledMetricAccum seriesA = new ControlledMetricAccum("comp", "mod", "name.a", "desc", "requests");
+		assertEquals(10L, seriesMap.get(seriesA).getValue());
+
+		// the counts are reset after persisting
+		assertEquals(0, metric.getTopKeyCounts().size());
+		seriesMap.clear();
+		metric.addSeriesToPersist(seriesMap);
+		assertEquals(1, seriesMap.size());
+		assertEquals(0L, seriesMap.get(metric).getValue());
+
+		// the series of a key that is still at the top is reused
+		ControlledMetric<?, ?> lastB = null;
+		for (int i = 0; i < 2; i++) {
+			metric.add("b", 20);
+			seriesMap.clear();
+			metric.addSeriesToPersist(seriesMap);
+			assertEquals(20L, seriesMap.get(seriesB).getValue());
+			for (ControlledMetric<?, ?> series : seriesMap.keySet()) {
+				if (series.equals(seriesB)) {
+					if (lastB != null) {
+						assertSame(lastB, series);
+					}
+					lastB = series;
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		final ControlledMetricTopK metric = new ControlledMetricTopK("comp", "mod", "name", "desc", "requests");
+		final int numThreads = 8;
+		final int numAdds = 10000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdds; j++) {
+						metric.add("hot");
+						metric.add(j);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		KeyCount top = metric.getTopKeyCounts().get(0);
+		assertEquals("hot", top.getKey());
+		assertTrue(top.getCount() >= numThreads * numAdds);
+		assertEquals((long) numThreads * numAdds * 2, metric.getValue());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooFewCounters() {
+		new ControlledMetricTopK("comp", "mod", "name", "desc", "requests", 10, 5);
+	}
+}
@@ -130,4 +130,115 @@ public class ControlledMetricValueTest {
 		details = metric.getValue();
 		assertEquals(((double) 200 + 101.123) / 2, (Double) details, 0);
 	}
+
+	@Test
+	public void testMinMaxDetails() {
+		ControlledMetricValue metric = new ControlledMetricValue("c", "m", "n", "d", "u");
+		metric.adjustValue(10.0);
+		metric.adjustValue(2L);
+		metric.adjustValue((Number) 6);
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(3, details.getNumSamples());
+		assertEquals(6L, details.getValue());
+		assertEquals(2.0, details.getMin());
+		assertEquals(10.0, details.getMax());
+
+		// more values folded into the existing details
+		metric.adjustValue(20.0);
+		details = metric.getValueDetailsToPersist();
+		assertEquals(4, details.getNumSamples());
+		assertEquals(9.5, details.getValue());
+		assertEquals(2.0, details.getMin());
+		assertEquals(20.0, details.getMax());
+
+		// after the persist we start again
+		metric.adjustValue(1.0);
+		details = metric.getValueDetails();
+		assertEquals(1, details.getNumSamples());
+		assertEquals(1.0, details.getMin());
+		assertEquals(1.0, details.getMax());
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		final ControlledMetricValue metric = new ControlledMetricValue("c", "m", "n", "d", "u");
+		final int numAdjusts = 10000;
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final int threadNum = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int x = 0; x < numAdjusts; x++) {
+						metric.adjustValue(threadNum);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		MetricValueDetails details = metric.getValueDetailsToPersist();
+		assertEquals(threads.length * numAdjusts, details.getNumSamples());
+		assertEquals((threads.length - 1) / 2.0, details.getValue().doubleValue(), 0.0000001);
+		assertEquals(0.0, details.getMin());
+		assertEquals((double) (threads.length - 1), details.getMax());
+	}
+
+	@Test
+	public void testAdjustValues() {
+		ControlledMetricValue metric = new ControlledMetricValue("c", "m", "n", "d", null);
+		metric.adjustValues(new long[] { 100, 2, 4, 6, 100 }, 1, 3);
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(3, details.getNumSamples());
+		assertEquals(4.0, details.getValue().doubleValue(), 0);
+		assertEquals(2.0, details.getMin());
+		assertEquals(6.0, details.getMax());
+
+		metric.adjustValues(new double[] { -1.5, 10.5 }, 0, 2);
+		// nothing to add
+		metric.adjustValues(new double[] { 1.0 }, 1, 0);
+		details = metric.getValueDetails();
+		assertEquals(5, details.getNumSamples());
+		assertEquals(21.0 / 5, details.getValue().doubleValue(), 0.0000001);
+		assertEquals(-1.5, details.getMin());
+		assertEquals(10.5, details.getMax());
+	}
+
+	@Test(expected = IndexOutOfBoundsException.class)
+	public void testAdjustValuesOutOfRange() {
+		ControlledMetricValue metric = new ControlledMetricValue("c", "m", "n", "d", null);
+		metric.adjustValues(new long[] { 1, 2 }, 1, 2);
+	}
+
+	@Test(timeout = 10000)
+	public void testReadsRaceWithAdjusts() throws Exception {
+		final ControlledMetricValue metric = new ControlledMetricValue("c", "m", "n", "d", null);
+		final int numThreads = 4;
+		final int numAdjusts = 100000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdjusts; j++) {
+						metric.adjustValue(0.5);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			while (thread.isAlive()) {
+				// read while the adjusters are running to race with the drain
+				metric.getValueDetails();
+			}
+			thread.join();
+		}
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(numThreads * numAdjusts, details.getNumSamples());
+		// a sum that raced without its count would be lost and pull down the average
+		assertEquals(0.5, details.getValue().doubleValue(), 0);
+	}
 }
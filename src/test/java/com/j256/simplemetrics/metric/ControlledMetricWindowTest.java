@@ -0,0 +1,112 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class ControlledMetricWindowTest {
+
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	public void testWindow() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricWindow metric = new ControlledMetricWindow("comp", "mod", "name", "desc", "unit", 10,
+				TimeUnit.SECONDS, 10, clock);
+		assertEquals(SECOND, metric.getSliceNanos());
+		assertEquals(10, metric.getNumSlices());
+		assertEquals(0.0, metric.getValue().doubleValue(), 0.0);
+
+		metric.adjustValue(10);
+		clock.nanos += 5 * SECOND;
+		metric.adjustValue(Integer.valueOf(20));
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(15.0, details.getValue().doubleValue(), 0.0);
+		assertEquals(2, details.getNumSamples());
+		assertEquals(10.0, details.getMin().doubleValue(), 0.0);
+		assertEquals(20.0, details.getMax().doubleValue(), 0.0);
+
+		// first value slides out of the window
+		clock.nanos += 5 * SECOND;
+		details = metric.getValueDetails();
+		assertEquals(20.0, details.getValue().doubleValue(), 0.0);
+		assertEquals(1, details.getNumSamples());
+		assertEquals(20.0, details.getMin().doubleValue(), 0.0);
+
+		// all values slide out of the window
+		clock.nanos += 5 * SECOND;
+		details = metric.getValueDetails();
+		assertEquals(0.0, details.getValue().doubleValue(), 0.0);
+		assertEquals(0, details.getNumSamples());
+		assertEquals(0.0, details.getMax().doubleValue(), 0.0);
+	}
+
+	@Test
+	public void testRingWraps() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricWindow metric = new ControlledMetricWindow("comp", "mod", "name", "desc", "unit", 4,
+				TimeUnit.SECONDS, 4, clock);
+		for (int i = 0; i < 20; i++) {
+			metric.adjustValue((double) i);
+			clock.nanos += SECOND;
+		}
+		// last 3 full slices plus the empty current one
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(3, details.getNumSamples());
+		assertEquals(18.0, details.getValue().doubleValue(), 0.0);
+		assertEquals(17.0, details.getMin().doubleValue(), 0.0);
+		assertEquals(19.0, details.getMax().doubleValue(), 0.0);
+	}
+
+	@Test
+	public void testPersistDoesNotReset() {
+		ManualClock clock = new ManualClock();
+		ControlledMetricWindow metric = new ControlledMetricWindow("comp", "mod", "name", "desc", "unit", 10,
+				TimeUnit.SECONDS, 10, clock);
+		metric.adjustValue(5L);
+		assertEquals(5L, metric.getValueToPersist());
+		metric.adjustValue(7L);
+		// persisting did not affect the window
+		assertEquals(6L, metric.getValueToPersist());
+		assertEquals(2, metric.getValueDetailsToPersist().getNumSamples());
+		assertEquals(2, metric.getValueDetails().getNumSamples());
+	}
+
+	@Test
+	public void testThreads() throws Exception {
+		final ControlledMetricWindow metric = new ControlledMetricWindow("comp", "mod", "name", "desc", "unit");
+		final int numThreads = 8;
+		final int numAdjusts = 10000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdjusts; j++) {
+						metric.adjustValue(1.0);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(numThreads * numAdjusts, details.getNumSamples());
+		assertEquals(1.0, details.getValue().doubleValue(), 0.0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooFewSlices() {
+		new ControlledMetricWindow("comp", "mod", "name", "desc", "unit", 10, TimeUnit.SECONDS, 1, new ManualClock());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testWindowTooShort() {
+		new ControlledMetricWindow("comp", "mod", "name", "desc", "unit", 10, TimeUnit.NANOSECONDS, 20,
+				new ManualClock());
+	}
+}
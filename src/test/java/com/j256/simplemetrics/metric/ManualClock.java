@@ -0,0 +1,16 @@
+package com.j256.simplemetrics.metric;
+
+import com.j256.simplemetrics.utils.NanoClock;
+
+/**
+ * Clock for tests which only moves when the test advances {@link #nanos}.
+ */
+class ManualClock implements NanoClock {
+
+	long nanos = 1000000000L;
+
+	@Override
+	public long nanoTime() {
+		return nanos;
+	}
+}
@@ -0,0 +1,175 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.manager.MetricsManager;
+
+public class MetricRecorderTest {
+
+	@Test
+	public void testBatches() {
+		ControlledMetricAccum metric = new ControlledMetricAccum("comp", "mod", "name", "desc", null);
+		AccumMetricRecorder recorder = new AccumMetricRecorder(metric, null, 10);
+		assertEquals(10, recorder.getBatchSize());
+		for (int i = 0; i < 9; i++) {
+			recorder.increment();
+		}
+		// not folded yet
+		assertEquals(0L, metric.getValue());
+		recorder.increment();
+		assertEquals(10L, metric.getValue());
+		recorder.add(5);
+		recorder.flush();
+		assertEquals(15L, metric.getValue());
+		// flushing again does not add anything
+		recorder.flush();
+		assertEquals(15L, metric.getValue());
+		assertSame(recorder.getThreadBuffer(), recorder.getThreadBuffer());
+	}
+
+	@Test
+	public void testPersistFlushesDeadThreads() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricAccum metric = new ControlledMetricAccum("comp", "mod", "name", "desc", null);
+		manager.registerMetric(metric);
+		final AccumMetricRecorder recorder = new AccumMetricRecorder(metric, manager);
+		final int numThreads = 4;
+		final int numAdds = 100;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < numAdds; j++) {
+						recorder.increment();
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(numThreads, recorder.getNumBuffers());
+		// less than the batch-size so nothing has been folded
+		assertEquals(0L, metric.getValue());
+		manager.persist();
+		assertEquals((long) numThreads * numAdds, metric.getValue());
+		// the buffers of the dead threads are dropped once they have been folded
+		assertEquals(0, recorder.getNumBuffers());
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		MetricsManager manager = new MetricsManager();
+		ControlledMetricAccum metric = new ControlledMetricAccum("comp", "mod", "name", "desc", null);
+		manager.registerMetric(metric);
+		AccumMetricRecorder recorder = new AccumMetricRecorder(metric, manager);
+		assertNotNull(manager.getUpdaterStats(recorder));
+		recorder.increment();
+		recorder.close();
+		// flushed and the manager no longer holds onto it
+		assertEquals(1L, metric.getValue());
+		assertNull(manager.getUpdaterStats(recorder));
+		recorder.increment();
+		manager.persist();
+		assertEquals(1L, metric.getValue());
+	}
+
+	@Test
+	public void testValue() {
+		ControlledMetricValue metric = new ControlledMetricValue("comp", "mod", "name", "desc", null);
+		ValueMetricRecorder recorder = new ValueMetricRecorder(metric, null, 3);
+		recorder.record(1.0);
+		recorder.record(5.0);
+		recorder.record(3.0);
+		recorder.record(10.0);
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(3, details.getNumSamples());
+		assertEquals(3.0, details.getValue().doubleValue(), 0.0);
+		assertEquals(1.0, details.getMin().doubleValue(), 0.0);
+		assertEquals(5.0, details.getMax().doubleValue(), 0.0);
+		recorder.flush();
+		details = metric.getValueDetails();
+		assertEquals(4, details.getNumSamples());
+		assertEquals(4.75, details.getValue().doubleValue(), 0.0);
+		assertEquals(10.0, details.getMax().doubleValue(), 0.0);
+	}
+
+	@Test
+	public void testValueThreads() throws Exception {
+		ControlledMetricValue metric = new ControlledMetricValue("comp", "mod", "name", "desc", null);
+		final ValueMetricRecorder recorder = new ValueMetricRecorder(metric, null, 64);
+		final int numThreads = 8;
+		final int numRecords = 10000;
+		Thread[] threads = new Thread[numThreads];
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ValueMetricRecorder.ValueBuffer buffer = recorder.getThreadBuffer();
+					for (int j = 0; j < numRecords; j++) {
+						buffer.record(2.0);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		// flush while the threads are recording
+		for (int i = 0; i < 100; i++) {
+			recorder.flush();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		recorder.flush();
+		MetricValueDetails details = metric.getValueDetails();
+		assertEquals(numThreads * numRecords, details.getNumSamples());
+		assertEquals(2.0, details.getValue().doubleValue(), 0.0);
+		assertEquals(2.0, details.getMin().doubleValue(), 0.0);
+		assertEquals(2.0, details.getMax().doubleValue(), 0.0);
+	}
+
+	@Test
+	public void testValuePrecision() {
+		ControlledMetricValue metric = new ControlledMetricValue("comp", "mod", "name", "desc", null);
+		ValueMetricRecorder recorder = new ValueMetricRecorder(metric, null, 2);
+		recorder.record(1.0E17);
+		recorder.record(1.0E17);
+		assertEquals(1.0E17, metric.getValueToPersist().doubleValue(), 0.0);
+		// the small sample is not lost against the earlier large ones
+		recorder.record(1.0);
+		recorder.flush();
+		assertEquals(1.0, metric.getValue().doubleValue(), 0.0);
+	}
+
+	@Test
+	public void testNullMetricNotRegistered() {
+		MetricsManager manager = new MetricsManager();
+		try {
+			new AccumMetricRecorder(null, manager);
+			fail("should have thrown");
+		} catch (NullPointerException npe) {
+			// expected
+		}
+		try {
+			new ValueMetricRecorder(null, manager);
+			fail("should have thrown");
+		} catch (NullPointerException npe) {
+			// expected
+		}
+		assertTrue(manager.getUpdaterStats().isEmpty());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadBatchSize() {
+		new AccumMetricRecorder(new ControlledMetricAccum("comp", "mod", "name", "desc", null), null, 0);
+	}
+}
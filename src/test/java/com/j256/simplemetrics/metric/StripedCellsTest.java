@@ -0,0 +1,114 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class StripedCellsTest {
+
+	@Test
+	public void testSlots() {
+		StripedCells cells = new StripedCells(StripedCells.KIND_LONG_SUM, StripedCells.KIND_DOUBLE_SUM,
+				StripedCells.KIND_LONG_MIN, StripedCells.KIND_LONG_MAX, StripedCells.KIND_DOUBLE_MIN,
+				StripedCells.KIND_DOUBLE_MAX);
+		cells.add(0, 10);
+		cells.add(0, 5);
+		cells.addDouble(1, 1.5);
+		cells.addDouble(1, 2.25);
+		cells.min(2, 7);
+		cells.min(2, 3);
+		cells.max(3, 7);
+		cells.max(3, 3);
+		cells.minDouble(4, 1.5);
+		cells.minDouble(4, -2.5);
+		cells.maxDouble(5, 1.5);
+		cells.maxDouble(5, -2.5);
+
+		long[] results = new long[6];
+		cells.drain(results);
+		assertEquals(15, results[0]);
+		assertEquals(3.75, Double.longBitsToDouble(results[1]), 0);
+		assertEquals(3, results[2]);
+		assertEquals(7, results[3]);
+		assertEquals(-2.5, Double.longBitsToDouble(results[4]), 0);
+		assertEquals(1.5, Double.longBitsToDouble(results[5]), 0);
+
+		// drained so we should be back to the identities
+		cells.drain(results);
+		for (int slot = 0; slot < results.length; slot++) {
+			assertEquals(cells.getIdentity(slot), results[slot]);
+		}
+	}
+
+	@Test
+	public void testPeek() {
+		StripedCells cells = new StripedCells(StripedCells.KIND_LONG_SUM, StripedCells.KIND_LONG_MAX);
+		cells.add(0, 10);
+		cells.max(1, 4);
+		long[] results = new long[2];
+		cells.peek(results);
+		assertEquals(10, results[0]);
+		assertEquals(4, results[1]);
+		// peeking does not reset the cells
+		cells.add(0, 1);
+		cells.drain(results);
+		assertEquals(11, results[0]);
+		assertEquals(4, results[1]);
+	}
+
+	@Test
+	public void testRestore() {
+		StripedCells cells = new StripedCells(StripedCells.KIND_LONG_SUM, StripedCells.KIND_DOUBLE_MAX);
+		cells.add(0, 10);
+		cells.maxDouble(1, 2.5);
+		long[] results = new long[2];
+		cells.drain(results);
+		cells.restore(results);
+		cells.add(0, 1);
+		cells.maxDouble(1, 1.5);
+		cells.drain(results);
+		assertEquals(11, results[0]);
+		assertEquals(2.5, Double.longBitsToDouble(results[1]), 0);
+	}
+
+	@Test
+	public void testCompensated() {
+		StripedCells cells = new StripedCells(StripedCells.KIND_DOUBLE_SUM, StripedCells.KIND_DOUBLE_SUM);
+		cells.addDouble(0, 1.0e16);
+		int num = 1000;
+		for (int i = 0; i < num; i++) {
+			cells.addDoubleCompensated(0, 1, 1.0);
+		}
+		long[] results = new long[2];
+		cells.drain(results);
+		double sum = Double.longBitsToDouble(results[0]) + Double.longBitsToDouble(results[1]);
+		assertEquals(1.0e16 + num, sum, 0);
+	}
+
+	@Test
+	public void testContention() throws Exception {
+		final StripedCells cells = new StripedCells(StripedCells.KIND_LONG_SUM, StripedCells.KIND_LONG_MAX);
+		final int numAdds = 100000;
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			final int threadNum = i;
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int x = 0; x < numAdds; x++) {
+						cells.add(0, 1);
+						cells.max(1, threadNum);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		long[] results = new long[2];
+		cells.drain(results);
+		assertEquals((long) threads.length * numAdds, results[0]);
+		assertEquals(threads.length - 1, results[1]);
+	}
+}
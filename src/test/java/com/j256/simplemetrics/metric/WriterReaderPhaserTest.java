@@ -0,0 +1,81 @@
+package com.j256.simplemetrics.metric;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class WriterReaderPhaserTest {
+
+	@Test(timeout = 10000)
+	public void testFlipWaitsForWriters() throws Exception {
+		final WriterReaderPhaser phaser = new WriterReaderPhaser();
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				long token = phaser.writerEnter();
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				phaser.writerExit(token);
+			}
+		});
+		writer.start();
+		entered.await();
+
+		final AtomicBoolean flipped = new AtomicBoolean();
+		Thread reader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				phaser.readerLock();
+				try {
+					phaser.flipPhase();
+					flipped.set(true);
+				} finally {
+					phaser.readerUnlock();
+				}
+			}
+		});
+		reader.start();
+		Thread.sleep(100);
+		// the writer is still in its critical section
+		assertFalse(flipped.get());
+
+		// writers that enter the new phase do not hold up the flip
+		long token = phaser.writerEnter();
+		release.countDown();
+		reader.join();
+		assertTrue(flipped.get());
+		phaser.writerExit(token);
+		writer.join();
+	}
+
+	@Test
+	public void testManyFlips() {
+		WriterReaderPhaser phaser = new WriterReaderPhaser();
+		phaser.readerLock();
+		try {
+			for (int i = 0; i < 10; i++) {
+				phaser.writerExit(phaser.writerEnter());
+				phaser.flipPhase();
+				// nothing in the new phase yet
+				phaser.flipPhase();
+			}
+		} finally {
+			phaser.readerUnlock();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testFlipWithoutLock() {
+		new WriterReaderPhaser().flipPhase();
+	}
+}
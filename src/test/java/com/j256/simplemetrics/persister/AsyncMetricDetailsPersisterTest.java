@@ -0,0 +1,125 @@
+package com.j256.simplemetrics.persister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricDistinct;
+import com.j256.simplemetrics.metric.ControlledMetricReservoir;
+import com.j256.simplemetrics.metric.ControlledMetricSketch;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.metric.MetricValueDetails;
+import com.j256.simplemetrics.persister.BaseAsyncMetricsPersister.DropPolicy;
+
+public class AsyncMetricDetailsPersisterTest {
+
+	@Test(timeout = 10000)
+	public void testCoalesce() throws Exception {
+		ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", null);
+		ControlledMetricValue value = new ControlledMetricValue("comp", "mod", "value", "desc", null);
+		ControlledMetricDistinct distinct = new ControlledMetricDistinct("comp", "mod", "users", "desc", null);
+		ControlledMetricSketch sketch = new ControlledMetricSketch("comp", "mod", "sketch", "desc", null);
+		ControlledMetricReservoir reservoir = new ControlledMetricReservoir("comp", "mod", "reservoir", "desc", null);
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<Map<ControlledMetric<?, ?>, MetricValueDetails>> persisted =
+				Collections.synchronizedList(new ArrayList<Map<ControlledMetric<?, ?>, MetricValueDetails>>());
+		MetricDetailsPersister delegate = new MetricDetailsPersister() {
+			@Override
+			public void persist(Map<ControlledMetric<?, ?>, MetricValueDetails> metricValueDetails,
+					long timeCollectedMillis) {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				persisted.add(metricValueDetails);
+			}
+		};
+		AsyncMetricDetailsPersister persister = new AsyncMetricDetailsPersister(delegate, 1, DropPolicy.COALESCE);
+		Map<ControlledMetric<?, ?>, MetricValueDetails> details;
+		try {
+			persister.persist(new HashMap<ControlledMetric<?, ?>, MetricValueDetails>(), 1000);
+			while (persister.getQueueLength() > 0) {
+				Thread.sleep(10);
+			}
+
+			details = new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+			accum.add(10);
+			details.put(accum, accum.getValueDetailsToPersist());
+			value.adjustValue(1);
+			value.adjustValue(3);
+			value.adjustValue(20);
+			details.put(value, value.getValueDetailsToPersist());
+			addUsers(distinct, 10);
+			details.put(distinct, distinct.getValueDetailsToPersist());
+			for (int i = 1; i <= 99; i++) {
+				sketch.adjustValue(i);
+			}
+			details.put(sketch, sketch.getValueDetailsToPersist());
+			reservoir.adjustValue(1);
+			details.put(reservoir, reservoir.getValueDetailsToPersist());
+			persister.persist(details, 2000);
+
+			details = new HashMap<ControlledMetric<?, ?>, MetricValueDetails>();
+			accum.add(5);
+			details.put(accum, accum.getValueDetailsToPersist());
+			value.adjustValue(4);
+			details.put(value, value.getValueDetailsToPersist());
+			// the same users again
+			addUsers(distinct, 10);
+			details.put(distinct, distinct.getValueDetailsToPersist());
+			sketch.adjustValue(1000);
+			details.put(sketch, sketch.getValueDetailsToPersist());
+			reservoir.adjustValue(2);
+			details.put(reservoir, reservoir.getValueDetailsToPersist());
+			persister.persist(details, 3000);
+			assertEquals(1, persister.getNumCoalesced());
+
+			latch.countDown();
+			while (persister.getNumPersisted() < 2) {
+				Thread.sleep(10);
+			}
+		} finally {
+			persister.destroyAndJoin();
+		}
+		details = persisted.get(1);
+		MetricValueDetails accumDetails = details.get(accum);
+		assertEquals(15L, accumDetails.getValue());
+		assertEquals(15, accumDetails.getNumSamples());
+		MetricValueDetails valueDetails = details.get(value);
+		// weighted by the number of samples
+		assertEquals(7.0, valueDetails.getValue().doubleValue(), 0);
+		assertEquals(4, valueDetails.getNumSamples());
+		assertEquals(1.0, valueDetails.getMin());
+		assertEquals(20.0, valueDetails.getMax());
+		// the distinct counts are not summed because the same users may be in both
+		assertEquals(10L, details.get(distinct).getValue().longValue());
+		// the sketches are merged so the percentiles cover both persists
+		MetricValueDetails sketchDetails = details.get(sketch);
+		assertEquals(100, sketchDetails.getNumSamples());
+		assertEquals(100, ControlledMetricSketch.merge(sketchDetails.getSerializedSketch()).getCount());
+		assertEquals(50.0, sketchDetails.getPercentiles()[0], 0);
+		assertEquals(50.0, sketchDetails.getPercentileValues()[0], 50.0 * 0.01);
+		// percentiles without a sketch can't be combined
+		MetricValueDetails reservoirDetails = details.get(reservoir);
+		assertEquals(2, reservoirDetails.getNumSamples());
+		assertNull(reservoirDetails.getPercentiles());
+		assertNull(reservoirDetails.getPercentileValues());
+	}
+
+	private void addUsers(ControlledMetricDistinct distinct, int numUsers) {
+		for (int i = 0; i < numUsers; i++) {
+			distinct.add(i);
+		}
+	}
+}
@@ -0,0 +1,180 @@
+package com.j256.simplemetrics.persister;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+import com.j256.simplemetrics.metric.ControlledMetric;
+import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricValue;
+import com.j256.simplemetrics.persister.BaseAsyncMetricsPersister.DropPolicy;
+
+public class AsyncMetricValuesPersisterTest {
+
+	private final ControlledMetricAccum accum = new ControlledMetricAccum("comp", "mod", "accum", "desc", null);
+	private final ControlledMetricValue value = new ControlledMetricValue("comp", "mod", "value", "desc", null);
+
+	@Test(timeout = 10000)
+	public void testPersist() throws Exception {
+		BlockingPersister delegate = new BlockingPersister();
+		delegate.latch.countDown();
+		AsyncMetricValuesPersister persister = new AsyncMetricValuesPersister(delegate, 10, DropPolicy.DROP_OLDEST);
+		try {
+			persister.persist(makeValues(1), 1000);
+			persister.persist(makeValues(2), 2000);
+			waitForPersisted(persister, 2);
+		} finally {
+			persister.destroyAndJoin();
+		}
+		assertEquals(2, persister.getNumEnqueued());
+		assertEquals(0, persister.getNumDropped());
+		assertEquals(2, delegate.persisted.size());
+		assertEquals(1L, delegate.persisted.get(0).get(accum));
+		assertEquals(Long.valueOf(2000), delegate.times.get(1));
+	}
+
+	@Test(timeout = 10000)
+	public void testDropOldest() throws Exception {
+		BlockingPersister delegate = new BlockingPersister();
+		AsyncMetricValuesPersister persister = new AsyncMetricValuesPersister(delegate, 2, DropPolicy.DROP_OLDEST);
+		try {
+			fillQueue(persister, 4);
+			assertEquals(2, persister.getNumDropped());
+			delegate.latch.countDown();
+			waitForPersisted(persister, 3);
+		} finally {
+			persister.destroyAndJoin();
+		}
+		// the first is taken by the worker and then 2 and 3 are dropped
+		assertEquals(1L, delegate.persisted.get(0).get(accum));
+		assertEquals(4L, delegate.persisted.get(1).get(accum));
+		assertEquals(5L, delegate.persisted.get(2).get(accum));
+	}
+
+	@Test(timeout = 10000)
+	public void testDropNewest() throws Exception {
+		BlockingPersister delegate = new BlockingPersister();
+		AsyncMetricValuesPersister persister = new AsyncMetricValuesPersister(delegate, 2, DropPolicy.DROP_NEWEST);
+		try {
+			fillQueue(persister, 4);
+			assertEquals(2, persister.getNumDropped());
+			delegate.latch.countDown();
+			waitForPersisted(persister, 3);
+		} finally {
+			persister.destroyAndJoin();
+		}
+		assertEquals(1L, delegate.persisted.get(0).get(accum));
+		assertEquals(2L, delegate.persisted.get(1).get(accum));
+		assertEquals(3L, delegate.persisted.get(2).get(accum));
+	}
+
+	@Test(timeout = 10000)
+	public void testCoalesce() throws Exception {
+		BlockingPersister delegate = new BlockingPersister();
+		AsyncMetricValuesPersister persister = new AsyncMetricValuesPersister(delegate, 2, DropPolicy.COALESCE);
+		try {
+			fillQueue(persister, 4);
+			assertEquals(0, persister.getNumDropped());
+			assertEquals(2, persister.getNumCoalesced());
+			assertEquals(2, persister.getQueueLength());
+			delegate.latch.countDown();
+			waitForPersisted(persister, 3);
+		} finally {
+			persister.destroyAndJoin();
+		}
+		assertEquals(2L, delegate.persisted.get(1).get(accum));
+		// the sums are added together but the values are the newest
+		assertEquals(3L + 4 + 5, delegate.persisted.get(2).get(accum));
+		assertEquals(5.5, delegate.persisted.get(2).get(value));
+	}
+
+	@Test(timeout = 10000)
+	public void testDelegateThrows() throws Exception {
+		BlockingPersister delegate = new BlockingPersister();
+		delegate.latch.countDown();
+		delegate.exception = new IOException("down");
+		AsyncMetricValuesPersister persister = new AsyncMetricValuesPersister(delegate, 2, DropPolicy.DROP_OLDEST);
+		try {
+			assertNull(persister.getLastException());
+			persister.persist(makeValues(1), 1000);
+			while (persister.getNumFailed() == 0) {
+				Thread.sleep(10);
+			}
+		} finally {
+			persister.destroyAndJoin();
+		}
+		assertSame(delegate.exception, persister.getLastException());
+		assertEquals(0, persister.getNumPersisted());
+	}
+
+	@Test
+	public void testDestroyNotInitialized() {
+		AsyncMetricValuesPersister persister = new AsyncMetricValuesPersister();
+		persister.destroy();
+		persister.destroyAndJoin();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testNoDelegate() {
+		new AsyncMetricValuesPersister().initialize();
+	}
+
+	/**
+	 * Persist once so the worker blocks in the delegate and then queue the rest.
+	 */
+	private void fillQueue(AsyncMetricValuesPersister persister, int numMore) throws InterruptedException {
+		persister.persist(makeValues(1), 1000);
+		while (persister.getQueueLength() > 0) {
+			Thread.sleep(10);
+		}
+		for (int i = 2; i < 2 + numMore; i++) {
+			persister.persist(makeValues(i), i * 1000);
+		}
+	}
+
+	private Map<ControlledMetric<?, ?>, Number> makeValues(long num) {
+		Map<ControlledMetric<?, ?>, Number> values = new HashMap<ControlledMetric<?, ?>, Number>();
+		values.put(accum, num);
+		values.put(value, num + 0.5);
+		return values;
+	}
+
+	private void waitForPersisted(AsyncMetricValuesPersister persister, int num) throws InterruptedException {
+		while (persister.getNumPersisted() < num) {
+			Thread.sleep(10);
+		}
+	}
+
+	private static class BlockingPersister implements MetricValuesPersister {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final List<Map<ControlledMetric<?, ?>, Number>> persisted =
+				Collections.synchronizedList(new ArrayList<Map<ControlledMetric<?, ?>, Number>>());
+		final List<Long> times = Collections.synchronizedList(new ArrayList<Long>());
+		IOException exception;
+
+		@Override
+		public void persist(Map<ControlledMetric<?, ?>, Number> metricValues, long timeCollectedMillis)
+				throws IOException {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			if (exception != null) {
+				throw exception;
+			}
+			persisted.add(metricValues);
+			times.add(timeCollectedMillis);
+		}
+	}
+}
@@ -3,10 +3,12 @@ package com.j256.simplemetrics.persister;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Test;
 
@@ -24,6 +26,12 @@ import com.j256.simplemetrics.manager.MetricsManager;
 import com.j256.simplemetrics.metric.ControlledMetric;
 import com.j256.simplemetrics.metric.ControlledMetric.AggregationType;
 import com.j256.simplemetrics.metric.ControlledMetricAccum;
+import com.j256.simplemetrics.metric.ControlledMetricDoubleAccum;
+import com.j256.simplemetrics.metric.ControlledMetricFamily;
+import com.j256.simplemetrics.metric.ControlledMetricGauge;
+import com.j256.simplemetrics.metric.ControlledMetricGauge.DoubleProbe;
+import com.j256.simplemetrics.metric.ControlledMetricHistogram;
+import com.j256.simplemetrics.metric.ControlledMetricRate;
 import com.j256.simplemetrics.metric.ControlledMetricValue;
 
 public class CloudWatchMetricsPersisterTest {
@@ -113,6 +121,199 @@ public class CloudWatchMetricsPersisterTest {
 		verify(cloudWatchClient);
 	}
 
+	@Test
+	public void testPercentiles() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		CloudWatchMetricsPersister persister = new CloudWatchMetricsPersister();
+		String appName = getClass().getSimpleName();
+		persister.setApplicationName(appName);
+		AmazonCloudWatch cloudWatchClient = createMock(AmazonCloudWatch.class);
+		persister.setCloudWatchClient(cloudWatchClient);
+		persister.setAddInstanceData(false);
+		persister.initialize();
+		manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { persister });
+		ControlledMetricHistogram histogram =
+				new ControlledMetricHistogram("test", null, "latency", null, "ms", 5, new double[] { 50.0, 99.9 });
+		manager.registerMetric(histogram);
+		histogram.adjustValue(10);
+
+		Dimension dimension = new Dimension().withName("Component").withValue("test");
+		List<MetricDatum> data = new ArrayList<MetricDatum>();
+		data.add(new MetricDatum().withMetricName("latency")
+				.withUnit(StandardUnit.Milliseconds)
+				.withDimensions(dimension)
+				.withValue(10.0));
+		data.add(new MetricDatum().withMetricName("latency.p50")
+				.withUnit(StandardUnit.Milliseconds)
+				.withDimensions(dimension)
+				.withValue(10.0));
+		data.add(new MetricDatum().withMetricName("latency.p999")
+				.withUnit(StandardUnit.Milliseconds)
+				.withDimensions(dimension)
+				.withValue(10.0));
+		cloudWatchClient.putMetricData(
+				new PutMetricDataRequest().withNamespace("Application: " + appName).withMetricData(data));
+
+		replay(cloudWatchClient);
+		manager.persist();
+		verify(cloudWatchClient);
+	}
+
+	@Test
+	public void testLabels() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		CloudWatchMetricsPersister persister = new CloudWatchMetricsPersister();
+		String appName = getClass().getSimpleName();
+		persister.setApplicationName(appName);
+		AmazonCloudWatch cloudWatchClient = createMock(AmazonCloudWatch.class);
+		persister.setCloudWatchClient(cloudWatchClient);
+		persister.setAddInstanceData(false);
+		persister.initialize();
+		manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { persister });
+		ControlledMetricFamily<ControlledMetricValue> family = new ControlledMetricFamily<ControlledMetricValue>(
+				manager, "test", null, "latency", null, "ms", new String[] { "endpoint" },
+				ControlledMetricFamily.valueFactory());
+		family.getChild("/users").adjustValue(10);
+
+		List<MetricDatum> data = new ArrayList<MetricDatum>();
+		data.add(new MetricDatum().withMetricName("latency")
+				.withUnit(StandardUnit.Milliseconds)
+				.withDimensions(new Dimension().withName("Component").withValue("test"),
+						new Dimension().withName("endpoint").withValue("/users"))
+				.withValue(10.0));
+		cloudWatchClient.putMetricData(
+				new PutMetricDataRequest().withNamespace("Application: " + appName).withMetricData(data));
+
+		replay(cloudWatchClient);
+		manager.persist();
+		verify(cloudWatchClient);
+	}
+
+	@Test
+	public void testDoubleAccum() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		CloudWatchMetricsPersister persister = new CloudWatchMetricsPersister();
+		String appName = getClass().getSimpleName();
+		persister.setApplicationName(appName);
+		AmazonCloudWatch cloudWatchClient = createMock(AmazonCloudWatch.class);
+		persister.setCloudWatchClient(cloudWatchClient);
+		persister.setAddInstanceData(false);
+		persister.initialize();
+		manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { persister });
+		ControlledMetricDoubleAccum metric = new ControlledMetricDoubleAccum("test", null, "bytes", null, "Gigabytes");
+		manager.registerMetric(metric);
+		metric.add(1.5);
+		metric.add(0.25);
+
+		// the fractional total is posted as is instead of being flipped into a count
+		List<MetricDatum> data = new ArrayList<MetricDatum>();
+		data.add(new MetricDatum().withMetricName("bytes")
+				.withUnit(StandardUnit.Gigabytes)
+				.withDimensions(new Dimension().withName("Component").withValue("test"))
+				.withValue(1.75));
+		cloudWatchClient.putMetricData(
+				new PutMetricDataRequest().withNamespace("Application: " + appName).withMetricData(data));
+		// a whole total is still posted as a total and not flipped into 3 samples
+		data = new ArrayList<MetricDatum>();
+		data.add(new MetricDatum().withMetricName("bytes")
+				.withUnit(StandardUnit.Gigabytes)
+				.withDimensions(new Dimension().withName("Component").withValue("test"))
+				.withValue(3.0));
+		cloudWatchClient.putMetricData(
+				new PutMetricDataRequest().withNamespace("Application: " + appName).withMetricData(data));
+
+		replay(cloudWatchClient);
+		manager.persist();
+		metric.add(1.5);
+		metric.add(1.5);
+		manager.persist();
+		verify(cloudWatchClient);
+	}
+
+	@Test
+	public void testDoubleAccumSnapshot() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		CloudWatchMetricsPersister persister = new CloudWatchMetricsPersister();
+		String appName = getClass().getSimpleName();
+		persister.setApplicationName(appName);
+		AmazonCloudWatch cloudWatchClient = createMock(AmazonCloudWatch.class);
+		persister.setCloudWatchClient(cloudWatchClient);
+		persister.setAddInstanceData(false);
+		persister.initialize();
+		// the total flag makes it through the snapshot
+		manager.setMetricsSnapshotPersisters(
+				new MetricsSnapshotPersister[] { new MetricsSnapshotPersisterAdapter(persister) });
+		ControlledMetricDoubleAccum metric = new ControlledMetricDoubleAccum("test", null, "bytes", null, "Gigabytes");
+		manager.registerMetric(metric);
+		metric.add(1.5);
+		metric.add(1.5);
+
+		List<MetricDatum> data = new ArrayList<MetricDatum>();
+		data.add(new MetricDatum().withMetricName("bytes")
+				.withUnit(StandardUnit.Gigabytes)
+				.withDimensions(new Dimension().withName("Component").withValue("test"))
+				.withValue(3.0));
+		cloudWatchClient.putMetricData(
+				new PutMetricDataRequest().withNamespace("Application: " + appName).withMetricData(data));
+
+		replay(cloudWatchClient);
+		manager.persist();
+		verify(cloudWatchClient);
+	}
+
+	@Test
+	public void testGaugeProbeNeverWorked() throws IOException {
+		MetricsManager manager = new MetricsManager();
+		CloudWatchMetricsPersister persister = new CloudWatchMetricsPersister();
+		String appName = getClass().getSimpleName();
+		persister.setApplicationName(appName);
+		AmazonCloudWatch cloudWatchClient = createMock(AmazonCloudWatch.class);
+		persister.setCloudWatchClient(cloudWatchClient);
+		persister.setAddInstanceData(false);
+		persister.initialize();
+		manager.setMetricDetailsPersisters(new MetricDetailsPersister[] { persister });
+		ControlledMetricGauge gauge = new ControlledMetricGauge("test", null, "never", null, null, new DoubleProbe() {
+			@Override
+			public double getValue() {
+				throw new IllegalStateException("probe failed");
+			}
+		});
+		manager.registerMetric(gauge);
+		ControlledMetricValue valueMetric = new ControlledMetricValue("test", null, "value", null, null);
+		manager.registerMetric(valueMetric);
+		valueMetric.adjustValue(2);
+
+		// the NaN gauge is not posted because it would fail the whole request
+		List<MetricDatum> data = new ArrayList<MetricDatum>();
+		data.add(new MetricDatum().withMetricName("value")
+				.withUnit(StandardUnit.None)
+				.withDimensions(new Dimension().withName("Component").withValue("test"))
+				.withValue(2.0));
+		cloudWatchClient.putMetricData(
+				new PutMetricDataRequest().withNamespace("Application: " + appName).withMetricData(data));
+
+		replay(cloudWatchClient);
+		manager.persist();
+		verify(cloudWatchClient);
+	}
+
+	@Test
+	public void testTimeUnits() {
+		assertEquals(StandardUnit.None, CloudWatchMetricsPersister.convertUnit(TimeUnit.NANOSECONDS.name()));
+		assertEquals(StandardUnit.Microseconds,
+				CloudWatchMetricsPersister.convertUnit(TimeUnit.MICROSECONDS.name().toLowerCase()));
+		assertEquals(StandardUnit.Milliseconds,
+				CloudWatchMetricsPersister.convertUnit(TimeUnit.MILLISECONDS.name().toLowerCase()));
+		assertEquals(StandardUnit.Seconds,
+				CloudWatchMetricsPersister.convertUnit(TimeUnit.SECONDS.name().toLowerCase()));
+		for (TimeUnit timeUnit : new TimeUnit[] { TimeUnit.MINUTES, TimeUnit.HOURS, TimeUnit.DAYS }) {
+			// not posted as a count
+			assertEquals(StandardUnit.None, CloudWatchMetricsPersister.convertUnit(timeUnit.name().toLowerCase()));
+		}
+		assertEquals(StandardUnit.CountSecond,
+				CloudWatchMetricsPersister.convertUnit(ControlledMetricRate.DEFAULT_UNIT));
+	}
+
 	@Test
 	public void testCoverage() {
 		AWSCredentials creds = new BasicAWSCredentials("key", "secret");
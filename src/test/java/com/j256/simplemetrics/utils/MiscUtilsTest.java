@@ -28,6 +28,12 @@ public class MiscUtilsTest {
 		assertEquals("The", MiscUtils.capitalize("the"));
 	}
 
+	@Test
+	public void testPercentileToString() {
+		assertEquals("p50", MiscUtils.percentileToString(50.0));
+		assertEquals("p999", MiscUtils.percentileToString(99.9));
+	}
+
 	@Test
 	public void testCloseQuietlyThrows() throws IOException {
 		Closeable closeable = EasyMock.createMock(Closeable.class);